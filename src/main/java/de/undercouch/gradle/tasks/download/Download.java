@@ -26,6 +26,7 @@ import org.gradle.api.tasks.TaskAction;
 
 import java.io.File;
 import java.io.IOException;
+import java.net.URL;
 import java.util.List;
 import java.util.Map;
 
@@ -51,6 +52,12 @@ public class Download extends DefaultTask implements DownloadSpec {
 
         action = new DownloadAction(getProject(), this);
 
+        // declare that this task uses the build service providing shared
+        // HTTP clients
+        if (action.getHttpClientService() != null) {
+            usesService(action.getHttpClientService());
+        }
+
         getOutputs().upToDateWhen(task -> !(isOnlyIfModified() || isOverwrite()));
         
         onlyIf(task -> {
@@ -166,11 +173,36 @@ public class Download extends DefaultTask implements DownloadSpec {
         action.readTimeout(milliseconds);
     }
 
+    @Override
+    public void maxConnectionsPerHost(int maxConnectionsPerHost) {
+        action.maxConnectionsPerHost(maxConnectionsPerHost);
+    }
+
+    @Override
+    public void maxConnectionsTotal(int maxConnectionsTotal) {
+        action.maxConnectionsTotal(maxConnectionsTotal);
+    }
+
     @Override
     public void retries(int retries) {
         action.retries(retries);
     }
 
+    @Override
+    public void retryDelay(int milliseconds) {
+        action.retryDelay(milliseconds);
+    }
+
+    @Override
+    public void maxRetryDelay(int milliseconds) {
+        action.maxRetryDelay(milliseconds);
+    }
+
+    @Override
+    public void segments(int segments) {
+        action.segments(segments);
+    }
+
     @Override
     public void downloadTaskDir(Object dir) {
         action.downloadTaskDir(dir);
@@ -181,6 +213,106 @@ public class Download extends DefaultTask implements DownloadSpec {
         action.tempAndMove(tempAndMove);
     }
 
+    @Override
+    public void linkLocalFiles(boolean linkLocalFiles) {
+        action.linkLocalFiles(linkLocalFiles);
+    }
+
+    @Override
+    public void sharedCache(boolean sharedCache) {
+        action.sharedCache(sharedCache);
+    }
+
+    @Override
+    public void sharedCacheDir(Object dir) {
+        action.sharedCacheDir(dir);
+    }
+
+    @Override
+    public void sharedCacheMaxSize(long maxSize) {
+        action.sharedCacheMaxSize(maxSize);
+    }
+
+    @Override
+    public void remoteCache(Object url) {
+        action.remoteCache(url);
+    }
+
+    @Override
+    public void remoteCachePush(boolean push) {
+        action.remoteCachePush(push);
+    }
+
+    @Override
+    public void writeEngine(String writeEngine) {
+        action.writeEngine(writeEngine);
+    }
+
+    @Override
+    public void httpEngine(String httpEngine) {
+        action.httpEngine(httpEngine);
+    }
+
+    @Override
+    public void httpVersion(String httpVersion) {
+        action.httpVersion(httpVersion);
+    }
+
+    @Override
+    public void bufferSize(int bufferSize) {
+        action.bufferSize(bufferSize);
+    }
+
+    @Override
+    public void preallocate(boolean preallocate) {
+        action.preallocate(preallocate);
+    }
+
+    @Override
+    public void virtualThreads(boolean virtualThreads) {
+        action.virtualThreads(virtualThreads);
+    }
+
+    @Override
+    public void maxVirtualThreads(int maxVirtualThreads) {
+        action.maxVirtualThreads(maxVirtualThreads);
+    }
+
+    @Override
+    public void maxConcurrentDownloads(int maxConcurrentDownloads) {
+        action.maxConcurrentDownloads(maxConcurrentDownloads);
+    }
+
+    @Override
+    public void maxConcurrentDownloadsPerHost(int maxConcurrentDownloadsPerHost) {
+        action.maxConcurrentDownloadsPerHost(maxConcurrentDownloadsPerHost);
+    }
+
+    @Override
+    public void maxBytesPerSecond(long maxBytesPerSecond) {
+        action.maxBytesPerSecond(maxBytesPerSecond);
+    }
+
+    @Override
+    public void maxBytesPerSecondTotal(long maxBytesPerSecondTotal) {
+        action.maxBytesPerSecondTotal(maxBytesPerSecondTotal);
+    }
+
+    @Override
+    public void adaptiveConcurrency(boolean adaptiveConcurrency) {
+        action.adaptiveConcurrency(adaptiveConcurrency);
+    }
+
+    @Override
+    public void checksum(String algorithm, String checksum) {
+        action.checksum(algorithm, checksum);
+    }
+
+    @Override
+    public void checksum(Object src, String algorithm, String checksum) {
+        action.checksum(src, algorithm, checksum);
+    }
+
     @Override
     public void useETag(Object useETag) {
         action.useETag(useETag);
@@ -191,6 +323,11 @@ public class Download extends DefaultTask implements DownloadSpec {
         action.cachedETagsFile(location);
     }
 
+    @Override
+    public void cachedETagsFormat(String format) {
+        action.cachedETagsFormat(format);
+    }
+
     @Override
     public void eachFile(Action<? super DownloadDetails> action) {
         this.action.eachFile(action);
@@ -303,12 +440,42 @@ public class Download extends DefaultTask implements DownloadSpec {
         return action.getReadTimeout();
     }
 
+    @Internal
+    @Override
+    public int getMaxConnectionsPerHost() {
+        return action.getMaxConnectionsPerHost();
+    }
+
+    @Internal
+    @Override
+    public int getMaxConnectionsTotal() {
+        return action.getMaxConnectionsTotal();
+    }
+
     @Input
     @Override
     public int getRetries() {
         return action.getRetries();
     }
 
+    @Internal
+    @Override
+    public int getRetryDelay() {
+        return action.getRetryDelay();
+    }
+
+    @Internal
+    @Override
+    public int getMaxRetryDelay() {
+        return action.getMaxRetryDelay();
+    }
+
+    @Internal
+    @Override
+    public int getSegments() {
+        return action.getSegments();
+    }
+
     @Internal
     @Override
     public File getDownloadTaskDir() {
@@ -321,6 +488,120 @@ public class Download extends DefaultTask implements DownloadSpec {
         return action.isTempAndMove();
     }
 
+    @Input
+    @Override
+    public boolean isLinkLocalFiles() {
+        return action.isLinkLocalFiles();
+    }
+
+    @Internal
+    @Override
+    public boolean isSharedCache() {
+        return action.isSharedCache();
+    }
+
+    @Internal
+    @Override
+    public File getSharedCacheDir() {
+        return action.getSharedCacheDir();
+    }
+
+    @Internal
+    @Override
+    public long getSharedCacheMaxSize() {
+        return action.getSharedCacheMaxSize();
+    }
+
+    @Internal
+    @Override
+    public URL getRemoteCache() {
+        return action.getRemoteCache();
+    }
+
+    @Internal
+    @Override
+    public boolean isRemoteCachePush() {
+        return action.isRemoteCachePush();
+    }
+
+    @Internal
+    @Override
+    public String getWriteEngine() {
+        return action.getWriteEngine();
+    }
+
+    @Internal
+    @Override
+    public String getHttpEngine() {
+        return action.getHttpEngine();
+    }
+
+    @Internal
+    @Override
+    public String getHttpVersion() {
+        return action.getHttpVersion();
+    }
+
+    @Internal
+    @Override
+    public int getBufferSize() {
+        return action.getBufferSize();
+    }
+
+    @Internal
+    @Override
+    public boolean isPreallocate() {
+        return action.isPreallocate();
+    }
+
+    @Internal
+    @Override
+    public boolean isVirtualThreads() {
+        return action.isVirtualThreads();
+    }
+
+    @Internal
+    @Override
+    public int getMaxVirtualThreads() {
+        return action.getMaxVirtualThreads();
+    }
+
+    @Internal
+    @Override
+    public int getMaxConcurrentDownloads() {
+        return action.getMaxConcurrentDownloads();
+    }
+
+    @Internal
+    @Override
+    public int getMaxConcurrentDownloadsPerHost() {
+        return action.getMaxConcurrentDownloadsPerHost();
+    }
+
+    @Internal
+    @Override
+    public long getMaxBytesPerSecond() {
+        return action.getMaxBytesPerSecond();
+    }
+
+    @Internal
+    @Override
+    public long getMaxBytesPerSecondTotal() {
+        return action.getMaxBytesPerSecondTotal();
+    }
+
+    @Internal
+    @Override
+    public boolean isAdaptiveConcurrency() {
+        return action.isAdaptiveConcurrency();
+    }
+
+    @Input
+    @Override
+    public Map<String, String> getChecksums() {
+        return action.getChecksums();
+    }
+
     @Input
     @Optional
     @Override
@@ -334,6 +615,12 @@ public class Download extends DefaultTask implements DownloadSpec {
         return action.getCachedETagsFile();
     }
 
+    @Internal
+    @Override
+    public String getCachedETagsFormat() {
+        return action.getCachedETagsFormat();
+    }
+
     @Input
     @Optional
     @Override
@@ -1,13 +1,36 @@
 package de.undercouch.gradle.tasks.download;
 
+import de.undercouch.gradle.tasks.download.internal.AsyncWriteEngine;
+import de.undercouch.gradle.tasks.download.internal.BandwidthLimiter;
+import de.undercouch.gradle.tasks.download.internal.BufferPool;
 import de.undercouch.gradle.tasks.download.internal.CachingHttpClientFactory;
+import de.undercouch.gradle.tasks.download.internal.Checksum;
+import de.undercouch.gradle.tasks.download.internal.CountingInputStream;
 import de.undercouch.gradle.tasks.download.internal.DefaultDownloadDetails;
+import de.undercouch.gradle.tasks.download.internal.DownloadCache;
+import de.undercouch.gradle.tasks.download.internal.DownloadLimiter;
+import de.undercouch.gradle.tasks.download.internal.ETagStore;
+import de.undercouch.gradle.tasks.download.internal.FileResponseConsumer;
 import de.undercouch.gradle.tasks.download.internal.HttpClientFactory;
+import de.undercouch.gradle.tasks.download.internal.HostBackoff;
+import de.undercouch.gradle.tasks.download.internal.HttpClientService;
+import de.undercouch.gradle.tasks.download.internal.HttpTransport;
+import de.undercouch.gradle.tasks.download.internal.JdkHttpTransports;
+import de.undercouch.gradle.tasks.download.internal.MappedWriteEngine;
+import de.undercouch.gradle.tasks.download.internal.PartFileLock;
 import de.undercouch.gradle.tasks.download.internal.ProgressLoggerWrapper;
+import de.undercouch.gradle.tasks.download.internal.RemoteCache;
+import de.undercouch.gradle.tasks.download.internal.ResponseObserver;
+import de.undercouch.gradle.tasks.download.internal.RetryBackoff;
+import de.undercouch.gradle.tasks.download.internal.RetryBudget;
+import de.undercouch.gradle.tasks.download.internal.RetryLogger;
+import de.undercouch.gradle.tasks.download.internal.Scheduler;
+import de.undercouch.gradle.tasks.download.internal.SyncWriteEngine;
+import de.undercouch.gradle.tasks.download.internal.ThrottledInputStream;
+import de.undercouch.gradle.tasks.download.internal.VirtualThreadWorkerExecutorHelper;
 import de.undercouch.gradle.tasks.download.internal.WorkerExecutorFuture;
 import de.undercouch.gradle.tasks.download.internal.WorkerExecutorHelper;
-import groovy.json.JsonOutput;
-import groovy.json.JsonSlurper;
+import de.undercouch.gradle.tasks.download.internal.WriteEngine;
 import groovy.lang.Closure;
 import kotlin.jvm.functions.Function0;
 import org.apache.hc.client5.http.ClientProtocolException;
@@ -21,10 +44,12 @@ import org.apache.hc.client5.http.classic.methods.HttpUriRequestBase;
 import org.apache.hc.client5.http.config.RequestConfig;
 import org.apache.hc.client5.http.impl.auth.BasicAuthCache;
 import org.apache.hc.client5.http.impl.auth.BasicCredentialsProvider;
+import org.apache.hc.client5.http.impl.async.CloseableHttpAsyncClient;
 import org.apache.hc.client5.http.impl.auth.BasicScheme;
 import org.apache.hc.client5.http.impl.classic.CloseableHttpClient;
 import org.apache.hc.client5.http.protocol.HttpClientContext;
 import org.apache.hc.client5.http.utils.DateUtils;
+import org.apache.hc.core5.concurrent.FutureCallback;
 import org.apache.hc.core5.http.ClassicHttpResponse;
 import org.apache.hc.core5.http.Header;
 import org.apache.hc.core5.http.HttpEntity;
@@ -32,10 +57,17 @@ import org.apache.hc.core5.http.HttpHeaders;
 import org.apache.hc.core5.http.HttpHost;
 import org.apache.hc.core5.http.HttpResponse;
 import org.apache.hc.core5.http.HttpStatus;
+import org.apache.hc.core5.http.Method;
 import org.apache.hc.core5.http.io.HttpClientResponseHandler;
 import org.apache.hc.core5.http.io.entity.StringEntity;
+import org.apache.hc.core5.http.nio.AsyncEntityProducer;
+import org.apache.hc.core5.http.nio.entity.StringAsyncEntityProducer;
+import org.apache.hc.core5.http.nio.support.BasicRequestProducer;
+import org.apache.hc.core5.http2.HttpVersionPolicy;
+import org.apache.hc.core5.net.URIAuthority;
 import org.apache.hc.core5.util.Timeout;
 import org.gradle.api.Action;
+import org.gradle.api.GradleException;
 import org.gradle.api.JavaVersion;
 import org.gradle.api.Project;
 import org.gradle.api.Task;
@@ -56,19 +88,25 @@ import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.ObjectInputStream;
-import java.io.PrintWriter;
+import java.io.RandomAccessFile;
 import java.io.Serializable;
 import java.lang.reflect.Array;
 import java.net.MalformedURLException;
 import java.net.URI;
 import java.net.URISyntaxException;
 import java.net.URL;
+import java.net.UnknownHostException;
 import java.nio.ByteBuffer;
-import java.nio.channels.AsynchronousFileChannel;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
+import java.nio.file.Path;
 import java.nio.file.StandardOpenOption;
+import java.security.DigestInputStream;
+import java.security.MessageDigest;
 import java.time.Instant;
 import java.util.ArrayList;
+import java.util.Base64;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.HashSet;
@@ -76,10 +114,19 @@ import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Locale;
 import java.util.Map;
+import java.util.Queue;
 import java.util.Set;
+import java.util.concurrent.CancellationException;
 import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
 import java.util.concurrent.ExecutionException;
-import java.util.concurrent.Future;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.locks.Lock;
 import java.util.concurrent.locks.ReentrantLock;
@@ -90,8 +137,75 @@ import java.util.concurrent.locks.ReentrantLock;
  */
 @SuppressWarnings({"ResultOfMethodCallIgnored", "CommentedOutCode"})
 public class DownloadAction implements DownloadSpec, Serializable {
+    /**
+     * The minimum size of a segment if a file is downloaded in multiple
+     * segments. Smaller files are always downloaded with a single request.
+     */
+    private static final long MIN_SEGMENT_SIZE = 1024 * 1024;
+
+    /**
+     * The maximum number of bytes to copy at once from a local file to the
+     * destination file. Progress is logged after each chunk.
+     */
+    private static final long TRANSFER_CHUNK_SIZE = 8 * 1024 * 1024;
+
+    /**
+     * The default size of the buffers used to write downloaded bytes to a file
+     */
+    private static final int DEFAULT_BUFFER_SIZE = 1024 * 10;
+    private static final int DEFAULT_MAX_VIRTUAL_THREADS = 64;
+
+    /**
+     * The maximum number of bytes kept in idle pooled buffers
+     */
+    private static final int MAX_POOLED_BUFFER_BYTES = 4 * 1024 * 1024;
+
+    /**
+     * The number of buffers used by the asynchronous write engine
+     */
+    private static final int ASYNC_WRITE_BUFFERS = 4;
+
+    /**
+     * Files smaller than this size are written synchronously if the write
+     * engine is selected automatically
+     */
+    private static final long ASYNC_WRITE_THRESHOLD = 1024 * 1024;
+
+    /**
+     * The default maximum number of concurrent connections to a single host
+     */
+    private static final int DEFAULT_MAX_CONNECTIONS_PER_HOST = 20;
+
+    /**
+     * The default maximum number of concurrent connections to all hosts
+     */
+    private static final int DEFAULT_MAX_CONNECTIONS_TOTAL = 200;
+
+    /**
+     * The default number of milliseconds to wait before a failed request is
+     * retried for the first time
+     */
+    private static final int DEFAULT_RETRY_DELAY_MS = 100;
+
+    /**
+     * The default maximum number of milliseconds to wait before a failed
+     * request is retried
+     */
+    private static final int DEFAULT_MAX_RETRY_DELAY_MS = 30 * 1000;
+
+    /**
+     * The default maximum size of the shared cache
+     */
+    private static final long DEFAULT_SHARED_CACHE_MAX_SIZE = 10L * 1024 * 1024 * 1024;
+
     private static final GradleVersion HARD_MIN_GRADLE_VERSION =
             GradleVersion.version("5.0");
+
+    /**
+     * The minimum Gradle version that supports build services
+     */
+    private static final GradleVersion BUILD_SERVICES_MIN_GRADLE_VERSION =
+            GradleVersion.version("6.1");
     // private static final GradleVersion SOFT_MIN_GRADLE_VERSION =
     //         GradleVersion.version("5.0");
 
@@ -101,6 +215,7 @@ public class DownloadAction implements DownloadSpec, Serializable {
     private final Object servicesOwner;
     private final ObjectFactory objectFactory;
     private final boolean isOffline;
+    private final Provider<HttpClientService> httpClientService;
     private final List<Object> sourceObjects = new ArrayList<>(1);
     private List<URL> cachedSources;
     private int sourceObjectsCached;
@@ -121,15 +236,50 @@ public class DownloadAction implements DownloadSpec, Serializable {
     private boolean acceptAnyCertificate = false;
     private int connectTimeoutMs = 30 * 1000;
     private int readTimeoutMs = 30 * 1000;
+    private int maxConnectionsPerHost = DEFAULT_MAX_CONNECTIONS_PER_HOST;
+    private int maxConnectionsTotal = DEFAULT_MAX_CONNECTIONS_TOTAL;
     private int retries = 0;
+    private int retryDelayMs = DEFAULT_RETRY_DELAY_MS;
+    private int maxRetryDelayMs = DEFAULT_MAX_RETRY_DELAY_MS;
+    private int segments = 1;
     private File downloadTaskDir;
     private boolean tempAndMove = false;
+    private boolean linkLocalFiles = false;
+    private WriteEngineType writeEngine = WriteEngineType.AUTO;
+    private HttpEngineType httpEngine = HttpEngineType.CLASSIC;
+    private HttpVersion httpVersion = HttpVersion.AUTO;
+    private int bufferSize = DEFAULT_BUFFER_SIZE;
+    private boolean preallocate = false;
+    private boolean virtualThreads = false;
+    private int maxVirtualThreads = DEFAULT_MAX_VIRTUAL_THREADS;
+    private int maxConcurrentDownloads = 0;
+    private int maxConcurrentDownloadsPerHost = 0;
+    private long maxBytesPerSecond = 0;
+    private long maxBytesPerSecondTotal = 0;
+    private boolean adaptiveConcurrency = false;
+    private transient BandwidthLimiter bandwidthLimiter;
+    private transient DownloadLimiter downloadLimiter;
+    private transient Executor downloadExecutor;
+    private transient HostBackoff hostBackoff;
+    private transient BufferPool bufferPool;
+    private Checksum defaultChecksum;
+    private final Map<String, Checksum> checksums = new LinkedHashMap<>();
     private UseETag useETag = UseETag.FALSE;
     private String method = "GET";
     private String body;
     private Transformer<Boolean, Integer> statusValidator;
     private File cachedETagsFile;
     private transient Lock cachedETagsFileLock = new ReentrantLock();
+    private ETagsFormat cachedETagsFormat = ETagsFormat.JSON;
+    private transient ETagStore etagStore;
+    private boolean sharedCache = false;
+    private File sharedCacheDir;
+    private long sharedCacheMaxSize = DEFAULT_SHARED_CACHE_MAX_SIZE;
+    private transient DownloadCache downloadCache;
+    private transient Map<File, PartFileLock> partFileLocks = new ConcurrentHashMap<>();
+    private URL remoteCacheUrl;
+    private boolean remoteCachePush = false;
+    private transient RemoteCache remoteCache;
     private final List<Action<? super DownloadDetails>> eachFileActions = new ArrayList<>();
     private final AtomicInteger upToDate = new AtomicInteger(0);
 
@@ -151,7 +301,9 @@ public class DownloadAction implements DownloadSpec, Serializable {
         this(project.getLayout(), project.getLogger(),
                 task != null ? task : project, project.getObjects(),
                 project.getGradle().getStartParameter().isOffline(),
-                project.getLayout().getBuildDirectory().getAsFile().get());
+                project.getLayout().getBuildDirectory().getAsFile().get(),
+                project.getGradle().getGradleUserHomeDir(),
+                registerHttpClientService(project));
     }
 
     /**
@@ -163,16 +315,87 @@ public class DownloadAction implements DownloadSpec, Serializable {
      * @param objectFactory the project's object factory
      * @param isOffline whether Gradle has been started in offline mode or not
      * @param buildDir the project's build directory
+     * @param gradleUserHomeDir the Gradle user home directory
+     * @param httpClientService the build service providing shared HTTP
+     * clients (may be {@code null} if the Gradle version does not support
+     * build services)
      */
     DownloadAction(ProjectLayout projectLayout, Logger logger,
             Object servicesOwner, ObjectFactory objectFactory, boolean isOffline,
-            File buildDir) {
+            File buildDir, File gradleUserHomeDir,
+            @Nullable Provider<HttpClientService> httpClientService) {
         this.projectLayout = projectLayout;
         this.logger = logger;
         this.servicesOwner = servicesOwner;
         this.objectFactory = objectFactory;
         this.isOffline = isOffline;
         this.downloadTaskDir = new File(buildDir, "download-task");
+        this.sharedCacheDir = new File(gradleUserHomeDir, "caches/download-task");
+        this.httpClientService = httpClientService;
+    }
+
+    /**
+     * Register the build service that provides HTTP clients shared by all
+     * downloads in the build or get the existing one
+     * @param project the current project
+     * @return the build service or {@code null} if the Gradle version does
+     * not support build services
+     */
+    @Nullable
+    static Provider<HttpClientService> registerHttpClientService(Project project) {
+        if (GradleVersion.current().getBaseVersion().compareTo(
+                BUILD_SERVICES_MIN_GRADLE_VERSION) < 0) {
+            return null;
+        }
+
+        // The plugin might be loaded by different class loaders in
+        // different projects. Register one service per class loader.
+        String name = HttpClientService.NAME + "_" + Integer.toHexString(
+                System.identityHashCode(HttpClientService.class.getClassLoader()));
+        return project.getGradle().getSharedServices().registerIfAbsent(
+                name, HttpClientService.class, spec -> {
+                    spec.getParameters().getMaxConcurrentDownloads().set(
+                            getLimitProperty(project,
+                                    HttpClientService.MAX_CONCURRENT_DOWNLOADS_PROPERTY));
+                    spec.getParameters().getMaxConcurrentDownloadsPerHost().set(
+                            getLimitProperty(project,
+                                    HttpClientService.MAX_CONCURRENT_DOWNLOADS_PER_HOST_PROPERTY));
+                });
+    }
+
+    /**
+     * Get the value of a Gradle property that configures a build-wide limit
+     * @param project the current project
+     * @param name the property's name
+     * @return the limit or {@code null} if the property has not been set
+     * @throws IllegalArgumentException if the property's value is not a
+     * non-negative integer
+     */
+    @Nullable
+    private static Integer getLimitProperty(Project project, String name) {
+        Object value = project.findProperty(name);
+        if (value == null) {
+            return null;
+        }
+        try {
+            int limit = Integer.parseInt(value.toString().trim());
+            if (limit >= 0) {
+                return limit;
+            }
+        } catch (NumberFormatException e) {
+            // handled below
+        }
+        throw new IllegalArgumentException("Gradle property '" + name +
+                "' must be a non-negative integer but was '" + value + "'");
+    }
+
+    /**
+     * @return the build service providing shared HTTP clients or
+     * {@code null} if the Gradle version does not support build services
+     */
+    @Nullable
+    Provider<HttpClientService> getHttpClientService() {
+        return httpClientService;
     }
 
     /**
@@ -244,49 +467,132 @@ public class DownloadAction implements DownloadSpec, Serializable {
                     "be added if multiple sources are provided.");
         }
 
+        if (defaultChecksum != null && sources.size() > 1) {
+            throw new IllegalArgumentException("If multiple sources are " +
+                    "provided, checksums have to be specified per source.");
+        }
+
+        HttpEngineType engine = getEffectiveHttpEngine();
+        if (engine != httpEngine) {
+            logger.warn("The \"" + httpEngine.value + "\" HTTP engine " +
+                    "requires Java 11 or higher. Falling back to the \"" +
+                    engine.value + "\" engine.");
+        }
+
+        if (httpVersion == HttpVersion.HTTP_2 && engine == HttpEngineType.CLASSIC) {
+            throw new IllegalArgumentException("HTTP/2 is only supported " +
+                    "by the \"async\" and \"jdk\" HTTP engines.");
+        }
+
         List<File> destFiles = getOutputFiles();
 
         // make sure parent directories of target files exist
         ensureTargetDirectoriesExist(destFiles);
 
-        WorkerExecutorHelper workerExecutor = WorkerExecutorHelper.newInstance(objectFactory);
+        WorkerExecutorHelper workerExecutor;
+        if (virtualThreads && VirtualThreadWorkerExecutorHelper.isSupported()) {
+            Semaphore permits;
+            if (httpClientService != null) {
+                permits = httpClientService.get().getVirtualThreadPermits(
+                        maxVirtualThreads);
+            } else {
+                permits = new Semaphore(maxVirtualThreads, true);
+            }
+            workerExecutor = new VirtualThreadWorkerExecutorHelper(permits);
+        } else {
+            if (virtualThreads) {
+                logger.warn("Virtual threads require Java 21 or higher. " +
+                        "Falling back to Gradle worker threads.");
+            }
+            workerExecutor = WorkerExecutorHelper.newInstance(objectFactory);
+        }
+
+        // use the build-wide HTTP clients if possible so connections can be
+        // reused across tasks and projects
+        HttpClientFactory clientFactory;
+        CachingHttpClientFactory ownClientFactory;
+        if (httpClientService != null) {
+            clientFactory = httpClientService.get().getClientFactory();
+            ownClientFactory = null;
+        } else {
+            ownClientFactory = new CachingHttpClientFactory();
+            clientFactory = ownClientFactory;
+        }
+        BufferPool bufferPool = new BufferPool(bufferSize, Math.max(
+                ASYNC_WRITE_BUFFERS, MAX_POOLED_BUFFER_BYTES / bufferSize));
+        this.bufferPool = bufferPool;
+        this.bandwidthLimiter = getBandwidthLimiter();
+        this.hostBackoff = httpClientService != null ?
+                httpClientService.get().getHostBackoff() : new HostBackoff();
+
+        // load cached ETags only once and write new ones in a single batch
+        // after all downloads have finished. Share the store with all other
+        // tasks using the same file so they do not overwrite each other's
+        // updates.
+        ETagStore etagStore;
+        if (!onlyIfModified || !useETag.enabled) {
+            etagStore = null;
+        } else if (httpClientService != null) {
+            etagStore = httpClientService.get().getETagStore(getCachedETagsFile(),
+                    cachedETagsFormat == ETagsFormat.BINARY);
+        } else {
+            etagStore = ETagStore.create(getCachedETagsFile(),
+                    cachedETagsFormat == ETagsFormat.BINARY);
+        }
+        this.etagStore = etagStore;
+
+        DownloadCache downloadCache = sharedCache ? new DownloadCache(sharedCacheDir) : null;
+        this.downloadCache = downloadCache;
+        this.remoteCache = remoteCacheUrl != null ? new RemoteCache(
+                remoteCacheUrl, connectTimeoutMs, readTimeoutMs) : null;
+
+        // queue downloads inside the plugin if their number is limited so
+        // that they do not occupy worker threads while they are waiting.
+        // Segments of files are downloaded by the same executor.
+        DownloadLimiter limiter = getDownloadLimiter();
+        this.downloadLimiter = limiter;
+        ExecutorService ownDownloadExecutor = null;
+        Executor downloadExecutor = null;
+        if (limiter != null || segments > 1) {
+            if (httpClientService != null) {
+                downloadExecutor = httpClientService.get().getDownloadExecutor();
+            } else {
+                ownDownloadExecutor = HttpClientService.newDownloadExecutor();
+                downloadExecutor = ownDownloadExecutor;
+            }
+        }
+        this.downloadExecutor = downloadExecutor;
 
-        CachingHttpClientFactory clientFactory = new CachingHttpClientFactory();
         CompletableFuture<?>[] futures = new CompletableFuture[sources.size()];
-        for (int i = 0; i < sources.size(); i++) {
-            URL src = sources.get(i);
-            File destFile = destFiles.get(i);
-
-            // submit download job for asynchronous execution
-            CompletableFuture<Void> f = new CompletableFuture<>();
-            futures[i] = f;
-            workerExecutor.submit(() -> {
-                // create progress logger
-                ProgressLoggerWrapper progressLogger = new ProgressLoggerWrapper(logger);
-                if (!quiet) {
+        if (engine != HttpEngineType.CLASSIC || limiter != null) {
+            submitAsync(sources, destFiles, clientFactory, workerExecutor,
+                    futures, throwOnError, limiter, downloadExecutor);
+        } else {
+            for (int i = 0; i < sources.size(); i++) {
+                URL src = sources.get(i);
+                File destFile = destFiles.get(i);
+
+                // submit download job for asynchronous execution
+                CompletableFuture<Void> f = new CompletableFuture<>();
+                futures[i] = f;
+                workerExecutor.submit(() -> {
+                    ProgressLoggerWrapper progressLogger = createProgressLogger(src);
                     try {
-                        progressLogger.init(servicesOwner, src.toString());
-                    } catch (Exception e) {
-                        // unable to get progress logger
-                        logger.error("Unable to get progress logger. Download "
-                                + "progress will not be displayed.");
-                    }
-                }
-
-                try {
-                    execute(src, destFile, clientFactory, progressLogger);
-                    f.complete(null);
-                } catch (Throwable t) {
-                    f.completeExceptionally(t);
-                    if (throwOnError) {
-                        throw t;
+                        execute(src, destFile, clientFactory, progressLogger);
+                        f.complete(null);
+                    } catch (Throwable t) {
+                        f.completeExceptionally(t);
+                        if (throwOnError) {
+                            throw t;
+                        }
                     }
-                }
-            });
+                });
+            }
         }
 
         // wait for all downloads to finish (necessary if we're on an old
-        // Gradle version (< 5.6) without Worker API)
+        // Gradle version (< 5.6) without Worker API or if we use virtual
+        // threads)
         if (workerExecutor.needsAwait()) {
             workerExecutor.await();
         }
@@ -297,32 +603,339 @@ public class DownloadAction implements DownloadSpec, Serializable {
         // `max-workers` equals 1). See issue #205 for more details.
         CompletableFuture<Void> rf = new WorkerExecutorFuture(workerExecutor);
 
+        ExecutorService finalOwnDownloadExecutor = ownDownloadExecutor;
         CompletableFuture.allOf(futures).whenComplete((v, t) -> {
-            // always close HTTP client factory
-            try {
-                clientFactory.close();
-            } catch (IOException e) {
-                throw new UncheckedIOException(e);
+            if (finalOwnDownloadExecutor != null) {
+                finalOwnDownloadExecutor.shutdown();
+            }
+            // always close our own HTTP client factory (the shared one will
+            // be closed when the build has finished)
+            if (ownClientFactory != null) {
+                try {
+                    ownClientFactory.close();
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+            }
+            logger.debug("Buffer pool: " + bufferPool.getHits() + " hits, " +
+                    bufferPool.getMisses() + " misses");
+
+            // write ETags of all successful downloads (even if others failed)
+            Throwable error = t;
+            if (etagStore != null) {
+                try {
+                    etagStore.flush();
+                } catch (IOException e) {
+                    if (error == null) {
+                        error = new UncheckedIOException(e);
+                    } else {
+                        error.addSuppressed(e);
+                    }
+                }
+            }
+
+            // keep the shared cache small
+            if (downloadCache != null) {
+                try {
+                    downloadCache.evict(sharedCacheMaxSize);
+                } catch (IOException e) {
+                    logger.warn("Could not evict files from shared download " +
+                            "cache '" + downloadCache.getDir() + "'", e);
+                }
             }
-            if (t == null) {
+
+            if (error == null) {
                 rf.complete(v);
             } else {
-                rf.completeExceptionally(t);
+                rf.completeExceptionally(error);
             }
         });
 
         return rf;
     }
 
+    /**
+     * Submit a single job that starts the downloads of all sources with the
+     * asynchronous HTTP engine and then waits for them to complete. This
+     * job occupies only one worker thread, regardless of the number of
+     * sources. If a limiter is given, each download waits for a permit
+     * first. Blocking downloads are then run by the given download executor.
+     * @param sources the sources to download
+     * @param destFiles the destination files
+     * @param clientFactory the factory creating HTTP clients
+     * @param workerExecutor the executor to submit the job to
+     * @param futures an array that will receive a future for each source
+     * @param throwOnError {@code true} if the job should throw if a
+     * download fails
+     * @param limiter limits the number of concurrent downloads (may be
+     * {@code null} if there is no limit)
+     * @param downloadExecutor runs downloads that have been allowed to start
+     * by the limiter (may be {@code null} if there is no limiter)
+     */
+    private void submitAsync(List<URL> sources, List<File> destFiles,
+            HttpClientFactory clientFactory, WorkerExecutorHelper workerExecutor,
+            CompletableFuture<?>[] futures, boolean throwOnError,
+            @Nullable DownloadLimiter limiter, @Nullable Executor downloadExecutor) {
+        List<CompletableFuture<Void>> fs = new ArrayList<>(sources.size());
+        for (int i = 0; i < sources.size(); i++) {
+            CompletableFuture<Void> f = new CompletableFuture<>();
+            futures[i] = f;
+            fs.add(f);
+        }
+
+        workerExecutor.submit(() -> {
+            CompletableFuture<?>[] transfers = new CompletableFuture[sources.size()];
+            for (int i = 0; i < sources.size(); i++) {
+                URL src = sources.get(i);
+                try {
+                    ProgressLoggerWrapper progressLogger = createProgressLogger(src);
+                    if (limiter != null) {
+                        transfers[i] = executeLimited(src, destFiles.get(i),
+                                clientFactory, progressLogger, limiter,
+                                downloadExecutor);
+                    } else {
+                        transfers[i] = executeAsync(src, destFiles.get(i),
+                                clientFactory, progressLogger);
+                    }
+                } catch (Throwable t) {
+                    CompletableFuture<Void> failed = new CompletableFuture<>();
+                    failed.completeExceptionally(t);
+                    transfers[i] = failed;
+                }
+            }
+
+            // wait for all transfers to finish and then complete the futures
+            // in this thread and not in one of the HTTP client's I/O threads
+            // (the client might be closed when the futures complete)
+            Throwable firstError = null;
+            for (int i = 0; i < transfers.length; i++) {
+                try {
+                    transfers[i].join();
+                    fs.get(i).complete(null);
+                } catch (CompletionException e) {
+                    if (firstError == null) {
+                        firstError = e.getCause();
+                    }
+                    fs.get(i).completeExceptionally(e.getCause());
+                }
+            }
+
+            if (firstError != null && throwOnError) {
+                if (firstError instanceof IOException) {
+                    throw (IOException)firstError;
+                }
+                if (firstError instanceof RuntimeException) {
+                    throw (RuntimeException)firstError;
+                }
+                if (firstError instanceof Error) {
+                    throw (Error)firstError;
+                }
+                throw new IOException(firstError);
+            }
+        });
+    }
+
+    /**
+     * @return the HTTP engine that is actually used to download files. This
+     * is the classic engine if the "jdk" engine has been selected but
+     * {@code java.net.http.HttpClient} is not available in this JVM.
+     */
+    private HttpEngineType getEffectiveHttpEngine() {
+        if (httpEngine == HttpEngineType.JDK && !JdkHttpTransports.isAvailable()) {
+            return HttpEngineType.CLASSIC;
+        }
+        return httpEngine;
+    }
+
+    /**
+     * Create a progress logger for the given source
+     * @param src the source
+     * @return the progress logger
+     */
+    private ProgressLoggerWrapper createProgressLogger(URL src) {
+        ProgressLoggerWrapper progressLogger = new ProgressLoggerWrapper(logger);
+        if (!quiet) {
+            try {
+                progressLogger.init(servicesOwner, src.toString());
+            } catch (Exception e) {
+                // unable to get progress logger
+                logger.error("Unable to get progress logger. Download "
+                        + "progress will not be displayed.");
+            }
+        }
+        return progressLogger;
+    }
+
     private void execute(URL src, File destFile, HttpClientFactory clientFactory,
             ProgressLoggerWrapper progressLogger) throws IOException {
+        if (!isDownloadNecessary(src, destFile, progressLogger)) {
+            return;
+        }
+
+        final long timestamp = onlyIfModified && destFile.exists() ? destFile.lastModified() : 0;
+        
+        lockPartFile(destFile);
+        try {
+            if ("file".equals(src.getProtocol())) {
+                executeFileProtocol(src, timestamp, destFile, progressLogger);
+            } else if (canUseSharedCache()) {
+                executeHttpProtocolCached(src, clientFactory, destFile, progressLogger);
+            } else {
+                executeHttpProtocol(src, clientFactory, timestamp, destFile, progressLogger);
+            }
+        } finally {
+            unlockPartFile(destFile);
+        }
+    }
+
+    /**
+     * Create a limiter for the downloads of this task that consults the
+     * limiter of the whole build after this task's limits
+     * @return the limiter or {@code null} if there is no limit
+     */
+    @Nullable
+    private DownloadLimiter getDownloadLimiter() {
+        DownloadLimiter shared = null;
+        if (httpClientService != null) {
+            shared = httpClientService.get().getDownloadLimiter();
+        }
+
+        if (maxConcurrentDownloads == 0 && maxConcurrentDownloadsPerHost == 0 &&
+                !adaptiveConcurrency) {
+            return shared != null && shared.isLimited() ? shared : null;
+        }
+        return new DownloadLimiter(maxConcurrentDownloads,
+                maxConcurrentDownloadsPerHost, adaptiveConcurrency, shared);
+    }
+
+    /**
+     * Create a bandwidth limiter for this task and, if necessary, configure
+     * the limit of the shared one
+     * @return the limiter or {@code null} if there is no limit
+     */
+    @Nullable
+    private BandwidthLimiter getBandwidthLimiter() {
+        BandwidthLimiter shared;
+        if (httpClientService != null) {
+            shared = httpClientService.get().getBandwidthLimiter();
+        } else {
+            shared = new BandwidthLimiter();
+        }
+        shared.limit(maxBytesPerSecondTotal);
+
+        BandwidthLimiter limiter = new BandwidthLimiter(shared);
+        limiter.limit(maxBytesPerSecond);
+        if (!limiter.isLimited()) {
+            return null;
+        }
+        return limiter;
+    }
+
+    /**
+     * Wait until the given limiter allows the download of a file to start
+     * and then download it. Blocking downloads are run by the given
+     * executor, so no thread is occupied while the download is waiting.
+     * @param src the URL to download from
+     * @param destFile the destination file
+     * @param clientFactory the factory creating HTTP clients
+     * @param progressLogger progress logger
+     * @param limiter limits the number of concurrent downloads
+     * @param downloadExecutor runs the download once it may start
+     * @return a future that completes once the file has been downloaded
+     */
+    private CompletableFuture<Void> executeLimited(URL src, File destFile,
+            HttpClientFactory clientFactory, ProgressLoggerWrapper progressLogger,
+            DownloadLimiter limiter, Executor downloadExecutor) {
+        return limiter.acquire(src).thenComposeAsync(permit -> {
+            CompletableFuture<Void> f;
+            try {
+                f = executeAsync(src, destFile, clientFactory, progressLogger);
+            } catch (Throwable t) {
+                f = new CompletableFuture<>();
+                f.completeExceptionally(t);
+            }
+            return f.whenComplete((v, t) -> permit.close());
+        }, downloadExecutor);
+    }
+
+    /**
+     * Download a file with the asynchronous HTTP engine. Files that are not
+     * downloaded via HTTP, that should be split into segments, that
+     * should be downloaded with the classic HTTP engine, or that should be
+     * put into the shared or the remote cache are downloaded synchronously.
+     * @param src the URL to download from
+     * @param destFile the destination file
+     * @param clientFactory the factory creating HTTP clients
+     * @param progressLogger progress logger
+     * @return a future that completes once the file has been downloaded
+     * @throws IOException if the download could not be started
+     */
+    private CompletableFuture<Void> executeAsync(URL src, File destFile,
+            HttpClientFactory clientFactory, ProgressLoggerWrapper progressLogger)
+            throws IOException {
+        if ("file".equals(src.getProtocol()) || segments > 1 ||
+                getEffectiveHttpEngine() == HttpEngineType.CLASSIC ||
+                canUseSharedCache() || canUseRemoteCache()) {
+            execute(src, destFile, clientFactory, progressLogger);
+            return CompletableFuture.completedFuture(null);
+        }
+
+        if (!isDownloadNecessary(src, destFile, progressLogger)) {
+            return CompletableFuture.completedFuture(null);
+        }
+
+        long timestamp = onlyIfModified && destFile.exists() ? destFile.lastModified() : 0;
+        lockPartFile(destFile);
+        CompletableFuture<Void> result;
+        try {
+            result = executeHttpProtocolAsync(src, clientFactory, timestamp,
+                    destFile, progressLogger);
+        } catch (Throwable t) {
+            unlockPartFile(destFile);
+            throw t;
+        }
+        return result.whenComplete((v, t) -> {
+            try {
+                unlockPartFile(destFile);
+            } catch (IOException e) {
+                logger.debug("Could not release temporary file", e);
+            }
+        });
+    }
+
+    /**
+     * Check if the given file has to be downloaded at all
+     * @param src the URL to download from
+     * @param destFile the destination file
+     * @param progressLogger progress logger
+     * @return true if the file should be downloaded, false if it can be
+     * skipped
+     * @throws IOException if the destination file could not be read
+     */
+    private boolean isDownloadNecessary(URL src, File destFile,
+            ProgressLoggerWrapper progressLogger) throws IOException {
         if (!overwrite && destFile.exists()) {
             if (!quiet) {
                 logger.info("Destination file already exists. "
                         + "Skipping '" + destFile.getName() + "'");
             }
             upToDate.incrementAndGet();
-            return;
+            return false;
+        }
+
+        // do not send a request if the file already has the expected checksum
+        Checksum checksum = getExpectedChecksum(src);
+        if (checksum != null && destFile.isFile()) {
+            MessageDigest md = checksum.newDigest();
+            updateDigest(md, destFile, Long.MAX_VALUE);
+            if (checksum.matches(md.digest())) {
+                if (!quiet) {
+                    logger.info("Destination file already has the expected "
+                            + "checksum. Skipping '" + destFile.getName() + "'");
+                }
+                upToDate.incrementAndGet();
+                return false;
+            }
         }
 
         progressLogger.setDestFileName(destFile.getName());
@@ -335,19 +948,17 @@ public class DownloadAction implements DownloadSpec, Serializable {
                     logger.info("Skipping existing file '" +
                             destFile.getName() + "' in offline mode.");
                 }
-                return;
+                return false;
+            }
+            if (canUseSharedCache() && !"file".equals(src.getProtocol()) &&
+                    downloadCache.get(src.toString()) != null) {
+                return true;
             }
             throw new IllegalStateException("Unable to download file '" + src +
                     "' in offline mode.");
         }
 
-        final long timestamp = onlyIfModified && destFile.exists() ? destFile.lastModified() : 0;
-        
-        if ("file".equals(src.getProtocol())) {
-            executeFileProtocol(src, timestamp, destFile, progressLogger);
-        } else {
-            executeHttpProtocol(src, clientFactory, timestamp, destFile, progressLogger);
-        }
+        return true;
     }
 
     private void executeFileProtocol(URL src, long timestamp, File destFile,
@@ -373,8 +984,19 @@ public class DownloadAction implements DownloadSpec, Serializable {
             }
         }
 
-        BufferedInputStream fileStream = new BufferedInputStream(src.openStream());
-        streamAndMove(fileStream, destFile, progressLogger);
+        if (srcFile != null && srcFile.isFile()) {
+            // copy directly between file channels
+            File finalSrcFile = srcFile;
+            writeAndMove(destFile, progressLogger, getExpectedChecksum(src), target -> {
+                if (!linkLocalFiles || !link(finalSrcFile, target, progressLogger)) {
+                    transfer(finalSrcFile, target, progressLogger);
+                }
+            });
+        } else {
+            BufferedInputStream fileStream = new BufferedInputStream(src.openStream());
+            streamAndMove(fileStream, destFile, 0, -1, null,
+                    getExpectedChecksum(src), progressLogger);
+        }
         
         //set last-modified time of destination file
         if (onlyIfModified && lastModified > 0) {
@@ -385,78 +1007,1185 @@ public class DownloadAction implements DownloadSpec, Serializable {
     private void executeHttpProtocol(URL src, HttpClientFactory clientFactory,
             long timestamp, File destFile, ProgressLoggerWrapper progressLogger)
             throws IOException {
+        // get cached ETag if there is any
+        HttpHost httpHost = new HttpHost(src.getProtocol(), src.getHost(), src.getPort());
+        String etag = getRequestETag(httpHost, src, destFile);
+
+        HttpDownloadResult result = executeHttpProtocol(src, clientFactory,
+                timestamp, etag, destFile, progressLogger);
+        if (result.isNotModified()) {
+            upToDate.incrementAndGet();
+        }
+    }
+
+    /**
+     * Download a file via HTTP
+     * @param src the URL to download from
+     * @param clientFactory the factory creating HTTP clients
+     * @param timestamp the timestamp of the destination file, in
+     * milliseconds (0 if the file should be downloaded unconditionally)
+     * @param etag the ETag of the destination file (may be {@code null})
+     * @param destFile the destination file
+     * @param progressLogger progress logger
+     * @return the result of the download
+     * @throws IOException if the file could not be downloaded
+     */
+    private HttpDownloadResult executeHttpProtocol(URL src,
+            HttpClientFactory clientFactory, long timestamp, String etag,
+            File destFile, ProgressLoggerWrapper progressLogger) throws IOException {
         // create HTTP host from URL
         HttpHost httpHost = new HttpHost(src.getProtocol(), src.getHost(), src.getPort());
         
         // create HTTP client
         CloseableHttpClient client = clientFactory.createHttpClient(
-                httpHost, acceptAnyCertificate, retries, connectTimeoutMs,
-                headers, logger, quiet);
+                httpHost, acceptAnyCertificate, retries, retryDelayMs,
+                connectTimeoutMs, maxConnectionsPerHost, maxConnectionsTotal,
+                headers);
 
-        // get cached ETag if there is any
-        String etag = null;
-        if (onlyIfModified && useETag.enabled && destFile.exists()) {
-            etag = getCachedETag(httpHost, src.getFile());
-            if (!useETag.useWeakETags && isWeakETag(etag)) {
-                etag = null;
-            }
+        if (canUseRemoteCache()) {
+            return executeHttpProtocolRemoteCached(src, clientFactory, httpHost,
+                    client, timestamp, etag, destFile, progressLogger);
         }
-
-        // open URL connection
-        openConnection(httpHost, src.getFile(), timestamp, etag, client, response -> {
-            // check if file on server was modified
-            long lastModified = parseLastModified(response);
-            int code = response.getCode();
-            if (code == HttpStatus.SC_NOT_MODIFIED ||
-                    (lastModified != 0 && timestamp >= lastModified)) {
-                if (!quiet) {
-                    logger.info("Not modified. Skipping '" + src + "'");
-                }
-                upToDate.incrementAndGet();
-                return null;
-            }
-
-            // perform the download
-            performDownload(response, destFile, progressLogger);
-
-            // set last-modified time of destination file
-            long newTimestamp = parseLastModified(response);
-            if (onlyIfModified && newTimestamp > 0) {
-                destFile.setLastModified(newTimestamp);
-            }
-
-            // store ETag
-            if (onlyIfModified && useETag.enabled) {
-                storeETag(httpHost, src.getFile(), response);
-            }
-
-            return null;
-        });
+        return downloadFromOrigin(src, httpHost, client, timestamp, etag,
+                destFile, progressLogger);
     }
 
     /**
-     * Save an HTTP response to a file
-     * @param response the response to save
+     * Download a file from the server it belongs to
+     * @param src the URL to download from
+     * @param httpHost the HTTP host
+     * @param client the HTTP client to use
+     * @param timestamp the timestamp of the destination file, in
+     * milliseconds (0 if the file should be downloaded unconditionally)
+     * @param etag the ETag of the destination file (may be {@code null})
      * @param destFile the destination file
      * @param progressLogger progress logger
-     * @throws IOException if the response could not be downloaded
+     * @return the result of the download
+     * @throws IOException if the file could not be downloaded
      */
-    private void performDownload(ClassicHttpResponse response, File destFile,
-            ProgressLoggerWrapper progressLogger) throws IOException {
-        HttpEntity entity = response.getEntity();
-        if (entity == null) {
-            return;
+    private HttpDownloadResult downloadFromOrigin(URL src, HttpHost httpHost,
+            CloseableHttpClient client, long timestamp, String etag,
+            File destFile, ProgressLoggerWrapper progressLogger) throws IOException {
+        // download file in multiple segments if possible
+        if (segments > 1 && canUseRangeRequests()) {
+            HttpDownloadResult result = executeSegmented(src, httpHost,
+                    client, timestamp, etag, destFile, progressLogger);
+            if (result != null) {
+                return result;
+            }
+        }
+
+        // check if we can resume a partially downloaded file
+        long resumeOffset = 0;
+        String resumeValidator = null;
+        if (tempAndMove && canUseRangeRequests()) {
+            File partFile = getPartFile(destFile);
+            resumeValidator = readValidator(partFile);
+            if (resumeValidator != null && partFile.length() > 0) {
+                resumeOffset = partFile.length();
+            }
+        }
+
+        // download file and resume it if the connection is interrupted.
+        // Resumes and retries of the individual requests share one budget.
+        long requestTimestamp = timestamp;
+        String requestETag = etag;
+        RetryBudget budget = newRetryBudget();
+        boolean resumed = false;
+        while (true) {
+            try {
+                return downloadHttp(src, httpHost, client, requestTimestamp,
+                        requestETag, resumeOffset, resumeValidator, destFile,
+                        budget, progressLogger);
+            } catch (InterruptedDownloadException e) {
+                if (!budget.tryAcquire()) {
+                    if (!tempAndMove) {
+                        destFile.delete();
+                    }
+                    throw (IOException)e.getCause();
+                }
+                resumed = true;
+                if (!quiet) {
+                    logger.warn("Download of '" + src + "' interrupted at byte " +
+                            e.getPosition() + ". Resuming (attempt " +
+                            budget.getRetries() + "/" + retries + ") ...");
+                }
+                logger.debug("Download interrupted", e.getCause());
+                RetryBackoff backoff = getRetryBackoff(httpHost);
+                if (backoff != null) {
+                    backoff.awaitRetry(budget.getRetries());
+                }
+
+                // The destination file is being overwritten. Do not send
+                // conditional headers for its old version anymore.
+                requestTimestamp = 0;
+                requestETag = null;
+                resumeOffset = e.getPosition();
+                resumeValidator = e.getValidator();
+            } catch (IOException e) {
+                if (resumed && !tempAndMove) {
+                    destFile.delete();
+                }
+                throw e;
+            }
+        }
+    }
+
+    /**
+     * Checks if files can be downloaded through the remote cache
+     * @return true if a remote cache has been configured, if Gradle is not
+     * in offline mode, and if the request configured in this action does
+     * not have side effects
+     */
+    private boolean canUseRemoteCache() {
+        return remoteCache != null && !isOffline &&
+                "GET".equalsIgnoreCase(method) && body == null;
+    }
+
+    /**
+     * Download a file via HTTP and try the remote cache first. The file is
+     * looked up in the cache by its URL and its expected checksum or, if no
+     * checksum has been specified, by the strong ETag the server currently
+     * reports in response to a HEAD request. Entries looked up by ETag are
+     * only used if their SHA-256 hash has been stored in the cache too, and
+     * they are verified against this hash and the length from the HEAD
+     * response. If the file is not in the cache, if it is corrupt,
+     * or if the cache cannot be reached, the file is downloaded from the
+     * server and, if {@link #remoteCachePush} is enabled, stored in the
+     * cache afterwards.
+     * @param src the URL to download from
+     * @param clientFactory the factory creating HTTP clients
+     * @param httpHost the HTTP host
+     * @param client the HTTP client to use for the server
+     * @param timestamp the timestamp of the destination file, in
+     * milliseconds (0 if the file should be downloaded unconditionally)
+     * @param etag the ETag of the destination file (may be {@code null})
+     * @param destFile the destination file
+     * @param progressLogger progress logger
+     * @return the result of the download
+     * @throws IOException if the file could not be downloaded
+     */
+    private HttpDownloadResult executeHttpProtocolRemoteCached(URL src,
+            HttpClientFactory clientFactory, HttpHost httpHost,
+            CloseableHttpClient client, long timestamp, String etag,
+            File destFile, ProgressLoggerWrapper progressLogger) throws IOException {
+        CloseableHttpClient cacheClient = clientFactory.createHttpClient(
+                remoteCache.getHost(), acceptAnyCertificate, retries,
+                retryDelayMs, remoteCache.getConnectTimeoutMs(), maxConnectionsPerHost,
+                maxConnectionsTotal, null);
+
+        // ask the server for the file's current ETag if the checksum is unknown
+        Checksum checksum = getExpectedChecksum(src);
+        String validator = null;
+        HttpResponse probeResponse = null;
+        if (checksum != null) {
+            validator = checksum.toString();
+        } else {
+            HttpUriRequestBase probe = createRequest("HEAD", src.getFile(),
+                    timestamp, etag, false);
+            try {
+                probeResponse = openConnection(httpHost, probe, client, response -> response);
+            } catch (ClientProtocolException e) {
+                logger.debug("Could not probe server for ETag. Bypassing " +
+                        "remote cache.", e);
+            }
+            if (probeResponse != null) {
+                long lastModified = parseLastModified(probeResponse);
+                if (probeResponse.getCode() == HttpStatus.SC_NOT_MODIFIED ||
+                        (lastModified != 0 && timestamp >= lastModified)) {
+                    if (!quiet) {
+                        logger.info("Not modified. Skipping '" + src + "'");
+                    }
+                    return HttpDownloadResult.NOT_MODIFIED;
+                }
+                validator = getStrongETag(probeResponse);
+            }
+        }
+
+        // try the remote cache
+        if (validator != null) {
+            String key = RemoteCache.key(src.toString(), validator);
+            try {
+                // Entries keyed by an ETag are verified with the checksum
+                // stored next to them and the length reported by the server
+                Checksum entryChecksum = checksum;
+                long expectedLength = -1;
+                if (entryChecksum == null) {
+                    entryChecksum = remoteCache.loadChecksum(cacheClient, key);
+                    expectedLength = parseContentLength(probeResponse);
+                }
+                boolean found = false;
+                if (entryChecksum != null) {
+                    Checksum verifyChecksum = entryChecksum;
+                    long verifyLength = expectedLength;
+                    found = remoteCache.load(cacheClient, key, (is, length) -> {
+                        if (verifyLength >= 0 && length >= 0 && length != verifyLength) {
+                            throw new IOException("Cached file has " + length +
+                                    " bytes but the server reports " +
+                                    verifyLength + " bytes.");
+                        }
+                        progressLogger.setSize(length);
+                        streamAndMove(is, destFile, 0, length, null,
+                                verifyChecksum, progressLogger);
+                    });
+                }
+                if (found) {
+                    if (!quiet) {
+                        logger.info("Using '" + src + "' from remote cache");
+                    }
+                    if (probeResponse != null) {
+                        finishDownload(httpHost, src, destFile, probeResponse);
+                    }
+                    return HttpDownloadResult.downloaded(probeResponse);
+                }
+            } catch (IOException | GradleException e) {
+                if (!quiet) {
+                    logger.warn("Could not load '" + src + "' from remote " +
+                            "cache. Downloading it from the server.", e);
+                }
+            }
+        }
+
+        // fall back to the server
+        HttpDownloadResult result = downloadFromOrigin(src, httpHost, client,
+                timestamp, etag, destFile, progressLogger);
+        if (!remoteCachePush || result.isNotModified()) {
+            return result;
+        }
+
+        // populate the remote cache
+        String pushValidator = null;
+        if (checksum != null) {
+            pushValidator = checksum.toString();
+        } else if (result.getResponse() != null) {
+            pushValidator = getStrongETag(result.getResponse());
+        }
+        if (pushValidator == null) {
+            return result;
+        }
+        try {
+            String key = RemoteCache.key(src.toString(), pushValidator);
+            remoteCache.store(cacheClient, key, destFile);
+            if (checksum == null) {
+                remoteCache.storeChecksum(cacheClient, key, destFile);
+            }
+        } catch (IOException e) {
+            if (!quiet) {
+                logger.warn("Could not store '" + src + "' in remote cache.", e);
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Get the strong ETag from the given response
+     * @param response the response
+     * @return the ETag or {@code null} if the response does not contain an
+     * ETag or if it is weak
+     */
+    private String getStrongETag(HttpResponse response) {
+        Header etagHdr = response.getFirstHeader(HttpHeaders.ETAG);
+        if (etagHdr == null || isWeakETag(etagHdr.getValue())) {
+            return null;
+        }
+        return etagHdr.getValue();
+    }
+
+    /**
+     * Checks if files can be downloaded through the shared cache
+     * @return true if the shared cache is enabled and if the request
+     * configured in this action does not have side effects
+     */
+    private boolean canUseSharedCache() {
+        return downloadCache != null && "GET".equalsIgnoreCase(method) &&
+                body == null;
+    }
+
+    /**
+     * Download a file via HTTP through the shared cache. If the cache
+     * contains a file with the expected checksum, the file is used without
+     * sending a request. Otherwise, the cached file is revalidated with a
+     * conditional request and, if it has changed, downloaded to the cache
+     * again. The destination file is then copied from the cache. If the
+     * cached file turns out to be corrupt, it is downloaded again.
+     * @param src the URL to download from
+     * @param clientFactory the factory creating HTTP clients
+     * @param destFile the destination file
+     * @param progressLogger progress logger
+     * @throws IOException if the file could not be downloaded
+     */
+    private void executeHttpProtocolCached(URL src, HttpClientFactory clientFactory,
+            File destFile, ProgressLoggerWrapper progressLogger) throws IOException {
+        // files with a known checksum never change
+        Checksum checksum = getExpectedChecksum(src);
+        if (checksum != null) {
+            DownloadCache.Entry entry = downloadCache.getByChecksum(checksum.toString());
+            if (entry != null && materializeFromCache(src, entry, destFile)) {
+                return;
+            }
+        }
+
+        DownloadCache.Entry cached = downloadCache.get(src.toString());
+        if (isOffline) {
+            if (cached == null || !materializeFromCache(src, cached, destFile)) {
+                throw new IllegalStateException("Unable to download file '" +
+                        src + "' in offline mode.");
+            }
+            return;
+        }
+
+        long cachedTimestamp = 0;
+        String cachedETag = null;
+        if (cached != null) {
+            cachedETag = cached.getETag();
+            if (cached.getLastModified() != null) {
+                Instant lastModified = DateUtils.parseStandardDate(cached.getLastModified());
+                if (lastModified != null) {
+                    cachedTimestamp = lastModified.toEpochMilli();
+                }
+            }
+        }
+
+        File stagingFile = downloadCache.newStagingFile();
+        try {
+            HttpDownloadResult result = executeHttpProtocol(src, clientFactory,
+                    cachedTimestamp, cachedETag, stagingFile, progressLogger);
+
+            if (result.isNotModified()) {
+                // the cached file has not been modified
+                if (cached == null || downloadCache.matches(cached, destFile,
+                        getLastModifiedFromCache(cached))) {
+                    upToDate.incrementAndGet();
+                    return;
+                }
+                if (materializeFromCache(src, cached, destFile)) {
+                    return;
+                }
+
+                // the cached file has been evicted or is corrupt. download
+                // it again.
+                result = executeHttpProtocol(src, clientFactory, 0, null,
+                        stagingFile, progressLogger);
+            }
+
+            String etag = null;
+            String lastModified = null;
+            HttpResponse response = result.getResponse();
+            if (response != null) {
+                etag = getStrongETag(response);
+                Header lastModifiedHdr = response.getFirstHeader(HttpHeaders.LAST_MODIFIED);
+                if (lastModifiedHdr != null) {
+                    lastModified = lastModifiedHdr.getValue();
+                }
+            }
+
+            // copy the file to the destination before it is moved into the
+            // cache, so the destination does not depend on the cached file
+            DownloadCache.copy(stagingFile, destFile);
+
+            DownloadCache.Entry entry = downloadCache.put(src.toString(), etag,
+                    lastModified, checksum != null ? checksum.toString() : null,
+                    stagingFile);
+            setLastModifiedFromCache(entry, destFile);
+        } finally {
+            Files.deleteIfExists(stagingFile.toPath());
+        }
+    }
+
+    /**
+     * Copy a file from the shared cache to the destination
+     * @param src the URL of the cached file
+     * @param entry the cached file
+     * @param destFile the destination file
+     * @return true if the file has been copied, false if the cached file has
+     * been evicted or is corrupt and has to be downloaded again
+     * @throws IOException if the file could not be copied
+     */
+    private boolean materializeFromCache(URL src, DownloadCache.Entry entry,
+            File destFile) throws IOException {
+        if (!downloadCache.materialize(entry, destFile)) {
+            logger.warn("Cached copy of '" + src + "' is missing or " +
+                    "corrupt. Downloading it again.");
+            return false;
+        }
+        if (!quiet) {
+            logger.info("Using '" + src + "' from shared download cache");
+        }
+        setLastModifiedFromCache(entry, destFile);
+        return true;
+    }
+
+    /**
+     * Set the last-modified time of a file materialized from the shared
+     * cache if {@link #onlyIfModified} is enabled
+     * @param entry the cached file
+     * @param destFile the destination file
+     */
+    private void setLastModifiedFromCache(DownloadCache.Entry entry, File destFile) {
+        long lastModified = getLastModifiedFromCache(entry);
+        if (lastModified >= 0) {
+            destFile.setLastModified(lastModified);
+        }
+    }
+
+    /**
+     * Get the last-modified time {@link #setLastModifiedFromCache(DownloadCache.Entry, File)}
+     * gives a file materialized from the shared cache
+     * @param entry the cached file
+     * @return the last-modified time in milliseconds or -1 if the time of
+     * the file is not set
+     */
+    private long getLastModifiedFromCache(DownloadCache.Entry entry) {
+        if (!onlyIfModified || entry.getLastModified() == null) {
+            return -1;
+        }
+        Instant lastModified = DateUtils.parseStandardDate(entry.getLastModified());
+        if (lastModified == null) {
+            return -1;
+        }
+        return lastModified.toEpochMilli();
+    }
+
+    /**
+     * Get the cached ETag that should be sent with a request for the given
+     * file
+     * @param httpHost the HTTP host
+     * @param src the URL to download from
+     * @param destFile the destination file
+     * @return the ETag or {@code null} if no ETag should be sent
+     * @throws IOException if the cached ETags file could not be read
+     */
+    private String getRequestETag(HttpHost httpHost, URL src, File destFile)
+            throws IOException {
+        if (!onlyIfModified || !useETag.enabled || !destFile.exists()) {
+            return null;
+        }
+        String etag = getCachedETag(httpHost, src.getFile());
+        if (!useETag.useWeakETags && isWeakETag(etag)) {
+            return null;
+        }
+        return etag;
+    }
+
+    /**
+     * Download a file via HTTP with the asynchronous client. The response
+     * body is written directly to the destination file (or to a temporary
+     * file if {@link #tempAndMove} is enabled) while it is being received.
+     * @param src the URL to download from
+     * @param clientFactory the factory creating HTTP clients
+     * @param timestamp the timestamp of the destination file, in milliseconds
+     * @param destFile the destination file
+     * @param progressLogger progress logger
+     * @return a future that completes once the file has been downloaded
+     * @throws IOException if the thread was interrupted while waiting for
+     * the host to be ready
+     */
+    private CompletableFuture<Void> executeHttpProtocolAsync(URL src,
+            HttpClientFactory clientFactory, long timestamp, File destFile,
+            ProgressLoggerWrapper progressLogger) throws IOException {
+        HttpHost httpHost = new HttpHost(src.getProtocol(), src.getHost(), src.getPort());
+
+        String etag = getRequestETag(httpHost, src, destFile);
+        HttpUriRequestBase req = createRequest(method, src.getFile(),
+                timestamp, etag, false);
+        req.setScheme(httpHost.getSchemeName());
+        req.setAuthority(new URIAuthority(httpHost));
+        HttpClientContext context = createContext(httpHost);
+        if (context == null) {
+            context = HttpClientContext.create();
+        }
+        context.setRequestConfig(req.getConfig());
+        context.setAttribute(RetryBudget.CONTEXT_ATTRIBUTE, newRetryBudget());
+
+        File target;
+        if (tempAndMove) {
+            downloadTaskDir.mkdirs();
+            target = getPartFile(destFile);
+            getValidatorFile(target).delete();
+        } else {
+            target = destFile;
+        }
+
+        Checksum checksum = getExpectedChecksum(src);
+        FileResponseConsumer consumer = new FileResponseConsumer(target,
+                checksum, bufferSize, progressLogger, bandwidthLimiter, response -> {
+            validateResponse(httpHost, req, response);
+
+            // check if file on server was modified
+            long lastModified = parseLastModified(response);
+            if (response.getCode() == HttpStatus.SC_NOT_MODIFIED ||
+                    (lastModified != 0 && timestamp >= lastModified)) {
+                if (!quiet) {
+                    logger.info("Not modified. Skipping '" + src + "'");
+                }
+                upToDate.incrementAndGet();
+                return false;
+            }
+
+            progressLogger.setSize(parseContentLength(response));
+            return true;
+        });
+
+        // wait if the host has asked clients to back off
+        RetryBackoff backoff = getRetryBackoff(httpHost);
+        if (backoff != null) {
+            backoff.awaitHost();
+        }
+
+        CompletableFuture<HttpResponse> response;
+        if (getEffectiveHttpEngine() == HttpEngineType.JDK) {
+            // java.net.http.HttpClient only supports authentication
+            // challenges through a global authenticator, so always send
+            // credentials preemptively
+            if (username != null && password != null) {
+                req.setHeader(HttpHeaders.AUTHORIZATION, "Basic " +
+                        Base64.getEncoder().encodeToString((username + ":" +
+                                password).getBytes(StandardCharsets.UTF_8)));
+            }
+            HttpTransport transport = clientFactory.createJdkTransport(httpHost,
+                    acceptAnyCertificate, retries, connectTimeoutMs,
+                    httpVersion.versionPolicy);
+            response = transport.execute(httpHost, req, body, consumer,
+                    getResponseObserver(httpHost), backoff,
+                    new RetryLogger(logger, quiet));
+        } else {
+            CloseableHttpAsyncClient client = clientFactory.createHttpAsyncClient(
+                    httpHost, acceptAnyCertificate, retries, retryDelayMs,
+                    connectTimeoutMs, maxConnectionsPerHost, maxConnectionsTotal,
+                    httpVersion.versionPolicy, headers);
+            response = new CompletableFuture<>();
+            executeAsync(client, src, req, consumer, context, backoff, 1, response);
+        }
+
+        CompletableFuture<Void> result = new CompletableFuture<>();
+        response.whenComplete((r, ex) -> {
+            if (ex != null) {
+                if (consumer.isWritten()) {
+                    target.delete();
+                }
+                result.completeExceptionally(ex);
+                return;
+            }
+
+            try {
+                if (consumer.isWritten()) {
+                    checkDigest(target, destFile, checksum, consumer.getDigest());
+                    if (tempAndMove) {
+                        replaceDestFile(target, destFile, progressLogger);
+                    }
+                    finishDownload(httpHost, src, destFile, r);
+                }
+                result.complete(null);
+            } catch (Throwable t) {
+                result.completeExceptionally(t);
+            }
+        });
+
+        return result;
+    }
+
+    /**
+     * Send a request with the asynchronous client. The client only retries
+     * requests that have received a response. If the request fails with an
+     * exception before the response body has been written, this method
+     * retries it after a delay without blocking the client's I/O threads.
+     * @param client the HTTP client to use
+     * @param src the URL to download from
+     * @param req the request
+     * @param consumer the consumer writing the response body
+     * @param context the request context containing the {@link RetryBudget}
+     * of the download
+     * @param backoff determines how long to wait before a retry (may be
+     * {@code null})
+     * @param execCount the number of the current attempt
+     * @param response a future that will be completed with the response
+     */
+    private void executeAsync(CloseableHttpAsyncClient client, URL src,
+            HttpUriRequestBase req, FileResponseConsumer consumer,
+            HttpClientContext context, @Nullable RetryBackoff backoff,
+            int execCount, CompletableFuture<HttpResponse> response) {
+        AsyncEntityProducer entityProducer = body != null ?
+                new StringAsyncEntityProducer(body) : null;
+        client.execute(new BasicRequestProducer(req, entityProducer),
+                consumer, context, new FutureCallback<HttpResponse>() {
+            @Override
+            public void completed(HttpResponse r) {
+                response.complete(r);
+            }
+
+            @Override
+            public void failed(Exception ex) {
+                RetryBudget budget = RetryBudget.get(context);
+                if (ex instanceof IOException &&
+                        !(ex instanceof UnknownHostException) &&
+                        !consumer.isWritten() &&
+                        Method.isIdempotent(req.getMethod()) &&
+                        budget.tryAcquire()) {
+                    RetryLogger.get(context).logRetry(budget.getRetries(),
+                            budget.getMaxRetries());
+                    logger.debug("Request attempt failed", ex);
+                    long delay = backoff != null ?
+                            backoff.getRetryDelay(execCount, null) : retryDelayMs;
+                    Scheduler.runLater(() -> executeAsync(client, src, req,
+                            consumer, context, backoff, execCount + 1, response),
+                            delay, TimeUnit.MILLISECONDS);
+                    return;
+                }
+                response.completeExceptionally(ex);
+            }
+
+            @Override
+            public void cancelled() {
+                response.completeExceptionally(new CancellationException(
+                        "Download of '" + src + "' was cancelled"));
+            }
+        });
+    }
+
+    /**
+     * Download a file via HTTP with a single request
+     * @param src the URL to download from
+     * @param httpHost the HTTP host
+     * @param client the HTTP client to use
+     * @param timestamp the timestamp of the destination file, in milliseconds
+     * @param etag the cached ETag for the requested host and file
+     * @param resumeOffset the number of bytes that have already been
+     * downloaded (0 if the whole file should be downloaded)
+     * @param resumeValidator the ETag or last-modified date of the already
+     * downloaded bytes (only used if {@code resumeOffset} is greater than 0)
+     * @param destFile the destination file
+     * @param budget the retries left for the download
+     * @param progressLogger progress logger
+     * @return the result of the download
+     * @throws InterruptedDownloadException if the connection was
+     * interrupted while downloading the response body but the download can
+     * be resumed
+     * @throws IOException if the file could not be downloaded
+     */
+    private HttpDownloadResult downloadHttp(URL src, HttpHost httpHost,
+            CloseableHttpClient client, long timestamp, String etag,
+            long resumeOffset, String resumeValidator, File destFile,
+            RetryBudget budget, ProgressLoggerWrapper progressLogger) throws IOException {
+        // open URL connection
+        HttpUriRequestBase req = createRequest(method, src.getFile(),
+                timestamp, etag, compress && resumeOffset == 0);
+        if (resumeOffset > 0) {
+            req.setHeader(HttpHeaders.RANGE, "bytes=" + resumeOffset + "-");
+            req.setHeader(HttpHeaders.IF_RANGE, resumeValidator);
+        }
+
+        try {
+            return openConnection(httpHost, req, client, budget, response -> {
+                // check if file on server was modified
+                long lastModified = parseLastModified(response);
+                int code = response.getCode();
+                if (code == HttpStatus.SC_NOT_MODIFIED ||
+                        (lastModified != 0 && timestamp >= lastModified)) {
+                    if (!quiet) {
+                        logger.info("Not modified. Skipping '" + src + "'");
+                    }
+                    if (resumeOffset > 0) {
+                        deletePartFile(destFile);
+                    }
+                    return HttpDownloadResult.NOT_MODIFIED;
+                }
+
+                // perform the download
+                performDownload(response, destFile, resumeOffset,
+                        getExpectedChecksum(src), progressLogger);
+
+                finishDownload(httpHost, src, destFile, response);
+
+                return HttpDownloadResult.downloaded(response);
+            });
+        } catch (ClientProtocolException e) {
+            // the partially downloaded file might be corrupt or the server
+            // might not be able to handle our range request
+            if (resumeOffset > 0 && tempAndMove) {
+                deletePartFile(destFile);
+            }
+            throw e;
+        }
+    }
+
+    /**
+     * Set the last-modified time of the given destination file and store
+     * the ETag from the given response if necessary
+     * @param httpHost the queried host
+     * @param src the queried URL
+     * @param destFile the downloaded file
+     * @param response the HTTP response
+     * @throws IOException if the ETag could not be stored
+     */
+    private void finishDownload(HttpHost httpHost, URL src, File destFile,
+            HttpResponse response) throws IOException {
+        // set last-modified time of destination file
+        long newTimestamp = parseLastModified(response);
+        if (onlyIfModified && newTimestamp > 0) {
+            destFile.setLastModified(newTimestamp);
+        }
+
+        // store ETag
+        if (onlyIfModified && useETag.enabled) {
+            storeETag(httpHost, src, destFile, response);
+        }
+    }
+
+    /**
+     * Checks if the request configured in this action can be split into
+     * multiple range requests or resumed with a range request
+     * @return true if range requests can be used
+     */
+    private boolean canUseRangeRequests() {
+        return "GET".equalsIgnoreCase(method) && body == null;
+    }
+
+    /**
+     * Sends a HEAD request to the server to check if it supports range
+     * requests and, if so, downloads the file in multiple segments in parallel
+     * @param src the URL of the file to download
+     * @param httpHost the HTTP host
+     * @param client the HTTP client to use
+     * @param timestamp the timestamp of the destination file, in milliseconds
+     * @param etag the cached ETag for the requested host and file
+     * @param destFile the destination file
+     * @param progressLogger progress logger
+     * @return the result of the download or {@code null} if the server does
+     * not support range requests, if it does not send a validator that
+     * makes sure all segments belong to the same version of the file, or if
+     * the file is too small and it should be downloaded with a single
+     * request instead
+     * @throws IOException if the file could not be downloaded
+     */
+    private HttpDownloadResult executeSegmented(URL src, HttpHost httpHost,
+            CloseableHttpClient client, long timestamp, String etag,
+            File destFile, ProgressLoggerWrapper progressLogger) throws IOException {
+        // probe server
+        HttpUriRequestBase probe = createRequest("HEAD", src.getFile(),
+                timestamp, etag, false);
+        HttpResponse probeResponse;
+        try {
+            probeResponse = openConnection(httpHost, probe, client, response -> response);
+        } catch (ClientProtocolException e) {
+            logger.debug("Could not probe server for range support. " +
+                    "Falling back to single request.", e);
+            return null;
+        }
+
+        // check if file on server was modified
+        long lastModified = parseLastModified(probeResponse);
+        if (probeResponse.getCode() == HttpStatus.SC_NOT_MODIFIED ||
+                (lastModified != 0 && timestamp >= lastModified)) {
+            if (!quiet) {
+                logger.info("Not modified. Skipping '" + src + "'");
+            }
+            return HttpDownloadResult.NOT_MODIFIED;
+        }
+
+        // check if server supports range requests and if the file is
+        // large enough to be split
+        Header acceptRanges = probeResponse.getFirstHeader(HttpHeaders.ACCEPT_RANGES);
+        long contentLength = parseContentLength(probeResponse);
+        int n = (int)Math.min(segments, contentLength / MIN_SEGMENT_SIZE);
+        if (acceptRanges == null || !"bytes".equalsIgnoreCase(
+                acceptRanges.getValue().trim()) || n < 2) {
+            return null;
+        }
+
+        // make sure all segments belong to the same version of the file
+        String ifRange = null;
+        Header etagHdr = probeResponse.getFirstHeader(HttpHeaders.ETAG);
+        if (etagHdr != null && !isWeakETag(etagHdr.getValue())) {
+            ifRange = etagHdr.getValue();
+        } else {
+            Header lastModifiedHdr = probeResponse.getFirstHeader(HttpHeaders.LAST_MODIFIED);
+            if (lastModifiedHdr != null) {
+                ifRange = lastModifiedHdr.getValue();
+            }
+        }
+        if (ifRange == null) {
+            logger.debug("Server did not send a validator for '" + src +
+                    "'. Falling back to single request.");
+            return null;
+        }
+
+        logger.debug("Downloading '" + src + "' in " + n + " segments");
+
+        progressLogger.setSize(contentLength);
+        String ifRangeFinal = ifRange;
+        writeAndMove(destFile, progressLogger, getExpectedChecksum(src),
+                target -> downloadSegments(
+                src, httpHost, client, contentLength, n,
+                ifRangeFinal, target, progressLogger));
+
+        finishDownload(httpHost, src, destFile, probeResponse);
+
+        return HttpDownloadResult.downloaded(probeResponse);
+    }
+
+    /**
+     * Downloads a file in multiple segments in parallel and writes each
+     * segment at its offset into the given target file. The segments are
+     * downloaded by the current thread and by helpers running on the
+     * {@link #downloadExecutor}. The current thread already counts against
+     * the {@link #downloadLimiter}, but each helper needs a permit of its
+     * own. Helpers only take segments that have not been started yet, so
+     * the download never waits for a permit that another download holds.
+     * @param src the URL of the file to download
+     * @param httpHost the HTTP host
+     * @param client the HTTP client to use
+     * @param contentLength the total length of the file
+     * @param n the number of segments
+     * @param ifRange the value of the If-Range header to send with each
+     * request
+     * @param target the file to write to
+     * @param progressLogger progress logger
+     * @throws IOException if one of the segments could not be downloaded
+     */
+    private void downloadSegments(URL src, HttpHost httpHost,
+            CloseableHttpClient client, long contentLength, int n,
+            String ifRange, File target, ProgressLoggerWrapper progressLogger)
+            throws IOException {
+        progressLogger.started();
+
+        boolean finished = false;
+        Queue<Segment> queue = new ConcurrentLinkedQueue<>();
+        try (FileChannel channel = FileChannel.open(target.toPath(),
+                StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING,
+                StandardOpenOption.CREATE)) {
+            long segmentSize = contentLength / n;
+            List<Segment> segmentList = new ArrayList<>(n);
+            for (int i = 0; i < n; ++i) {
+                long start = i * segmentSize;
+                long end = i == n - 1 ? contentLength - 1 : start + segmentSize - 1;
+                segmentList.add(new Segment(start, end));
+            }
+            queue.addAll(segmentList);
+
+            Runnable helper = () -> downloadQueuedSegments(queue, httpHost,
+                    src.getFile(), client, ifRange, channel, progressLogger);
+            for (int i = 1; i < n; ++i) {
+                if (downloadLimiter == null) {
+                    downloadExecutor.execute(helper);
+                    continue;
+                }
+                downloadLimiter.acquire(src).thenAccept(permit -> {
+                    if (queue.isEmpty()) {
+                        permit.close();
+                        return;
+                    }
+                    try {
+                        downloadExecutor.execute(() -> {
+                            try {
+                                helper.run();
+                            } finally {
+                                permit.close();
+                            }
+                        });
+                    } catch (RejectedExecutionException e) {
+                        permit.close();
+                    }
+                });
+            }
+            helper.run();
+
+            // wait for the segments the helpers are still downloading
+            for (Segment s : segmentList) {
+                s.done.get();
+            }
+            finished = true;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Segmented download was interrupted", e);
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof IOException) {
+                throw (IOException)e.getCause();
+            }
+            throw new IOException("Could not download segment", e.getCause());
+        } finally {
+            // do not let helpers start further segments
+            queue.clear();
+            if (!finished) {
+                target.delete();
+            }
+            progressLogger.completed();
+        }
+    }
+
+    /**
+     * Downloads segments from the given queue until it is empty. If a
+     * segment fails, all segments remaining in the queue fail too.
+     * @param queue the segments to download
+     * @param httpHost the HTTP host
+     * @param file the file to request
+     * @param client the HTTP client to use
+     * @param ifRange the value of the If-Range header
+     * @param channel the channel to write to
+     * @param progressLogger progress logger (shared between all segments)
+     */
+    private void downloadQueuedSegments(Queue<Segment> queue, HttpHost httpHost,
+            String file, CloseableHttpClient client, String ifRange,
+            FileChannel channel, ProgressLoggerWrapper progressLogger) {
+        Segment s;
+        while ((s = queue.poll()) != null) {
+            try {
+                downloadSegment(httpHost, file, client, s.start, s.end,
+                        ifRange, channel, progressLogger);
+                s.done.complete(null);
+            } catch (Throwable t) {
+                s.done.completeExceptionally(t);
+                Segment remaining;
+                while ((remaining = queue.poll()) != null) {
+                    remaining.done.completeExceptionally(t);
+                }
+            }
+        }
+    }
+
+    /**
+     * Downloads a single segment of a file with a range request
+     * @param httpHost the HTTP host
+     * @param file the file to request
+     * @param client the HTTP client to use
+     * @param start the offset of the first byte of the segment
+     * @param end the offset of the last byte of the segment (inclusive)
+     * @param ifRange the value of the If-Range header (may be {@code null})
+     * @param channel the channel to write to
+     * @param progressLogger progress logger (shared between all segments)
+     * @throws IOException if the segment could not be downloaded
+     */
+    private void downloadSegment(HttpHost httpHost, String file,
+            CloseableHttpClient client, long start, long end, String ifRange,
+            FileChannel channel, ProgressLoggerWrapper progressLogger)
+            throws IOException {
+        HttpUriRequestBase req = createRequest("GET", file, 0, null, false);
+        req.setHeader(HttpHeaders.RANGE, "bytes=" + start + "-" + end);
+        if (ifRange != null) {
+            req.setHeader(HttpHeaders.IF_RANGE, ifRange);
+        }
+
+        openConnection(httpHost, req, client, response -> {
+            Header contentRange = response.getFirstHeader(HttpHeaders.CONTENT_RANGE);
+            if (response.getCode() != HttpStatus.SC_PARTIAL_CONTENT ||
+                    contentRange == null || !contentRange.getValue().startsWith(
+                            "bytes " + start + "-" + end + "/")) {
+                throw new IOException("Server did not return the requested " +
+                        "range " + start + "-" + end + " of '" + file + "'. " +
+                        "The file might have been modified during the download.");
+            }
+
+            HttpEntity entity = response.getEntity();
+            if (entity == null) {
+                throw new IOException("Empty response for range " +
+                        start + "-" + end + " of '" + file + "'");
+            }
+
+            byte[] buf = bufferPool.acquire();
+            try (InputStream is = entity.getContent()) {
+                ByteBuffer bb = ByteBuffer.wrap(buf);
+                long pos = start;
+                long remaining = end - start + 1;
+                while (remaining > 0) {
+                    int read = is.read(buf, 0, (int)Math.min(buf.length, remaining));
+                    if (read < 0) {
+                        throw new IOException("Premature end of range " +
+                                start + "-" + end + " of '" + file + "'");
+                    }
+                    bb.position(0);
+                    bb.limit(read);
+                    while (bb.hasRemaining()) {
+                        pos += channel.write(bb, pos);
+                    }
+                    remaining -= read;
+                    synchronized (progressLogger) {
+                        progressLogger.incrementProgress(read);
+                    }
+                    if (bandwidthLimiter != null) {
+                        bandwidthLimiter.acquire(read);
+                    }
+                }
+            } finally {
+                bufferPool.release(buf);
+            }
+
+            return null;
+        });
+    }
+
+    /**
+     * Save an HTTP response to a file
+     * @param response the response to save
+     * @param destFile the destination file
+     * @param resumeOffset the number of bytes already downloaded to the
+     * temporary file if the response is the result of a range request that
+     * should resume a partial download (0 otherwise)
+     * @param checksum the expected checksum of the file (may be {@code null})
+     * @param progressLogger progress logger
+     * @throws IOException if the response could not be downloaded
+     */
+    private void performDownload(ClassicHttpResponse response, File destFile,
+            long resumeOffset, Checksum checksum,
+            ProgressLoggerWrapper progressLogger) throws IOException {
+        HttpEntity entity = response.getEntity();
+        if (entity == null) {
+            return;
+        }
+
+        // check if the server has accepted our range request
+        long offset = 0;
+        if (resumeOffset > 0 && response.getCode() == HttpStatus.SC_PARTIAL_CONTENT) {
+            Header contentRange = response.getFirstHeader(HttpHeaders.CONTENT_RANGE);
+            if (contentRange == null || !contentRange.getValue().startsWith(
+                    "bytes " + resumeOffset + "-")) {
+                throw new ClientProtocolException("Server returned unexpected " +
+                        "content range: " + (contentRange == null ? null :
+                        contentRange.getValue()));
+            }
+            if (!quiet) {
+                logger.info("Resuming download of '" + destFile.getName() +
+                        "' at byte " + resumeOffset);
+            }
+            offset = resumeOffset;
         }
 
         // get content length
         long contentLength = entity.getContentLength();
         if (contentLength >= 0) {
-            progressLogger.setSize(contentLength);
+            progressLogger.setSize(offset + contentLength);
+        }
+
+        // A partially downloaded file can only be resumed if we know its
+        // version and if it has not been decompressed on the fly
+        String validator = null;
+        if (contentLength >= 0 && canUseRangeRequests()) {
+            validator = getValidator(response);
         }
 
         // open stream and start downloading
         InputStream is = entity.getContent();
-        streamAndMove(is, destFile, progressLogger);
+        streamAndMove(is, destFile, offset, contentLength, validator, checksum,
+                progressLogger);
+    }
+
+    /**
+     * Get a validator from the given response that can be used in an
+     * If-Range header to make sure a subsequent range request refers to the
+     * same version of the file
+     * @param response the response
+     * @return the strong ETag or the value of the Last-Modified header
+     * or {@code null} if the response contains neither
+     */
+    private String getValidator(HttpResponse response) {
+        Header etagHdr = response.getFirstHeader(HttpHeaders.ETAG);
+        if (etagHdr != null && !isWeakETag(etagHdr.getValue())) {
+            return etagHdr.getValue();
+        }
+        Header lastModifiedHdr = response.getFirstHeader(HttpHeaders.LAST_MODIFIED);
+        if (lastModifiedHdr != null) {
+            return lastModifiedHdr.getValue();
+        }
+        return null;
+    }
+
+    /**
+     * Get the temporary file a download should be written to if
+     * {@link #tempAndMove} is <code>true</code>. The file name is stable for
+     * a given destination file so an interrupted download can be resumed,
+     * unless another download of the same destination file has been using
+     * it when the download was started (see {@link #lockPartFile(File)}).
+     * @param destFile the destination file
+     * @return the temporary file
+     */
+    private File getPartFile(File destFile) {
+        PartFileLock lock = partFileLocks.get(destFile);
+        if (lock != null) {
+            return lock.getFile();
+        }
+        String hash = String.format("%08x", destFile.getAbsolutePath().hashCode());
+        return new File(downloadTaskDir, destFile.getName() + "." + hash + ".part");
+    }
+
+    /**
+     * If {@link #tempAndMove} is <code>true</code>, claim the temporary file
+     * of the given destination file for the whole download so that
+     * concurrent downloads of the same file do not write to it at the same
+     * time. If it is already in use, the download is written to a unique
+     * temporary file instead and cannot be resumed.
+     * @param destFile the destination file
+     * @throws IOException if the temporary file could not be claimed
+     */
+    private void lockPartFile(File destFile) throws IOException {
+        if (!tempAndMove) {
+            return;
+        }
+        downloadTaskDir.mkdirs();
+        PartFileLock lock = PartFileLock.acquire(getPartFile(destFile));
+        if (!lock.isLocked()) {
+            logger.debug("Temporary file of '" + destFile + "' is in use. " +
+                    "Downloading to '" + lock.getFile() + "' instead.");
+        }
+        partFileLocks.put(destFile, lock);
+    }
+
+    /**
+     * Release the temporary file claimed by {@link #lockPartFile(File)}
+     * @param destFile the destination file
+     * @throws IOException if the temporary file could not be released
+     */
+    private void unlockPartFile(File destFile) throws IOException {
+        PartFileLock lock = partFileLocks.get(destFile);
+        if (lock == null) {
+            return;
+        }
+        try {
+            if (!lock.isLocked()) {
+                deletePartFile(destFile);
+            }
+        } finally {
+            partFileLocks.remove(destFile);
+            lock.close();
+        }
+    }
+
+    /**
+     * Get the file that stores the validator (i.e. the ETag or the
+     * last-modified date) of a temporary file
+     * @param partFile the temporary file
+     * @return the validator file
+     */
+    private File getValidatorFile(File partFile) {
+        return new File(partFile.getPath() + ".validator");
+    }
+
+    /**
+     * Read the validator of a temporary file
+     * @param partFile the temporary file
+     * @return the validator or {@code null} if there is no validator
+     */
+    private String readValidator(File partFile) {
+        File validatorFile = getValidatorFile(partFile);
+        if (!validatorFile.exists()) {
+            return null;
+        }
+        try {
+            String validator = new String(Files.readAllBytes(
+                    validatorFile.toPath()), StandardCharsets.UTF_8).trim();
+            return validator.isEmpty() ? null : validator;
+        } catch (IOException e) {
+            logger.debug("Could not read validator of partially downloaded file", e);
+            return null;
+        }
+    }
+
+    /**
+     * Delete the temporary file of the given destination file and its
+     * validator
+     * @param destFile the destination file
+     */
+    private void deletePartFile(File destFile) {
+        File partFile = getPartFile(destFile);
+        partFile.delete();
+        getValidatorFile(partFile).delete();
     }
 
     /**
@@ -476,7 +2205,7 @@ public class DownloadAction implements DownloadSpec, Serializable {
         // renameTo() failed. Try to copy the file and delete it afterwards.
         // see issue #146
         try (InputStream is = Files.newInputStream(src.toPath())) {
-            stream(is, dest, progressLogger);
+            stream(is, dest, 0, src.length(), null, null, progressLogger);
         }
         if (!src.delete()) {
             throw new IOException("Could not delete temporary file '" +
@@ -490,102 +2219,194 @@ public class DownloadAction implements DownloadSpec, Serializable {
      * stream to a temporary file and log progress. Upon successful
      * completion, move the temporary file to the given destination. If
      * {@link #tempAndMove} is <code>false</code>, just forward to
-     * {@link #stream(InputStream, File, ProgressLoggerWrapper)}.
+     * {@link #stream(InputStream, File, long, long, String, Checksum, ProgressLoggerWrapper)}.
      * @param is the input stream to read
      * @param destFile the destination file
+     * @param offset the position in the file where the bytes should be
+     * written to. Existing bytes before this position will be kept.
+     * @param size the expected number of bytes in the input stream or -1
+     * if the number is unknown
+     * @param validator an ETag or last-modified date identifying the version
+     * of the file being downloaded. If this value is not {@code null}, the
+     * file will be kept if the connection is interrupted so the download can
+     * be resumed.
+     * @param checksum the expected checksum of the file (may be {@code null})
      * @param progressLogger progress logger
      * @throws IOException if an I/O error occurs
      */
-    private void streamAndMove(InputStream is, File destFile,
+    private void streamAndMove(InputStream is, File destFile, long offset,
+            long size, String validator, Checksum checksum,
             ProgressLoggerWrapper progressLogger) throws IOException {
         if (!tempAndMove) {
-            stream(is, destFile, progressLogger);
+            byte[] digest = stream(is, destFile, offset, size, validator,
+                    checksum, progressLogger);
+            checkDigest(destFile, destFile, checksum, digest);
+            return;
+        }
+
+        // the checksum is calculated while streaming, so we do not have to
+        // pass it to writeAndMove
+        writeAndMove(destFile, progressLogger, null, target -> {
+            // Remember validator so we can resume the download later. If
+            // the file is extended beyond the bytes actually written, its
+            // length does not tell us where to resume if the build is
+            // killed. Only remember the validator after a connection error
+            // in this case.
+            File validatorFile = getValidatorFile(target);
+            boolean lengthReliable = !isFileExtendedInAdvance(size);
+            if (validator != null && lengthReliable) {
+                if (offset == 0) {
+                    Files.write(validatorFile.toPath(),
+                            validator.getBytes(StandardCharsets.UTF_8));
+                }
+            } else {
+                validatorFile.delete();
+            }
+
+            try {
+                byte[] digest = stream(is, target, offset, size, validator,
+                        checksum, progressLogger);
+                checkDigest(target, destFile, checksum, digest);
+            } catch (InterruptedDownloadException e) {
+                if (!lengthReliable) {
+                    Files.write(validatorFile.toPath(),
+                            validator.getBytes(StandardCharsets.UTF_8));
+                }
+                throw e;
+            }
+        });
+    }
+
+    /**
+     * If {@link #tempAndMove} is <code>true</code>, let the given writer
+     * write to a temporary file and, upon successful completion, move the
+     * temporary file to the given destination. If {@link #tempAndMove} is
+     * <code>false</code>, let the writer write to the destination directly.
+     * @param destFile the destination file
+     * @param progressLogger progress logger
+     * @param checksum the expected checksum of the written file. If this
+     * value is not {@code null}, the file will be verified before it is
+     * moved to the destination.
+     * @param writer the writer that creates the file's contents
+     * @throws IOException if an I/O error occurs
+     */
+    private void writeAndMove(File destFile, ProgressLoggerWrapper progressLogger,
+            Checksum checksum, FileContentsWriter writer) throws IOException {
+        if (!tempAndMove) {
+            writer.write(destFile);
+            verifyFile(destFile, destFile, checksum);
         } else {
             //create parent directory
             downloadTaskDir.mkdirs();
 
-            //create name of temporary file
-            File tempFile = File.createTempFile(destFile.getName(), ".part",
-                    downloadTaskDir);
+            //get name of temporary file
+            File tempFile = getPartFile(destFile);
 
-            //stream and move
-            stream(is, tempFile, progressLogger);
-            if (destFile.exists()) {
-                //Delete destFile if it exists before renaming tempFile.
-                //Otherwise renaming might fail.
-                if (!destFile.delete()) {
-                    throw new IOException("Could not delete old destination file '" +
-                            destFile.getAbsolutePath() + "'.");
-                }
-            }
-            try {
-                moveFile(tempFile, destFile, progressLogger);
-            } catch (IOException e) {
-                throw new IOException("Failed to move temporary file '" +
-                        tempFile.getAbsolutePath() + "' to destination file '" +
-                        destFile.getAbsolutePath() + "'.", e);
+            //write and move
+            writer.write(tempFile);
+            getValidatorFile(tempFile).delete();
+            verifyFile(tempFile, destFile, checksum);
+            replaceDestFile(tempFile, destFile, progressLogger);
+        }
+    }
+
+    /**
+     * Replace the destination file with a completely written temporary file
+     * @param tempFile the temporary file
+     * @param destFile the destination file
+     * @param progressLogger progress logger
+     * @throws IOException if the file could not be replaced
+     */
+    private void replaceDestFile(File tempFile, File destFile,
+            ProgressLoggerWrapper progressLogger) throws IOException {
+        if (destFile.exists()) {
+            //Delete destFile if it exists before renaming tempFile.
+            //Otherwise renaming might fail.
+            if (!destFile.delete()) {
+                throw new IOException("Could not delete old destination file '" +
+                        destFile.getAbsolutePath() + "'.");
             }
         }
+        try {
+            moveFile(tempFile, destFile, progressLogger);
+        } catch (IOException e) {
+            throw new IOException("Failed to move temporary file '" +
+                    tempFile.getAbsolutePath() + "' to destination file '" +
+                    destFile.getAbsolutePath() + "'.", e);
+        }
     }
 
     /**
      * Copy bytes from an input stream to a file and log progress
      * @param is the input stream to read
      * @param destFile the file to write to
+     * @param offset the position in the file where the bytes should be
+     * written to. Existing bytes before this position will be kept.
+     * @param size the expected number of bytes in the input stream or -1
+     * if the number is unknown
+     * @param validator an ETag or last-modified date identifying the version
+     * of the file being downloaded. If this value is not {@code null} and
+     * reading from the input stream fails, the file will be kept and an
+     * {@link InterruptedDownloadException} will be thrown so the download
+     * can be resumed. Otherwise, the file will be deleted on errors.
+     * @param checksum the expected checksum of the file. If this value is not
+     * {@code null}, the file's digest will be calculated while the bytes are
+     * being written.
      * @param progressLogger progress logger
+     * @return the digest of the whole file calculated with the algorithm of
+     * the given checksum or {@code null} if no checksum was given
+     * @throws InterruptedDownloadException if the input stream could not be
+     * read but the download can be resumed
      * @throws IOException if an I/O error occurs
      */
-    private void stream(InputStream is, File destFile,
+    private byte[] stream(InputStream is, File destFile, long offset, long size,
+            String validator, Checksum checksum,
             ProgressLoggerWrapper progressLogger) throws IOException {
+        CountingInputStream cis = new CountingInputStream(is);
         try {
             progressLogger.started();
+            if (offset > 0) {
+                progressLogger.incrementProgress(offset);
+            }
 
             boolean finished = false;
-            try (AsynchronousFileChannel channel = AsynchronousFileChannel.open(
-                    destFile.toPath(), StandardOpenOption.WRITE,
-                    StandardOpenOption.TRUNCATE_EXISTING,
-                    StandardOpenOption.CREATE)) {
-                long pos = 0;
-                Future<Integer> writeFuture = null;
-
-                byte[] buf1 = new byte[1024 * 10];
-                byte[] buf2 = new byte[1024 * 10];
-                ByteBuffer bb1 = ByteBuffer.wrap(buf1);
-                ByteBuffer bb2 = ByteBuffer.wrap(buf2);
-
-                int read;
-                while ((read = is.read(buf1)) >= 0) {
-                    if (writeFuture != null) {
-                        writeFuture.get();
-                    }
-                    bb1.position(0);
-                    bb1.limit(read);
-                    writeFuture = channel.write(bb1, pos);
-                    pos += read;
-                    progressLogger.incrementProgress(read);
-
-                    // swap buffers for next asynchronous operation
-                    byte[] tmpBuf = buf1;
-                    buf1 = buf2;
-                    buf2 = tmpBuf;
-                    ByteBuffer tmpBB = bb1;
-                    bb1 = bb2;
-                    bb2 = tmpBB;
+            boolean resumable = false;
+            try {
+                prepareFile(destFile, offset, size);
+
+                // calculate checksum from the same buffers we write
+                InputStream in = cis;
+                if (bandwidthLimiter != null) {
+                    in = new ThrottledInputStream(in, bandwidthLimiter);
                 }
-                if (writeFuture != null) {
-                    writeFuture.get();
+                MessageDigest md = null;
+                if (checksum != null) {
+                    md = checksum.newDigest();
+                    if (offset > 0) {
+                        updateDigest(md, destFile, offset);
+                    }
+                    in = new DigestInputStream(in, md);
                 }
 
+                createWriteEngine(size).write(in, destFile, offset, size,
+                        progressLogger);
                 finished = true;
-            } catch (InterruptedException e) {
-                throw new IOException("Writing to destination file was interrupted", e);
-            } catch (ExecutionException e) {
-                if (e.getCause() instanceof IOException) {
-                    throw (IOException)e.getCause();
+
+                return md != null ? md.digest() : null;
+            } catch (IOException e) {
+                if (validator != null && cis.hasFailed()) {
+                    // The write engine has kept what we have got so far.
+                    // Remove preallocated or mapped bytes beyond that.
+                    long position = offset + cis.getCount();
+                    try (RandomAccessFile raf = new RandomAccessFile(destFile, "rw")) {
+                        raf.setLength(position);
+                    }
+                    resumable = true;
+                    throw new InterruptedDownloadException(position, validator, e);
                 }
-                throw new IOException("Could not write to destination file", e);
+                throw e;
             } finally {
-                if (!finished) {
+                if (!finished && !resumable) {
                     destFile.delete();
                 }
             }
@@ -596,40 +2417,280 @@ public class DownloadAction implements DownloadSpec, Serializable {
     }
 
     /**
-     * Make sure the parent directories of all given files exist and create
-     * them if necessary
-     * @param destFiles the files
+     * Get the checksum the file downloaded from the given source is
+     * expected to have
+     * @param src the source
+     * @return the expected checksum or {@code null} if there is none
      */
-    private void ensureTargetDirectoriesExist(List<File> destFiles) {
-        Set<File> parentDirs = new HashSet<>();
-        for (File o : destFiles) {
-            File parentDir = o.getParentFile();
-            if (parentDir != null && parentDirs.add(parentDir)) {
-                parentDir.mkdirs();
+    private Checksum getExpectedChecksum(URL src) {
+        Checksum c = checksums.get(src.toExternalForm());
+        if (c == null) {
+            c = defaultChecksum;
+        }
+        return c;
+    }
+
+    /**
+     * Verify the checksum of the given file
+     * @param file the file to verify
+     * @param destFile the destination file (used in the error message)
+     * @param checksum the expected checksum (may be {@code null}, in which
+     * case the method does nothing)
+     * @throws IOException if the file could not be read
+     * @throws GradleException if the checksum does not match. The file will
+     * be deleted in this case.
+     */
+    private void verifyFile(File file, File destFile, Checksum checksum)
+            throws IOException {
+        if (checksum == null) {
+            return;
+        }
+        MessageDigest md = checksum.newDigest();
+        updateDigest(md, file, Long.MAX_VALUE);
+        checkDigest(file, destFile, checksum, md.digest());
+    }
+
+    /**
+     * Update a message digest with the contents of a file
+     * @param md the message digest
+     * @param file the file to read
+     * @param length the maximum number of bytes to read from the beginning
+     * of the file
+     * @throws IOException if the file could not be read
+     */
+    private void updateDigest(MessageDigest md, File file, long length)
+            throws IOException {
+        byte[] buf = bufferPool.acquire();
+        try (InputStream is = Files.newInputStream(file.toPath())) {
+            long remaining = length;
+            int read;
+            while (remaining > 0 && (read = is.read(buf, 0,
+                    (int)Math.min(buf.length, remaining))) >= 0) {
+                md.update(buf, 0, read);
+                remaining -= read;
             }
+        } finally {
+            bufferPool.release(buf);
         }
     }
 
     /**
-     * Reads the {@link #cachedETagsFile}
-     * @return a map containing the parsed contents of the cached etags file
-     * or an empty map if the file does not exist yet
+     * Compare a calculated digest with an expected checksum
+     * @param file the file the digest has been calculated for
+     * @param destFile the destination file (used in the error message)
+     * @param checksum the expected checksum (may be {@code null}, in which
+     * case the method does nothing)
+     * @param digest the calculated digest
+     * @throws GradleException if the digest does not match. The file will
+     * be deleted in this case.
      */
-    @SuppressWarnings("unchecked")
-    private Map<String, Object> readCachedETags() {
-        cachedETagsFileLock.lock();
+    private void checkDigest(File file, File destFile, Checksum checksum,
+            byte[] digest) {
+        if (checksum == null || checksum.matches(digest)) {
+            return;
+        }
+        file.delete();
+        throw new GradleException("Invalid checksum for file '" +
+                destFile.getName() + "'. Expected " + checksum.getChecksum() +
+                " but got " + Checksum.toHex(digest) + ".");
+    }
+
+    /**
+     * Prepare a file before bytes are written to it. Remove all bytes after
+     * the given offset and, if {@link #preallocate} is enabled, make sure
+     * there is enough free space and allocate the expected number of bytes.
+     * @param file the file to prepare
+     * @param offset the position where the first byte will be written to
+     * @param size the expected number of bytes or -1 if it is unknown
+     * @throws IOException if the file could not be prepared or if there is
+     * not enough free space
+     */
+    private void prepareFile(File file, long offset, long size) throws IOException {
+        boolean preallocating = preallocate && size > 0;
+        if (preallocating) {
+            checkFreeSpace(file, offset + size);
+        }
+        try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+            raf.setLength(offset);
+            if (preallocating) {
+                raf.setLength(offset + size);
+            }
+        }
+    }
+
+    /**
+     * Check if there is enough free space on the file store of the given
+     * file to grow it to the given length
+     * @param file the file
+     * @param length the final length of the file
+     * @throws IOException if there is not enough free space
+     */
+    private void checkFreeSpace(File file, long length) throws IOException {
+        long required = length - (file.exists() ? file.length() : 0);
+        if (required <= 0) {
+            return;
+        }
+
+        long usable;
         try {
-            File cachedETagsFile = getCachedETagsFile();
-            Map<String, Object> cachedETags;
-            if (cachedETagsFile.exists()) {
-                JsonSlurper slurper = new JsonSlurper();
-                cachedETags = (Map<String, Object>)slurper.parse(cachedETagsFile, "UTF-8");
+            usable = Files.getFileStore(file.getAbsoluteFile()
+                    .getParentFile().toPath()).getUsableSpace();
+        } catch (IOException e) {
+            logger.debug("Unable to determine free disk space", e);
+            return;
+        }
+
+        if (usable < required) {
+            throw new IOException("Not enough free disk space to download '" +
+                    file.getName() + "'. Required: " + required +
+                    " bytes, available: " + usable + " bytes.");
+        }
+    }
+
+    /**
+     * Check if the file to write to will be extended beyond the bytes
+     * actually written while downloading (i.e. if it is preallocated or
+     * memory-mapped)
+     * @param size the expected number of bytes or -1 if it is unknown
+     * @return true if the file will be extended in advance
+     */
+    private boolean isFileExtendedInAdvance(long size) {
+        return (preallocate && size > 0) ||
+                resolveWriteEngineType(size) == WriteEngineType.MMAP;
+    }
+
+    /**
+     * Resolve the write engine to use depending on {@link #writeEngine} and
+     * the expected number of bytes to write
+     * @param size the expected number of bytes or -1 if it is unknown
+     * @return the write engine type (never {@link WriteEngineType#AUTO})
+     */
+    private WriteEngineType resolveWriteEngineType(long size) {
+        WriteEngineType type = writeEngine;
+        if (type == WriteEngineType.MMAP && size < 0) {
+            // we cannot map a region of unknown size
+            type = WriteEngineType.ASYNC;
+        } else if (type == WriteEngineType.AUTO) {
+            if (size >= 0 && size < ASYNC_WRITE_THRESHOLD) {
+                type = WriteEngineType.SYNC;
             } else {
-                cachedETags = new LinkedHashMap<>();
+                type = WriteEngineType.ASYNC;
+            }
+        }
+        return type;
+    }
+
+    /**
+     * Create a write engine depending on {@link #writeEngine} and the
+     * expected number of bytes to write
+     * @param size the expected number of bytes or -1 if it is unknown
+     * @return the write engine
+     */
+    private WriteEngine createWriteEngine(long size) {
+        switch (resolveWriteEngineType(size)) {
+            case SYNC:
+                return new SyncWriteEngine(bufferPool);
+            case MMAP:
+                return new MappedWriteEngine(bufferPool);
+            default:
+                return new AsyncWriteEngine(ASYNC_WRITE_BUFFERS, bufferPool);
+        }
+    }
+
+    /**
+     * Try to create a hard link to a local file instead of copying it. This
+     * is only possible if both files are on the same file store.
+     * @param srcFile the file to link to
+     * @param destFile the link to create (will be replaced if it exists)
+     * @param progressLogger progress logger
+     * @return true if the link was created, false if the file has to be
+     * copied instead
+     */
+    private boolean link(File srcFile, File destFile,
+            ProgressLoggerWrapper progressLogger) {
+        Path src = srcFile.toPath();
+        Path dest = destFile.toPath();
+        try {
+            Path destDir = dest.toAbsolutePath().getParent();
+            if (destDir == null || !Files.getFileStore(src).equals(
+                    Files.getFileStore(destDir))) {
+                logger.debug("Source file '" + srcFile + "' and destination " +
+                        "file '" + destFile + "' are on different file stores. " +
+                        "Copying file instead of creating a link.");
+                return false;
+            }
+            if (srcFile.getCanonicalFile().equals(destFile.getCanonicalFile())) {
+                // do not delete the source file
+                return false;
             }
-            return cachedETags;
+
+            Files.deleteIfExists(dest);
+            Files.createLink(dest, src);
+        } catch (IOException | UnsupportedOperationException | SecurityException e) {
+            logger.debug("Could not create link to '" + srcFile + "'. " +
+                    "Copying file instead.", e);
+            return false;
+        }
+
+        progressLogger.started();
+        progressLogger.incrementProgress(srcFile.length());
+        progressLogger.completed();
+        return true;
+    }
+
+    /**
+     * Copy a local file to another file with {@link FileChannel#transferTo}
+     * so the operating system can avoid copying the bytes through the Java
+     * heap. Log progress and delete the destination file if an error occurs.
+     * @param srcFile the file to copy
+     * @param destFile the file to write to
+     * @param progressLogger progress logger
+     * @throws IOException if an I/O error occurs
+     */
+    private void transfer(File srcFile, File destFile,
+            ProgressLoggerWrapper progressLogger) throws IOException {
+        progressLogger.started();
+
+        boolean finished = false;
+        try (FileChannel in = FileChannel.open(srcFile.toPath(),
+                    StandardOpenOption.READ);
+                FileChannel out = FileChannel.open(destFile.toPath(),
+                    StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING,
+                    StandardOpenOption.CREATE)) {
+            long size = in.size();
+            long pos = 0;
+            while (pos < size) {
+                // transfer in chunks so we can log progress
+                long transferred = in.transferTo(pos,
+                        Math.min(TRANSFER_CHUNK_SIZE, size - pos), out);
+                if (transferred <= 0) {
+                    // the file has been truncated in the meantime
+                    break;
+                }
+                pos += transferred;
+                progressLogger.incrementProgress(transferred);
+            }
+            finished = true;
         } finally {
-            cachedETagsFileLock.unlock();
+            if (!finished) {
+                destFile.delete();
+            }
+            progressLogger.completed();
+        }
+    }
+
+    /**
+     * Make sure the parent directories of all given files exist and create
+     * them if necessary
+     * @param destFiles the files
+     */
+    private void ensureTargetDirectoriesExist(List<File> destFiles) {
+        Set<File> parentDirs = new HashSet<>();
+        for (File o : destFiles) {
+            File parentDir = o.getParentFile();
+            if (parentDir != null && parentDirs.add(parentDir)) {
+                parentDir.mkdirs();
+            }
         }
     }
 
@@ -638,36 +2699,27 @@ public class DownloadAction implements DownloadSpec, Serializable {
      * @param host the host
      * @param file the file
      * @return the cached ETag or null if there is no ETag in the cache
+     * @throws IOException if the cached ETags file could not be read
      */
-    private String getCachedETag(HttpHost host, String file) {
-        Map<String, Object> cachedETags = readCachedETags();
-
-        @SuppressWarnings("unchecked")
-        Map<String, Object> hostMap =
-                (Map<String, Object>)cachedETags.get(host.toURI());
-        if (hostMap == null) {
-            return null;
-        }
-
-        @SuppressWarnings("unchecked")
-        Map<String, String> etagMap = (Map<String, String>)hostMap.get(file);
-        if (etagMap == null) {
+    private String getCachedETag(HttpHost host, String file) throws IOException {
+        if (etagStore == null) {
             return null;
         }
-
-        return etagMap.get("ETag");
+        return etagStore.get(host.toURI(), file);
     }
 
     /**
-     * Store the ETag header from the given response in the {@link #cachedETagsFile}
+     * Store the ETag header from the given response in the {@link #etagStore}.
+     * The {@link #cachedETagsFile} will be updated after all downloads have
+     * finished.
      * @param host the queried host
-     * @param file the queried file
+     * @param src the queried URL
+     * @param destFile the downloaded file
      * @param response the HTTP response
-     * @throws IOException if the tag could not be written
+     * @throws IOException if the cached ETags file could not be read
      */
-    @SuppressWarnings("unchecked")
-    private void storeETag(HttpHost host, String file, HttpResponse response)
-            throws IOException {
+    private void storeETag(HttpHost host, URL src, File destFile,
+            HttpResponse response) throws IOException {
         //get ETag header
         Header etagHdr = response.getFirstHeader("ETag");
         if (etagHdr == null) {
@@ -691,39 +2743,14 @@ public class DownloadAction implements DownloadSpec, Serializable {
                 //do not save weak etags
                 return;
             }
-        }
-
-        cachedETagsFileLock.lock();
-        try {
-            // create directory for cached etags file
-            File parent = getCachedETagsFile().getParentFile();
-            if (parent != null) {
-                parent.mkdirs();
-            }
-
-            // read existing cached etags file
-            Map<String, Object> cachedETags = readCachedETags();
-
-            // create new entry in cached ETags file
-            Map<String, String> etagMap = new LinkedHashMap<>();
-            etagMap.put("ETag", etag);
-
-            String uri = host.toURI();
-            Map<String, Object> hostMap = (Map<String, Object>)cachedETags.get(uri);
-            if (hostMap == null) {
-                hostMap = new LinkedHashMap<>();
-                cachedETags.put(uri, hostMap);
-            }
-            hostMap.put(file, etagMap);
+        }
 
-            // write cached ETags file
-            String cachedETagsContents = JsonOutput.toJson(cachedETags);
-            try (PrintWriter writer = new PrintWriter(getCachedETagsFile(), "UTF-8")) {
-                writer.write(cachedETagsContents);
-                writer.flush();
-            }
-        } finally {
-            cachedETagsFileLock.unlock();
+        if (etagStore != null) {
+            Header lastModifiedHdr = response.getFirstHeader(HttpHeaders.LAST_MODIFIED);
+            Checksum checksum = getExpectedChecksum(src);
+            etagStore.put(host.toURI(), src.getFile(), new ETagStore.Entry(etag,
+                    lastModifiedHdr != null ? lastModifiedHdr.getValue() : null,
+                    destFile.length(), checksum != null ? checksum.toString() : null));
         }
     }
 
@@ -779,31 +2806,19 @@ public class DownloadAction implements DownloadSpec, Serializable {
     }
     
     /**
-     * Opens a connection to the given HTTP host and requests a file. Checks
-     * the last-modified header on the server if the given timestamp is
-     * greater than 0.
-     * @param httpHost the HTTP host to connect to
+     * Creates a request for the given file. Sets the last-modified header if
+     * the given timestamp is greater than 0.
+     * @param method the HTTP method to use
      * @param file the file to request
      * @param timestamp the timestamp of the destination file, in milliseconds
      * @param etag the cached ETag for the requested host and file
-     * @param client the HTTP client to use to perform the request
-     * @param responseHandler a callback that handles the HTTP response
-     * @throws IOException if the connection could not be opened
+     * @param compress true if compression should be enabled
+     * @return the request
      */
-    private <T> void openConnection(HttpHost httpHost, String file,
-            long timestamp, String etag, CloseableHttpClient client,
-            HttpClientResponseHandler<T> responseHandler) throws IOException {
-        // configure authentication
-        HttpClientContext context = null;
-        if (username != null && password != null) {
-            context = HttpClientContext.create();
-            Credentials c = new UsernamePasswordCredentials(username, password.toCharArray());
-            addAuthentication(httpHost, c, context, preemptiveAuth);
-        }
-        
-        // create request
+    private HttpUriRequestBase createRequest(String method, String file,
+            long timestamp, String etag, boolean compress) {
         HttpUriRequestBase req = new HttpUriRequestBase(
-                this.method.toUpperCase(Locale.ROOT), URI.create(file));
+                method.toUpperCase(Locale.ROOT), URI.create(file));
         if (body != null) {
             req.setEntity(new StringEntity(body));
         }
@@ -816,24 +2831,6 @@ public class DownloadAction implements DownloadSpec, Serializable {
                 .build();
         req.setConfig(config);
 
-        // add authentication information for proxy
-        String scheme = httpHost.getSchemeName();
-        String proxyHost = System.getProperty(scheme + ".proxyHost");
-        String proxyPort = System.getProperty(scheme + ".proxyPort");
-        String proxyUser = System.getProperty(scheme + ".proxyUser");
-        String proxyPassword = System.getProperty(scheme + ".proxyPassword");
-        if (proxyHost != null && proxyPort != null &&
-                proxyUser != null && proxyPassword != null) {
-            if (context == null) {
-                context = HttpClientContext.create();
-            }
-            int nProxyPort = Integer.parseInt(proxyPort);
-            HttpHost proxy = new HttpHost(scheme, proxyHost, nProxyPort);
-            Credentials credentials = new UsernamePasswordCredentials(
-                    proxyUser, proxyPassword.toCharArray());
-            addAuthentication(proxy, credentials, context, false);
-        }
-        
         // set If-Modified-Since header
         if (timestamp > 0) {
             req.setHeader("If-Modified-Since", DateUtils.formatStandardDate(
@@ -851,41 +2848,198 @@ public class DownloadAction implements DownloadSpec, Serializable {
                 req.addHeader(headerEntry.getKey(), headerEntry.getValue());
             }
         }
-        
-        // execute request
-        client.execute(httpHost, req, context, response -> {
-            // handle response
-            int code = response.getCode();
 
-            boolean valid;
-            if (statusValidator != null) {
-                valid = Boolean.TRUE.equals(statusValidator.transform(code));
-            } else {
-                valid = (code >= 200 && code <= 299) || code == HttpStatus.SC_NOT_MODIFIED;
-            }
+        return req;
+    }
 
-            if (!valid) {
-                String url = httpHost + file;
-                String message = "HTTP status code: " + code + ", URL: " + url;
-                if (code == HttpStatus.SC_UNAUTHORIZED &&
-                        !response.containsHeader(HttpHeaders.WWW_AUTHENTICATE)) {
-                    message += ". Missing " + HttpHeaders.WWW_AUTHENTICATE +
-                            " header in response; use the preemptiveAuth flag" +
-                            " to send credentials in the first request.";
-                }
-                String phrase = response.getReasonPhrase();
-                if (phrase == null || phrase.isEmpty()) {
-                    phrase = message;
-                } else {
-                    phrase += " (" + message + ")";
-                }
-                throw new ClientProtocolException(phrase);
+    /**
+     * Opens a connection to the given HTTP host and executes the given request
+     * @param httpHost the HTTP host to connect to
+     * @param req the request to execute
+     * @param client the HTTP client to use to perform the request
+     * @param responseHandler a callback that handles the HTTP response
+     * @return the value returned by the response handler
+     * @throws IOException if the connection could not be opened
+     */
+    private <T> T openConnection(HttpHost httpHost, HttpUriRequestBase req,
+            CloseableHttpClient client, HttpClientResponseHandler<T> responseHandler)
+            throws IOException {
+        return openConnection(httpHost, req, client, null, responseHandler);
+    }
+
+    /**
+     * Opens a connection to the given HTTP host and executes the given request
+     * @param httpHost the HTTP host to connect to
+     * @param req the request to execute
+     * @param client the HTTP client to use to perform the request
+     * @param budget the retries left for the download the request belongs
+     * to (may be {@code null} if the request may use all retries)
+     * @param responseHandler a callback that handles the HTTP response
+     * @return the value returned by the response handler
+     * @throws IOException if the connection could not be opened
+     */
+    private <T> T openConnection(HttpHost httpHost, HttpUriRequestBase req,
+            CloseableHttpClient client, @Nullable RetryBudget budget,
+            HttpClientResponseHandler<T> responseHandler) throws IOException {
+        HttpClientContext context = createContext(httpHost);
+        if (budget != null) {
+            if (context == null) {
+                context = HttpClientContext.create();
             }
+            context.setAttribute(RetryBudget.CONTEXT_ATTRIBUTE, budget);
+        }
+
+        // wait if the host has asked clients to back off
+        RetryBackoff backoff = getRetryBackoff(httpHost);
+        if (backoff != null) {
+            backoff.awaitHost();
+        }
 
+        // execute request
+        return client.execute(httpHost, req, context, response -> {
+            validateResponse(httpHost, req, response);
             return responseHandler.handleResponse(response);
         });
     }
 
+    /**
+     * Create a context holding the authentication information for requests
+     * to the given host, the observer that reports responses to the
+     * download limiter, and the backoff and the logger for retries
+     * @param httpHost the HTTP host to connect to
+     * @return the context or {@code null} if neither authentication nor an
+     * observer nor a backoff is necessary
+     */
+    private HttpClientContext createContext(HttpHost httpHost) {
+        // configure authentication
+        HttpClientContext context = null;
+        if (username != null && password != null) {
+            context = HttpClientContext.create();
+            Credentials c = new UsernamePasswordCredentials(username, password.toCharArray());
+            addAuthentication(httpHost, c, context, preemptiveAuth);
+        }
+
+        // add authentication information for proxy
+        String scheme = httpHost.getSchemeName();
+        String proxyHost = System.getProperty(scheme + ".proxyHost");
+        String proxyPort = System.getProperty(scheme + ".proxyPort");
+        String proxyUser = System.getProperty(scheme + ".proxyUser");
+        String proxyPassword = System.getProperty(scheme + ".proxyPassword");
+        if (proxyHost != null && proxyPort != null &&
+                proxyUser != null && proxyPassword != null) {
+            if (context == null) {
+                context = HttpClientContext.create();
+            }
+            int nProxyPort = Integer.parseInt(proxyPort);
+            HttpHost proxy = new HttpHost(scheme, proxyHost, nProxyPort);
+            Credentials credentials = new UsernamePasswordCredentials(
+                    proxyUser, proxyPassword.toCharArray());
+            addAuthentication(proxy, credentials, context, false);
+        }
+
+        // let the limiter adapt the number of concurrent downloads
+        ResponseObserver observer = getResponseObserver(httpHost);
+        if (observer != null) {
+            if (context == null) {
+                context = HttpClientContext.create();
+            }
+            context.setAttribute(ResponseObserver.CONTEXT_ATTRIBUTE, observer);
+        }
+
+        // let the retry strategy back off
+        RetryBackoff backoff = getRetryBackoff(httpHost);
+        if (backoff != null) {
+            if (context == null) {
+                context = HttpClientContext.create();
+            }
+            context.setAttribute(RetryBackoff.CONTEXT_ATTRIBUTE, backoff);
+
+            // log retries on behalf of this task and not of the task that
+            // has created the shared client
+            context.setAttribute(RetryLogger.CONTEXT_ATTRIBUTE,
+                    new RetryLogger(logger, quiet));
+        }
+
+        return context;
+    }
+
+    /**
+     * @return a new budget for the retries of a single download
+     */
+    private RetryBudget newRetryBudget() {
+        return new RetryBudget(retries < 0 ? Integer.MAX_VALUE : retries);
+    }
+
+    /**
+     * Get an object that determines how long to wait before a failed
+     * request to the given host is retried
+     * @param httpHost the HTTP host
+     * @return the backoff or {@code null} if requests are not retried
+     */
+    @Nullable
+    private RetryBackoff getRetryBackoff(HttpHost httpHost) {
+        HostBackoff hb = hostBackoff;
+        if (retries == 0 || hb == null) {
+            return null;
+        }
+        return new RetryBackoff(hb, httpHost.getHostName(), httpHost.getPort(),
+                httpHost.getSchemeName(), retryDelayMs, maxRetryDelayMs);
+    }
+
+    /**
+     * Get an observer that reports the responses of the given host to the
+     * download limiter
+     * @param httpHost the HTTP host
+     * @return the observer or {@code null} if adaptive concurrency is not
+     * enabled
+     */
+    @Nullable
+    private ResponseObserver getResponseObserver(HttpHost httpHost) {
+        DownloadLimiter limiter = downloadLimiter;
+        if (limiter == null) {
+            return null;
+        }
+        return limiter.observe(httpHost.getHostName(), httpHost.getPort(),
+                httpHost.getSchemeName());
+    }
+
+    /**
+     * Check the status code of a response
+     * @param httpHost the queried host
+     * @param req the request
+     * @param response the response
+     * @throws ClientProtocolException if the status code is invalid
+     */
+    private void validateResponse(HttpHost httpHost, HttpUriRequestBase req,
+            HttpResponse response) throws ClientProtocolException {
+        int code = response.getCode();
+
+        boolean valid;
+        if (statusValidator != null) {
+            valid = Boolean.TRUE.equals(statusValidator.transform(code));
+        } else {
+            valid = (code >= 200 && code <= 299) || code == HttpStatus.SC_NOT_MODIFIED;
+        }
+
+        if (!valid) {
+            String url = httpHost + req.getRequestUri();
+            String message = "HTTP status code: " + code + ", URL: " + url;
+            if (code == HttpStatus.SC_UNAUTHORIZED &&
+                    !response.containsHeader(HttpHeaders.WWW_AUTHENTICATE)) {
+                message += ". Missing " + HttpHeaders.WWW_AUTHENTICATE +
+                        " header in response; use the preemptiveAuth flag" +
+                        " to send credentials in the first request.";
+            }
+            String phrase = response.getReasonPhrase();
+            if (phrase == null || phrase.isEmpty()) {
+                phrase = message;
+            } else {
+                phrase += " (" + message + ")";
+            }
+            throw new ClientProtocolException(phrase);
+        }
+    }
+
     /**
      * Add authentication information for the given host
      * @param host the host
@@ -937,6 +3091,23 @@ public class DownloadAction implements DownloadSpec, Serializable {
         return date.toEpochMilli();
     }
     
+    /**
+     * Parse the Content-Length header of a {@link HttpResponse}
+     * @param response the {@link HttpResponse}
+     * @return the content length or -1 if it is unknown
+     */
+    private long parseContentLength(HttpResponse response) {
+        Header header = response.getFirstHeader(HttpHeaders.CONTENT_LENGTH);
+        if (header == null) {
+            return -1;
+        }
+        try {
+            return Long.parseLong(header.getValue().trim());
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
     /**
      * @return true if the download destination is up to date
      */
@@ -1068,11 +3239,55 @@ public class DownloadAction implements DownloadSpec, Serializable {
         this.readTimeoutMs = milliseconds;
     }
 
+    @Override
+    public void maxConnectionsPerHost(int maxConnectionsPerHost) {
+        if (maxConnectionsPerHost < 1) {
+            throw new IllegalArgumentException("Maximum number of " +
+                    "connections per host must be greater than 0");
+        }
+        this.maxConnectionsPerHost = maxConnectionsPerHost;
+    }
+
+    @Override
+    public void maxConnectionsTotal(int maxConnectionsTotal) {
+        if (maxConnectionsTotal < 1) {
+            throw new IllegalArgumentException("Maximum total number of " +
+                    "connections must be greater than 0");
+        }
+        this.maxConnectionsTotal = maxConnectionsTotal;
+    }
+
     @Override
     public void retries(int retries) {
         this.retries = retries;
     }
 
+    @Override
+    public void retryDelay(int milliseconds) {
+        if (milliseconds < 0) {
+            throw new IllegalArgumentException("Retry delay must not be negative");
+        }
+        this.retryDelayMs = milliseconds;
+    }
+
+    @Override
+    public void maxRetryDelay(int milliseconds) {
+        if (milliseconds < 0) {
+            throw new IllegalArgumentException("Maximum retry delay must " +
+                    "not be negative");
+        }
+        this.maxRetryDelayMs = milliseconds;
+    }
+
+    @Override
+    public void segments(int segments) {
+        if (segments < 1) {
+            throw new IllegalArgumentException("Number of segments must be " +
+                    "greater than or equal to 1");
+        }
+        this.segments = segments;
+    }
+
     /**
      * Get a destination file from a property. This method accepts various
      * input objects and tries to convert them to a {@link File} object
@@ -1086,46 +3301,207 @@ public class DownloadAction implements DownloadSpec, Serializable {
             Function0<?> function = (Function0<?>)dir;
             dir = function.invoke();
         }
-        if (dir instanceof Closure) {
-            // lazily evaluate closure
-            Closure<?> closure = (Closure<?>)dir;
-            dir = closure.call();
+        if (dir instanceof Closure) {
+            // lazily evaluate closure
+            Closure<?> closure = (Closure<?>)dir;
+            dir = closure.call();
+        }
+        if (dir instanceof Provider) {
+            dir = ((Provider<?>)dir).getOrNull();
+        }
+        if (dir instanceof CharSequence) {
+            return projectLayout.getProjectDirectory().file(dir.toString()).getAsFile();
+        } else if (dir instanceof Directory) {
+            File f = ((Directory)dir).getAsFile();
+
+            // Make sure the directory exists so we actually download to a file
+            // inside this directory. Otherwise, we will just create a file
+            // with the name of this directory.
+            f.mkdirs();
+
+            return f;
+        } else if (dir instanceof RegularFile) {
+            return ((RegularFile)dir).getAsFile();
+        } else if (dir instanceof File) {
+            return (File)dir;
+        }
+
+        return null;
+    }
+
+    @Override
+    public void downloadTaskDir(Object dir) {
+        downloadTaskDir = getDestinationFromDirProperty(dir);
+        if (downloadTaskDir == null) {
+            throw new IllegalArgumentException("download-task directory must " +
+                "either be a File or a CharSequence");
+        }
+    }
+
+    @Override
+    public void tempAndMove(boolean tempAndMove) {
+        this.tempAndMove = tempAndMove;
+    }
+
+    @Override
+    public void linkLocalFiles(boolean linkLocalFiles) {
+        this.linkLocalFiles = linkLocalFiles;
+    }
+
+    @Override
+    public void sharedCache(boolean sharedCache) {
+        this.sharedCache = sharedCache;
+    }
+
+    @Override
+    public void sharedCacheDir(Object dir) {
+        File f = getDestinationFromDirProperty(dir);
+        if (f == null) {
+            throw new IllegalArgumentException("Shared cache directory must " +
+                "either be a File or a CharSequence");
+        }
+        sharedCacheDir = f;
+    }
+
+    @Override
+    public void remoteCache(Object url) {
+        if (url == null) {
+            remoteCacheUrl = null;
+            return;
+        }
+
+        URL u;
+        try {
+            if (url instanceof URL) {
+                u = (URL)url;
+            } else if (url instanceof URI) {
+                u = ((URI)url).toURL();
+            } else if (url instanceof CharSequence) {
+                u = new URL(url.toString());
+            } else {
+                throw new IllegalArgumentException("Remote cache URL must " +
+                        "either be a URL, a URI, or a CharSequence");
+            }
+        } catch (MalformedURLException e) {
+            throw new IllegalArgumentException("Invalid remote cache URL", e);
+        }
+
+        if (!"http".equals(u.getProtocol()) && !"https".equals(u.getProtocol())) {
+            throw new IllegalArgumentException("Remote cache URL must use " +
+                    "HTTP or HTTPS");
+        }
+        remoteCacheUrl = u;
+    }
+
+    @Override
+    public void remoteCachePush(boolean push) {
+        this.remoteCachePush = push;
+    }
+
+    @Override
+    public void sharedCacheMaxSize(long maxSize) {
+        if (maxSize < 0) {
+            throw new IllegalArgumentException("Maximum size of shared cache " +
+                    "must not be negative");
+        }
+        this.sharedCacheMaxSize = maxSize;
+    }
+
+    @Override
+    public void writeEngine(String writeEngine) {
+        this.writeEngine = WriteEngineType.fromValue(writeEngine);
+    }
+
+    @Override
+    public void httpEngine(String httpEngine) {
+        this.httpEngine = HttpEngineType.fromValue(httpEngine);
+    }
+
+    @Override
+    public void httpVersion(String httpVersion) {
+        this.httpVersion = HttpVersion.fromValue(httpVersion);
+    }
+
+    @Override
+    public void bufferSize(int bufferSize) {
+        if (bufferSize < 1) {
+            throw new IllegalArgumentException("Buffer size must be " +
+                    "greater than 0");
+        }
+        this.bufferSize = bufferSize;
+    }
+
+    @Override
+    public void preallocate(boolean preallocate) {
+        this.preallocate = preallocate;
+    }
+
+    @Override
+    public void virtualThreads(boolean virtualThreads) {
+        this.virtualThreads = virtualThreads;
+    }
+
+    @Override
+    public void maxVirtualThreads(int maxVirtualThreads) {
+        if (maxVirtualThreads < 1) {
+            throw new IllegalArgumentException("Maximum number of virtual " +
+                    "threads must be greater than 0");
+        }
+        this.maxVirtualThreads = maxVirtualThreads;
+    }
+
+    @Override
+    public void maxConcurrentDownloads(int maxConcurrentDownloads) {
+        if (maxConcurrentDownloads < 0) {
+            throw new IllegalArgumentException("Maximum number of " +
+                    "concurrent downloads must not be negative");
         }
-        if (dir instanceof Provider) {
-            dir = ((Provider<?>)dir).getOrNull();
+        this.maxConcurrentDownloads = maxConcurrentDownloads;
+    }
+
+    @Override
+    public void maxConcurrentDownloadsPerHost(int maxConcurrentDownloadsPerHost) {
+        if (maxConcurrentDownloadsPerHost < 0) {
+            throw new IllegalArgumentException("Maximum number of " +
+                    "concurrent downloads per host must not be negative");
         }
-        if (dir instanceof CharSequence) {
-            return projectLayout.getProjectDirectory().file(dir.toString()).getAsFile();
-        } else if (dir instanceof Directory) {
-            File f = ((Directory)dir).getAsFile();
+        this.maxConcurrentDownloadsPerHost = maxConcurrentDownloadsPerHost;
+    }
 
-            // Make sure the directory exists so we actually download to a file
-            // inside this directory. Otherwise, we will just create a file
-            // with the name of this directory.
-            f.mkdirs();
+    @Override
+    public void maxBytesPerSecond(long maxBytesPerSecond) {
+        if (maxBytesPerSecond < 0) {
+            throw new IllegalArgumentException("Maximum number of bytes " +
+                    "per second must not be negative");
+        }
+        this.maxBytesPerSecond = maxBytesPerSecond;
+    }
 
-            return f;
-        } else if (dir instanceof RegularFile) {
-            return ((RegularFile)dir).getAsFile();
-        } else if (dir instanceof File) {
-            return (File)dir;
+    @Override
+    public void maxBytesPerSecondTotal(long maxBytesPerSecondTotal) {
+        if (maxBytesPerSecondTotal < 0) {
+            throw new IllegalArgumentException("Maximum number of bytes " +
+                    "per second must not be negative");
         }
+        this.maxBytesPerSecondTotal = maxBytesPerSecondTotal;
+    }
 
-        return null;
+    @Override
+    public void adaptiveConcurrency(boolean adaptiveConcurrency) {
+        this.adaptiveConcurrency = adaptiveConcurrency;
     }
 
     @Override
-    public void downloadTaskDir(Object dir) {
-        downloadTaskDir = getDestinationFromDirProperty(dir);
-        if (downloadTaskDir == null) {
-            throw new IllegalArgumentException("download-task directory must " +
-                "either be a File or a CharSequence");
-        }
+    public void checksum(String algorithm, String checksum) {
+        this.defaultChecksum = new Checksum(algorithm, checksum);
     }
 
     @Override
-    public void tempAndMove(boolean tempAndMove) {
-        this.tempAndMove = tempAndMove;
+    public void checksum(Object src, String algorithm, String checksum) {
+        Checksum c = new Checksum(algorithm, checksum);
+        for (URL u : convertSource(src)) {
+            checksums.put(u.toExternalForm(), c);
+        }
     }
 
     @Override
@@ -1133,6 +3509,11 @@ public class DownloadAction implements DownloadSpec, Serializable {
         this.useETag = UseETag.fromValue(useETag);
     }
 
+    @Override
+    public void cachedETagsFormat(String format) {
+        this.cachedETagsFormat = ETagsFormat.fromValue(format);
+    }
+
     @Override
     public void cachedETagsFile(Object location) {
         if (location instanceof Function0) {
@@ -1363,11 +3744,36 @@ public class DownloadAction implements DownloadSpec, Serializable {
         return readTimeoutMs;
     }
 
+    @Override
+    public int getMaxConnectionsPerHost() {
+        return maxConnectionsPerHost;
+    }
+
+    @Override
+    public int getMaxConnectionsTotal() {
+        return maxConnectionsTotal;
+    }
+
     @Override
     public int getRetries() {
         return retries;
     }
 
+    @Override
+    public int getRetryDelay() {
+        return retryDelayMs;
+    }
+
+    @Override
+    public int getMaxRetryDelay() {
+        return maxRetryDelayMs;
+    }
+
+    @Override
+    public int getSegments() {
+        return segments;
+    }
+
     @Override
     public File getDownloadTaskDir() {
         return downloadTaskDir;
@@ -1378,11 +3784,120 @@ public class DownloadAction implements DownloadSpec, Serializable {
         return tempAndMove;
     }
 
+    @Override
+    public boolean isLinkLocalFiles() {
+        return linkLocalFiles;
+    }
+
+    @Override
+    public boolean isSharedCache() {
+        return sharedCache;
+    }
+
+    @Override
+    public File getSharedCacheDir() {
+        return sharedCacheDir;
+    }
+
+    @Override
+    public long getSharedCacheMaxSize() {
+        return sharedCacheMaxSize;
+    }
+
+    @Override
+    public URL getRemoteCache() {
+        return remoteCacheUrl;
+    }
+
+    @Override
+    public boolean isRemoteCachePush() {
+        return remoteCachePush;
+    }
+
+    @Override
+    public String getWriteEngine() {
+        return writeEngine.value;
+    }
+
+    @Override
+    public String getHttpEngine() {
+        return httpEngine.value;
+    }
+
+    @Override
+    public String getHttpVersion() {
+        return httpVersion.value;
+    }
+
+    @Override
+    public int getBufferSize() {
+        return bufferSize;
+    }
+
+    @Override
+    public boolean isPreallocate() {
+        return preallocate;
+    }
+
+    @Override
+    public boolean isVirtualThreads() {
+        return virtualThreads;
+    }
+
+    @Override
+    public int getMaxVirtualThreads() {
+        return maxVirtualThreads;
+    }
+
+    @Override
+    public int getMaxConcurrentDownloads() {
+        return maxConcurrentDownloads;
+    }
+
+    @Override
+    public int getMaxConcurrentDownloadsPerHost() {
+        return maxConcurrentDownloadsPerHost;
+    }
+
+    @Override
+    public long getMaxBytesPerSecond() {
+        return maxBytesPerSecond;
+    }
+
+    @Override
+    public long getMaxBytesPerSecondTotal() {
+        return maxBytesPerSecondTotal;
+    }
+
+    @Override
+    public boolean isAdaptiveConcurrency() {
+        return adaptiveConcurrency;
+    }
+
+    @Override
+    public Map<String, String> getChecksums() {
+        Map<String, String> result = new LinkedHashMap<>();
+        if (defaultChecksum != null) {
+            for (URL u : getSources()) {
+                result.put(u.toExternalForm(), defaultChecksum.toString());
+            }
+        }
+        for (Map.Entry<String, Checksum> e : checksums.entrySet()) {
+            result.put(e.getKey(), e.getValue().toString());
+        }
+        return result;
+    }
+
     @Override
     public Object getUseETag() {
         return useETag.value;
     }
 
+    @Override
+    public String getCachedETagsFormat() {
+        return cachedETagsFormat.value;
+    }
+
     @Override
     public File getCachedETagsFile() {
         cachedETagsFileLock.lock();
@@ -1422,6 +3937,280 @@ public class DownloadAction implements DownloadSpec, Serializable {
         cachedDestLock = new ReentrantLock();
         cachedOutputFilesLock = new ReentrantLock();
         cachedETagsFileLock = new ReentrantLock();
+        partFileLocks = new ConcurrentHashMap<>();
+    }
+
+    /**
+     * Writes the contents of a downloaded file
+     */
+    @FunctionalInterface
+    private interface FileContentsWriter {
+        /**
+         * Write the contents to the given file
+         * @param target the file to write to
+         * @throws IOException if an I/O error occurs
+         */
+        void write(File target) throws IOException;
+    }
+
+    /**
+     * The result of a download via HTTP
+     */
+    private static class HttpDownloadResult {
+        /**
+         * The file has not been modified on the server and has therefore
+         * not been downloaded
+         */
+        static final HttpDownloadResult NOT_MODIFIED = new HttpDownloadResult(true, null);
+
+        private final boolean notModified;
+        private final HttpResponse response;
+
+        private HttpDownloadResult(boolean notModified, HttpResponse response) {
+            this.notModified = notModified;
+            this.response = response;
+        }
+
+        /**
+         * Create a result for a file that has been downloaded
+         * @param response the response whose headers describe the
+         * downloaded file (may be {@code null} if the file has been
+         * downloaded without asking the server)
+         * @return the result
+         */
+        static HttpDownloadResult downloaded(@Nullable HttpResponse response) {
+            return new HttpDownloadResult(false, response);
+        }
+
+        /**
+         * @return true if the file has not been modified on the server
+         */
+        boolean isNotModified() {
+            return notModified;
+        }
+
+        /**
+         * @return the response whose headers describe the downloaded file
+         * (may be {@code null})
+         */
+        @Nullable
+        HttpResponse getResponse() {
+            return response;
+        }
+    }
+
+    /**
+     * A range of a file that is downloaded as part of a segmented download
+     */
+    private static class Segment {
+        final long start;
+        final long end;
+        final CompletableFuture<Void> done = new CompletableFuture<>();
+
+        /**
+         * Creates a new segment
+         * @param start the offset of the first byte of the segment
+         * @param end the offset of the last byte of the segment (inclusive)
+         */
+        Segment(long start, long end) {
+            this.start = start;
+            this.end = end;
+        }
+    }
+
+    /**
+     * Thrown if the connection was interrupted while the response body was
+     * being downloaded. The bytes received so far have been kept so the
+     * download can be resumed with a range request.
+     */
+    private static class InterruptedDownloadException extends IOException {
+        private static final long serialVersionUID = 1L;
+
+        private final long position;
+        private final String validator;
+
+        /**
+         * Creates a new exception
+         * @param position the number of bytes written to the file so far
+         * @param validator the ETag or last-modified date of the file
+         * @param cause the exception that interrupted the download
+         */
+        InterruptedDownloadException(long position, String validator,
+                IOException cause) {
+            super("Download interrupted at byte " + position, cause);
+            this.position = position;
+            this.validator = validator;
+        }
+
+        /**
+         * @return the number of bytes written to the file so far
+         */
+        long getPosition() {
+            return position;
+        }
+
+        /**
+         * @return the ETag or last-modified date of the file
+         */
+        String getValidator() {
+            return validator;
+        }
+    }
+
+    /**
+     * Possible values for the "writeEngine" property
+     */
+    private enum WriteEngineType {
+        /**
+         * Select the engine depending on the size of the file
+         */
+        AUTO("auto"),
+
+        /**
+         * Write synchronously with a {@link java.nio.channels.FileChannel}
+         */
+        SYNC("sync"),
+
+        /**
+         * Write asynchronously with multiple buffers in flight
+         */
+        ASYNC("async"),
+
+        /**
+         * Write to a memory-mapped file
+         */
+        MMAP("mmap");
+
+        final String value;
+
+        WriteEngineType(String value) {
+            this.value = value;
+        }
+
+        static WriteEngineType fromValue(String value) {
+            for (WriteEngineType t : values()) {
+                if (t.value.equalsIgnoreCase(value)) {
+                    return t;
+                }
+            }
+            throw new IllegalArgumentException("Illegal value for " +
+                    "'writeEngine' property: " + value + ". Possible values " +
+                    "are \"auto\", \"sync\", \"async\", and \"mmap\".");
+        }
+    }
+
+    /**
+     * Possible values for the "httpEngine" property
+     */
+    private enum HttpEngineType {
+        /**
+         * Use the classic (blocking) HTTP client. Each download occupies a
+         * worker thread.
+         */
+        CLASSIC("classic"),
+
+        /**
+         * Use the asynchronous (non-blocking) HTTP client. All downloads
+         * are driven by a small number of I/O threads.
+         */
+        ASYNC("async"),
+
+        /**
+         * Use {@code java.net.http.HttpClient} on Java 11 and higher. Like
+         * {@link #ASYNC}, all downloads are driven by a small number of
+         * threads.
+         */
+        JDK("jdk");
+
+        final String value;
+
+        HttpEngineType(String value) {
+            this.value = value;
+        }
+
+        static HttpEngineType fromValue(String value) {
+            for (HttpEngineType t : values()) {
+                if (t.value.equalsIgnoreCase(value)) {
+                    return t;
+                }
+            }
+            throw new IllegalArgumentException("Illegal value for " +
+                    "'httpEngine' property: " + value + ". Possible values " +
+                    "are \"classic\", \"async\", and \"jdk\".");
+        }
+    }
+
+    /**
+     * Possible values for the "cachedETagsFormat" property
+     */
+    private enum ETagsFormat {
+        /**
+         * Keep ETags in a JSON file that is rewritten whenever new ETags
+         * have been received
+         */
+        JSON("json"),
+
+        /**
+         * Keep ETags and other validators in an append-only binary log
+         */
+        BINARY("binary");
+
+        final String value;
+
+        ETagsFormat(String value) {
+            this.value = value;
+        }
+
+        static ETagsFormat fromValue(String value) {
+            for (ETagsFormat f : values()) {
+                if (f.value.equalsIgnoreCase(value)) {
+                    return f;
+                }
+            }
+            throw new IllegalArgumentException("Illegal value for " +
+                    "'cachedETagsFormat' property: " + value + ". Possible " +
+                    "values are \"json\" and \"binary\".");
+        }
+    }
+
+    /**
+     * Possible values for the "httpVersion" property
+     */
+    private enum HttpVersion {
+        /**
+         * Negotiate HTTP/2 via ALPN with HTTPS servers that support it and
+         * use HTTP/1.1 otherwise
+         */
+        AUTO("auto", HttpVersionPolicy.NEGOTIATE),
+
+        /**
+         * Always use HTTP/1.1
+         */
+        HTTP_1_1("1.1", HttpVersionPolicy.FORCE_HTTP_1),
+
+        /**
+         * Always use HTTP/2 (h2 via ALPN, or h2c for plain HTTP)
+         */
+        HTTP_2("2", HttpVersionPolicy.FORCE_HTTP_2);
+
+        final String value;
+        final HttpVersionPolicy versionPolicy;
+
+        HttpVersion(String value, HttpVersionPolicy versionPolicy) {
+            this.value = value;
+            this.versionPolicy = versionPolicy;
+        }
+
+        static HttpVersion fromValue(String value) {
+            for (HttpVersion v : values()) {
+                if (v.value.equalsIgnoreCase(value)) {
+                    return v;
+                }
+            }
+            throw new IllegalArgumentException("Illegal value for " +
+                    "'httpVersion' property: " + value + ". Possible values " +
+                    "are \"auto\", \"1.1\", and \"2\".");
+        }
     }
 
     /**
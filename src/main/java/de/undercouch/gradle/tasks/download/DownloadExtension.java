@@ -1,11 +1,13 @@
 package de.undercouch.gradle.tasks.download;
 
+import de.undercouch.gradle.tasks.download.internal.HttpClientService;
 import org.gradle.api.Action;
 import org.gradle.api.Project;
 import org.gradle.api.Task;
 import org.gradle.api.file.ProjectLayout;
 import org.gradle.api.logging.Logger;
 import org.gradle.api.model.ObjectFactory;
+import org.gradle.api.provider.Provider;
 
 import javax.annotation.Nullable;
 import javax.inject.Inject;
@@ -23,6 +25,8 @@ public class DownloadExtension {
     private final ObjectFactory objectFactory;
     private final boolean isOffline;
     private final File buildDir;
+    private final File gradleUserHomeDir;
+    private final Provider<HttpClientService> httpClientService;
     
     /**
      * Creates a new extension
@@ -50,7 +54,9 @@ public class DownloadExtension {
         this(project.getLayout(), project.getLogger(),
                 task != null ? task : project, project.getObjects(),
                 project.getGradle().getStartParameter().isOffline(),
-                project.getLayout().getBuildDirectory().getAsFile().get());
+                project.getLayout().getBuildDirectory().getAsFile().get(),
+                project.getGradle().getGradleUserHomeDir(),
+                DownloadAction.registerHttpClientService(project));
     }
 
     /**
@@ -62,16 +68,23 @@ public class DownloadExtension {
      * @param objectFactory the project's object factory
      * @param isOffline whether Gradle has been started in offline mode or not
      * @param buildDir the project's build directory
+     * @param gradleUserHomeDir the Gradle user home directory
+     * @param httpClientService the build service providing shared HTTP
+     * clients (may be {@code null} if the Gradle version does not support
+     * build services)
      */
     private DownloadExtension(ProjectLayout projectLayout, Logger logger,
             Object servicesOwner, ObjectFactory objectFactory, boolean isOffline,
-            File buildDir) {
+            File buildDir, File gradleUserHomeDir,
+            @Nullable Provider<HttpClientService> httpClientService) {
         this.projectLayout = projectLayout;
         this.logger = logger;
         this.servicesOwner = servicesOwner;
         this.objectFactory = objectFactory;
         this.isOffline = isOffline;
         this.buildDir = buildDir;
+        this.gradleUserHomeDir = gradleUserHomeDir;
+        this.httpClientService = httpClientService;
     }
 
     /**
@@ -80,7 +93,8 @@ public class DownloadExtension {
      */
     public void run(Action<DownloadSpec> action) {
         DownloadAction da = new DownloadAction(projectLayout, logger,
-                servicesOwner, objectFactory, isOffline, buildDir);
+                servicesOwner, objectFactory, isOffline, buildDir,
+                gradleUserHomeDir, httpClientService);
         action.execute(da);
         try {
             da.execute(false).get();
@@ -102,7 +116,8 @@ public class DownloadExtension {
      */
     public CompletableFuture<Void> runAsync(Action<DownloadSpec> action) {
         DownloadAction da = new DownloadAction(projectLayout, logger,
-                servicesOwner, objectFactory, isOffline, buildDir);
+                servicesOwner, objectFactory, isOffline, buildDir,
+                gradleUserHomeDir, httpClientService);
         action.execute(da);
         try {
             return da.execute(false);
@@ -0,0 +1,151 @@
+package de.undercouch.gradle.tasks.download.internal;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.AsynchronousFileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+
+/**
+ * A {@link WriteEngine} that writes to an {@link AsynchronousFileChannel}.
+ * While a buffer is being written, the next one can already be filled from
+ * the input stream. The number of buffers limits the number of write
+ * operations in flight.
+ * @author Michel Kraemer
+ */
+public class AsyncWriteEngine implements WriteEngine {
+    private final int buffers;
+    private final BufferPool bufferPool;
+
+    /**
+     * Creates a new engine
+     * @param buffers the number of buffers (i.e. the maximum number of
+     * write operations in flight plus one)
+     * @param bufferPool the pool providing the buffers
+     */
+    public AsyncWriteEngine(int buffers, BufferPool bufferPool) {
+        if (buffers < 2) {
+            throw new IllegalArgumentException("At least two buffers are required");
+        }
+        this.buffers = buffers;
+        this.bufferPool = bufferPool;
+    }
+
+    @Override
+    public void write(InputStream is, File file, long offset, long size,
+            ProgressLoggerWrapper progressLogger) throws IOException {
+        try (AsynchronousFileChannel channel = AsynchronousFileChannel.open(
+                file.toPath(), StandardOpenOption.WRITE, StandardOpenOption.CREATE)) {
+            byte[][] bufs = new byte[buffers][];
+            ByteBuffer[] bbs = new ByteBuffer[buffers];
+            long[] positions = new long[buffers];
+            @SuppressWarnings("unchecked")
+            Future<Integer>[] writeFutures = new Future[buffers];
+            for (int i = 0; i < buffers; ++i) {
+                bufs[i] = bufferPool.acquire();
+                bbs[i] = ByteBuffer.wrap(bufs[i]);
+            }
+
+            // buffers may only be returned to the pool if no write
+            // operation is pending anymore
+            boolean idle = false;
+            try {
+                long pos = offset;
+                int i = 0;
+                while (true) {
+                    // wait until the buffer we want to fill is free again
+                    awaitWrite(channel, writeFutures, bbs, positions, i);
+
+                    int read;
+                    try {
+                        read = is.read(bufs[i]);
+                    } catch (IOException e) {
+                        // keep what we have got so far
+                        awaitAll(channel, writeFutures, bbs, positions);
+                        idle = true;
+                        throw e;
+                    }
+                    if (read < 0) {
+                        break;
+                    }
+
+                    bbs[i].position(0);
+                    bbs[i].limit(read);
+                    positions[i] = pos;
+                    writeFutures[i] = channel.write(bbs[i], pos);
+                    pos += read;
+                    progressLogger.incrementProgress(read);
+
+                    i = (i + 1) % buffers;
+                }
+                awaitAll(channel, writeFutures, bbs, positions);
+                idle = true;
+
+                // remove stale or preallocated bytes we have not written
+                if (channel.size() > pos) {
+                    channel.truncate(pos);
+                }
+            } finally {
+                if (idle) {
+                    for (byte[] buf : bufs) {
+                        bufferPool.release(buf);
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Wait for all pending write operations
+     * @param channel the channel being written to
+     * @param writeFutures the pending write operations
+     * @param bbs the buffers being written
+     * @param positions the file positions of the buffers
+     * @throws IOException if one of the operations failed
+     */
+    private void awaitAll(AsynchronousFileChannel channel,
+            Future<Integer>[] writeFutures, ByteBuffer[] bbs, long[] positions)
+            throws IOException {
+        for (int i = 0; i < writeFutures.length; ++i) {
+            awaitWrite(channel, writeFutures, bbs, positions, i);
+        }
+    }
+
+    /**
+     * Wait for a pending write operation and make sure the whole buffer
+     * has been written
+     * @param channel the channel being written to
+     * @param writeFutures the pending write operations
+     * @param bbs the buffers being written
+     * @param positions the file positions of the buffers
+     * @param i the index of the operation to wait for
+     * @throws IOException if the operation failed
+     */
+    private void awaitWrite(AsynchronousFileChannel channel,
+            Future<Integer>[] writeFutures, ByteBuffer[] bbs, long[] positions,
+            int i) throws IOException {
+        Future<Integer> f = writeFutures[i];
+        if (f == null) {
+            return;
+        }
+        writeFutures[i] = null;
+
+        try {
+            f.get();
+            ByteBuffer bb = bbs[i];
+            while (bb.hasRemaining()) {
+                channel.write(bb, positions[i] + bb.position()).get();
+            }
+        } catch (InterruptedException e) {
+            throw new IOException("Writing to destination file was interrupted", e);
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof IOException) {
+                throw (IOException)e.getCause();
+            }
+            throw new IOException("Could not write to destination file", e);
+        }
+    }
+}
@@ -0,0 +1,116 @@
+package de.undercouch.gradle.tasks.download.internal;
+
+import java.io.InterruptedIOException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * A token bucket that limits the number of bytes downloaded per second.
+ * Downloads running at the same time share the bucket. They reserve
+ * bandwidth for every chunk they read in the order in which they arrive,
+ * so each download gets a fair share. Reserving bandwidth does not
+ * allocate any objects. Callers that must not block (such as the I/O
+ * threads of asynchronous HTTP clients) can {@link #reserve(long) reserve}
+ * bandwidth and use the {@link Scheduler} to continue reading when it is
+ * available. The limiter is
+ * thread-safe.
+ * @author Michel Kraemer
+ */
+public class BandwidthLimiter {
+    private static final long NANOS_PER_SECOND = TimeUnit.SECONDS.toNanos(1);
+
+    /**
+     * The maximum amount of time (in nanoseconds) for which bandwidth that
+     * has not been used may be saved up for later
+     */
+    private static final long MAX_BURST_NANOS = TimeUnit.MILLISECONDS.toNanos(100);
+
+    private final BandwidthLimiter parent;
+    private long maxBytesPerSecond;
+
+    /**
+     * The point in time (in nanoseconds) at which all bandwidth reserved so
+     * far will have been used
+     */
+    private long nextFreeNanos = System.nanoTime();
+
+    /**
+     * Creates a new limiter without a limit
+     */
+    public BandwidthLimiter() {
+        this(null);
+    }
+
+    /**
+     * Creates a new limiter without a limit
+     * @param parent another limiter that should be consulted after this one
+     * (may be {@code null})
+     */
+    public BandwidthLimiter(BandwidthLimiter parent) {
+        this.parent = parent;
+    }
+
+    /**
+     * Set the limit. If the limiter is shared and different limits are
+     * requested, the smallest one applies.
+     * @param maxBytesPerSecond the maximum number of bytes per second (0 if
+     * there is no limit)
+     */
+    public synchronized void limit(long maxBytesPerSecond) {
+        if (maxBytesPerSecond > 0 && (this.maxBytesPerSecond == 0 ||
+                maxBytesPerSecond < this.maxBytesPerSecond)) {
+            this.maxBytesPerSecond = maxBytesPerSecond;
+        }
+    }
+
+    /**
+     * @return true if this limiter or its parent has a limit
+     */
+    public synchronized boolean isLimited() {
+        return maxBytesPerSecond > 0 || (parent != null && parent.isLimited());
+    }
+
+    /**
+     * Reserve bandwidth for the given number of bytes and wait until it is
+     * available
+     * @param bytes the number of bytes that have been read
+     * @throws InterruptedIOException if the thread has been interrupted
+     * while waiting
+     */
+    public void acquire(long bytes) throws InterruptedIOException {
+        long deadline = System.nanoTime() + reserve(bytes);
+        long remaining;
+        while ((remaining = deadline - System.nanoTime()) > 0) {
+            LockSupport.parkNanos(this, remaining);
+            if (Thread.currentThread().isInterrupted()) {
+                throw new InterruptedIOException("Interrupted while " +
+                        "waiting for bandwidth");
+            }
+        }
+    }
+
+    /**
+     * Reserve bandwidth for the given number of bytes without waiting
+     * @param bytes the number of bytes that have been read
+     * @return the number of nanoseconds the caller should wait before
+     * reading more bytes (0 if it may continue immediately)
+     */
+    public long reserve(long bytes) {
+        long delay = 0;
+        synchronized (this) {
+            if (maxBytesPerSecond > 0) {
+                long now = System.nanoTime();
+                if (nextFreeNanos - now < -MAX_BURST_NANOS) {
+                    nextFreeNanos = now - MAX_BURST_NANOS;
+                }
+                nextFreeNanos += bytes * NANOS_PER_SECOND / maxBytesPerSecond;
+                delay = Math.max(0, nextFreeNanos - now);
+            }
+        }
+
+        if (parent != null) {
+            delay = Math.max(delay, parent.reserve(bytes));
+        }
+        return delay;
+    }
+}
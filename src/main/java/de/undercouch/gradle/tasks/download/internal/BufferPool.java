@@ -0,0 +1,85 @@
+package de.undercouch.gradle.tasks.download.internal;
+
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A bounded pool of byte arrays that can be shared between concurrent
+ * downloads to avoid allocating new buffers for every file
+ * @author Michel Kraemer
+ */
+public class BufferPool {
+    private final int bufferSize;
+    private final int maxPooledBuffers;
+    private final Deque<byte[]> buffers = new ArrayDeque<>();
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+
+    /**
+     * Creates a new pool
+     * @param bufferSize the size of each buffer
+     * @param maxPooledBuffers the maximum number of idle buffers to keep
+     */
+    public BufferPool(int bufferSize, int maxPooledBuffers) {
+        if (bufferSize < 1) {
+            throw new IllegalArgumentException("Buffer size must be greater than 0");
+        }
+        this.bufferSize = bufferSize;
+        this.maxPooledBuffers = maxPooledBuffers;
+    }
+
+    /**
+     * @return the size of each buffer
+     */
+    public int getBufferSize() {
+        return bufferSize;
+    }
+
+    /**
+     * Get a buffer from the pool or allocate a new one if the pool is empty
+     * @return the buffer
+     */
+    public byte[] acquire() {
+        byte[] buf;
+        synchronized (buffers) {
+            buf = buffers.pollFirst();
+        }
+        if (buf != null) {
+            hits.incrementAndGet();
+            return buf;
+        }
+        misses.incrementAndGet();
+        return new byte[bufferSize];
+    }
+
+    /**
+     * Return a buffer to the pool. The buffer will be discarded if the pool
+     * is full. The caller must not use the buffer anymore afterwards.
+     * @param buf the buffer to return
+     */
+    public void release(byte[] buf) {
+        if (buf == null || buf.length != bufferSize) {
+            return;
+        }
+        synchronized (buffers) {
+            if (buffers.size() < maxPooledBuffers) {
+                buffers.addFirst(buf);
+            }
+        }
+    }
+
+    /**
+     * @return the number of times a buffer could be taken from the pool
+     */
+    public long getHits() {
+        return hits.get();
+    }
+
+    /**
+     * @return the number of times a new buffer had to be allocated
+     */
+    public long getMisses() {
+        return misses.get();
+    }
+}
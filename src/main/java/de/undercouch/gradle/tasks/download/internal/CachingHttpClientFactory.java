@@ -14,9 +14,14 @@
 
 package de.undercouch.gradle.tasks.download.internal;
 
+import org.apache.hc.client5.http.impl.async.CloseableHttpAsyncClient;
 import org.apache.hc.client5.http.impl.classic.CloseableHttpClient;
+import org.apache.hc.client5.http.impl.io.PoolingHttpClientConnectionManager;
+import org.apache.hc.client5.http.impl.nio.PoolingAsyncClientConnectionManager;
+import org.apache.hc.core5.http.HttpHeaders;
 import org.apache.hc.core5.http.HttpHost;
-import org.gradle.api.logging.Logger;
+import org.apache.hc.core5.http2.HttpVersionPolicy;
+import org.apache.hc.core5.util.TimeValue;
 
 import java.io.IOException;
 import java.util.HashMap;
@@ -25,35 +30,155 @@ import java.util.Objects;
 
 /**
  * An implementation of {@link HttpClientFactory} that caches created clients
- * until the {@link #close()} method is called.
+ * until the {@link #close()} method is called. All clients share the same
+ * connection pool (one for each combination of certificate verification
+ * mode, connect timeout, and HTTP version policy). The connection limits
+ * for a host are configured in this pool every time a client for the host
+ * is requested, even if the client has been cached. The factory is
+ * thread-safe.
  * @author Michel Kraemer
  */
 public class CachingHttpClientFactory extends DefaultHttpClientFactory {
     private final Map<CacheKey, CloseableHttpClient> cachedClients = new HashMap<>();
+    private final Map<CacheKey, CloseableHttpAsyncClient> cachedAsyncClients =
+            new HashMap<>();
+    private final Map<CacheKey, HttpTransport> cachedJdkTransports = new HashMap<>();
+    private final Map<String, PoolingHttpClientConnectionManager> connectionManagers =
+            new HashMap<>();
+    private final Map<String, PoolingAsyncClientConnectionManager> asyncConnectionManagers =
+            new HashMap<>();
+
+    /**
+     * Creates a new factory whose clients keep idle connections open
+     * until they are closed
+     */
+    public CachingHttpClientFactory() {
+        super();
+    }
+
+    /**
+     * Creates a new factory
+     * @param maxIdleTime the time after which the created clients should
+     * close idle connections (may be {@code null} if idle connections should
+     * be kept open until the client is closed)
+     */
+    public CachingHttpClientFactory(TimeValue maxIdleTime) {
+        super(maxIdleTime);
+    }
 
     @Override
-    public CloseableHttpClient createHttpClient(HttpHost httpHost,
-            boolean acceptAnyCertificate, int retries, int connectTimeoutMs,
-            Map<String, String> headers, Logger logger, boolean quiet) {
-        CacheKey key = new CacheKey(httpHost, acceptAnyCertificate, retries);
+    public synchronized CloseableHttpClient createHttpClient(HttpHost httpHost,
+            boolean acceptAnyCertificate, int retries, int retryDelayMs,
+            int connectTimeoutMs, int maxConnectionsPerHost, int maxConnectionsTotal,
+            Map<String, String> headers) {
+        CacheKey key = new CacheKey(httpHost, acceptAnyCertificate, retries,
+                retryDelayMs, connectTimeoutMs, null, headers != null &&
+                        headers.containsKey(HttpHeaders.HOST));
         CloseableHttpClient c = cachedClients.get(key);
         if (c == null) {
             c = super.createHttpClient(httpHost, acceptAnyCertificate, retries,
-                    connectTimeoutMs, headers, logger, quiet);
+                    retryDelayMs, connectTimeoutMs, maxConnectionsPerHost, maxConnectionsTotal,
+                    headers);
             cachedClients.put(key, c);
+        } else {
+            // the client shares its connection manager with other clients,
+            // so apply the caller's limits for this host
+            boolean insecure = "https".equals(httpHost.getSchemeName()) &&
+                    acceptAnyCertificate;
+            configureLimits(getConnectionManager(insecure, connectTimeoutMs),
+                    httpHost, maxConnectionsPerHost, maxConnectionsTotal);
         }
         return c;
     }
 
+    @Override
+    public synchronized CloseableHttpAsyncClient createHttpAsyncClient(
+            HttpHost httpHost, boolean acceptAnyCertificate, int retries,
+            int retryDelayMs, int connectTimeoutMs, int maxConnectionsPerHost,
+            int maxConnectionsTotal, HttpVersionPolicy versionPolicy,
+            Map<String, String> headers) {
+        CacheKey key = new CacheKey(httpHost, acceptAnyCertificate, retries,
+                retryDelayMs, connectTimeoutMs, versionPolicy, headers != null &&
+                        headers.containsKey(HttpHeaders.HOST));
+        CloseableHttpAsyncClient c = cachedAsyncClients.get(key);
+        if (c == null) {
+            c = super.createHttpAsyncClient(httpHost, acceptAnyCertificate,
+                    retries, retryDelayMs, connectTimeoutMs, maxConnectionsPerHost,
+                    maxConnectionsTotal, versionPolicy, headers);
+            cachedAsyncClients.put(key, c);
+        } else {
+            // the client shares its connection manager with other clients,
+            // so apply the caller's limits for this host
+            boolean insecure = "https".equals(httpHost.getSchemeName()) &&
+                    acceptAnyCertificate;
+            configureLimits(getAsyncConnectionManager(insecure,
+                    connectTimeoutMs, versionPolicy), httpHost,
+                    maxConnectionsPerHost, maxConnectionsTotal);
+        }
+        return c;
+    }
+
+    @Override
+    public synchronized HttpTransport createJdkTransport(HttpHost httpHost,
+            boolean acceptAnyCertificate, int retries, int connectTimeoutMs,
+            HttpVersionPolicy versionPolicy) {
+        CacheKey key = new CacheKey(httpHost, acceptAnyCertificate, retries,
+                0, connectTimeoutMs, versionPolicy, false);
+        HttpTransport t = cachedJdkTransports.get(key);
+        if (t == null) {
+            t = super.createJdkTransport(httpHost, acceptAnyCertificate,
+                    retries, connectTimeoutMs, versionPolicy);
+            cachedJdkTransports.put(key, t);
+        }
+        return t;
+    }
+
+    @Override
+    protected synchronized PoolingHttpClientConnectionManager getConnectionManager(
+            boolean insecure, int connectTimeoutMs) {
+        return connectionManagers.computeIfAbsent(insecure + ":" + connectTimeoutMs,
+                k -> createConnectionManager(insecure, connectTimeoutMs));
+    }
+
+    @Override
+    protected synchronized PoolingAsyncClientConnectionManager getAsyncConnectionManager(
+            boolean insecure, int connectTimeoutMs, HttpVersionPolicy versionPolicy) {
+        return asyncConnectionManagers.computeIfAbsent(insecure + ":" +
+                        connectTimeoutMs + ":" + versionPolicy,
+                k -> createAsyncConnectionManager(insecure, connectTimeoutMs,
+                        versionPolicy));
+    }
+
+    @Override
+    protected boolean isConnectionManagerShared() {
+        return true;
+    }
+
     /**
      * Close all HTTP clients created by this factory
      * @throws IOException if an I/O error occurs
      */
-    public void close() throws IOException {
+    public synchronized void close() throws IOException {
         for (CloseableHttpClient c : cachedClients.values()) {
             c.close();
         }
         cachedClients.clear();
+        for (CloseableHttpAsyncClient c : cachedAsyncClients.values()) {
+            c.close();
+        }
+        cachedAsyncClients.clear();
+        for (HttpTransport t : cachedJdkTransports.values()) {
+            t.close();
+        }
+        cachedJdkTransports.clear();
+        for (PoolingHttpClientConnectionManager cm : connectionManagers.values()) {
+            cm.close();
+        }
+        connectionManagers.clear();
+        for (PoolingAsyncClientConnectionManager cm : asyncConnectionManagers.values()) {
+            cm.close();
+        }
+        asyncConnectionManagers.clear();
     }
     
     /**
@@ -63,11 +188,21 @@ public class CachingHttpClientFactory extends DefaultHttpClientFactory {
         private final HttpHost httpHost;
         private final boolean acceptAnyCertificate;
         private final int retries;
+        private final int retryDelayMs;
+        private final int connectTimeoutMs;
+        private final HttpVersionPolicy versionPolicy;
+        private final boolean customHostHeader;
 
-        CacheKey(HttpHost httpHost, boolean acceptAnyCertificate, int retries) {
+        CacheKey(HttpHost httpHost, boolean acceptAnyCertificate, int retries,
+                int retryDelayMs, int connectTimeoutMs,
+                HttpVersionPolicy versionPolicy, boolean customHostHeader) {
             this.httpHost = httpHost;
             this.acceptAnyCertificate = acceptAnyCertificate;
             this.retries = retries;
+            this.retryDelayMs = retryDelayMs;
+            this.connectTimeoutMs = connectTimeoutMs;
+            this.versionPolicy = versionPolicy;
+            this.customHostHeader = customHostHeader;
         }
 
         @Override
@@ -81,12 +216,17 @@ public class CachingHttpClientFactory extends DefaultHttpClientFactory {
             CacheKey cacheKey = (CacheKey)o;
             return acceptAnyCertificate == cacheKey.acceptAnyCertificate &&
                     retries == cacheKey.retries &&
+                    retryDelayMs == cacheKey.retryDelayMs &&
+                    connectTimeoutMs == cacheKey.connectTimeoutMs &&
+                    versionPolicy == cacheKey.versionPolicy &&
+                    customHostHeader == cacheKey.customHostHeader &&
                     httpHost.equals(cacheKey.httpHost);
         }
 
         @Override
         public int hashCode() {
-            return Objects.hash(httpHost, acceptAnyCertificate, retries);
+            return Objects.hash(httpHost, acceptAnyCertificate, retries,
+                    retryDelayMs, connectTimeoutMs, versionPolicy, customHostHeader);
         }
     }
 }
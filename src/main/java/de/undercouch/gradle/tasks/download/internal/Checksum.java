@@ -0,0 +1,95 @@
+package de.undercouch.gradle.tasks.download.internal;
+
+import java.io.Serializable;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Locale;
+
+/**
+ * An expected checksum of a downloaded file
+ * @author Michel Kraemer
+ */
+public class Checksum implements Serializable {
+    private static final long serialVersionUID = 1L;
+
+    private final String algorithm;
+    private final String checksum;
+
+    /**
+     * Creates a new checksum
+     * @param algorithm the algorithm used to calculate the checksum
+     * (e.g. <code>"SHA-256"</code>)
+     * @param checksum the expected checksum as a hex string
+     */
+    public Checksum(String algorithm, String checksum) {
+        if (algorithm == null) {
+            throw new IllegalArgumentException("Please provide the algorithm to "
+                    + "use to calculate the checksum");
+        }
+        if (checksum == null) {
+            throw new IllegalArgumentException("Please provide a checksum to verify against");
+        }
+        try {
+            MessageDigest.getInstance(algorithm);
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalArgumentException("Unknown checksum algorithm: " +
+                    algorithm, e);
+        }
+        this.algorithm = algorithm;
+        this.checksum = checksum.trim().toLowerCase(Locale.ROOT);
+    }
+
+    /**
+     * @return the algorithm used to calculate the checksum
+     */
+    public String getAlgorithm() {
+        return algorithm;
+    }
+
+    /**
+     * @return the expected checksum as a lower-case hex string
+     */
+    public String getChecksum() {
+        return checksum;
+    }
+
+    /**
+     * @return a new message digest that calculates checksums with
+     * {@link #getAlgorithm()}
+     */
+    public MessageDigest newDigest() {
+        try {
+            return MessageDigest.getInstance(algorithm);
+        } catch (NoSuchAlgorithmException e) {
+            // should never happen because we've checked in the constructor
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * Check if the given digest matches the expected checksum
+     * @param digest the digest
+     * @return true if the digest matches
+     */
+    public boolean matches(byte[] digest) {
+        return checksum.equals(toHex(digest));
+    }
+
+    /**
+     * Convert a byte array to a lower-case hex string
+     * @param barr the byte array
+     * @return the hex string
+     */
+    public static String toHex(byte[] barr) {
+        StringBuilder result = new StringBuilder();
+        for (byte b : barr) {
+            result.append(String.format("%02x", b));
+        }
+        return result.toString();
+    }
+
+    @Override
+    public String toString() {
+        return algorithm + ":" + checksum;
+    }
+}
@@ -0,0 +1,77 @@
+package de.undercouch.gradle.tasks.download.internal;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * An input stream that counts the number of bytes read and remembers if
+ * reading has failed
+ * @author Michel Kraemer
+ */
+public class CountingInputStream extends FilterInputStream {
+    private long count;
+    private boolean failed;
+
+    /**
+     * Wraps an input stream
+     * @param in the input stream to wrap
+     */
+    public CountingInputStream(InputStream in) {
+        super(in);
+    }
+
+    /**
+     * @return the number of bytes read so far
+     */
+    public long getCount() {
+        return count;
+    }
+
+    /**
+     * @return true if one of the read operations has thrown an exception
+     */
+    public boolean hasFailed() {
+        return failed;
+    }
+
+    @Override
+    public int read() throws IOException {
+        try {
+            int b = super.read();
+            if (b >= 0) {
+                ++count;
+            }
+            return b;
+        } catch (IOException e) {
+            failed = true;
+            throw e;
+        }
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+        try {
+            int read = super.read(b, off, len);
+            if (read > 0) {
+                count += read;
+            }
+            return read;
+        } catch (IOException e) {
+            failed = true;
+            throw e;
+        }
+    }
+
+    @Override
+    public long skip(long n) throws IOException {
+        try {
+            long skipped = super.skip(n);
+            count += skipped;
+            return skipped;
+        } catch (IOException e) {
+            failed = true;
+            throw e;
+        }
+    }
+}
@@ -9,57 +9,148 @@ import org.apache.hc.core5.util.TimeValue;
 import org.gradle.api.logging.Logger;
 
 import java.io.IOException;
+import java.io.InterruptedIOException;
 import java.net.UnknownHostException;
 import java.util.Arrays;
 import java.util.Collections;
 
 /**
- * A custom strategy that logs every retry attempt and retries requests on any
- * exception but {@link UnknownHostException}
+ * <p>A custom strategy that logs every retry attempt and retries requests on any
+ * exception but {@link UnknownHostException}. If the request context
+ * contains a {@link RetryBackoff}, it determines how long to wait before a
+ * request is retried. Otherwise, the default retry interval applies. Retry
+ * attempts are logged with the {@link RetryLogger} from the request
+ * context, so the strategy can be shared by all tasks. If the context
+ * contains a {@link RetryBudget}, every retry is taken from it, so the
+ * retries of all requests of a download count against the same limit.</p>
+ * <p>HttpClient only waits before retrying requests that have received a
+ * response. If a request has failed with an exception, this strategy
+ * blocks the calling thread itself. This is only acceptable for classic
+ * clients. Asynchronous clients must not retry on exceptions, because
+ * the strategy would block their I/O threads. Their callers have to retry
+ * failed requests instead.</p>
  * @author Michel Kraemer
  */
 public class CustomHttpRequestRetryStrategy extends DefaultHttpRequestRetryStrategy {
-    private final Logger logger;
-    private final boolean quiet;
     private final int maxRetries;
+    private final TimeValue defaultRetryInterval;
+    private final boolean retryOnException;
 
+    /**
+     * Create a new strategy
+     * @param maxRetries the maximum number of retries
+     * @param defaultRetryInterval the time to wait before a retry if the
+     * request context does not contain a {@link RetryBackoff}
+     * @param retryOnException true if requests that have failed with an
+     * exception should be retried (only for classic clients)
+     */
     public CustomHttpRequestRetryStrategy(final int maxRetries,
-            final TimeValue defaultRetryInterval, Logger logger, boolean quiet) {
+            final TimeValue defaultRetryInterval, boolean retryOnException) {
         super(maxRetries, defaultRetryInterval,
                 Collections.singletonList(UnknownHostException.class),
                 Arrays.asList(HttpStatus.SC_TOO_MANY_REQUESTS,
                         HttpStatus.SC_SERVICE_UNAVAILABLE));
-        this.logger = logger;
-        this.quiet = quiet;
         this.maxRetries = maxRetries;
-    }
-
-    private void logRetry(int execCount) {
-        if (!quiet) {
-            logger.warn("Request attempt " + execCount + "/" + maxRetries +
-                    " failed. Retrying ...");
-        }
+        this.defaultRetryInterval = defaultRetryInterval;
+        this.retryOnException = retryOnException;
     }
 
     @Override
     public boolean retryRequest(HttpResponse response, int execCount, HttpContext context) {
-        boolean res = super.retryRequest(response, execCount, context);
+        boolean res = super.retryRequest(response, execCount, context) &&
+                takeFromBudget(context);
         if (res) {
-            logRetry(execCount);
+            RetryLogger retryLogger = RetryLogger.get(context);
+            logRetry(retryLogger, execCount, context);
+            Logger logger = retryLogger.getLogger();
             logger.debug("Status code: " + response.getCode());
             logger.debug("Status message: " + response.getReasonPhrase());
         }
         return res;
     }
 
+    @Override
+    public TimeValue getRetryInterval(HttpResponse response, int execCount,
+            HttpContext context) {
+        RetryBackoff backoff = (RetryBackoff)context.getAttribute(
+                RetryBackoff.CONTEXT_ATTRIBUTE);
+        if (backoff == null) {
+            return super.getRetryInterval(response, execCount, context);
+        }
+        TimeValue interval = backoff.getRetryInterval(response, execCount);
+        RetryLogger.get(context).getLogger().debug("Waiting " + interval.toMilliseconds() +
+                " ms before retrying");
+        return interval;
+    }
+
     @Override
     public boolean retryRequest(HttpRequest request, IOException exception,
             int execCount, HttpContext context) {
-        boolean res = super.retryRequest(request, exception, execCount, context);
+        if (!retryOnException) {
+            return false;
+        }
+        boolean res = super.retryRequest(request, exception, execCount, context) &&
+                takeFromBudget(context);
         if (res) {
-            logRetry(execCount);
-            logger.debug("Request attempt failed", exception);
+            RetryLogger retryLogger = RetryLogger.get(context);
+            logRetry(retryLogger, execCount, context);
+            retryLogger.getLogger().debug("Request attempt failed", exception);
+            try {
+                awaitRetry(execCount, context);
+            } catch (InterruptedIOException e) {
+                return false;
+            }
         }
         return res;
     }
+
+    /**
+     * Take a retry from the budget in the given request context
+     * @param context the request context
+     * @return {@code true} if the request may be retried, {@code false} if
+     * the budget of the download is exhausted
+     */
+    private static boolean takeFromBudget(HttpContext context) {
+        RetryBudget budget = RetryBudget.get(context);
+        return budget == null || budget.tryAcquire();
+    }
+
+    /**
+     * Log a retry attempt. If the request context contains a
+     * {@link RetryBudget}, the attempt is counted across all requests of
+     * the download.
+     * @param retryLogger the logger
+     * @param execCount the number of attempts of the current request
+     * @param context the request context
+     */
+    private void logRetry(RetryLogger retryLogger, int execCount,
+            HttpContext context) {
+        RetryBudget budget = RetryBudget.get(context);
+        if (budget != null) {
+            retryLogger.logRetry(budget.getRetries(), budget.getMaxRetries());
+        } else {
+            retryLogger.logRetry(execCount, maxRetries);
+        }
+    }
+
+    /**
+     * Block the current thread before a request that has failed with an
+     * exception is retried
+     * @param execCount the number of attempts so far
+     * @param context the request context
+     * @throws InterruptedIOException if the thread has been interrupted
+     * while waiting
+     */
+    private void awaitRetry(int execCount, HttpContext context)
+            throws InterruptedIOException {
+        RetryBackoff backoff = (RetryBackoff)context.getAttribute(
+                RetryBackoff.CONTEXT_ATTRIBUTE);
+        long delay = backoff != null ? backoff.getRetryDelay(execCount, null) :
+                defaultRetryInterval.toMilliseconds();
+        if (delay > 0) {
+            RetryLogger.get(context).getLogger().debug("Waiting " + delay +
+                    " ms before retrying");
+            HostBackoff.sleep(delay);
+        }
+    }
 }
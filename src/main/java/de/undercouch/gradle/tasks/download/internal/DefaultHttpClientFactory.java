@@ -14,21 +14,35 @@
 
 package de.undercouch.gradle.tasks.download.internal;
 
+import org.apache.hc.client5.http.HttpRoute;
 import org.apache.hc.client5.http.config.ConnectionConfig;
+import org.apache.hc.client5.http.config.TlsConfig;
+import org.apache.hc.client5.http.impl.async.CloseableHttpAsyncClient;
+import org.apache.hc.client5.http.impl.async.HttpAsyncClientBuilder;
+import org.apache.hc.client5.http.impl.async.HttpAsyncClients;
 import org.apache.hc.client5.http.impl.classic.CloseableHttpClient;
 import org.apache.hc.client5.http.impl.classic.HttpClientBuilder;
 import org.apache.hc.client5.http.impl.io.PoolingHttpClientConnectionManager;
 import org.apache.hc.client5.http.impl.io.PoolingHttpClientConnectionManagerBuilder;
+import org.apache.hc.client5.http.impl.nio.PoolingAsyncClientConnectionManager;
+import org.apache.hc.client5.http.impl.nio.PoolingAsyncClientConnectionManagerBuilder;
 import org.apache.hc.client5.http.impl.routing.SystemDefaultRoutePlanner;
+import org.apache.hc.client5.http.protocol.HttpClientContext;
 import org.apache.hc.client5.http.socket.ConnectionSocketFactory;
 import org.apache.hc.client5.http.socket.PlainConnectionSocketFactory;
+import org.apache.hc.client5.http.ssl.ClientTlsStrategyBuilder;
 import org.apache.hc.client5.http.ssl.SSLConnectionSocketFactory;
+import org.apache.hc.core5.http.HttpException;
 import org.apache.hc.core5.http.HttpHost;
 import org.apache.hc.core5.http.config.Registry;
 import org.apache.hc.core5.http.config.RegistryBuilder;
+import org.apache.hc.core5.http.nio.ssl.TlsStrategy;
+import org.apache.hc.core5.http2.HttpVersionPolicy;
+import org.apache.hc.core5.pool.ConnPoolControl;
 import org.apache.hc.core5.util.TimeValue;
 import org.apache.hc.core5.util.Timeout;
 import org.gradle.api.logging.Logger;
+import org.gradle.api.logging.Logging;
 
 import javax.net.ssl.HostnameVerifier;
 import javax.net.ssl.SSLContext;
@@ -40,43 +54,246 @@ import java.util.Map;
 
 /**
  * Default implementation of {@link HttpClientFactory}. Creates a new client
- * every time {@link #createHttpClient(HttpHost, boolean, int, int, Map, Logger, boolean)}
+ * every time {@link #createHttpClient(HttpHost, boolean, int, int, int, int, Map)}
+ * or {@link #createHttpAsyncClient(HttpHost, boolean, int, int, int, int, HttpVersionPolicy, Map)}
  * is called. The caller is responsible for closing this client.
  * @author Michel Kraemer
  */
 public class DefaultHttpClientFactory implements HttpClientFactory {
+    private static final Logger LOGGER = Logging.getLogger(DefaultHttpClientFactory.class);
     private static final HostnameVerifier INSECURE_HOSTNAME_VERIFIER =
             new InsecureHostnameVerifier();
     private static final TrustManager[] INSECURE_TRUST_MANAGERS =
         { new InsecureTrustManager() };
 
+    private final TimeValue maxIdleTime;
     private SSLConnectionSocketFactory insecureSSLSocketFactory = null;
 
+    /**
+     * Creates a new factory whose clients keep idle connections open
+     * until they are closed
+     */
+    public DefaultHttpClientFactory() {
+        this(null);
+    }
+
+    /**
+     * Creates a new factory
+     * @param maxIdleTime the time after which the created clients should
+     * close idle connections (may be {@code null} if idle connections should
+     * be kept open until the client is closed)
+     */
+    public DefaultHttpClientFactory(TimeValue maxIdleTime) {
+        this.maxIdleTime = maxIdleTime;
+    }
+
     @Override
     public CloseableHttpClient createHttpClient(HttpHost httpHost,
-            boolean acceptAnyCertificate, final int retries, int connectTimeoutMs,
-            Map<String, String> headers, Logger logger, boolean quiet) {
+            boolean acceptAnyCertificate, final int retries, int retryDelayMs,
+            int connectTimeoutMs, int maxConnectionsPerHost, int maxConnectionsTotal,
+            Map<String, String> headers) {
         HttpClientBuilder builder = HttpClientBuilder.create();
 
         // configure retries
         if (retries == 0) {
             builder.disableAutomaticRetries();
         } else {
-            // TODO make interval configurable
             int maxRetries = retries;
             if (retries < 0) {
                 maxRetries = Integer.MAX_VALUE;
             }
             builder.setRetryStrategy(new CustomHttpRequestRetryStrategy(
-                    maxRetries, TimeValue.ofSeconds(0L), logger, quiet));
+                    maxRetries, TimeValue.ofMilliseconds(retryDelayMs),
+                    true));
         }
 
         // configure proxy from system environment
         builder.setRoutePlanner(new SystemDefaultRoutePlanner(null));
         
         // use pooling connection manager to support multiple threads
+        boolean insecure = "https".equals(httpHost.getSchemeName()) &&
+                acceptAnyCertificate;
+        PoolingHttpClientConnectionManager cm = getConnectionManager(
+                insecure, connectTimeoutMs);
+
+        configureLimits(cm, httpHost, maxConnectionsPerHost,
+                maxConnectionsTotal);
+
+        builder.setConnectionManager(cm);
+        builder.setConnectionManagerShared(isConnectionManagerShared());
+
+        // close connections that have been idle for too long
+        if (maxIdleTime != null) {
+            builder.evictExpiredConnections();
+            builder.evictIdleConnections(maxIdleTime);
+        }
+
+        // add interceptor that strips the standard ports :80 and :443 from the
+        // Host header unless the host has been explicitly specified by the user
+        builder.addRequestInterceptorLast(new StripPortsFromHostInterceptor(headers));
+
+        // add interceptor that removes sensitive headers from the request after
+        // we've been redirected to another host
+        builder.addRequestInterceptorLast(new RemoveSensitiveHeadersInterceptor(httpHost));
+
+        // add interceptor that reports the latency and status code of every
+        // response to the observer in the request context (if there is one)
+        ResponseObserverInterceptor roi = new ResponseObserverInterceptor();
+        builder.addRequestInterceptorLast(roi);
+        builder.addResponseInterceptorFirst(roi);
+
+        if (LOGGER.isDebugEnabled()) {
+            DebugInterceptor di = new DebugInterceptor();
+            builder.addRequestInterceptorLast(di);
+            builder.addResponseInterceptorFirst(di);
+        }
+
+        return builder.build();
+    }
+    
+    @Override
+    public CloseableHttpAsyncClient createHttpAsyncClient(HttpHost httpHost,
+            boolean acceptAnyCertificate, int retries, int retryDelayMs,
+            int connectTimeoutMs, int maxConnectionsPerHost,
+            int maxConnectionsTotal, HttpVersionPolicy versionPolicy,
+            Map<String, String> headers) {
+        HttpAsyncClientBuilder builder = HttpAsyncClients.custom();
+
+        // configure retries
+        if (retries == 0) {
+            builder.disableAutomaticRetries();
+        } else {
+            int maxRetries = retries;
+            if (retries < 0) {
+                maxRetries = Integer.MAX_VALUE;
+            }
+            builder.setRetryStrategy(new CustomHttpRequestRetryStrategy(
+                    maxRetries, TimeValue.ofMilliseconds(retryDelayMs),
+                    false));
+        }
+
+        // configure proxy from system environment
+        builder.setRoutePlanner(new SystemDefaultRoutePlanner(null));
+
+        boolean insecure = "https".equals(httpHost.getSchemeName()) &&
+                acceptAnyCertificate;
+        PoolingAsyncClientConnectionManager cm = getAsyncConnectionManager(
+                insecure, connectTimeoutMs, versionPolicy);
+        configureLimits(cm, httpHost, maxConnectionsPerHost,
+                maxConnectionsTotal);
+
+        builder.setConnectionManager(cm);
+        builder.setConnectionManagerShared(isConnectionManagerShared());
+
+        // close connections that have been idle for too long
+        if (maxIdleTime != null) {
+            builder.evictExpiredConnections();
+            builder.evictIdleConnections(maxIdleTime);
+        }
+
+        builder.addRequestInterceptorLast(new StripPortsFromHostInterceptor(headers));
+        builder.addRequestInterceptorLast(new RemoveSensitiveHeadersInterceptor(httpHost));
+
+        // add interceptor that reports the latency and status code of every
+        // response to the observer in the request context (if there is one)
+        ResponseObserverInterceptor roi = new ResponseObserverInterceptor();
+        builder.addRequestInterceptorLast(roi);
+        builder.addResponseInterceptorFirst(roi);
+
+        if (LOGGER.isDebugEnabled()) {
+            DebugInterceptor di = new DebugInterceptor();
+            builder.addRequestInterceptorLast(di);
+            builder.addResponseInterceptorFirst(di);
+        }
+
+        CloseableHttpAsyncClient client = builder.build();
+        client.start();
+        return client;
+    }
+
+    @Override
+    public HttpTransport createJdkTransport(HttpHost httpHost,
+            boolean acceptAnyCertificate, int retries, int connectTimeoutMs,
+            HttpVersionPolicy versionPolicy) {
+        return JdkHttpTransports.create("https".equals(httpHost.getSchemeName()) &&
+                acceptAnyCertificate, retries, connectTimeoutMs, versionPolicy);
+    }
+
+    /**
+     * Configure the connection limits of the given connection manager for
+     * the route to the given host. The per-host limit only applies to this
+     * route, so other hosts in a shared connection manager keep their own
+     * limits. Whenever a client is requested, the given limits replace the
+     * ones configured before, so the most recent caller's limits apply.
+     * @param cm the connection manager
+     * @param httpHost the host the client will connect to
+     * @param maxConnectionsPerHost the maximum number of concurrent
+     * connections to the host
+     * @param maxConnectionsTotal the maximum number of concurrent
+     * connections to all hosts
+     */
+    protected void configureLimits(ConnPoolControl<HttpRoute> cm, HttpHost httpHost,
+            int maxConnectionsPerHost, int maxConnectionsTotal) {
+        HttpRoute route = determineRoute(httpHost);
+        synchronized (cm) {
+            cm.setMaxTotal(maxConnectionsTotal);
+            cm.setMaxPerRoute(route, maxConnectionsPerHost);
+            LOGGER.debug("Connection limits for " + route + ": " +
+                    cm.getMaxPerRoute(route) + " per host, " +
+                    cm.getMaxTotal() + " in total");
+        }
+    }
+
+    /**
+     * Determine the route the clients created by this factory use to
+     * connect to the given host (directly or through the system proxy)
+     * @param httpHost the host
+     * @return the route
+     */
+    protected static HttpRoute determineRoute(HttpHost httpHost) {
+        try {
+            return new SystemDefaultRoutePlanner(null).determineRoute(
+                    httpHost, HttpClientContext.create());
+        } catch (HttpException e) {
+            throw new IllegalArgumentException("Could not determine route " +
+                    "to host '" + httpHost + "'", e);
+        }
+    }
+
+    /**
+     * Get a connection manager for a new HTTP client
+     * @param insecure true if the connection manager should accept any
+     * HTTPS certificate
+     * @param connectTimeoutMs the maximum number of milliseconds to wait until
+     * a connection is established
+     * @return the connection manager
+     */
+    protected PoolingHttpClientConnectionManager getConnectionManager(
+            boolean insecure, int connectTimeoutMs) {
+        return createConnectionManager(insecure, connectTimeoutMs);
+    }
+
+    /**
+     * @return true if the connection managers returned by
+     * {@link #getConnectionManager(boolean, int)} are shared between clients
+     * and must therefore not be closed together with a client
+     */
+    protected boolean isConnectionManagerShared() {
+        return false;
+    }
+
+    /**
+     * Create a new connection manager
+     * @param insecure true if the connection manager should accept any
+     * HTTPS certificate
+     * @param connectTimeoutMs the maximum number of milliseconds to wait until
+     * a connection is established
+     * @return the connection manager
+     */
+    protected PoolingHttpClientConnectionManager createConnectionManager(
+            boolean insecure, int connectTimeoutMs) {
         PoolingHttpClientConnectionManager cm;
-        if ("https".equals(httpHost.getSchemeName()) && acceptAnyCertificate) {
+        if (insecure) {
             // accept any certificate if necessary
             SSLConnectionSocketFactory icsf = getInsecureSSLSocketFactory();
             Registry<ConnectionSocketFactory> registry =
@@ -93,37 +310,78 @@ public class DefaultHttpClientFactory implements HttpClientFactory {
         cm.setDefaultConnectionConfig(ConnectionConfig.custom()
                 .setConnectTimeout(Timeout.ofMilliseconds(connectTimeoutMs))
                 .build());
-        builder.setConnectionManager(cm);
 
-        // add interceptor that strips the standard ports :80 and :443 from the
-        // Host header unless the host has been explicitly specified by the user
-        builder.addRequestInterceptorLast(new StripPortsFromHostInterceptor(headers));
+        return cm;
+    }
 
-        // add interceptor that removes sensitive headers from the request after
-        // we've been redirected to another host
-        builder.addRequestInterceptorLast(new RemoveSensitiveHeadersInterceptor(httpHost));
+    /**
+     * Get a connection manager for a new asynchronous HTTP client
+     * @param insecure true if the connection manager should accept any
+     * HTTPS certificate
+     * @param connectTimeoutMs the maximum number of milliseconds to wait until
+     * a connection is established
+     * @param versionPolicy the HTTP protocol versions that may be negotiated
+     * @return the connection manager
+     */
+    protected PoolingAsyncClientConnectionManager getAsyncConnectionManager(
+            boolean insecure, int connectTimeoutMs, HttpVersionPolicy versionPolicy) {
+        return createAsyncConnectionManager(insecure, connectTimeoutMs,
+                versionPolicy);
+    }
 
-        if (logger.isDebugEnabled()) {
-            DebugInterceptor di = new DebugInterceptor();
-            builder.addRequestInterceptorLast(di);
-            builder.addResponseInterceptorFirst(di);
+    /**
+     * Create a new connection manager for asynchronous HTTP clients
+     * @param insecure true if the connection manager should accept any
+     * HTTPS certificate
+     * @param connectTimeoutMs the maximum number of milliseconds to wait until
+     * a connection is established
+     * @param versionPolicy the HTTP protocol versions that may be negotiated
+     * @return the connection manager
+     */
+    protected PoolingAsyncClientConnectionManager createAsyncConnectionManager(
+            boolean insecure, int connectTimeoutMs, HttpVersionPolicy versionPolicy) {
+        PoolingAsyncClientConnectionManagerBuilder builder =
+                PoolingAsyncClientConnectionManagerBuilder.create();
+        if (insecure) {
+            // accept any certificate if necessary
+            builder.setTlsStrategy(createInsecureTlsStrategy());
         }
 
+        // negotiate HTTP/2 via ALPN if allowed
+        builder.setDefaultTlsConfig(TlsConfig.custom()
+                .setVersionPolicy(versionPolicy)
+                .build());
+
+        // configure connection timeout
+        builder.setDefaultConnectionConfig(ConnectionConfig.custom()
+                .setConnectTimeout(Timeout.ofMilliseconds(connectTimeoutMs))
+                .build());
+
         return builder.build();
     }
-    
-    private SSLConnectionSocketFactory getInsecureSSLSocketFactory() {
+
+    private synchronized SSLConnectionSocketFactory getInsecureSSLSocketFactory() {
         if (insecureSSLSocketFactory == null) {
-            SSLContext sc;
-            try {
-                sc = SSLContext.getInstance("SSL");
-                sc.init(null, INSECURE_TRUST_MANAGERS, new SecureRandom());
-                insecureSSLSocketFactory = new SSLConnectionSocketFactory(
-                        sc, INSECURE_HOSTNAME_VERIFIER);
-            } catch (NoSuchAlgorithmException | KeyManagementException e) {
-                throw new RuntimeException(e);
-            }
+            insecureSSLSocketFactory = new SSLConnectionSocketFactory(
+                    createInsecureSSLContext(), INSECURE_HOSTNAME_VERIFIER);
         }
         return insecureSSLSocketFactory;
     }
+
+    private static TlsStrategy createInsecureTlsStrategy() {
+        return ClientTlsStrategyBuilder.create()
+                .setSslContext(createInsecureSSLContext())
+                .setHostnameVerifier(INSECURE_HOSTNAME_VERIFIER)
+                .build();
+    }
+
+    private static SSLContext createInsecureSSLContext() {
+        try {
+            SSLContext sc = SSLContext.getInstance("SSL");
+            sc.init(null, INSECURE_TRUST_MANAGERS, new SecureRandom());
+            return sc;
+        } catch (NoSuchAlgorithmException | KeyManagementException e) {
+            throw new RuntimeException(e);
+        }
+    }
 }
@@ -0,0 +1,535 @@
+package de.undercouch.gradle.tasks.download.internal;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.UUID;
+
+/**
+ * <p>A content-addressed cache for downloaded files that can be shared by
+ * all projects and builds on a machine. Files are stored only once by
+ * their SHA-256 hash in the {@code files} directory. The {@code entries}
+ * directory maps keys (URLs or checksums) to files and keeps the
+ * validators (ETag and Last-Modified date) needed to revalidate them with
+ * conditional requests.</p>
+ * <p>Cached files are always copied to their destination, so modifying a
+ * destination file never affects the cache. An entry is only used if the
+ * size and the last-modified time of its file have not changed since it
+ * was written, and the contents of the file are verified against their
+ * hash while they are being copied.</p>
+ * <p>When the cache grows larger than a given size, the files that have
+ * not been used for the longest time are evicted. The class is thread-safe
+ * and multiple processes may use the same cache directory at the same
+ * time. Readers do not lock the cache. A file that is evicted by another
+ * process while it is being looked up is treated as a cache miss.</p>
+ * @author Michel Kraemer
+ */
+public class DownloadCache {
+    private static final String URL_PREFIX = "url:";
+    private static final String CHECKSUM_PREFIX = "checksum:";
+
+    private final File dir;
+    private final File filesDir;
+    private final File entriesDir;
+    private final File tmpDir;
+
+    /**
+     * A cached file and its validators
+     */
+    public static class Entry {
+        private final File file;
+        private final String hash;
+        private final long length;
+        private final String etag;
+        private final String lastModified;
+
+        private Entry(File file, String hash, long length, String etag,
+                String lastModified) {
+            this.file = file;
+            this.hash = hash;
+            this.length = length;
+            this.etag = etag;
+            this.lastModified = lastModified;
+        }
+
+        /**
+         * @return the cached file
+         */
+        public File getFile() {
+            return file;
+        }
+
+        /**
+         * @return the strong ETag of the cached file (may be {@code null})
+         */
+        public String getETag() {
+            return etag;
+        }
+
+        /**
+         * @return the value of the Last-Modified header received with the
+         * cached file (may be {@code null})
+         */
+        public String getLastModified() {
+            return lastModified;
+        }
+    }
+
+    /**
+     * Create a new cache
+     * @param dir the cache directory
+     */
+    public DownloadCache(File dir) {
+        this.dir = dir.getAbsoluteFile();
+        this.filesDir = new File(this.dir, "files");
+        this.entriesDir = new File(this.dir, "entries");
+        this.tmpDir = new File(this.dir, "tmp");
+    }
+
+    /**
+     * @return the cache directory
+     */
+    public File getDir() {
+        return dir;
+    }
+
+    /**
+     * Look up the file downloaded from the given URL
+     * @param url the URL
+     * @return the cached file and its validators or {@code null} if the
+     * file is not in the cache
+     */
+    public Entry get(String url) {
+        return getEntry(URL_PREFIX + url);
+    }
+
+    /**
+     * Look up a file by its checksum
+     * @param checksum the checksum in the form {@code algorithm:hex}
+     * @return the cached file or {@code null} if there is no file with this
+     * checksum in the cache
+     */
+    public Entry getByChecksum(String checksum) {
+        return getEntry(CHECKSUM_PREFIX + checksum);
+    }
+
+    /**
+     * @return a new file in the cache directory to which a file can be
+     * downloaded before it is added to the cache with
+     * {@link #put(String, String, String, String, File)}. The file does not
+     * exist yet.
+     */
+    public File newStagingFile() {
+        tmpDir.mkdirs();
+        return new File(tmpDir, UUID.randomUUID() + ".download");
+    }
+
+    /**
+     * Move a downloaded file into the cache
+     * @param url the URL from which the file has been downloaded
+     * @param etag the file's strong ETag (may be {@code null})
+     * @param lastModified the value of the Last-Modified header (may be
+     * {@code null})
+     * @param checksum the verified checksum of the file in the form
+     * {@code algorithm:hex} (may be {@code null})
+     * @param downloadedFile the downloaded file. It will be moved into the
+     * cache or deleted if the cache already contains a file with the same
+     * contents.
+     * @return the new entry
+     * @throws IOException if the file could not be added to the cache
+     */
+    public Entry put(String url, String etag, String lastModified,
+            String checksum, File downloadedFile) throws IOException {
+        String hash = sha256(downloadedFile);
+        long length = downloadedFile.length();
+
+        filesDir.mkdirs();
+        File file = new File(filesDir, hash);
+        try {
+            Files.move(downloadedFile.toPath(), file.toPath(),
+                    StandardCopyOption.ATOMIC_MOVE);
+        } catch (AtomicMoveNotSupportedException e) {
+            if (!file.exists()) {
+                Files.move(downloadedFile.toPath(), file.toPath());
+            }
+        } catch (FileAlreadyExistsException e) {
+            // the cache already contains the same contents
+        }
+        if (!file.equals(downloadedFile) && downloadedFile.exists()) {
+            Files.delete(downloadedFile.toPath());
+        }
+
+        Properties props = new Properties();
+        props.setProperty("hash", hash);
+        props.setProperty("length", String.valueOf(length));
+        props.setProperty("modified", String.valueOf(file.lastModified()));
+        writeEntry(URL_PREFIX + url, props, etag, lastModified);
+        if (checksum != null) {
+            writeEntry(CHECKSUM_PREFIX + checksum, props, null, null);
+        }
+
+        return new Entry(file, hash, length, etag, lastModified);
+    }
+
+    /**
+     * Copy a cached file to the given destination and verify its contents
+     * while doing so. The file is copied to a temporary file next to the
+     * destination first, which then atomically replaces the destination, so
+     * the destination is never left incomplete.
+     * @param entry the cached file
+     * @param destFile the destination
+     * @return true if the file has been copied, false if it has been evicted
+     * in the meantime or if its contents do not match its hash anymore. In
+     * the latter case, the cached file is deleted and the destination is
+     * left unchanged.
+     * @throws IOException if the file could not be copied
+     */
+    public boolean materialize(Entry entry, File destFile) throws IOException {
+        InputStream in;
+        try {
+            in = new FileInputStream(entry.getFile());
+        } catch (FileNotFoundException e) {
+            // the file has been evicted by another process
+            return false;
+        }
+
+        Path tmp = newTempFile(destFile);
+        try {
+            MessageDigest md = newSha256();
+            try (InputStream is = in) {
+                copy(is, tmp, md);
+            }
+            if (!Checksum.toHex(md.digest()).equals(entry.hash)) {
+                Files.deleteIfExists(entry.getFile().toPath());
+                return false;
+            }
+            replace(tmp, destFile);
+        } finally {
+            Files.deleteIfExists(tmp);
+        }
+        return true;
+    }
+
+    /**
+     * Copy a file to the given destination through a temporary file next
+     * to the destination that atomically replaces it, so the destination is
+     * never left incomplete
+     * @param src the file to copy
+     * @param destFile the destination
+     * @throws IOException if the file could not be copied
+     */
+    public static void copy(File src, File destFile) throws IOException {
+        Path tmp = newTempFile(destFile);
+        try {
+            try (InputStream is = new FileInputStream(src)) {
+                copy(is, tmp, null);
+            }
+            replace(tmp, destFile);
+        } finally {
+            Files.deleteIfExists(tmp);
+        }
+    }
+
+    /**
+     * Check if a file has the same contents as a cached file. If the file
+     * has the expected length and last-modified time, it is assumed to be
+     * unchanged. Otherwise, its contents are compared with the cached
+     * file's hash.
+     * @param entry the cached file
+     * @param f the file to check
+     * @param lastModified the last-modified time in milliseconds the file
+     * has been given when it was copied from the cache, or -1 if it is
+     * unknown
+     * @return true if the file exists and has the same contents
+     * @throws IOException if the file could not be read
+     */
+    public boolean matches(Entry entry, File f, long lastModified)
+            throws IOException {
+        if (!f.isFile() || f.length() != entry.length) {
+            return false;
+        }
+        if (lastModified >= 0 && f.lastModified() == lastModified) {
+            return true;
+        }
+        return sha256(f).equals(entry.hash);
+    }
+
+    /**
+     * Delete the files that have not been used for the longest time until
+     * the cache is not larger than the given size
+     * @param maxSize the maximum size of the cache in bytes
+     * @throws IOException if the cache could not be locked
+     */
+    public void evict(long maxSize) throws IOException {
+        File[] files = filesDir.listFiles();
+        if (files == null) {
+            return;
+        }
+        long size = 0;
+        for (File f : files) {
+            size += f.length();
+        }
+        if (size <= maxSize) {
+            return;
+        }
+
+        dir.mkdirs();
+        try (FileChannel lockChannel = FileChannel.open(
+                new File(dir, "cache.lock").toPath(),
+                StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+                FileLock ignored = lockChannel.lock()) {
+            evictLocked(maxSize);
+        }
+    }
+
+    /**
+     * Evict files while the cache is locked
+     * @param maxSize the maximum size of the cache in bytes
+     */
+    private void evictLocked(long maxSize) {
+        // a file was last used when one of its entries was last used
+        Map<String, Long> lastUsed = new HashMap<>();
+        Map<String, List<File>> entriesByHash = new HashMap<>();
+        File[] entries = entriesDir.listFiles();
+        if (entries != null) {
+            for (File e : entries) {
+                Properties props = readProperties(e);
+                String hash = props != null ? props.getProperty("hash") : null;
+                if (hash == null) {
+                    continue;
+                }
+                lastUsed.merge(hash, e.lastModified(), Math::max);
+                entriesByHash.computeIfAbsent(hash, h -> new ArrayList<>()).add(e);
+            }
+        }
+
+        File[] files = filesDir.listFiles();
+        if (files == null) {
+            return;
+        }
+        long size = 0;
+        for (File f : files) {
+            size += f.length();
+        }
+
+        // files without entries are evicted first
+        List<File> sorted = new ArrayList<>();
+        for (File f : files) {
+            sorted.add(f);
+        }
+        sorted.sort((a, b) -> Long.compare(lastUsed.getOrDefault(a.getName(), 0L),
+                lastUsed.getOrDefault(b.getName(), 0L)));
+
+        for (File f : sorted) {
+            if (size <= maxSize) {
+                break;
+            }
+            long length = f.length();
+            List<File> es = entriesByHash.get(f.getName());
+            if (es != null) {
+                for (File e : es) {
+                    e.delete();
+                }
+            }
+            if (f.delete()) {
+                size -= length;
+            }
+        }
+    }
+
+    /**
+     * Look up an entry and mark it as used
+     * @param key the entry's key
+     * @return the entry or {@code null} if there is no such entry or if the
+     * cached file has been evicted or modified
+     */
+    private Entry getEntry(String key) {
+        File entryFile = getEntryFile(key);
+        Properties props = readProperties(entryFile);
+        if (props == null) {
+            return null;
+        }
+        String hash = props.getProperty("hash");
+        String length = props.getProperty("length");
+        String modified = props.getProperty("modified");
+        if (hash == null || length == null || modified == null) {
+            return null;
+        }
+
+        // ignore the entry if the file has been changed since the entry
+        // was written
+        File file = new File(filesDir, hash);
+        long l;
+        try {
+            l = Long.parseLong(length);
+            if (!file.isFile() || file.length() != l ||
+                    file.lastModified() != Long.parseLong(modified)) {
+                return null;
+            }
+        } catch (NumberFormatException e) {
+            return null;
+        }
+
+        // remember when the entry was last used (for eviction)
+        entryFile.setLastModified(System.currentTimeMillis());
+
+        return new Entry(file, hash, l, props.getProperty("etag"),
+                props.getProperty("lastModified"));
+    }
+
+    /**
+     * Write an entry
+     * @param key the entry's key
+     * @param props the entry's properties
+     * @param etag the ETag to write (may be {@code null})
+     * @param lastModified the Last-Modified date to write (may be
+     * {@code null})
+     * @throws IOException if the entry could not be written
+     */
+    private void writeEntry(String key, Properties props, String etag,
+            String lastModified) throws IOException {
+        Properties p = new Properties();
+        p.putAll(props);
+        p.setProperty("key", key);
+        if (etag != null) {
+            p.setProperty("etag", etag);
+        }
+        if (lastModified != null) {
+            p.setProperty("lastModified", lastModified);
+        }
+        ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        p.store(baos, null);
+        ETagStore.replace(getEntryFile(key), baos.toByteArray());
+    }
+
+    /**
+     * Get the file that keeps the entry with the given key
+     * @param key the key
+     * @return the file
+     */
+    private File getEntryFile(String key) {
+        return new File(entriesDir, Checksum.toHex(newSha256().digest(
+                key.getBytes(StandardCharsets.UTF_8))));
+    }
+
+    /**
+     * Read a properties file
+     * @param f the file
+     * @return the properties or {@code null} if the file does not exist or
+     * could not be read
+     */
+    private static Properties readProperties(File f) {
+        if (!f.isFile()) {
+            return null;
+        }
+        Properties props = new Properties();
+        try (InputStream is = new FileInputStream(f)) {
+            props.load(is);
+        } catch (IOException e) {
+            return null;
+        }
+        return props;
+    }
+
+    /**
+     * @return a new SHA-256 digest
+     */
+    private static MessageDigest newSha256() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * Get a path for a temporary file next to the given destination file.
+     * The parent directory is created if necessary.
+     * @param destFile the destination file
+     * @return the path of the temporary file (the file does not exist yet)
+     */
+    private static Path newTempFile(File destFile) {
+        File parent = destFile.getAbsoluteFile().getParentFile();
+        parent.mkdirs();
+        // do not use Files.createTempFile() as it would make the file
+        // readable only by the current user
+        return new File(parent, destFile.getName() + "." +
+                UUID.randomUUID() + ".tmp").toPath();
+    }
+
+    /**
+     * Copy an input stream to a new file
+     * @param is the input stream
+     * @param target the file to create
+     * @param md a digest to update with the copied bytes (may be
+     * {@code null})
+     * @throws IOException if the file could not be written
+     */
+    private static void copy(InputStream is, Path target, MessageDigest md)
+            throws IOException {
+        byte[] buf = new byte[64 * 1024];
+        try (OutputStream os = Files.newOutputStream(target,
+                StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE)) {
+            int n;
+            while ((n = is.read(buf)) >= 0) {
+                if (md != null) {
+                    md.update(buf, 0, n);
+                }
+                os.write(buf, 0, n);
+            }
+        }
+    }
+
+    /**
+     * Replace a file with a temporary file, atomically if possible
+     * @param tmp the temporary file
+     * @param destFile the file to replace
+     * @throws IOException if the file could not be replaced
+     */
+    private static void replace(Path tmp, File destFile) throws IOException {
+        try {
+            Files.move(tmp, destFile.toPath(), StandardCopyOption.ATOMIC_MOVE,
+                    StandardCopyOption.REPLACE_EXISTING);
+        } catch (AtomicMoveNotSupportedException e) {
+            Files.move(tmp, destFile.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        }
+    }
+
+    /**
+     * Calculate the SHA-256 hash of a file
+     * @param f the file
+     * @return the hash as a hex string
+     * @throws IOException if the file could not be read
+     */
+    private static String sha256(File f) throws IOException {
+        MessageDigest md = newSha256();
+        byte[] buf = new byte[64 * 1024];
+        try (InputStream is = new FileInputStream(f)) {
+            int n;
+            while ((n = is.read(buf)) >= 0) {
+                md.update(buf, 0, n);
+            }
+        }
+        return Checksum.toHex(md.digest());
+    }
+}
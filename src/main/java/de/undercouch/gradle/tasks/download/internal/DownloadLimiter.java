@@ -0,0 +1,428 @@
+package de.undercouch.gradle.tasks.download.internal;
+
+import org.apache.hc.core5.http.HttpStatus;
+import org.gradle.api.logging.Logger;
+import org.gradle.api.logging.Logging;
+
+import java.net.URL;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * <p>Limits the number of downloads that may run at the same time, both in
+ * total and per host. Permits are handed out asynchronously and in the
+ * order in which they were requested, so downloads waiting for a permit do
+ * not block a thread. A limiter may have a parent that is consulted after
+ * it. This allows a task to narrow its own downloads further than the
+ * limits of the whole build. The limiter is thread-safe.</p>
+ * <p>If adaptive concurrency is enabled for a limiter, the number of its
+ * downloads per host is adjusted with an AIMD (additive increase,
+ * multiplicative decrease) algorithm. It is halved if the host responds
+ * with 429 or 503 or if its latency rises considerably, and it is slowly
+ * increased again while the host's responses are healthy. The number is
+ * kept by the topmost limiter, so all adaptive limiters sharing a parent
+ * learn from each other's responses. Downloads of limiters without
+ * adaptive concurrency are not affected by it.</p>
+ * @author Michel Kraemer
+ */
+public class DownloadLimiter {
+    /**
+     * The maximum number of downloads per host if adaptive concurrency is
+     * enabled but no fixed limit per host has been specified (same as the
+     * default maximum number of connections per host)
+     */
+    private static final int DEFAULT_MAX_ADAPTIVE_LEVEL = 20;
+
+    /**
+     * The number of downloads per host to start with if adaptive
+     * concurrency is enabled
+     */
+    private static final int INITIAL_ADAPTIVE_LEVEL = 4;
+
+    /**
+     * The factor by which the average latency of a host has to exceed its
+     * minimum latency to be considered a sign of overload
+     */
+    private static final double LATENCY_THRESHOLD = 2.0;
+
+    /**
+     * The minimum difference between the average and the minimum latency of
+     * a host to be considered a sign of overload. Avoids reacting to jitter
+     * of hosts that respond very quickly.
+     */
+    private static final long MIN_LATENCY_INCREASE_NANOS =
+            TimeUnit.MILLISECONDS.toNanos(50);
+
+    /**
+     * The weight of a new sample in the moving average of a host's latency
+     */
+    private static final double LATENCY_SMOOTHING = 0.1;
+
+    private final Logger logger = Logging.getLogger(DownloadLimiter.class);
+    private final Deque<Waiter> waiters = new ArrayDeque<>();
+    private final Map<String, Integer> activePerHost = new HashMap<>();
+    private final Map<String, AdaptiveLevel> adaptiveLevels = new HashMap<>();
+    private final int maxTotal;
+    private final int maxPerHost;
+    private final boolean adaptive;
+    private final DownloadLimiter parent;
+    private int activeTotal;
+
+    /**
+     * Creates a new limiter
+     * @param maxTotal the maximum number of downloads running at the same
+     * time (0 if there is no limit)
+     * @param maxPerHost the maximum number of downloads from a single host
+     * running at the same time (0 if there is no limit)
+     */
+    public DownloadLimiter(int maxTotal, int maxPerHost) {
+        this(maxTotal, maxPerHost, false, null);
+    }
+
+    /**
+     * Creates a new limiter
+     * @param maxTotal the maximum number of downloads running at the same
+     * time (0 if there is no limit)
+     * @param maxPerHost the maximum number of downloads from a single host
+     * running at the same time (0 if there is no limit)
+     * @param adaptive true if the number of downloads per host should be
+     * adjusted based on the observed responses. It will not exceed the
+     * maximum number of downloads per host of this limiter or of the
+     * topmost one.
+     * @param parent another limiter from which a permit is requested after
+     * this one has handed one out (may be {@code null})
+     */
+    public DownloadLimiter(int maxTotal, int maxPerHost, boolean adaptive,
+            DownloadLimiter parent) {
+        this.maxTotal = maxTotal;
+        this.maxPerHost = maxPerHost;
+        this.adaptive = adaptive;
+        this.parent = parent;
+    }
+
+    /**
+     * @return the maximum number of downloads running at the same time (0 if
+     * there is no limit)
+     */
+    public int getMaxTotal() {
+        return maxTotal;
+    }
+
+    /**
+     * @return the maximum number of downloads from a single host running at
+     * the same time (0 if there is no limit)
+     */
+    public int getMaxPerHost() {
+        return maxPerHost;
+    }
+
+    /**
+     * @return true if this limiter or its parent has a limit or adapts the
+     * number of downloads per host
+     */
+    public boolean isLimited() {
+        return maxTotal > 0 || maxPerHost > 0 || adaptive ||
+                (parent != null && parent.isLimited());
+    }
+
+    /**
+     * @return true if adaptive concurrency is enabled for the downloads of
+     * this limiter
+     */
+    public boolean isAdaptive() {
+        return adaptive;
+    }
+
+    /**
+     * Get the number of downloads of this limiter that may currently run at
+     * the same time for the given host
+     * @param host the host
+     * @param port the host's port (-1 if it is the default port)
+     * @param scheme the URL scheme
+     * @return the number of downloads (0 if there is no limit)
+     */
+    public int getLimit(String host, int port, String scheme) {
+        int limit = maxPerHost;
+        if (adaptive) {
+            int level = getTopmost().getAdaptiveLimit(hostKey(host, port, scheme));
+            if (limit == 0 || level < limit) {
+                limit = level;
+            }
+        }
+        return limit;
+    }
+
+    /**
+     * Request a permit to download from the given URL
+     * @param src the URL to download from
+     * @return a future that will be completed with the permit as soon as
+     * the download may start (i.e. as soon as this limiter and its parent
+     * have allowed it). The permit must be closed when the download has
+     * finished.
+     */
+    public CompletableFuture<Permit> acquire(URL src) {
+        return acquire(src, adaptive);
+    }
+
+    /**
+     * Request a permit to download from the given URL
+     * @param src the URL to download from
+     * @param adaptive true if the adaptive number of downloads per host
+     * should apply to the download
+     * @return a future that will be completed with the permit
+     */
+    private CompletableFuture<Permit> acquire(URL src, boolean adaptive) {
+        Waiter w = new Waiter(hostKey(src.getHost(), src.getPort(),
+                src.getProtocol()), adaptive && parent == null);
+        synchronized (this) {
+            waiters.addLast(w);
+        }
+        dispatch();
+        if (parent == null) {
+            return w.future;
+        }
+        return w.future.thenCompose(permit -> parent.acquire(src, adaptive)
+                .thenApply(parentPermit -> {
+                    permit.parentPermit = parentPermit;
+                    return permit;
+                }));
+    }
+
+    /**
+     * Get an observer that adjusts the number of downloads from the given
+     * host based on the host's responses
+     * @param host the host
+     * @param port the host's port (-1 if it is the default port)
+     * @param scheme the URL scheme
+     * @return the observer or {@code null} if adaptive concurrency is not
+     * enabled for this limiter
+     */
+    public ResponseObserver observe(String host, int port, String scheme) {
+        if (!adaptive) {
+            return null;
+        }
+        String key = hostKey(host, port, scheme);
+        DownloadLimiter topmost = getTopmost();
+        return (code, startNanos, endNanos) -> topmost.onResponse(key, code,
+                startNanos, endNanos);
+    }
+
+    static String hostKey(String host, int port, String scheme) {
+        if (port == -1) {
+            port = "https".equals(scheme) ? 443 : 80;
+        }
+        return host + ":" + port;
+    }
+
+    /**
+     * @return the limiter without a parent that keeps the adaptive number
+     * of downloads per host
+     */
+    private DownloadLimiter getTopmost() {
+        DownloadLimiter l = this;
+        while (l.parent != null) {
+            l = l.parent;
+        }
+        return l;
+    }
+
+    /**
+     * Get the adaptive number of downloads that may currently run at the
+     * same time for the given host. Must be called on the topmost limiter.
+     * @param key the host key
+     * @return the number of downloads
+     */
+    private synchronized int getAdaptiveLimit(String key) {
+        return (int)getAdaptiveLevel(key).level;
+    }
+
+    /**
+     * Get the adaptive level of the given host or create a new one. Must be
+     * called while holding the lock.
+     * @param key the host key
+     * @return the level
+     */
+    private AdaptiveLevel getAdaptiveLevel(String key) {
+        AdaptiveLevel l = adaptiveLevels.get(key);
+        if (l == null) {
+            l = new AdaptiveLevel(Math.min(INITIAL_ADAPTIVE_LEVEL,
+                    getMaxAdaptiveLevel()));
+            adaptiveLevels.put(key, l);
+        }
+        return l;
+    }
+
+    private int getMaxAdaptiveLevel() {
+        return maxPerHost > 0 ? maxPerHost : DEFAULT_MAX_ADAPTIVE_LEVEL;
+    }
+
+    /**
+     * Adjust the number of downloads from a host based on a response
+     * @param key the host key
+     * @param code the response's status code
+     * @param startNanos the time when the request was sent
+     * @param endNanos the time when the response head was received
+     */
+    private void onResponse(String key, int code, long startNanos, long endNanos) {
+        boolean increased = false;
+        synchronized (this) {
+            AdaptiveLevel l = getAdaptiveLevel(key);
+            int oldLevel = (int)l.level;
+            String reason;
+
+            boolean overloaded = code == HttpStatus.SC_TOO_MANY_REQUESTS ||
+                    code == HttpStatus.SC_SERVICE_UNAVAILABLE;
+            if (overloaded) {
+                reason = "status code " + code;
+            } else {
+                long latency = endNanos - startNanos;
+                if (l.minLatencyNanos == 0 || latency < l.minLatencyNanos) {
+                    l.minLatencyNanos = Math.max(1, latency);
+                }
+                if (l.avgLatencyNanos == 0) {
+                    l.avgLatencyNanos = latency;
+                } else {
+                    l.avgLatencyNanos += (latency - l.avgLatencyNanos) *
+                            LATENCY_SMOOTHING;
+                }
+                overloaded = l.avgLatencyNanos > l.minLatencyNanos * LATENCY_THRESHOLD &&
+                        l.avgLatencyNanos - l.minLatencyNanos > MIN_LATENCY_INCREASE_NANOS;
+                reason = "rising latency";
+            }
+
+            if (overloaded) {
+                // Decrease at most once for all requests that were in
+                // flight at the same time. They all observe the same
+                // overload.
+                if (startNanos - l.lastDecreaseNanos > 0) {
+                    l.level = Math.max(1.0, l.level / 2);
+                    l.lastDecreaseNanos = endNanos;
+                    l.avgLatencyNanos = l.minLatencyNanos;
+                }
+            } else if (code < 400) {
+                // increase by one after a full round of healthy responses
+                l.level = Math.min(getMaxAdaptiveLevel(), l.level + 1.0 / l.level);
+                increased = true;
+                reason = "healthy responses";
+            }
+
+            int newLevel = (int)l.level;
+            if (newLevel != oldLevel) {
+                logger.info("Adjusted number of concurrent downloads from '" +
+                        key + "' to " + newLevel + " (" + reason + ")");
+            }
+        }
+
+        if (increased) {
+            dispatch();
+        }
+    }
+
+    /**
+     * Hand out permits to waiting downloads as long as the limits allow it
+     */
+    private void dispatch() {
+        List<Waiter> granted = new ArrayList<>();
+        synchronized (this) {
+            Iterator<Waiter> it = waiters.iterator();
+            while (it.hasNext() && (maxTotal == 0 || activeTotal < maxTotal)) {
+                Waiter w = it.next();
+                int active = activePerHost.getOrDefault(w.host, 0);
+                int limit = maxPerHost;
+                if (w.adaptive) {
+                    // the waiter is in the topmost limiter
+                    limit = (int)getAdaptiveLevel(w.host).level;
+                }
+                if (limit > 0 && active >= limit) {
+                    // keep waiting but let downloads from other hosts pass
+                    continue;
+                }
+                it.remove();
+                activePerHost.put(w.host, active + 1);
+                activeTotal++;
+                granted.add(w);
+            }
+        }
+
+        // complete futures outside the lock because their callbacks may
+        // start downloads immediately
+        for (Waiter w : granted) {
+            w.future.complete(new Permit(w.host));
+        }
+    }
+
+    private void release(String host) {
+        synchronized (this) {
+            activeTotal--;
+            int active = activePerHost.get(host) - 1;
+            if (active == 0) {
+                activePerHost.remove(host);
+            } else {
+                activePerHost.put(host, active);
+            }
+        }
+        dispatch();
+    }
+
+    /**
+     * Allows a download to run. Must be closed when the download has
+     * finished.
+     */
+    public class Permit implements AutoCloseable {
+        private final String host;
+        private final AtomicBoolean closed = new AtomicBoolean();
+        private volatile Permit parentPermit;
+
+        private Permit(String host) {
+            this.host = host;
+        }
+
+        @Override
+        public void close() {
+            if (closed.compareAndSet(false, true)) {
+                Permit pp = parentPermit;
+                if (pp != null) {
+                    pp.close();
+                }
+                release(host);
+            }
+        }
+    }
+
+    /**
+     * A download waiting for a permit
+     */
+    private static class Waiter {
+        final String host;
+        final boolean adaptive;
+        final CompletableFuture<Permit> future = new CompletableFuture<>();
+
+        Waiter(String host, boolean adaptive) {
+            this.host = host;
+            this.adaptive = adaptive;
+        }
+    }
+
+    /**
+     * The adaptive number of downloads for a host
+     */
+    private static class AdaptiveLevel {
+        double level;
+        long lastDecreaseNanos;
+        long minLatencyNanos;
+        double avgLatencyNanos;
+
+        AdaptiveLevel(double level) {
+            this.level = level;
+            this.lastDecreaseNanos = System.nanoTime();
+        }
+    }
+}
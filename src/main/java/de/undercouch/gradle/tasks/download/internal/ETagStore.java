@@ -0,0 +1,359 @@
+package de.undercouch.gradle.tasks.download.internal;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * An in-memory index of a cached ETags file. The file is read only once
+ * when the first ETag is requested. New ETags are kept in memory and written
+ * to the file in one batch when {@link #flush()} is called. The class is
+ * thread-safe. Multiple stores (even in different processes) may write to
+ * the same file at the same time. Updates are never lost because the file
+ * is locked while new entries are written. Subclasses define the format of
+ * the file.
+ * @author Michel Kraemer
+ */
+public abstract class ETagStore {
+    /**
+     * Locks that serialize writes of all stores in this JVM to the same
+     * file. File locks are held on behalf of the whole JVM and cannot be
+     * used for this.
+     */
+    private static final Map<String, ReentrantLock> LOCAL_LOCKS =
+            new ConcurrentHashMap<>();
+
+    /**
+     * Something that should be done while the file is locked
+     */
+    protected interface LockedAction {
+        /**
+         * Perform the action
+         * @throws IOException if the action failed
+         */
+        void run() throws IOException;
+    }
+
+    /**
+     * Validators of a downloaded file
+     */
+    public static class Entry {
+        private final String etag;
+        private final String lastModified;
+        private final long length;
+        private final String digest;
+
+        /**
+         * Create a new entry
+         * @param etag the ETag
+         * @param lastModified the value of the Last-Modified header (may be
+         * {@code null})
+         * @param length the length of the downloaded file (-1 if unknown)
+         * @param digest the file's checksum in the form
+         * {@code algorithm:hex} (may be {@code null})
+         */
+        public Entry(String etag, String lastModified, long length, String digest) {
+            this.etag = etag;
+            this.lastModified = lastModified;
+            this.length = length;
+            this.digest = digest;
+        }
+
+        /**
+         * @return the ETag
+         */
+        public String getETag() {
+            return etag;
+        }
+
+        /**
+         * @return the value of the Last-Modified header (may be {@code null})
+         */
+        public String getLastModified() {
+            return lastModified;
+        }
+
+        /**
+         * @return the length of the downloaded file (-1 if unknown)
+         */
+        public long getLength() {
+            return length;
+        }
+
+        /**
+         * @return the file's checksum in the form {@code algorithm:hex}
+         * (may be {@code null})
+         */
+        public String getDigest() {
+            return digest;
+        }
+    }
+
+    private final File file;
+    private volatile Map<String, Map<String, Entry>> index;
+    private final Map<String, Map<String, Entry>> pending = new ConcurrentHashMap<>();
+
+    /**
+     * Creates a new store
+     * @param file the file to which the ETags are written
+     */
+    protected ETagStore(File file) {
+        this.file = file;
+    }
+
+    /**
+     * Create a store for the given cached ETags file
+     * @param cachedETagsFile the cached ETags file
+     * @param binary true if the ETags should be written to an append-only
+     * binary log next to the cached ETags file instead of to the file itself
+     * (see {@link LogETagStore})
+     * @return the store
+     */
+    public static ETagStore create(File cachedETagsFile, boolean binary) {
+        if (binary) {
+            return new LogETagStore(getFile(cachedETagsFile, true),
+                    cachedETagsFile);
+        }
+        return new JsonETagStore(getFile(cachedETagsFile, false));
+    }
+
+    /**
+     * Get the file to which a store created with
+     * {@link #create(File, boolean)} would write its ETags
+     * @param cachedETagsFile the cached ETags file
+     * @param binary true if the store uses the binary log format
+     * @return the file
+     */
+    public static File getFile(File cachedETagsFile, boolean binary) {
+        if (binary) {
+            return LogETagStore.getLogFile(cachedETagsFile);
+        }
+        return cachedETagsFile;
+    }
+
+    /**
+     * @return the file to which the ETags are written
+     */
+    public File getFile() {
+        return file;
+    }
+
+    /**
+     * Get the cached ETag for the given host and file
+     * @param host the host
+     * @param path the file
+     * @return the cached ETag or {@code null} if there is no ETag in the cache
+     * @throws IOException if the file could not be read
+     */
+    public String get(String host, String path) throws IOException {
+        Entry e = getEntry(host, path);
+        return e != null ? e.getETag() : null;
+    }
+
+    /**
+     * Get the cached validators for the given host and file
+     * @param host the host
+     * @param path the file
+     * @return the validators or {@code null} if there are none in the cache
+     * @throws IOException if the file could not be read
+     */
+    public Entry getEntry(String host, String path) throws IOException {
+        Map<String, Entry> hostMap = getIndex().get(host);
+        if (hostMap == null) {
+            return null;
+        }
+        return hostMap.get(path);
+    }
+
+    /**
+     * Put an ETag into the store. The ETag will be written to the file on
+     * the next call to {@link #flush()}.
+     * @param host the host
+     * @param path the file
+     * @param etag the ETag
+     * @throws IOException if the file could not be read
+     */
+    public void put(String host, String path, String etag) throws IOException {
+        put(host, path, new Entry(etag, null, -1, null));
+    }
+
+    /**
+     * Put validators into the store. They will be written to the file on
+     * the next call to {@link #flush()}.
+     * @param host the host
+     * @param path the file
+     * @param entry the validators
+     * @throws IOException if the file could not be read
+     */
+    public void put(String host, String path, Entry entry) throws IOException {
+        getIndex().computeIfAbsent(host, h -> new ConcurrentHashMap<>())
+                .put(path, entry);
+
+        // modify the host's map atomically so flush() cannot remove it
+        // while we are adding an entry
+        pending.compute(host, (h, files) -> {
+            if (files == null) {
+                files = new ConcurrentHashMap<>();
+            }
+            files.put(path, entry);
+            return files;
+        });
+    }
+
+    /**
+     * @return true if there are ETags that have not been written to the
+     * file yet
+     */
+    public boolean isDirty() {
+        return !pending.isEmpty();
+    }
+
+    /**
+     * Write all new ETags to the file while it is locked
+     * @throws IOException if the file could not be written
+     */
+    public void flush() throws IOException {
+        if (pending.isEmpty()) {
+            return;
+        }
+
+        // take a snapshot of the pending entries
+        Map<String, Map<String, Entry>> snapshot = new LinkedHashMap<>();
+        pending.forEach((host, files) -> snapshot.put(host, new LinkedHashMap<>(files)));
+
+        withLock(() -> write(snapshot));
+
+        // remove written entries unless they have been replaced in the meantime
+        snapshot.forEach((host, files) -> pending.computeIfPresent(host, (h, m) -> {
+            files.forEach((path, entry) -> m.remove(path, entry));
+            return m.isEmpty() ? null : m;
+        }));
+    }
+
+    /**
+     * Load all entries from the file into a new index
+     * @return the index (must be thread-safe)
+     * @throws IOException if the file could not be read
+     */
+    protected abstract Map<String, Map<String, Entry>> load() throws IOException;
+
+    /**
+     * Write new entries to the file. The file is locked while this method
+     * is called.
+     * @param entries the new entries
+     * @throws IOException if the file could not be written
+     */
+    protected abstract void write(Map<String, Map<String, Entry>> entries)
+            throws IOException;
+
+    /**
+     * @return the total number of entries in the in-memory index
+     */
+    protected int size() {
+        Map<String, Map<String, Entry>> index = this.index;
+        return index != null ? size(index) : 0;
+    }
+
+    /**
+     * Count the entries in an index
+     * @param index the index
+     * @return the number of entries
+     */
+    protected static int size(Map<String, Map<String, Entry>> index) {
+        int result = 0;
+        for (Map<String, Entry> hostMap : index.values()) {
+            result += hostMap.size();
+        }
+        return result;
+    }
+
+    /**
+     * Perform an action while the file is locked for all threads in this
+     * JVM and for all other processes. The lock is reentrant within the
+     * current thread.
+     * @param action the action to perform
+     * @throws IOException if the file could not be locked or if the action
+     * failed
+     */
+    protected void withLock(LockedAction action) throws IOException {
+        File absoluteFile = file.getAbsoluteFile();
+        ReentrantLock localLock = LOCAL_LOCKS.computeIfAbsent(
+                absoluteFile.getPath(), p -> new ReentrantLock());
+        localLock.lock();
+        try {
+            if (localLock.getHoldCount() > 1) {
+                // we already hold the file lock
+                action.run();
+                return;
+            }
+
+            File lockFile = new File(absoluteFile.getPath() + ".lock");
+            lockFile.getParentFile().mkdirs();
+            try (FileChannel lockChannel = FileChannel.open(lockFile.toPath(),
+                    StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+                    FileLock ignored = lockChannel.lock()) {
+                action.run();
+            }
+        } finally {
+            localLock.unlock();
+        }
+    }
+
+    /**
+     * Get the in-memory index and load it if necessary
+     * @return the index
+     * @throws IOException if the file could not be read
+     */
+    private Map<String, Map<String, Entry>> getIndex() throws IOException {
+        Map<String, Map<String, Entry>> result = index;
+        if (result == null) {
+            synchronized (this) {
+                result = index;
+                if (result == null) {
+                    result = load();
+                    index = result;
+                }
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Replace the contents of a file atomically by writing them to a
+     * temporary file first and then moving it to the destination
+     * @param file the file to write
+     * @param contents the new contents
+     * @throws IOException if the file could not be written
+     */
+    static void replace(File file, byte[] contents) throws IOException {
+        File parent = file.getAbsoluteFile().getParentFile();
+        parent.mkdirs();
+        // do not use Files.createTempFile() as it would make the file
+        // readable only by the current user
+        Path tmp = new File(parent, file.getName() + "." +
+                UUID.randomUUID() + ".tmp").toPath();
+        try {
+            Files.write(tmp, contents, StandardOpenOption.CREATE_NEW,
+                    StandardOpenOption.WRITE);
+            try {
+                Files.move(tmp, file.toPath(), StandardCopyOption.ATOMIC_MOVE,
+                        StandardCopyOption.REPLACE_EXISTING);
+            } catch (AtomicMoveNotSupportedException e) {
+                Files.move(tmp, file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+            }
+        } finally {
+            Files.deleteIfExists(tmp);
+        }
+    }
+}
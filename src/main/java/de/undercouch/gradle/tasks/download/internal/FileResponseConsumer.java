@@ -0,0 +1,256 @@
+package de.undercouch.gradle.tasks.download.internal;
+
+import org.apache.hc.core5.concurrent.FutureCallback;
+import org.apache.hc.core5.http.EntityDetails;
+import org.apache.hc.core5.http.Header;
+import org.apache.hc.core5.http.HttpException;
+import org.apache.hc.core5.http.HttpResponse;
+import org.apache.hc.core5.http.nio.AsyncResponseConsumer;
+import org.apache.hc.core5.http.nio.CapacityChannel;
+import org.apache.hc.core5.http.protocol.HttpContext;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * <p>An asynchronous response consumer that writes the response body directly
+ * to a file channel while it is being received from the network.</p>
+ * <p>If the bandwidth is limited, the consumer never blocks the thread
+ * delivering the response body, because this thread is shared with other
+ * downloads. Instead, it withholds capacity from the connection (i.e. it
+ * stops the client from reading more data) until bandwidth is available.</p>
+ * @author Michel Kraemer
+ */
+public class FileResponseConsumer implements AsyncResponseConsumer<HttpResponse> {
+    /**
+     * A callback that is called when the response head has been received
+     */
+    public interface ResponseHandler {
+        /**
+         * Handle the response head
+         * @param response the response
+         * @return true if the response body should be written to the file,
+         * false if it should be discarded
+         * @throws IOException if the response is invalid
+         */
+        boolean handleResponse(HttpResponse response) throws IOException;
+    }
+
+    private final File file;
+    private final Checksum checksum;
+    private final int bufferSize;
+    private final ProgressLoggerWrapper progressLogger;
+    private final BandwidthLimiter bandwidthLimiter;
+    private final ResponseHandler responseHandler;
+    private HttpResponse response;
+    private FutureCallback<HttpResponse> resultCallback;
+    private FileChannel channel;
+    private MessageDigest digest;
+    private boolean started;
+    private volatile boolean released;
+
+    /**
+     * The point in time (in nanoseconds) until which no more data should be
+     * read because the bandwidth limit has been reached
+     */
+    private volatile long throttledUntil = System.nanoTime();
+
+    /**
+     * Create a new consumer
+     * @param file the file to write to
+     * @param checksum the expected checksum of the file (may be {@code null})
+     * @param bufferSize the maximum number of bytes to receive at once
+     * @param progressLogger progress logger
+     * @param bandwidthLimiter limits the number of bytes received per
+     * second (may be {@code null} if there is no limit). Reading from the
+     * network is postponed while the limit has been reached.
+     * @param responseHandler a callback that is called when the response
+     * head has been received
+     */
+    public FileResponseConsumer(File file, Checksum checksum, int bufferSize,
+            ProgressLoggerWrapper progressLogger, BandwidthLimiter bandwidthLimiter,
+            ResponseHandler responseHandler) {
+        this.file = file;
+        this.checksum = checksum;
+        this.bufferSize = bufferSize;
+        this.progressLogger = progressLogger;
+        this.bandwidthLimiter = bandwidthLimiter;
+        this.responseHandler = responseHandler;
+    }
+
+    @Override
+    public void consumeResponse(HttpResponse response, EntityDetails entityDetails,
+            HttpContext context, FutureCallback<HttpResponse> resultCallback)
+            throws HttpException, IOException {
+        // the consumer is reused if a request is retried
+        released = false;
+        this.resultCallback = resultCallback;
+        start(response);
+        if (entityDetails == null) {
+            // there is no response body
+            resultCallback.completed(buildResult());
+        }
+    }
+
+    @Override
+    public void informationResponse(HttpResponse response, HttpContext context) {
+        // nothing to do
+    }
+
+    @Override
+    public void updateCapacity(CapacityChannel capacityChannel) throws IOException {
+        long delay = getThrottleDelayNanos();
+        if (delay <= 0) {
+            capacityChannel.update(bufferSize);
+            return;
+        }
+
+        Scheduler.runLater(() -> {
+            if (released) {
+                return;
+            }
+            try {
+                capacityChannel.update(bufferSize);
+            } catch (IOException e) {
+                // the connection is broken. The client will fail the
+                // exchange by itself.
+            }
+        }, delay, TimeUnit.NANOSECONDS);
+    }
+
+    @Override
+    public void consume(ByteBuffer src) throws IOException {
+        data(src);
+    }
+
+    @Override
+    public void streamEnd(List<? extends Header> trailers) {
+        // do not report the download as finished before the bandwidth it
+        // has used is available again
+        long delay = getThrottleDelayNanos();
+        if (delay <= 0) {
+            resultCallback.completed(buildResult());
+        } else {
+            Scheduler.runLater(() -> resultCallback.completed(buildResult()),
+                    delay, TimeUnit.NANOSECONDS);
+        }
+    }
+
+    /**
+     * Called when the response head has been received
+     * @param response the response
+     * @throws IOException if the response is invalid or if the file could
+     * not be opened
+     */
+    void start(HttpResponse response) throws IOException {
+        this.response = response;
+        if (!responseHandler.handleResponse(response)) {
+            return;
+        }
+
+        channel = FileChannel.open(file.toPath(), StandardOpenOption.CREATE,
+                StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+        if (checksum != null) {
+            digest = checksum.newDigest();
+        }
+        progressLogger.started();
+        started = true;
+    }
+
+    /**
+     * Write a chunk of the response body to the file
+     * @param src the chunk
+     * @throws IOException if the chunk could not be written
+     */
+    void data(ByteBuffer src) throws IOException {
+        if (channel == null) {
+            // discard response body
+            src.position(src.limit());
+            return;
+        }
+
+        if (digest != null) {
+            digest.update(src.duplicate());
+        }
+
+        int n = src.remaining();
+        while (src.hasRemaining()) {
+            channel.write(src);
+        }
+        progressLogger.incrementProgress(n);
+
+        if (bandwidthLimiter != null) {
+            long delay = bandwidthLimiter.reserve(n);
+            if (delay > 0) {
+                throttledUntil = System.nanoTime() + delay;
+            }
+        }
+    }
+
+    /**
+     * @return the number of nanoseconds to wait before more data should be
+     * read (0 or less if reading may continue immediately)
+     */
+    long getThrottleDelayNanos() {
+        return throttledUntil - System.nanoTime();
+    }
+
+    /**
+     * Close the file and get the response
+     * @return the response
+     */
+    HttpResponse buildResult() {
+        closeChannel();
+        return response;
+    }
+
+    @Override
+    public void failed(Exception cause) {
+        closeChannel();
+    }
+
+    @Override
+    public void releaseResources() {
+        released = true;
+        closeChannel();
+    }
+
+    /**
+     * @return true if the response body has been written to the file
+     */
+    public boolean isWritten() {
+        return started;
+    }
+
+    /**
+     * @return the digest of the written bytes or {@code null} if no checksum
+     * was given
+     */
+    public byte[] getDigest() {
+        return digest != null ? digest.digest() : null;
+    }
+
+    /**
+     * Close the file channel if it is open
+     */
+    private synchronized void closeChannel() {
+        if (channel == null) {
+            return;
+        }
+        try {
+            channel.close();
+        } catch (IOException e) {
+            // ignore
+        }
+        channel = null;
+        if (started) {
+            progressLogger.completed();
+        }
+    }
+}
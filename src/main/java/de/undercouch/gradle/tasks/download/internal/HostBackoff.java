@@ -0,0 +1,91 @@
+package de.undercouch.gradle.tasks.download.internal;
+
+import java.io.InterruptedIOException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Keeps track of hosts that have asked clients to back off (e.g. with
+ * status code 429 or 503) so that all requests to such a host can wait
+ * until the host is ready again and do not have to discover the backoff
+ * separately. The class is thread-safe.
+ * @author Michel Kraemer
+ */
+public class HostBackoff {
+    /**
+     * Maps host keys to the value of {@link System#nanoTime()} until which
+     * requests to the host should be paused
+     */
+    private final Map<String, Long> pausedUntil = new HashMap<>();
+
+    /**
+     * Pause requests to the given host
+     * @param host the host key
+     * @param delayMs the number of milliseconds to pause
+     * @return the number of milliseconds requests to the host will actually
+     * be paused. This value may be larger than the given delay if the host
+     * has already been paused for longer.
+     */
+    public synchronized long pause(String host, long delayMs) {
+        long remaining = getRemainingDelay(host);
+        if (delayMs <= remaining) {
+            return remaining;
+        }
+        pausedUntil.put(host, System.nanoTime() +
+                TimeUnit.MILLISECONDS.toNanos(delayMs));
+        return delayMs;
+    }
+
+    /**
+     * Get the number of milliseconds requests to the given host should
+     * still be paused
+     * @param host the host key
+     * @return the number of milliseconds (0 if requests do not have to be
+     * paused)
+     */
+    public synchronized long getRemainingDelay(String host) {
+        Long until = pausedUntil.get(host);
+        if (until == null) {
+            return 0;
+        }
+        long remaining = until - System.nanoTime();
+        if (remaining <= 0) {
+            pausedUntil.remove(host);
+            return 0;
+        }
+        return Math.max(1, TimeUnit.NANOSECONDS.toMillis(remaining));
+    }
+
+    /**
+     * Block the current thread until requests to the given host do not have
+     * to be paused anymore
+     * @param host the host key
+     * @throws InterruptedIOException if the thread has been interrupted
+     * while waiting
+     */
+    public void await(String host) throws InterruptedIOException {
+        long delay;
+        while ((delay = getRemainingDelay(host)) > 0) {
+            sleep(delay);
+        }
+    }
+
+    /**
+     * Block the current thread
+     * @param delayMs the number of milliseconds to sleep
+     * @throws InterruptedIOException if the thread has been interrupted
+     * while sleeping
+     */
+    static void sleep(long delayMs) throws InterruptedIOException {
+        try {
+            Thread.sleep(delayMs);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            InterruptedIOException ie = new InterruptedIOException(
+                    "Interrupted while waiting for a retry");
+            ie.initCause(e);
+            throw ie;
+        }
+    }
+}
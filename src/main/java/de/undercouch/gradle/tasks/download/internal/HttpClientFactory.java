@@ -14,14 +14,17 @@
 
 package de.undercouch.gradle.tasks.download.internal;
 
+import org.apache.hc.client5.http.impl.async.CloseableHttpAsyncClient;
 import org.apache.hc.client5.http.impl.classic.CloseableHttpClient;
 import org.apache.hc.core5.http.HttpHost;
-import org.gradle.api.logging.Logger;
+import org.apache.hc.core5.http2.HttpVersionPolicy;
 
 import java.util.Map;
 
 /**
- * Factory for Apache {@link CloseableHttpClient} objects
+ * Factory for Apache {@link CloseableHttpClient} and
+ * {@link CloseableHttpAsyncClient} objects as well as for
+ * {@link HttpTransport}s based on other HTTP clients
  * @author Michel Kraemer
  */
 public interface HttpClientFactory {
@@ -32,15 +35,70 @@ public interface HttpClientFactory {
      * errors should be ignored and any certificate (even an invalid one)
      * should be accepted
      * @param retries the number of retries to perform if an HTTP request fails
+     * @param retryDelayMs the number of milliseconds to wait before the
+     * first retry if the request context does not contain a
+     * {@link RetryBackoff}
      * @param connectTimeoutMs the maximum number of milliseconds to wait until
      * a connection is established. A value of 0 (zero) means infinite timeout.
      * A negative value is interpreted as undefined.
+     * @param maxConnectionsPerHost the maximum number of concurrent
+     * connections to a single host
+     * @param maxConnectionsTotal the maximum number of concurrent
+     * connections to all hosts
      * @param headers the HTTP headers specified by the user
-     * @param logger the project's logger
-     * @param quiet {@code true} if the quiet flag is set
      * @return the HTTP client
      */
     CloseableHttpClient createHttpClient(HttpHost httpHost, boolean acceptAnyCertificate,
-            int retries, int connectTimeoutMs, Map<String, String> headers,
-            Logger logger, boolean quiet);
+            int retries, int retryDelayMs, int connectTimeoutMs,
+            int maxConnectionsPerHost, int maxConnectionsTotal,
+            Map<String, String> headers);
+
+    /**
+     * Creates an asynchronous HTTP client for the given host. The client
+     * has already been started. The client only retries requests
+     * that have received a response. Requests that have failed with an
+     * exception have to be retried by the caller, so the client's I/O
+     * threads never have to wait.
+     * @param httpHost the host to connect to
+     * @param acceptAnyCertificate true if HTTPS certificate verification
+     * errors should be ignored and any certificate (even an invalid one)
+     * should be accepted
+     * @param retries the number of retries to perform if an HTTP request fails
+     * @param retryDelayMs the number of milliseconds to wait before the
+     * first retry if the request context does not contain a
+     * {@link RetryBackoff}
+     * @param connectTimeoutMs the maximum number of milliseconds to wait until
+     * a connection is established. A value of 0 (zero) means infinite timeout.
+     * A negative value is interpreted as undefined.
+     * @param maxConnectionsPerHost the maximum number of concurrent
+     * connections to a single host
+     * @param maxConnectionsTotal the maximum number of concurrent
+     * connections to all hosts
+     * @param versionPolicy the HTTP protocol versions the client may use
+     * @param headers the HTTP headers specified by the user
+     * @return the HTTP client
+     */
+    CloseableHttpAsyncClient createHttpAsyncClient(HttpHost httpHost,
+            boolean acceptAnyCertificate, int retries, int retryDelayMs,
+            int connectTimeoutMs, int maxConnectionsPerHost,
+            int maxConnectionsTotal, HttpVersionPolicy versionPolicy, Map<String, String> headers);
+
+    /**
+     * Creates a transport for the given host that is based on
+     * {@code java.net.http.HttpClient}. Only call this method if
+     * {@link JdkHttpTransports#isAvailable()} returns {@code true}.
+     * @param httpHost the host to connect to
+     * @param acceptAnyCertificate true if HTTPS certificate verification
+     * errors should be ignored and any certificate (even an invalid one)
+     * should be accepted
+     * @param retries the number of retries to perform if an HTTP request fails
+     * @param connectTimeoutMs the maximum number of milliseconds to wait until
+     * a connection is established. A value of 0 (zero) means infinite timeout.
+     * A negative value is interpreted as undefined.
+     * @param versionPolicy the HTTP protocol versions the client may use
+     * @return the transport
+     */
+    HttpTransport createJdkTransport(HttpHost httpHost,
+            boolean acceptAnyCertificate, int retries, int connectTimeoutMs,
+            HttpVersionPolicy versionPolicy);
 }
@@ -0,0 +1,187 @@
+package de.undercouch.gradle.tasks.download.internal;
+
+import org.apache.hc.core5.util.TimeValue;
+import org.gradle.api.provider.Property;
+import org.gradle.api.services.BuildService;
+import org.gradle.api.services.BuildServiceParameters;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A build service that owns the HTTP clients (and their connection pools)
+ * of all download tasks and extensions in the build. Connections can
+ * therefore be reused across tasks and projects. Idle connections are
+ * closed after a while, and all clients are closed when the build has
+ * finished. The service also owns the {@link DownloadLimiter} that limits
+ * the number of concurrent downloads in the whole build (configured once
+ * through the service's {@link Params parameters}) and the
+ * {@link BandwidthLimiter} that
+ * limits the bandwidth of all downloads in the whole build, as well as the
+ * {@link HostBackoff} that pauses requests to hosts that have asked clients
+ * to back off. Tasks writing to the same cached ETags file share an
+ * {@link ETagStore}, and tasks downloading on virtual threads share the
+ * semaphore that limits the number of these threads. Requires Gradle 6.1
+ * or higher.
+ * @author Michel Kraemer
+ */
+public abstract class HttpClientService implements
+        BuildService<HttpClientService.Params>, AutoCloseable {
+    /**
+     * The name under which the service is registered
+     */
+    public static final String NAME = "gradleDownloadTaskHttpClients";
+
+    /**
+     * The Gradle property that specifies how many files may be downloaded
+     * at the same time in the whole build
+     */
+    public static final String MAX_CONCURRENT_DOWNLOADS_PROPERTY =
+            "de.undercouch.download.maxConcurrentDownloads";
+
+    /**
+     * The Gradle property that specifies how many files may be downloaded
+     * from a single host at the same time in the whole build
+     */
+    public static final String MAX_CONCURRENT_DOWNLOADS_PER_HOST_PROPERTY =
+            "de.undercouch.download.maxConcurrentDownloadsPerHost";
+
+    /**
+     * The time after which idle connections are closed
+     */
+    private static final TimeValue MAX_IDLE_TIME = TimeValue.ofSeconds(30);
+
+    private final CachingHttpClientFactory clientFactory =
+            new CachingHttpClientFactory(MAX_IDLE_TIME);
+    private DownloadLimiter downloadLimiter;
+    private final BandwidthLimiter bandwidthLimiter = new BandwidthLimiter();
+    private final HostBackoff hostBackoff = new HostBackoff();
+    private final ExecutorService downloadExecutor = newDownloadExecutor();
+    private final Map<File, ETagStore> etagStores = new ConcurrentHashMap<>();
+    private Semaphore virtualThreadPermits;
+
+    /**
+     * Parameters of the service
+     */
+    public interface Params extends BuildServiceParameters {
+        /**
+         * @return the maximum number of downloads running at the same time
+         * in the whole build (no value if there is no limit)
+         */
+        Property<Integer> getMaxConcurrentDownloads();
+
+        /**
+         * @return the maximum number of downloads from a single host
+         * running at the same time in the whole build (no value if there is
+         * no limit)
+         */
+        Property<Integer> getMaxConcurrentDownloadsPerHost();
+    }
+
+    /**
+     * Create an executor that runs blocking downloads that have been
+     * queued by a {@link DownloadLimiter}. The executor creates threads only
+     * when needed, so the number of threads is bounded by the limiter.
+     * @return the executor
+     */
+    public static ExecutorService newDownloadExecutor() {
+        AtomicInteger threadCount = new AtomicInteger();
+        return Executors.newCachedThreadPool(r -> {
+            Thread t = new Thread(r, "gradle-download-task-" +
+                    threadCount.incrementAndGet());
+            t.setDaemon(true);
+            return t;
+        });
+    }
+
+    /**
+     * @return the factory that creates the shared HTTP clients. Clients
+     * created by this factory must not be closed by the caller.
+     */
+    public HttpClientFactory getClientFactory() {
+        return clientFactory;
+    }
+
+    /**
+     * @return the limiter shared by all downloads in the build
+     */
+    public synchronized DownloadLimiter getDownloadLimiter() {
+        if (downloadLimiter == null) {
+            downloadLimiter = new DownloadLimiter(
+                    getParameters().getMaxConcurrentDownloads().getOrElse(0),
+                    getParameters().getMaxConcurrentDownloadsPerHost().getOrElse(0));
+        }
+        return downloadLimiter;
+    }
+
+    /**
+     * @return the bandwidth limiter shared by all downloads in the build
+     */
+    public BandwidthLimiter getBandwidthLimiter() {
+        return bandwidthLimiter;
+    }
+
+    /**
+     * @return the hosts that have asked clients to back off
+     */
+    public HostBackoff getHostBackoff() {
+        return hostBackoff;
+    }
+
+    /**
+     * @return the executor that runs blocking downloads once the
+     * {@link #getDownloadLimiter() limiter} has allowed them to start
+     */
+    public ExecutorService getDownloadExecutor() {
+        return downloadExecutor;
+    }
+
+    /**
+     * Get the semaphore that limits the number of downloads running on
+     * virtual threads in the whole build. The semaphore is created by the
+     * first task that downloads files on virtual threads. Its number of
+     * permits is not changed by later tasks.
+     * @param maxVirtualThreads the number of permits if the semaphore has
+     * not been created yet
+     * @return the semaphore shared by all tasks in the build
+     */
+    public synchronized Semaphore getVirtualThreadPermits(int maxVirtualThreads) {
+        if (virtualThreadPermits == null) {
+            virtualThreadPermits = new Semaphore(maxVirtualThreads, true);
+        }
+        return virtualThreadPermits;
+    }
+
+    /**
+     * Get the store for the given cached ETags file
+     * @param cachedETagsFile the cached ETags file
+     * @param binary true if the store should use the binary log format
+     * (see {@link ETagStore#create(File, boolean)})
+     * @return the store shared by all tasks using this file and format
+     */
+    public ETagStore getETagStore(File cachedETagsFile, boolean binary) {
+        File file = ETagStore.getFile(cachedETagsFile, binary).getAbsoluteFile();
+        return etagStores.computeIfAbsent(file,
+                f -> ETagStore.create(cachedETagsFile, binary));
+    }
+
+    @Override
+    public void close() throws IOException {
+        downloadExecutor.shutdown();
+        try {
+            // tasks flush their stores themselves, but make sure nothing
+            // is left behind
+            for (ETagStore store : etagStores.values()) {
+                store.flush();
+            }
+        } finally {
+            clientFactory.close();
+        }
+    }
+}
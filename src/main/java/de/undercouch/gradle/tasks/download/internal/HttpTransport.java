@@ -0,0 +1,39 @@
+package de.undercouch.gradle.tasks.download.internal;
+
+import org.apache.hc.client5.http.classic.methods.HttpUriRequestBase;
+import org.apache.hc.core5.http.HttpHost;
+import org.apache.hc.core5.http.HttpResponse;
+
+import java.io.Closeable;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * A transport that sends HTTP requests with a client other than Apache
+ * HttpClient. Requests and responses are still represented by HttpClient's
+ * classes, so the rest of the plugin does not have to know which client
+ * performs the download.
+ * @author Michel Kraemer
+ */
+public interface HttpTransport extends Closeable {
+    /**
+     * Send a request and write the response body with the given consumer
+     * @param httpHost the host to send the request to
+     * @param request the request to send. Its method, path, headers, and
+     * response timeout are used.
+     * @param body the request body (may be {@code null})
+     * @param consumer the consumer that handles the response head and
+     * writes the response body
+     * @param observer receives the status code and latency of every
+     * response (may be {@code null})
+     * @param backoff determines how long to wait before a failed request is
+     * retried (may be {@code null})
+     * @param retryLogger logs retry attempts on behalf of the task that has
+     * sent the request
+     * @return a future that will be completed with the response head as soon
+     * as the response body has been consumed
+     */
+    CompletableFuture<HttpResponse> execute(HttpHost httpHost,
+            HttpUriRequestBase request, String body, FileResponseConsumer consumer,
+            ResponseObserver observer, RetryBackoff backoff,
+            RetryLogger retryLogger);
+}
@@ -0,0 +1,44 @@
+package de.undercouch.gradle.tasks.download.internal;
+
+import org.apache.hc.core5.http2.HttpVersionPolicy;
+
+/**
+ * <p>Creates {@link HttpTransport}s based on {@code java.net.http.HttpClient}.</p>
+ * <p>This is the Java 8 version of this class. {@code java.net.http} is not
+ * available here, so {@link #isAvailable()} always returns {@code false}.
+ * The plugin is packaged as a multi-release JAR that contains another
+ * version of this class for Java 11 and higher in
+ * {@code META-INF/versions/11}.</p>
+ * @author Michel Kraemer
+ */
+public final class JdkHttpTransports {
+    private JdkHttpTransports() {
+        // hidden constructor
+    }
+
+    /**
+     * @return true if {@code java.net.http.HttpClient} can be used in the
+     * current JVM
+     */
+    public static boolean isAvailable() {
+        return false;
+    }
+
+    /**
+     * Create a new transport
+     * @param acceptAnyCertificate true if HTTPS certificate verification
+     * errors should be ignored
+     * @param retries the number of retries to perform if an HTTP request fails
+     * @param connectTimeoutMs the maximum number of milliseconds to wait until
+     * a connection is established
+     * @param versionPolicy the HTTP protocol versions the client may use
+     * @return the transport
+     * @throws UnsupportedOperationException if {@link #isAvailable()}
+     * returns {@code false}
+     */
+    public static HttpTransport create(boolean acceptAnyCertificate, int retries,
+            int connectTimeoutMs, HttpVersionPolicy versionPolicy) {
+        throw new UnsupportedOperationException("java.net.http.HttpClient " +
+                "requires Java 11 or higher");
+    }
+}
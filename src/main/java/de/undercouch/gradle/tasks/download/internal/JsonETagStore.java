@@ -0,0 +1,99 @@
+package de.undercouch.gradle.tasks.download.internal;
+
+import groovy.json.JsonOutput;
+import groovy.json.JsonSlurper;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * An {@link ETagStore} that keeps ETags in a JSON file. Whenever new ETags
+ * are written, the file is read again, the new ETags are merged into it,
+ * and the file is replaced. The file maps hosts to paths and paths to
+ * objects containing the ETag:
+ * <pre>{"http://example.com": {"/file": {"ETag": "\"...\""}}}</pre>
+ * @author Michel Kraemer
+ */
+public class JsonETagStore extends ETagStore {
+    /**
+     * Creates a new store
+     * @param file the cached ETags file
+     */
+    public JsonETagStore(File file) {
+        super(file);
+    }
+
+    @Override
+    protected Map<String, Map<String, Entry>> load() throws IOException {
+        return readIndex(getFile());
+    }
+
+    @Override
+    @SuppressWarnings("unchecked")
+    protected void write(Map<String, Map<String, Entry>> entries) throws IOException {
+        Map<String, Object> contents = read(getFile());
+        for (Map.Entry<String, Map<String, Entry>> h : entries.entrySet()) {
+            Object hostMap = contents.get(h.getKey());
+            if (!(hostMap instanceof Map)) {
+                hostMap = new LinkedHashMap<>();
+                contents.put(h.getKey(), hostMap);
+            }
+            for (Map.Entry<String, Entry> f : h.getValue().entrySet()) {
+                Map<String, String> etagMap = new LinkedHashMap<>();
+                etagMap.put("ETag", f.getValue().getETag());
+                ((Map<String, Object>)hostMap).put(f.getKey(), etagMap);
+            }
+        }
+        replace(getFile(), JsonOutput.toJson(contents).getBytes(StandardCharsets.UTF_8));
+    }
+
+    /**
+     * Read a cached ETags file into a new index
+     * @param file the file
+     * @return the index (empty if the file does not exist)
+     * @throws IOException if the file could not be read
+     */
+    static Map<String, Map<String, Entry>> readIndex(File file) throws IOException {
+        Map<String, Map<String, Entry>> result = new ConcurrentHashMap<>();
+        for (Map.Entry<String, Object> h : read(file).entrySet()) {
+            if (!(h.getValue() instanceof Map)) {
+                continue;
+            }
+            Map<String, Entry> hostMap = new ConcurrentHashMap<>();
+            for (Map.Entry<?, ?> f : ((Map<?, ?>)h.getValue()).entrySet()) {
+                if (f.getValue() instanceof Map) {
+                    Object etag = ((Map<?, ?>)f.getValue()).get("ETag");
+                    if (etag != null) {
+                        hostMap.put(String.valueOf(f.getKey()),
+                                new Entry(etag.toString(), null, -1, null));
+                    }
+                }
+            }
+            result.put(h.getKey(), hostMap);
+        }
+        return result;
+    }
+
+    /**
+     * Parse a cached ETags file
+     * @param file the file
+     * @return the parsed contents or an empty map if the file does not exist
+     * @throws IOException if the file could not be read
+     */
+    @SuppressWarnings("unchecked")
+    private static Map<String, Object> read(File file) throws IOException {
+        if (!file.exists()) {
+            return new LinkedHashMap<>();
+        }
+        try {
+            return (Map<String, Object>)new JsonSlurper().parse(file, "UTF-8");
+        } catch (RuntimeException e) {
+            throw new IOException("Could not read cached ETags file '" +
+                    file + "'", e);
+        }
+    }
+}
@@ -0,0 +1,386 @@
+package de.undercouch.gradle.tasks.download.internal;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.zip.CRC32;
+
+/**
+ * <p>An {@link ETagStore} that keeps validators in an append-only binary
+ * log. New entries are appended to the end of the file, so writing them
+ * does not depend on the number of entries already in the file. When the
+ * log is loaded, the last record for a URL wins.</p>
+ * <p>The log is compacted (i.e. rewritten with only one record per URL) if
+ * it contains a lot more records than URLs, or if its end is corrupt
+ * (e.g. because a process was killed while it was appending records). If
+ * the log does not exist yet but there is a cached ETags file in JSON
+ * format, the JSON file is imported.</p>
+ * <p>The file starts with the magic bytes {@code GDTE} and a version number
+ * and is followed by records of the following form:</p>
+ * <pre>
+ * int     length of payload
+ * byte[]  payload (URL, ETag, Last-Modified, file length, digest)
+ * int     CRC32 of payload
+ * int     length of payload (so the last record can be found quickly)
+ * </pre>
+ * @author Michel Kraemer
+ */
+public class LogETagStore extends ETagStore {
+    private static final byte[] MAGIC = { 'G', 'D', 'T', 'E' };
+    private static final byte VERSION = 1;
+    private static final int HEADER_LENGTH = MAGIC.length + 1;
+
+    /**
+     * The number of bytes surrounding a record's payload
+     */
+    private static final int RECORD_OVERHEAD = 12;
+
+    /**
+     * The log is only compacted if it contains more records than this
+     */
+    private static final int MIN_RECORDS_TO_COMPACT = 1000;
+
+    private final File jsonFile;
+
+    /**
+     * An estimate of the number of records in the log
+     */
+    private final AtomicInteger records = new AtomicInteger();
+
+    /**
+     * The result of reading a log
+     */
+    private static class ReadResult {
+        final Map<String, Map<String, Entry>> index = new ConcurrentHashMap<>();
+        int records;
+        boolean complete = true;
+    }
+
+    /**
+     * Creates a new store
+     * @param file the log file
+     * @param jsonFile a cached ETags file in JSON format that should be
+     * imported if the log does not exist yet (may be {@code null})
+     */
+    public LogETagStore(File file, File jsonFile) {
+        super(file);
+        this.jsonFile = jsonFile;
+    }
+
+    /**
+     * Get the location of the log belonging to the given cached ETags file
+     * @param cachedETagsFile the cached ETags file
+     * @return the log file (e.g. {@code etags.bin} for {@code etags.json})
+     */
+    public static File getLogFile(File cachedETagsFile) {
+        String name = cachedETagsFile.getName();
+        if (name.endsWith(".json")) {
+            name = name.substring(0, name.length() - 5);
+        }
+        return new File(cachedETagsFile.getAbsoluteFile().getParentFile(),
+                name + ".bin");
+    }
+
+    @Override
+    protected Map<String, Map<String, Entry>> load() throws IOException {
+        File file = getFile();
+        if (!file.exists() && jsonFile != null && jsonFile.exists()) {
+            withLock(() -> {
+                if (!file.exists()) {
+                    compact(JsonETagStore.readIndex(jsonFile));
+                }
+            });
+        }
+
+        ReadResult r = read(file);
+        if (r.complete && !needsCompaction(r.records, size(r.index))) {
+            records.set(r.records);
+            return r.index;
+        }
+
+        AtomicReference<Map<String, Map<String, Entry>>> result =
+                new AtomicReference<>();
+        withLock(() -> {
+            Map<String, Map<String, Entry>> index = read(file).index;
+            compact(index);
+            result.set(index);
+        });
+        return result.get();
+    }
+
+    @Override
+    protected void write(Map<String, Map<String, Entry>> entries) throws IOException {
+        File file = getFile();
+        if (!hasValidTail(file)) {
+            // the log does not exist or its end is corrupt. rewrite it.
+            Map<String, Map<String, Entry>> index = read(file).index;
+            entries.forEach((host, files) -> index.computeIfAbsent(host,
+                    h -> new ConcurrentHashMap<>()).putAll(files));
+            compact(index);
+            return;
+        }
+
+        ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(baos);
+        int n = 0;
+        for (Map.Entry<String, Map<String, Entry>> h : entries.entrySet()) {
+            for (Map.Entry<String, Entry> f : h.getValue().entrySet()) {
+                writeRecord(out, h.getKey() + f.getKey(), f.getValue());
+                n++;
+            }
+        }
+        out.flush();
+
+        ByteBuffer buf = ByteBuffer.wrap(baos.toByteArray());
+        try (FileChannel channel = FileChannel.open(file.toPath(),
+                StandardOpenOption.WRITE, StandardOpenOption.APPEND)) {
+            while (buf.hasRemaining()) {
+                channel.write(buf);
+            }
+        }
+
+        if (needsCompaction(records.addAndGet(n), size())) {
+            compact(read(file).index);
+        }
+    }
+
+    /**
+     * Check if a log should be compacted
+     * @param records the number of records in the log
+     * @param entries the number of distinct URLs
+     * @return true if the log should be compacted
+     */
+    private static boolean needsCompaction(int records, int entries) {
+        return records > MIN_RECORDS_TO_COMPACT && records > 2 * entries;
+    }
+
+    /**
+     * Replace the log with one that contains exactly one record per entry
+     * in the given index. The file must be locked.
+     * @param index the index
+     * @throws IOException if the log could not be written
+     */
+    private void compact(Map<String, Map<String, Entry>> index) throws IOException {
+        ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(baos);
+        out.write(MAGIC);
+        out.writeByte(VERSION);
+        int n = 0;
+        for (Map.Entry<String, Map<String, Entry>> h : index.entrySet()) {
+            for (Map.Entry<String, Entry> f : h.getValue().entrySet()) {
+                writeRecord(out, h.getKey() + f.getKey(), f.getValue());
+                n++;
+            }
+        }
+        out.flush();
+        replace(getFile(), baos.toByteArray());
+        records.set(n);
+    }
+
+    /**
+     * Read a log. Reading stops at the first incomplete or corrupt record.
+     * @param file the log file
+     * @return the result (empty if the file does not exist)
+     * @throws IOException if the file could not be read or if it is not
+     * a log
+     */
+    private static ReadResult read(File file) throws IOException {
+        ReadResult result = new ReadResult();
+        if (!file.exists()) {
+            return result;
+        }
+
+        long remaining = file.length();
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(
+                new FileInputStream(file)))) {
+            if (remaining < HEADER_LENGTH) {
+                result.complete = false;
+                return result;
+            }
+            byte[] magic = new byte[MAGIC.length];
+            in.readFully(magic);
+            byte version = in.readByte();
+            if (!Arrays.equals(magic, MAGIC) || version != VERSION) {
+                throw new IOException("Cached ETags file '" + file + "' has " +
+                        "an unknown format");
+            }
+            remaining -= HEADER_LENGTH;
+
+            while (remaining > 0) {
+                if (remaining < RECORD_OVERHEAD) {
+                    result.complete = false;
+                    break;
+                }
+                int length = in.readInt();
+                if (length < 0 || length > remaining - RECORD_OVERHEAD) {
+                    result.complete = false;
+                    break;
+                }
+                byte[] payload = new byte[length];
+                in.readFully(payload);
+                int crc = in.readInt();
+                int trailer = in.readInt();
+                if (crc != crc(payload) || trailer != length) {
+                    result.complete = false;
+                    break;
+                }
+                remaining -= length + RECORD_OVERHEAD;
+
+                DataInputStream pin = new DataInputStream(
+                        new ByteArrayInputStream(payload));
+                String url = readString(pin);
+                Entry entry = new Entry(readString(pin), readString(pin),
+                        pin.readLong(), readString(pin));
+                int pathStart = getPathStart(url);
+                result.index.computeIfAbsent(url.substring(0, pathStart),
+                        h -> new ConcurrentHashMap<>())
+                        .put(url.substring(pathStart), entry);
+                result.records++;
+            }
+        }
+
+        return result;
+    }
+
+    /**
+     * Check if the log exists and if its last record is complete
+     * @param file the log file
+     * @return true if new records can be appended to the log
+     * @throws IOException if the file could not be read
+     */
+    private static boolean hasValidTail(File file) throws IOException {
+        if (!file.exists()) {
+            return false;
+        }
+        try (RandomAccessFile raf = new RandomAccessFile(file, "r")) {
+            long length = raf.length();
+            if (length < HEADER_LENGTH) {
+                return false;
+            }
+            if (length == HEADER_LENGTH) {
+                return true;
+            }
+            if (length < HEADER_LENGTH + RECORD_OVERHEAD) {
+                return false;
+            }
+
+            raf.seek(length - 4);
+            int payloadLength = raf.readInt();
+            if (payloadLength < 0 ||
+                    payloadLength > length - HEADER_LENGTH - RECORD_OVERHEAD) {
+                return false;
+            }
+            raf.seek(length - RECORD_OVERHEAD - payloadLength);
+            if (raf.readInt() != payloadLength) {
+                return false;
+            }
+            byte[] payload = new byte[payloadLength];
+            raf.readFully(payload);
+            return raf.readInt() == crc(payload);
+        }
+    }
+
+    /**
+     * Write a record
+     * @param out the stream to write to
+     * @param url the URL
+     * @param entry the validators of the URL
+     * @throws IOException if the record could not be written
+     */
+    private static void writeRecord(DataOutputStream out, String url,
+            Entry entry) throws IOException {
+        ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        DataOutputStream pout = new DataOutputStream(baos);
+        writeString(pout, url);
+        writeString(pout, entry.getETag());
+        writeString(pout, entry.getLastModified());
+        pout.writeLong(entry.getLength());
+        writeString(pout, entry.getDigest());
+        pout.flush();
+
+        byte[] payload = baos.toByteArray();
+        out.writeInt(payload.length);
+        out.write(payload);
+        out.writeInt(crc(payload));
+        out.writeInt(payload.length);
+    }
+
+    /**
+     * Write a string that may be {@code null}
+     * @param out the stream to write to
+     * @param s the string
+     * @throws IOException if the string could not be written
+     */
+    private static void writeString(DataOutputStream out, String s)
+            throws IOException {
+        if (s == null) {
+            out.writeInt(-1);
+            return;
+        }
+        byte[] bytes = s.getBytes(StandardCharsets.UTF_8);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    /**
+     * Read a string written by {@link #writeString(DataOutputStream, String)}
+     * @param in the stream to read from
+     * @return the string (may be {@code null})
+     * @throws IOException if the string could not be read
+     */
+    private static String readString(DataInputStream in) throws IOException {
+        int length = in.readInt();
+        if (length < 0) {
+            return null;
+        }
+        byte[] bytes = new byte[length];
+        in.readFully(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Calculate the CRC32 checksum of a record's payload
+     * @param payload the payload
+     * @return the checksum
+     */
+    private static int crc(byte[] payload) {
+        CRC32 crc = new CRC32();
+        crc.update(payload, 0, payload.length);
+        return (int)crc.getValue();
+    }
+
+    /**
+     * Get the position of the path in a URL (i.e. the position right after
+     * the host and port). The URL is the concatenation of the host and the
+     * path used in the {@link ETagStore}.
+     * @param url the URL
+     * @return the position of the path
+     */
+    private static int getPathStart(String url) {
+        int schemeEnd = url.indexOf("://");
+        int i = schemeEnd < 0 ? 0 : schemeEnd + 3;
+        while (i < url.length()) {
+            char c = url.charAt(i);
+            if (c == '/' || c == '?' || c == '#') {
+                break;
+            }
+            i++;
+        }
+        return i;
+    }
+}
@@ -0,0 +1,134 @@
+package de.undercouch.gradle.tasks.download.internal;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * <p>A {@link WriteEngine} that maps the destination file into memory and
+ * copies the bytes directly into the mapped region. The expected number of
+ * bytes must be known in advance. If the input stream contains more bytes
+ * than expected, the remaining ones are written with regular
+ * {@link FileChannel} operations.</p>
+ * <p>Each region is written to disk and unmapped before the next one is
+ * mapped and before the file is truncated to the number of bytes actually
+ * written. If the JVM does not allow regions to be unmapped explicitly,
+ * they are only released when they are garbage collected. On Windows, the
+ * file cannot be truncated, renamed, or deleted until then.</p>
+ * @author Michel Kraemer
+ */
+public class MappedWriteEngine implements WriteEngine {
+    /**
+     * The maximum size of a region mapped at once
+     */
+    private static final long MAX_REGION_SIZE = 64 * 1024 * 1024;
+
+    private final BufferPool bufferPool;
+
+    /**
+     * Creates a new engine
+     * @param bufferPool the pool providing the buffer used to copy bytes
+     * from the input stream into the mapped region
+     */
+    public MappedWriteEngine(BufferPool bufferPool) {
+        this.bufferPool = bufferPool;
+    }
+
+    @Override
+    public void write(InputStream is, File file, long offset, long size,
+            ProgressLoggerWrapper progressLogger) throws IOException {
+        if (size < 0) {
+            throw new IllegalArgumentException("Memory-mapped writes " +
+                    "require the number of bytes to be known in advance");
+        }
+
+        try (FileChannel channel = FileChannel.open(file.toPath(),
+                StandardOpenOption.READ, StandardOpenOption.WRITE,
+                StandardOpenOption.CREATE)) {
+            long pos = offset;
+            long end = offset + size;
+            byte[] buf = bufferPool.acquire();
+            try {
+                boolean eof = false;
+
+                // copy expected bytes into mapped regions
+                while (!eof && pos < end) {
+                    MappedByteBuffer mbb = channel.map(FileChannel.MapMode.READ_WRITE,
+                            pos, Math.min(MAX_REGION_SIZE, end - pos));
+                    try {
+                        while (mbb.hasRemaining()) {
+                            int read = is.read(buf, 0, Math.min(buf.length, mbb.remaining()));
+                            if (read < 0) {
+                                eof = true;
+                                break;
+                            }
+                            mbb.put(buf, 0, read);
+                            pos += read;
+                            progressLogger.incrementProgress(read);
+                        }
+                        mbb.force();
+                    } finally {
+                        unmap(mbb);
+                    }
+                }
+
+                // write unexpected remaining bytes
+                if (!eof) {
+                    ByteBuffer bb = ByteBuffer.wrap(buf);
+                    int read;
+                    while ((read = is.read(buf)) >= 0) {
+                        bb.position(0);
+                        bb.limit(read);
+                        while (bb.hasRemaining()) {
+                            pos += channel.write(bb, pos);
+                        }
+                        progressLogger.incrementProgress(read);
+                    }
+                }
+            } finally {
+                bufferPool.release(buf);
+            }
+
+            // remove mapped or preallocated bytes we have not written
+            if (channel.size() > pos) {
+                channel.truncate(pos);
+            }
+        }
+    }
+
+    /**
+     * Release the given mapped region immediately instead of waiting for it
+     * to be garbage collected. The buffer must not be accessed afterwards.
+     * This is a no-op if the JVM does not allow regions to be unmapped.
+     * @param buffer the region to release
+     */
+    private static void unmap(MappedByteBuffer buffer) {
+        try {
+            try {
+                // Java 9 and higher
+                Class<?> unsafeClass = Class.forName("sun.misc.Unsafe");
+                Method invokeCleaner = unsafeClass.getMethod("invokeCleaner",
+                        ByteBuffer.class);
+                Field theUnsafe = unsafeClass.getDeclaredField("theUnsafe");
+                theUnsafe.setAccessible(true);
+                invokeCleaner.invoke(theUnsafe.get(null), buffer);
+            } catch (NoSuchMethodException e) {
+                // Java 8
+                Method cleanerMethod = buffer.getClass().getMethod("cleaner");
+                cleanerMethod.setAccessible(true);
+                Object cleaner = cleanerMethod.invoke(buffer);
+                if (cleaner != null) {
+                    cleaner.getClass().getMethod("clean").invoke(cleaner);
+                }
+            }
+        } catch (ReflectiveOperationException | RuntimeException e) {
+            // the region will be released when it is garbage collected
+        }
+    }
+}
@@ -0,0 +1,142 @@
+package de.undercouch.gradle.tasks.download.internal;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.OverlappingFileLockException;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.util.Collections;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * <p>Claims the temporary file of a download so that two downloads of the
+ * same destination file (e.g. by two tasks or two concurrent builds) do
+ * not write to it at the same time. The claim is held with a lock on a
+ * sidecar file ({@code <part file>.lock}) because the temporary file itself
+ * is moved to its destination once the download is complete.</p>
+ * <p>The lock file is deleted when the claim is released and the temporary
+ * file does not exist anymore (i.e. after it has been moved to its
+ * destination). It is deleted while the lock is still held, and a lock on a
+ * file that has been deleted in the meantime is not considered valid.</p>
+ * <p>If the lock is held by someone else, a unique temporary file is used
+ * instead. Such a file cannot be resumed later, so it is deleted when the
+ * claim is released.</p>
+ * @author Michel Kraemer
+ */
+public class PartFileLock implements Closeable {
+    /**
+     * The lock files claimed in this JVM. File locks are held on behalf of
+     * the whole JVM, and closing any channel to a locked file may release
+     * them, so we must not even try to lock a file twice.
+     */
+    private static final Set<File> claimed =
+            Collections.newSetFromMap(new ConcurrentHashMap<>());
+
+    private final File file;
+    private final File lockFile;
+    private final FileChannel channel;
+    private final FileLock lock;
+
+    private PartFileLock(File file, File lockFile, FileChannel channel,
+            FileLock lock) {
+        this.file = file;
+        this.lockFile = lockFile;
+        this.channel = channel;
+        this.lock = lock;
+    }
+
+    /**
+     * Claim the given temporary file or, if it is already in use, a unique
+     * one in the same directory
+     * @param partFile the temporary file to claim
+     * @return the claim
+     * @throws IOException if the lock file or the unique temporary file
+     * could not be created
+     */
+    public static PartFileLock acquire(File partFile) throws IOException {
+        File lockFile = new File(partFile.getPath() + ".lock").getAbsoluteFile();
+        if (claimed.add(lockFile)) {
+            FileChannel channel = null;
+            FileLock lock = null;
+            try {
+                while (true) {
+                    channel = FileChannel.open(lockFile.toPath(),
+                            StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+                    lock = channel.tryLock();
+                    if (lock == null || lockFile.exists()) {
+                        break;
+                    }
+                    // the previous owner has deleted the file after we
+                    // opened it. try again with a new one.
+                    lock.release();
+                    lock = null;
+                    channel.close();
+                }
+            } catch (OverlappingFileLockException e) {
+                // locked in this JVM by someone who does not use this class
+            } finally {
+                if (lock == null) {
+                    if (channel != null) {
+                        channel.close();
+                    }
+                    claimed.remove(lockFile);
+                }
+            }
+            if (lock != null) {
+                return new PartFileLock(partFile, lockFile, channel, lock);
+            }
+        }
+
+        String name = partFile.getName();
+        if (name.endsWith(".part")) {
+            name = name.substring(0, name.length() - 5);
+        }
+        File unique = Files.createTempFile(partFile.getParentFile().toPath(),
+                name + ".", ".part").toFile();
+        return new PartFileLock(unique, null, null, null);
+    }
+
+    /**
+     * @return the temporary file the download should be written to
+     */
+    public File getFile() {
+        return file;
+    }
+
+    /**
+     * @return {@code true} if the requested temporary file has been locked,
+     * {@code false} if a unique one is used instead
+     */
+    public boolean isLocked() {
+        return lock != null;
+    }
+
+    /**
+     * Release the claim. A unique temporary file that has not been moved to
+     * its destination is deleted. The lock file is deleted if the temporary
+     * file does not exist anymore.
+     * @throws IOException if the lock could not be released
+     */
+    @Override
+    public void close() throws IOException {
+        if (lock == null) {
+            file.delete();
+            return;
+        }
+        try {
+            if (!file.exists()) {
+                // nothing left to resume. delete the lock file while we
+                // still hold the lock.
+                lockFile.delete();
+            }
+            lock.release();
+        } finally {
+            channel.close();
+            claimed.remove(lockFile);
+        }
+    }
+}
@@ -0,0 +1,283 @@
+package de.undercouch.gradle.tasks.download.internal;
+
+import org.apache.hc.client5.http.classic.methods.HttpUriRequestBase;
+import org.apache.hc.client5.http.config.RequestConfig;
+import org.apache.hc.client5.http.impl.classic.CloseableHttpClient;
+import org.apache.hc.core5.http.ContentType;
+import org.apache.hc.core5.http.HttpEntity;
+import org.apache.hc.core5.http.HttpHeaders;
+import org.apache.hc.core5.http.HttpHost;
+import org.apache.hc.core5.http.HttpStatus;
+import org.apache.hc.core5.http.io.entity.FileEntity;
+import org.apache.hc.core5.http.io.entity.StringEntity;
+import org.apache.hc.core5.util.Timeout;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URI;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.security.DigestInputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Base64;
+
+/**
+ * <p>A client for a remote cache that stores downloaded files under keys
+ * derived from their URL and from a validator (i.e. their checksum or their
+ * strong ETag). The cache uses the same protocol as Gradle's HTTP build
+ * cache: a file is loaded with a {@code GET} request to
+ * {@code <cache URL>/<key>} and stored with a {@code PUT} request to the
+ * same location. A missing entry is indicated by status code 404.</p>
+ * <p>Files whose key is derived from an ETag are not verified by an
+ * expected checksum. Their SHA-256 checksum is therefore stored next to
+ * them under {@code <key>.sha256}, so that corrupt or mismatching entries
+ * can be detected when they are loaded.</p>
+ * <p>If the cache URL contains user information, it is sent to the cache
+ * with every request using basic authentication.</p>
+ * @author Michel Kraemer
+ */
+public class RemoteCache {
+    /**
+     * The suffix of the key under which the SHA-256 checksum of a file is
+     * stored
+     */
+    private static final String CHECKSUM_SUFFIX = ".sha256";
+
+    /**
+     * The maximum length of a stored checksum
+     */
+    private static final int MAX_CHECKSUM_LENGTH = 128;
+
+    private final HttpHost host;
+    private final String path;
+    private final String authorization;
+    private final int connectTimeoutMs;
+    private final int readTimeoutMs;
+
+    /**
+     * Handles the body of a cached file
+     */
+    public interface BodyHandler {
+        /**
+         * Handle the body
+         * @param is the body
+         * @param length the length of the body (-1 if unknown)
+         * @throws IOException if the body could not be handled
+         */
+        void handle(InputStream is, long length) throws IOException;
+    }
+
+    /**
+     * Create a new client
+     * @param url the URL of the cache
+     * @param connectTimeoutMs the timeout for connecting to the cache, in
+     * milliseconds
+     * @param readTimeoutMs the timeout for reading responses from the
+     * cache, in milliseconds
+     */
+    public RemoteCache(URL url, int connectTimeoutMs, int readTimeoutMs) {
+        this.host = new HttpHost(url.getProtocol(), url.getHost(), url.getPort());
+        String p = url.getPath();
+        this.path = p.endsWith("/") ? p : p + "/";
+        if (url.getUserInfo() != null) {
+            this.authorization = "Basic " + Base64.getEncoder().encodeToString(
+                    url.getUserInfo().getBytes(StandardCharsets.UTF_8));
+        } else {
+            this.authorization = null;
+        }
+        this.connectTimeoutMs = connectTimeoutMs;
+        this.readTimeoutMs = readTimeoutMs;
+    }
+
+    /**
+     * @return the host of the cache
+     */
+    public HttpHost getHost() {
+        return host;
+    }
+
+    /**
+     * @return the timeout for connecting to the cache, in milliseconds. The
+     * HTTP client used to access the cache must be configured with it
+     * because the connect timeout is part of a client's connection
+     * configuration and cannot be set per request.
+     */
+    public int getConnectTimeoutMs() {
+        return connectTimeoutMs;
+    }
+
+    /**
+     * Compute the key under which a file is stored in the cache
+     * @param url the URL from which the file is downloaded
+     * @param validator the file's checksum or strong ETag
+     * @return the key
+     */
+    public static String key(String url, String validator) {
+        try {
+            MessageDigest md = MessageDigest.getInstance("SHA-256");
+            return Checksum.toHex(md.digest((url + "\n" + validator)
+                    .getBytes(StandardCharsets.UTF_8)));
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * Load a file from the cache
+     * @param client the HTTP client to use
+     * @param key the file's key
+     * @param handler handles the body of the cached file
+     * @return true if the file was found in the cache, false otherwise
+     * @throws IOException if the file could not be loaded
+     */
+    public boolean load(CloseableHttpClient client, String key,
+            BodyHandler handler) throws IOException {
+        HttpUriRequestBase req = new HttpUriRequestBase("GET", URI.create(path + key));
+        configure(req);
+        return client.execute(host, req, response -> {
+            int code = response.getCode();
+            if (code == HttpStatus.SC_NOT_FOUND) {
+                return false;
+            }
+            if (code != HttpStatus.SC_OK) {
+                throw new IOException("Could not load '" + key +
+                        "' from remote cache. HTTP status code: " + code);
+            }
+            HttpEntity entity = response.getEntity();
+            if (entity == null) {
+                return false;
+            }
+            try (InputStream is = entity.getContent()) {
+                handler.handle(is, entity.getContentLength());
+            }
+            return true;
+        });
+    }
+
+    /**
+     * Store a file in the cache
+     * @param client the HTTP client to use
+     * @param key the file's key
+     * @param file the file to store
+     * @throws IOException if the file could not be stored
+     */
+    public void store(CloseableHttpClient client, String key, File file)
+            throws IOException {
+        put(client, key, new FileEntity(file, ContentType.APPLICATION_OCTET_STREAM));
+    }
+
+    /**
+     * Load the SHA-256 checksum stored with a file by
+     * {@link #storeChecksum(CloseableHttpClient, String, File)}
+     * @param client the HTTP client to use
+     * @param key the file's key
+     * @return the checksum or {@code null} if the cache does not contain a
+     * checksum for the file
+     * @throws IOException if the checksum could not be loaded or if it is
+     * invalid
+     */
+    public Checksum loadChecksum(CloseableHttpClient client, String key)
+            throws IOException {
+        HttpUriRequestBase req = new HttpUriRequestBase("GET",
+                URI.create(path + key + CHECKSUM_SUFFIX));
+        configure(req);
+        return client.execute(host, req, response -> {
+            int code = response.getCode();
+            if (code == HttpStatus.SC_NOT_FOUND) {
+                return null;
+            }
+            if (code != HttpStatus.SC_OK) {
+                throw new IOException("Could not load checksum of '" + key +
+                        "' from remote cache. HTTP status code: " + code);
+            }
+            HttpEntity entity = response.getEntity();
+            if (entity == null) {
+                return null;
+            }
+            ByteArrayOutputStream bos = new ByteArrayOutputStream();
+            try (InputStream is = entity.getContent()) {
+                byte[] buf = new byte[MAX_CHECKSUM_LENGTH];
+                int read;
+                while ((read = is.read(buf)) >= 0) {
+                    bos.write(buf, 0, read);
+                    if (bos.size() > MAX_CHECKSUM_LENGTH) {
+                        break;
+                    }
+                }
+            }
+            String hex = new String(bos.toByteArray(), StandardCharsets.UTF_8).trim();
+            if (!hex.matches("[0-9a-fA-F]{64}")) {
+                throw new IOException("Invalid checksum of '" + key +
+                        "' in remote cache.");
+            }
+            return new Checksum("SHA-256", hex);
+        });
+    }
+
+    /**
+     * Store the SHA-256 checksum of a file in the cache
+     * @param client the HTTP client to use
+     * @param key the file's key
+     * @param file the file whose checksum should be stored
+     * @throws IOException if the checksum could not be calculated or stored
+     */
+    public void storeChecksum(CloseableHttpClient client, String key, File file)
+            throws IOException {
+        MessageDigest md;
+        try {
+            md = MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+        try (InputStream is = new DigestInputStream(Files.newInputStream(
+                file.toPath()), md)) {
+            byte[] buf = new byte[8192];
+            while (is.read(buf) >= 0) {
+                // just update the digest
+            }
+        }
+        put(client, key + CHECKSUM_SUFFIX, new StringEntity(
+                Checksum.toHex(md.digest()), ContentType.TEXT_PLAIN));
+    }
+
+    /**
+     * Store an entity in the cache
+     * @param client the HTTP client to use
+     * @param key the entity's key
+     * @param entity the entity to store
+     * @throws IOException if the entity could not be stored
+     */
+    private void put(CloseableHttpClient client, String key, HttpEntity entity)
+            throws IOException {
+        HttpUriRequestBase req = new HttpUriRequestBase("PUT", URI.create(path + key));
+        configure(req);
+        req.setEntity(entity);
+        client.execute(host, req, response -> {
+            int code = response.getCode();
+            if (code < 200 || code > 299) {
+                throw new IOException("Could not store '" + key +
+                        "' in remote cache. HTTP status code: " + code);
+            }
+            return null;
+        });
+    }
+
+    /**
+     * Configure the response timeout and authentication of a request to the
+     * cache
+     * @param req the request
+     */
+    private void configure(HttpUriRequestBase req) {
+        req.setConfig(RequestConfig.custom()
+                .setResponseTimeout(Timeout.ofMilliseconds(readTimeoutMs))
+                .setContentCompressionEnabled(false)
+                .build());
+        if (authorization != null) {
+            req.setHeader(HttpHeaders.AUTHORIZATION, authorization);
+        }
+    }
+}
@@ -0,0 +1,24 @@
+package de.undercouch.gradle.tasks.download.internal;
+
+/**
+ * Receives the status code and latency of every HTTP response, including
+ * responses that lead to a retry
+ * @author Michel Kraemer
+ */
+public interface ResponseObserver {
+    /**
+     * The name of the HTTP context attribute holding the observer for the
+     * current request
+     */
+    String CONTEXT_ATTRIBUTE = "de.undercouch.gradle.tasks.download.responseObserver";
+
+    /**
+     * Called when a response head has been received
+     * @param code the response's status code
+     * @param startNanos the value of {@link System#nanoTime()} when the
+     * request was sent
+     * @param endNanos the value of {@link System#nanoTime()} when the
+     * response head was received
+     */
+    void onResponse(int code, long startNanos, long endNanos);
+}
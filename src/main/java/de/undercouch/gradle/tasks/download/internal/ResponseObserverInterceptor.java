@@ -0,0 +1,37 @@
+package de.undercouch.gradle.tasks.download.internal;
+
+import org.apache.hc.core5.http.EntityDetails;
+import org.apache.hc.core5.http.HttpRequest;
+import org.apache.hc.core5.http.HttpRequestInterceptor;
+import org.apache.hc.core5.http.HttpResponse;
+import org.apache.hc.core5.http.HttpResponseInterceptor;
+import org.apache.hc.core5.http.protocol.HttpContext;
+
+/**
+ * Interceptor that measures the time between sending a request and
+ * receiving the response head and passes it to the {@link ResponseObserver}
+ * stored in the HTTP context (if there is one)
+ * @author Michel Kraemer
+ */
+public class ResponseObserverInterceptor implements HttpRequestInterceptor,
+        HttpResponseInterceptor {
+    private static final String START_ATTRIBUTE =
+            "de.undercouch.gradle.tasks.download.requestStart";
+
+    @Override
+    public void process(HttpRequest request, EntityDetails entity, HttpContext context) {
+        if (context.getAttribute(ResponseObserver.CONTEXT_ATTRIBUTE) != null) {
+            context.setAttribute(START_ATTRIBUTE, System.nanoTime());
+        }
+    }
+
+    @Override
+    public void process(HttpResponse response, EntityDetails entity, HttpContext context) {
+        ResponseObserver observer = (ResponseObserver)context.getAttribute(
+                ResponseObserver.CONTEXT_ATTRIBUTE);
+        Long start = (Long)context.getAttribute(START_ATTRIBUTE);
+        if (observer != null && start != null) {
+            observer.onResponse(response.getCode(), start, System.nanoTime());
+        }
+    }
+}
@@ -0,0 +1,149 @@
+package de.undercouch.gradle.tasks.download.internal;
+
+import org.apache.hc.client5.http.utils.DateUtils;
+import org.apache.hc.core5.http.Header;
+import org.apache.hc.core5.http.HttpHeaders;
+import org.apache.hc.core5.http.HttpResponse;
+import org.apache.hc.core5.util.TimeValue;
+
+import java.io.InterruptedIOException;
+import java.time.Instant;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Calculates how long to wait before a failed request to a host is retried.
+ * The delay grows exponentially with the number of attempts and contains a
+ * random jitter, so requests that failed at the same time are not retried
+ * at the same time. A {@code Retry-After} header sent by the server is
+ * respected. If the server asks clients to back off, all other requests to
+ * the same host are paused as well.
+ * @author Michel Kraemer
+ */
+public class RetryBackoff {
+    /**
+     * The name of the HTTP context attribute holding the backoff for the
+     * current request
+     */
+    public static final String CONTEXT_ATTRIBUTE = "de.undercouch.gradle.tasks.download.retryBackoff";
+
+    private final HostBackoff hostBackoff;
+    private final String host;
+    private final long retryDelayMs;
+    private final long maxRetryDelayMs;
+
+    /**
+     * Creates a new backoff
+     * @param hostBackoff keeps track of paused hosts
+     * @param host the host requests are sent to
+     * @param port the host's port (-1 if it is the default port)
+     * @param scheme the URL scheme
+     * @param retryDelayMs the number of milliseconds to wait before the
+     * first retry (0 if requests should be retried immediately)
+     * @param maxRetryDelayMs the maximum number of milliseconds to wait
+     * before a retry
+     */
+    public RetryBackoff(HostBackoff hostBackoff, String host, int port,
+            String scheme, long retryDelayMs, long maxRetryDelayMs) {
+        this.hostBackoff = hostBackoff;
+        this.host = DownloadLimiter.hostKey(host, port, scheme);
+        this.retryDelayMs = retryDelayMs;
+        this.maxRetryDelayMs = maxRetryDelayMs;
+    }
+
+    /**
+     * Calculate the delay before the next attempt
+     * @param execCount the number of attempts so far
+     * @param retryAfter the value of the {@code Retry-After} header sent by
+     * the server (may be {@code null})
+     * @return the delay in milliseconds
+     */
+    public long getRetryDelay(int execCount, String retryAfter) {
+        long delay = 0;
+        if (retryDelayMs > 0) {
+            int shift = Math.min(Math.max(execCount - 1, 0), 30);
+            long d = Math.min(maxRetryDelayMs, retryDelayMs << shift);
+
+            // use "equal jitter": keep half of the delay and randomize
+            // the other half
+            long half = d / 2;
+            delay = half + ThreadLocalRandom.current().nextLong(d - half + 1);
+        }
+
+        long ra = parseRetryAfter(retryAfter);
+        if (ra > delay) {
+            delay = Math.min(ra, maxRetryDelayMs);
+        }
+
+        return delay;
+    }
+
+    /**
+     * Calculate the delay before a request that has received the given
+     * response is retried and pause all other requests to the same host
+     * for the same amount of time
+     * @param response the response
+     * @param execCount the number of attempts so far
+     * @return the delay
+     */
+    public TimeValue getRetryInterval(HttpResponse response, int execCount) {
+        Header retryAfter = response.getFirstHeader(HttpHeaders.RETRY_AFTER);
+        return TimeValue.ofMilliseconds(pauseHost(getRetryDelay(execCount,
+                retryAfter != null ? retryAfter.getValue() : null)));
+    }
+
+    /**
+     * Pause all requests to the host
+     * @param delayMs the number of milliseconds to pause
+     * @return the number of milliseconds requests to the host will actually
+     * be paused (may be larger if the host has already been paused)
+     */
+    public long pauseHost(long delayMs) {
+        return hostBackoff.pause(host, delayMs);
+    }
+
+    /**
+     * Block the current thread until requests to the host do not have to
+     * be paused anymore
+     * @throws InterruptedIOException if the thread has been interrupted
+     * while waiting
+     */
+    public void awaitHost() throws InterruptedIOException {
+        hostBackoff.await(host);
+    }
+
+    /**
+     * Block the current thread before the next attempt
+     * @param execCount the number of attempts so far
+     * @throws InterruptedIOException if the thread has been interrupted
+     * while waiting
+     */
+    public void awaitRetry(int execCount) throws InterruptedIOException {
+        long delay = getRetryDelay(execCount, null);
+        if (delay > 0) {
+            HostBackoff.sleep(delay);
+        }
+    }
+
+    /**
+     * Parse the value of a {@code Retry-After} header
+     * @param value the value (either a number of seconds or an HTTP date)
+     * @return the number of milliseconds to wait or -1 if the value is
+     * {@code null} or invalid
+     */
+    static long parseRetryAfter(String value) {
+        if (value == null) {
+            return -1;
+        }
+        value = value.trim();
+        try {
+            long seconds = Long.parseLong(value);
+            return seconds >= 0 ? Math.min(seconds, Long.MAX_VALUE / 1000) * 1000 : -1;
+        } catch (NumberFormatException e) {
+            Instant date = DateUtils.parseStandardDate(value);
+            if (date == null) {
+                return -1;
+            }
+            return Math.max(0, date.toEpochMilli() - System.currentTimeMillis());
+        }
+    }
+}
@@ -0,0 +1,77 @@
+package de.undercouch.gradle.tasks.download.internal;
+
+import org.apache.hc.core5.http.protocol.HttpContext;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Counts the retries of a single download. Retries of failed requests and
+ * attempts to resume an interrupted download take from the same budget, so
+ * that a download never makes more than the configured number of retries
+ * in total, regardless of how many requests it needs. The budget is passed
+ * to the {@link CustomHttpRequestRetryStrategy} in the request context. The
+ * class is thread-safe.
+ * @author Michel Kraemer
+ */
+public class RetryBudget {
+    /**
+     * The name of the HTTP context attribute holding the budget of the
+     * download the current request belongs to
+     */
+    public static final String CONTEXT_ATTRIBUTE = "de.undercouch.gradle.tasks.download.retryBudget";
+
+    private final int maxRetries;
+    private final AtomicInteger retries = new AtomicInteger();
+
+    /**
+     * Creates a new budget
+     * @param maxRetries the maximum number of retries ({@link Integer#MAX_VALUE}
+     * if the number is unlimited)
+     */
+    public RetryBudget(int maxRetries) {
+        this.maxRetries = maxRetries;
+    }
+
+    /**
+     * Get the budget from the given request context
+     * @param context the request context (may be {@code null})
+     * @return the budget or {@code null} if the context does not contain one
+     */
+    public static RetryBudget get(HttpContext context) {
+        if (context == null) {
+            return null;
+        }
+        return (RetryBudget)context.getAttribute(CONTEXT_ATTRIBUTE);
+    }
+
+    /**
+     * Take one retry from the budget
+     * @return {@code true} if the retry may be performed, {@code false} if
+     * the budget is exhausted
+     */
+    public boolean tryAcquire() {
+        while (true) {
+            int n = retries.get();
+            if (n >= maxRetries) {
+                return false;
+            }
+            if (retries.compareAndSet(n, n + 1)) {
+                return true;
+            }
+        }
+    }
+
+    /**
+     * @return the number of retries taken from the budget so far
+     */
+    public int getRetries() {
+        return retries.get();
+    }
+
+    /**
+     * @return the maximum number of retries
+     */
+    public int getMaxRetries() {
+        return maxRetries;
+    }
+}
@@ -0,0 +1,72 @@
+package de.undercouch.gradle.tasks.download.internal;
+
+import org.apache.hc.core5.http.protocol.HttpContext;
+import org.gradle.api.logging.Logger;
+import org.gradle.api.logging.Logging;
+
+/**
+ * Logs retry attempts on behalf of the task that has sent a request. HTTP
+ * clients are shared by all tasks in the build, so the logger and the
+ * task's quiet flag are passed with every request in its
+ * {@link HttpContext} instead of being part of the client.
+ * @author Michel Kraemer
+ */
+public class RetryLogger {
+    /**
+     * The name of the HTTP context attribute holding the logger for the
+     * current request
+     */
+    public static final String CONTEXT_ATTRIBUTE = "de.undercouch.gradle.tasks.download.retryLogger";
+
+    /**
+     * The logger used for requests without a logger in their context
+     */
+    private static final RetryLogger DEFAULT = new RetryLogger(
+            Logging.getLogger(RetryLogger.class), false);
+
+    private final Logger logger;
+    private final boolean quiet;
+
+    /**
+     * Creates a new logger
+     * @param logger the project's logger
+     * @param quiet {@code true} if the quiet flag is set
+     */
+    public RetryLogger(Logger logger, boolean quiet) {
+        this.logger = logger;
+        this.quiet = quiet;
+    }
+
+    /**
+     * Get the logger for the request with the given context
+     * @param context the request context (may be {@code null})
+     * @return the logger from the context or a default one if the context
+     * does not contain a logger
+     */
+    public static RetryLogger get(HttpContext context) {
+        RetryLogger l = null;
+        if (context != null) {
+            l = (RetryLogger)context.getAttribute(CONTEXT_ATTRIBUTE);
+        }
+        return l != null ? l : DEFAULT;
+    }
+
+    /**
+     * @return the project's logger
+     */
+    public Logger getLogger() {
+        return logger;
+    }
+
+    /**
+     * Log that a request attempt has failed and will be retried
+     * @param execCount the number of attempts so far
+     * @param maxRetries the maximum number of retries
+     */
+    public void logRetry(int execCount, int maxRetries) {
+        if (!quiet) {
+            logger.warn("Request attempt " + execCount + "/" + maxRetries +
+                    " failed. Retrying ...");
+        }
+    }
+}
@@ -0,0 +1,42 @@
+package de.undercouch.gradle.tasks.download.internal;
+
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Runs actions after a delay without blocking the calling thread. This is
+ * used to postpone work that must not be done on the I/O threads of
+ * asynchronous HTTP clients (e.g. reading more data when the bandwidth is
+ * limited or retrying a failed request). All actions are run by a single
+ * daemon thread that is created on demand.
+ * @author Michel Kraemer
+ */
+public class Scheduler {
+    private static final ScheduledExecutorService EXECUTOR = newExecutor();
+
+    private Scheduler() {
+        // hidden constructor
+    }
+
+    private static ScheduledExecutorService newExecutor() {
+        ScheduledThreadPoolExecutor executor = new ScheduledThreadPoolExecutor(1, r -> {
+            Thread t = new Thread(r, "gradle-download-task-scheduler");
+            t.setDaemon(true);
+            return t;
+        });
+        executor.setKeepAliveTime(30, TimeUnit.SECONDS);
+        executor.allowCoreThreadTimeOut(true);
+        return executor;
+    }
+
+    /**
+     * Run the given action after a delay
+     * @param action the action to run
+     * @param delay the delay
+     * @param unit the unit of the delay
+     */
+    public static void runLater(Runnable action, long delay, TimeUnit unit) {
+        EXECUTOR.schedule(action, delay, unit);
+    }
+}
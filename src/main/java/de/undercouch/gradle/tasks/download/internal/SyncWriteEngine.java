@@ -0,0 +1,55 @@
+package de.undercouch.gradle.tasks.download.internal;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * A {@link WriteEngine} that writes to a {@link FileChannel} in the calling
+ * thread. This is the fastest option for small files.
+ * @author Michel Kraemer
+ */
+public class SyncWriteEngine implements WriteEngine {
+    private final BufferPool bufferPool;
+
+    /**
+     * Creates a new engine
+     * @param bufferPool the pool providing the buffer used to copy bytes
+     */
+    public SyncWriteEngine(BufferPool bufferPool) {
+        this.bufferPool = bufferPool;
+    }
+
+    @Override
+    public void write(InputStream is, File file, long offset, long size,
+            ProgressLoggerWrapper progressLogger) throws IOException {
+        try (FileChannel channel = FileChannel.open(file.toPath(),
+                StandardOpenOption.WRITE, StandardOpenOption.CREATE)) {
+            long pos = offset;
+            byte[] buf = bufferPool.acquire();
+            try {
+                ByteBuffer bb = ByteBuffer.wrap(buf);
+
+                int read;
+                while ((read = is.read(buf)) >= 0) {
+                    bb.position(0);
+                    bb.limit(read);
+                    while (bb.hasRemaining()) {
+                        pos += channel.write(bb, pos);
+                    }
+                    progressLogger.incrementProgress(read);
+                }
+            } finally {
+                bufferPool.release(buf);
+            }
+
+            // remove stale or preallocated bytes we have not written
+            if (channel.size() > pos) {
+                channel.truncate(pos);
+            }
+        }
+    }
+}
@@ -0,0 +1,41 @@
+package de.undercouch.gradle.tasks.download.internal;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * An input stream that limits the number of bytes read per second
+ * @author Michel Kraemer
+ */
+public class ThrottledInputStream extends FilterInputStream {
+    private final BandwidthLimiter limiter;
+
+    /**
+     * Wraps an input stream
+     * @param in the input stream to wrap
+     * @param limiter the limiter to reserve bandwidth from
+     */
+    public ThrottledInputStream(InputStream in, BandwidthLimiter limiter) {
+        super(in);
+        this.limiter = limiter;
+    }
+
+    @Override
+    public int read() throws IOException {
+        int b = super.read();
+        if (b >= 0) {
+            limiter.acquire(1);
+        }
+        return b;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+        int read = super.read(b, off, len);
+        if (read > 0) {
+            limiter.acquire(read);
+        }
+        return read;
+    }
+}
@@ -0,0 +1,132 @@
+package de.undercouch.gradle.tasks.download.internal;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.lang.reflect.Method;
+import java.util.Queue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+
+/**
+ * Executes each job on its own virtual thread (Java 21 and higher). Jobs do
+ * not occupy Gradle worker threads, so a lot of blocking downloads can run
+ * in parallel without starving other tasks. The number of jobs running at
+ * the same time is limited by a semaphore instead of Gradle's
+ * {@code --max-workers}. The semaphore is usually shared by all tasks in
+ * the build (see {@link HttpClientService#getVirtualThreadPermits(int)}).
+ * @author Michel Kraemer
+ */
+public class VirtualThreadWorkerExecutorHelper extends WorkerExecutorHelper {
+    /**
+     * {@code Executors.newVirtualThreadPerTaskExecutor()} or {@code null} if
+     * the current JVM does not support virtual threads. We have to use
+     * reflection because the plugin is compiled for Java 8.
+     */
+    private static final Method NEW_VIRTUAL_THREAD_PER_TASK_EXECUTOR;
+    static {
+        Method m;
+        try {
+            m = Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+        } catch (NoSuchMethodException e) {
+            m = null;
+        }
+        NEW_VIRTUAL_THREAD_PER_TASK_EXECUTOR = m;
+    }
+
+    private final ExecutorService executorService;
+    private final Semaphore permits;
+    private final Queue<Future<Void>> futures = new ConcurrentLinkedQueue<>();
+
+    /**
+     * Constructs a new executor
+     * @param permits the semaphore limiting the number of jobs that may run
+     * at the same time. A job holds one permit while it is running.
+     * @throws UnsupportedOperationException if the current JVM does not
+     * support virtual threads
+     */
+    public VirtualThreadWorkerExecutorHelper(Semaphore permits) {
+        if (!isSupported()) {
+            throw new UnsupportedOperationException("Virtual threads " +
+                    "require Java 21 or higher");
+        }
+        try {
+            executorService = (ExecutorService)NEW_VIRTUAL_THREAD_PER_TASK_EXECUTOR
+                    .invoke(null);
+        } catch (ReflectiveOperationException e) {
+            throw new IllegalStateException("Could not create executor " +
+                    "for virtual threads", e);
+        }
+        this.permits = permits;
+    }
+
+    /**
+     * @return true if the current JVM supports virtual threads
+     */
+    public static boolean isSupported() {
+        return NEW_VIRTUAL_THREAD_PER_TASK_EXECUTOR != null;
+    }
+
+    @Override
+    public void submit(Job job) {
+        CompletableFuture<Void> f = new CompletableFuture<>();
+        futures.add(f);
+        executorService.submit(() -> {
+            try {
+                permits.acquire();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                f.completeExceptionally(e);
+                return;
+            }
+            try {
+                job.run();
+                f.complete(null);
+            } catch (Throwable t) {
+                f.completeExceptionally(t);
+            } finally {
+                permits.release();
+            }
+        });
+    }
+
+    @Override
+    public void await() {
+        try {
+            Future<Void> f;
+            while ((f = futures.poll()) != null) {
+                try {
+                    f.get();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new IllegalStateException("Interrupted while " +
+                            "waiting for downloads to finish", e);
+                } catch (ExecutionException e) {
+                    Throwable cause = e.getCause();
+                    if (cause instanceof IOException) {
+                        throw new UncheckedIOException((IOException)cause);
+                    }
+                    if (cause instanceof RuntimeException) {
+                        throw (RuntimeException)cause;
+                    }
+                    if (cause instanceof Error) {
+                        throw (Error)cause;
+                    }
+                    throw new RuntimeException(cause);
+                }
+            }
+        } finally {
+            // all jobs have been submitted at this point
+            executorService.shutdown();
+        }
+    }
+
+    @Override
+    public boolean needsAwait() {
+        return true;
+    }
+}
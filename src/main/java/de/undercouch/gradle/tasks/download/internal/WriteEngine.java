@@ -0,0 +1,32 @@
+package de.undercouch.gradle.tasks.download.internal;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Writes the bytes of an input stream to a file
+ * @author Michel Kraemer
+ */
+public interface WriteEngine {
+    /**
+     * Copy all bytes from the given input stream to the given file. Existing
+     * bytes before the given offset will be kept. Bytes after the last
+     * written byte will be removed after the input stream has been read
+     * completely, so the file may be prepared (e.g. truncated or
+     * preallocated) before it is passed to this method. If reading from the
+     * input stream fails,
+     * all bytes read so far will have been written to the file before the
+     * exception is rethrown, so the download can be resumed.
+     * @param is the input stream to read
+     * @param file the file to write to
+     * @param offset the position in the file where the first byte should
+     * be written to
+     * @param size the expected number of bytes in the input stream or -1
+     * if the number is unknown
+     * @param progressLogger progress logger
+     * @throws IOException if an I/O error occurs
+     */
+    void write(InputStream is, File file, long offset, long size,
+            ProgressLoggerWrapper progressLogger) throws IOException;
+}
@@ -0,0 +1,508 @@
+package de.undercouch.gradle.tasks.download.internal;
+
+import org.apache.hc.client5.http.ClientProtocolException;
+import org.apache.hc.client5.http.classic.methods.HttpUriRequestBase;
+import org.apache.hc.core5.http.Header;
+import org.apache.hc.core5.http.HttpHeaders;
+import org.apache.hc.core5.http.HttpHost;
+import org.apache.hc.core5.http.HttpResponse;
+import org.apache.hc.core5.http.HttpStatus;
+import org.apache.hc.core5.http.HttpVersion;
+import org.apache.hc.core5.http.message.BasicHttpResponse;
+import org.apache.hc.core5.http2.HttpVersionPolicy;
+import org.apache.hc.core5.util.Timeout;
+
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLEngine;
+import javax.net.ssl.TrustManager;
+import javax.net.ssl.X509ExtendedTrustManager;
+import java.io.IOException;
+import java.net.ProxySelector;
+import java.net.Socket;
+import java.net.URI;
+import java.net.UnknownHostException;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse.BodySubscriber;
+import java.net.http.HttpResponse.BodySubscribers;
+import java.net.http.HttpResponse.ResponseInfo;
+import java.nio.ByteBuffer;
+import java.security.GeneralSecurityException;
+import java.security.SecureRandom;
+import java.security.cert.X509Certificate;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.Flow;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * <p>An {@link HttpTransport} based on {@code java.net.http.HttpClient}.
+ * The client negotiates HTTP/2 if possible and writes response bodies
+ * asynchronously to the destination file.</p>
+ * <p>{@code java.net.http.HttpClient} does not have interceptors or a
+ * configurable retry strategy, so this class follows redirects and retries
+ * failed requests itself. It mimics the behavior of the Apache HttpClient
+ * configuration used by the rest of the plugin.</p>
+ * @author Michel Kraemer
+ */
+class JdkHttpTransport implements HttpTransport {
+    /**
+     * The maximum number of redirects to follow (same as Apache HttpClient)
+     */
+    private static final int MAX_REDIRECTS = 50;
+
+    /**
+     * Headers that {@code java.net.http.HttpClient} does not allow to be set
+     */
+    private static final List<String> RESTRICTED_HEADERS = Arrays.asList(
+            "connection", "content-length", "expect", "host", "upgrade");
+
+    /**
+     * Headers that are removed if we are redirected to another host
+     * (see {@link RemoveSensitiveHeadersInterceptor})
+     */
+    private static final List<String> SENSITIVE_HEADERS = Arrays.asList(
+            HttpHeaders.AUTHORIZATION, HttpHeaders.COOKIE, "Cookie2",
+            HttpHeaders.PROXY_AUTHORIZATION, HttpHeaders.WWW_AUTHENTICATE);
+
+    /**
+     * Methods that can safely be sent again if a request has failed
+     */
+    private static final List<String> IDEMPOTENT_METHODS = Arrays.asList(
+            "GET", "HEAD", "PUT", "DELETE", "OPTIONS", "TRACE");
+
+    private final HttpClient client;
+    private final int maxRetries;
+
+    /**
+     * Create a new transport
+     * @param acceptAnyCertificate true if HTTPS certificate verification
+     * errors should be ignored
+     * @param retries the number of retries to perform if an HTTP request fails
+     * @param connectTimeoutMs the maximum number of milliseconds to wait until
+     * a connection is established
+     * @param versionPolicy the HTTP protocol versions the client may use
+     */
+    JdkHttpTransport(boolean acceptAnyCertificate, int retries,
+            int connectTimeoutMs, HttpVersionPolicy versionPolicy) {
+        HttpClient.Builder builder = HttpClient.newBuilder()
+                .followRedirects(HttpClient.Redirect.NEVER)
+                .version(versionPolicy == HttpVersionPolicy.FORCE_HTTP_1 ?
+                        HttpClient.Version.HTTP_1_1 : HttpClient.Version.HTTP_2);
+
+        // configure proxy from system environment
+        ProxySelector proxySelector = ProxySelector.getDefault();
+        if (proxySelector != null) {
+            builder.proxy(proxySelector);
+        }
+
+        if (connectTimeoutMs > 0) {
+            builder.connectTimeout(Duration.ofMillis(connectTimeoutMs));
+        }
+
+        // accept any certificate if necessary
+        if (acceptAnyCertificate) {
+            builder.sslContext(createInsecureSSLContext());
+        }
+
+        this.client = builder.build();
+        this.maxRetries = retries < 0 ? Integer.MAX_VALUE : retries;
+    }
+
+    @Override
+    public CompletableFuture<HttpResponse> execute(HttpHost httpHost,
+            HttpUriRequestBase request, String body, FileResponseConsumer consumer,
+            ResponseObserver observer, RetryBackoff backoff,
+            RetryLogger retryLogger) {
+        Duration timeout = null;
+        if (request.getConfig() != null) {
+            Timeout responseTimeout = request.getConfig().getResponseTimeout();
+            if (responseTimeout != null && responseTimeout.toMilliseconds() > 0) {
+                timeout = Duration.ofMillis(responseTimeout.toMilliseconds());
+            }
+        }
+
+        Exchange exchange = new Exchange(httpHost, request.getMethod(),
+                URI.create(httpHost.toURI() + request.getRequestUri()), body,
+                new ArrayList<>(Arrays.asList(request.getHeaders())), timeout,
+                consumer, observer, backoff, retryLogger);
+        exchange.send();
+        return exchange.result;
+    }
+
+    @Override
+    public void close() throws IOException {
+        // HttpClient implements AutoCloseable since Java 21
+        Object c = client;
+        if (c instanceof AutoCloseable) {
+            try {
+                ((AutoCloseable)c).close();
+            } catch (IOException | RuntimeException e) {
+                throw e;
+            } catch (Exception e) {
+                throw new IOException(e);
+            }
+        }
+    }
+
+    private static boolean isRedirect(int code) {
+        return code == HttpStatus.SC_MOVED_PERMANENTLY ||
+                code == HttpStatus.SC_MOVED_TEMPORARILY ||
+                code == HttpStatus.SC_SEE_OTHER ||
+                code == HttpStatus.SC_TEMPORARY_REDIRECT ||
+                code == HttpStatus.SC_PERMANENT_REDIRECT;
+    }
+
+    private static int portOrDefault(int port, String scheme) {
+        if (port != -1) {
+            return port;
+        }
+        if ("https".equals(scheme)) {
+            return 443;
+        } else if ("http".equals(scheme)) {
+            return 80;
+        }
+        return -1;
+    }
+
+    private static SSLContext createInsecureSSLContext() {
+        // use an extended trust manager, so java.net.http.HttpClient does not
+        // wrap it and verify the host name anyhow
+        TrustManager[] trustManagers = { new InsecureExtendedTrustManager() };
+        try {
+            SSLContext sc = SSLContext.getInstance("TLS");
+            sc.init(null, trustManagers, new SecureRandom());
+            return sc;
+        } catch (GeneralSecurityException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    /**
+     * A single request including all redirects and retries
+     */
+    private class Exchange {
+        private final HttpHost originalHost;
+        private final List<Header> headers;
+        private final Duration timeout;
+        private final FileResponseConsumer consumer;
+        private final ResponseObserver observer;
+        private final RetryBackoff backoff;
+        private final RetryLogger retryLogger;
+        private final CompletableFuture<HttpResponse> result = new CompletableFuture<>();
+        private String method;
+        private URI uri;
+        private String body;
+        private int execCount;
+        private int redirectCount;
+        private long startNanos;
+
+        // the outcome of the current attempt if the response body has
+        // not been passed to the consumer
+        private URI redirectLocation;
+        private int redirectCode;
+        private boolean retry;
+        private long retryDelay;
+        private Exception error;
+
+        Exchange(HttpHost originalHost, String method, URI uri, String body,
+                List<Header> headers, Duration timeout,
+                FileResponseConsumer consumer, ResponseObserver observer,
+                RetryBackoff backoff, RetryLogger retryLogger) {
+            this.originalHost = originalHost;
+            this.method = method;
+            this.uri = uri;
+            this.body = body;
+            this.headers = headers;
+            this.timeout = timeout;
+            this.consumer = consumer;
+            this.observer = observer;
+            this.backoff = backoff;
+            this.retryLogger = retryLogger;
+        }
+
+        /**
+         * Send the current request
+         */
+        void send() {
+            execCount++;
+            redirectLocation = null;
+            retry = false;
+            error = null;
+
+            HttpRequest.Builder builder = HttpRequest.newBuilder(uri);
+            if (timeout != null) {
+                builder.timeout(timeout);
+            }
+            for (Header h : headers) {
+                if (RESTRICTED_HEADERS.contains(h.getName().toLowerCase(Locale.ROOT))) {
+                    retryLogger.getLogger().debug("Header '" + h.getName() + "' cannot be " +
+                            "sent with the \"jdk\" HTTP engine");
+                    continue;
+                }
+                builder.header(h.getName(), h.getValue());
+            }
+            builder.method(method, body != null ?
+                    HttpRequest.BodyPublishers.ofString(body) :
+                    HttpRequest.BodyPublishers.noBody());
+
+            startNanos = System.nanoTime();
+            client.sendAsync(builder.build(), this::handleResponse)
+                    .whenComplete((response, t) -> {
+                if (t != null) {
+                    handleError(t);
+                } else if (error != null) {
+                    fail(error);
+                } else if (redirectLocation != null) {
+                    redirect();
+                } else if (retry) {
+                    retryLogger.logRetry(execCount, maxRetries);
+                    sendLater(retryDelay);
+                } else {
+                    result.complete(response.body());
+                }
+            });
+        }
+
+        /**
+         * Called when the response head has been received
+         * @param info the response head
+         * @return a subscriber that consumes the response body
+         */
+        private BodySubscriber<HttpResponse> handleResponse(ResponseInfo info) {
+            int code = info.statusCode();
+            if (observer != null) {
+                observer.onResponse(code, startNanos, System.nanoTime());
+            }
+
+            if (isRedirect(code)) {
+                String location = info.headers().firstValue(
+                        HttpHeaders.LOCATION).orElse(null);
+                if (location != null) {
+                    if (redirectCount >= MAX_REDIRECTS) {
+                        error = new ClientProtocolException("Maximum " +
+                                "redirects (" + MAX_REDIRECTS + ") exceeded");
+                    } else {
+                        redirectLocation = uri.resolve(location);
+                        redirectCode = code;
+                    }
+                    return BodySubscribers.replacing(null);
+                }
+            }
+
+            if ((code == HttpStatus.SC_TOO_MANY_REQUESTS ||
+                    code == HttpStatus.SC_SERVICE_UNAVAILABLE) &&
+                    execCount <= maxRetries) {
+                retry = true;
+                retryDelay = 0;
+                if (backoff != null) {
+                    // pause all requests to this host
+                    retryDelay = backoff.pauseHost(backoff.getRetryDelay(execCount,
+                            info.headers().firstValue(HttpHeaders.RETRY_AFTER)
+                                    .orElse(null)));
+                }
+                return BodySubscribers.replacing(null);
+            }
+
+            BasicHttpResponse response = new BasicHttpResponse(code);
+            response.setVersion(info.version() == HttpClient.Version.HTTP_2 ?
+                    HttpVersion.HTTP_2 : HttpVersion.HTTP_1_1);
+            info.headers().map().forEach((name, values) -> {
+                for (String v : values) {
+                    response.addHeader(name, v);
+                }
+            });
+
+            try {
+                consumer.start(response);
+            } catch (Exception e) {
+                error = e;
+                return BodySubscribers.replacing(null);
+            }
+
+            return new FileBodySubscriber(consumer);
+        }
+
+        /**
+         * Send the current request again after the given delay
+         * @param delayMs the delay in milliseconds
+         */
+        private void sendLater(long delayMs) {
+            if (delayMs <= 0) {
+                send();
+                return;
+            }
+            retryLogger.getLogger().debug("Waiting " + delayMs + " ms before retrying");
+            CompletableFuture.runAsync(this::send, CompletableFuture.delayedExecutor(
+                    delayMs, TimeUnit.MILLISECONDS));
+        }
+
+        /**
+         * Follow a redirect
+         */
+        private void redirect() {
+            redirectCount++;
+
+            // change method to GET like Apache HttpClient does
+            if ((redirectCode == HttpStatus.SC_SEE_OTHER && !"HEAD".equals(method)) ||
+                    ((redirectCode == HttpStatus.SC_MOVED_PERMANENTLY ||
+                            redirectCode == HttpStatus.SC_MOVED_TEMPORARILY) &&
+                            "POST".equals(method))) {
+                method = "GET";
+                body = null;
+            }
+
+            // do not leak credentials to other hosts
+            int originalPort = portOrDefault(originalHost.getPort(),
+                    originalHost.getSchemeName());
+            int redirectPort = portOrDefault(redirectLocation.getPort(),
+                    redirectLocation.getScheme());
+            if (!originalHost.getHostName().equals(redirectLocation.getHost()) ||
+                    originalPort != redirectPort) {
+                headers.removeIf(h -> SENSITIVE_HEADERS.stream().anyMatch(
+                        s -> s.equalsIgnoreCase(h.getName())));
+            }
+
+            uri = redirectLocation;
+            send();
+        }
+
+        /**
+         * Handle a failed attempt and retry the request if possible
+         * @param t the error
+         */
+        private void handleError(Throwable t) {
+            if (t instanceof CompletionException && t.getCause() != null) {
+                t = t.getCause();
+            }
+            if (t instanceof IOException && !(t instanceof UnknownHostException) &&
+                    !consumer.isWritten() && execCount <= maxRetries &&
+                    IDEMPOTENT_METHODS.contains(method)) {
+                retryLogger.logRetry(execCount, maxRetries);
+                retryLogger.getLogger().debug("Request attempt failed", t);
+                sendLater(backoff != null ? backoff.getRetryDelay(execCount, null) : 0);
+                return;
+            }
+            fail(t);
+        }
+
+        private void fail(Throwable t) {
+            consumer.failed(t instanceof Exception ? (Exception)t :
+                    new IOException(t));
+            result.completeExceptionally(t);
+        }
+    }
+
+    /**
+     * Passes the chunks of a response body to a {@link FileResponseConsumer}.
+     * If the bandwidth is limited, the subscriber requests more chunks only
+     * when bandwidth is available instead of blocking the client's thread.
+     */
+    private static class FileBodySubscriber implements BodySubscriber<HttpResponse> {
+        private final FileResponseConsumer consumer;
+        private final CompletableFuture<HttpResponse> result = new CompletableFuture<>();
+        private Flow.Subscription subscription;
+
+        FileBodySubscriber(FileResponseConsumer consumer) {
+            this.consumer = consumer;
+        }
+
+        @Override
+        public CompletionStage<HttpResponse> getBody() {
+            return result;
+        }
+
+        @Override
+        public void onSubscribe(Flow.Subscription subscription) {
+            this.subscription = subscription;
+            subscription.request(1);
+        }
+
+        @Override
+        public void onNext(List<ByteBuffer> item) {
+            try {
+                for (ByteBuffer b : item) {
+                    consumer.data(b);
+                }
+            } catch (IOException e) {
+                subscription.cancel();
+                result.completeExceptionally(e);
+                return;
+            }
+
+            long delay = consumer.getThrottleDelayNanos();
+            if (delay <= 0) {
+                subscription.request(1);
+            } else {
+                Scheduler.runLater(() -> subscription.request(1), delay,
+                        TimeUnit.NANOSECONDS);
+            }
+        }
+
+        @Override
+        public void onError(Throwable throwable) {
+            result.completeExceptionally(throwable);
+        }
+
+        @Override
+        public void onComplete() {
+            long delay = consumer.getThrottleDelayNanos();
+            if (delay <= 0) {
+                result.complete(consumer.buildResult());
+            } else {
+                Scheduler.runLater(() -> result.complete(consumer.buildResult()),
+                        delay, TimeUnit.NANOSECONDS);
+            }
+        }
+    }
+
+    /**
+     * A trust manager that accepts all certificates and host names
+     */
+    private static class InsecureExtendedTrustManager extends X509ExtendedTrustManager {
+        @Override
+        public void checkClientTrusted(X509Certificate[] chain, String authType,
+                Socket socket) {
+            // accept all
+        }
+
+        @Override
+        public void checkServerTrusted(X509Certificate[] chain, String authType,
+                Socket socket) {
+            // accept all
+        }
+
+        @Override
+        public void checkClientTrusted(X509Certificate[] chain, String authType,
+                SSLEngine engine) {
+            // accept all
+        }
+
+        @Override
+        public void checkServerTrusted(X509Certificate[] chain, String authType,
+                SSLEngine engine) {
+            // accept all
+        }
+
+        @Override
+        public void checkClientTrusted(X509Certificate[] chain, String authType) {
+            // accept all
+        }
+
+        @Override
+        public void checkServerTrusted(X509Certificate[] chain, String authType) {
+            // accept all
+        }
+
+        @Override
+        public X509Certificate[] getAcceptedIssuers() {
+            return new X509Certificate[0];
+        }
+    }
+}
@@ -0,0 +1,40 @@
+package de.undercouch.gradle.tasks.download.internal;
+
+import org.apache.hc.core5.http2.HttpVersionPolicy;
+
+/**
+ * <p>Creates {@link HttpTransport}s based on {@code java.net.http.HttpClient}.</p>
+ * <p>This is the Java 11 version of this class. It is packaged into
+ * {@code META-INF/versions/11} of the plugin's multi-release JAR and
+ * replaces the Java 8 version on newer JVMs.</p>
+ * @author Michel Kraemer
+ */
+public final class JdkHttpTransports {
+    private JdkHttpTransports() {
+        // hidden constructor
+    }
+
+    /**
+     * @return true if {@code java.net.http.HttpClient} can be used in the
+     * current JVM
+     */
+    public static boolean isAvailable() {
+        return true;
+    }
+
+    /**
+     * Create a new transport
+     * @param acceptAnyCertificate true if HTTPS certificate verification
+     * errors should be ignored
+     * @param retries the number of retries to perform if an HTTP request fails
+     * @param connectTimeoutMs the maximum number of milliseconds to wait until
+     * a connection is established
+     * @param versionPolicy the HTTP protocol versions the client may use
+     * @return the transport
+     */
+    public static HttpTransport create(boolean acceptAnyCertificate, int retries,
+            int connectTimeoutMs, HttpVersionPolicy versionPolicy) {
+        return new JdkHttpTransport(acceptAnyCertificate, retries,
+                connectTimeoutMs, versionPolicy);
+    }
+}
@@ -0,0 +1,155 @@
+package de.undercouch.gradle.tasks.download;
+
+import de.undercouch.gradle.tasks.download.internal.DownloadLimiter;
+import de.undercouch.gradle.tasks.download.internal.ResponseObserver;
+import org.apache.hc.core5.http.HttpStatus;
+import org.junit.jupiter.api.Test;
+
+import java.io.File;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+import static com.github.tomakehurst.wiremock.client.WireMock.aResponse;
+import static com.github.tomakehurst.wiremock.client.WireMock.get;
+import static com.github.tomakehurst.wiremock.client.WireMock.stubFor;
+import static com.github.tomakehurst.wiremock.client.WireMock.urlEqualTo;
+import static com.github.tomakehurst.wiremock.stubbing.Scenario.STARTED;
+import static org.assertj.core.api.Assertions.assertThat;
+
+/**
+ * Tests if the number of concurrent downloads per host adapts to the
+ * host's load
+ * @author Michel Kraemer
+ */
+public class AdaptiveConcurrencyTest extends TestBaseWithMockServer {
+    private static final String SCENARIO = "scenario";
+    private static final String TWO = "two";
+
+    /**
+     * Tests if files can be downloaded from a host that is temporarily
+     * overloaded
+     * @throws Exception if anything goes wrong
+     */
+    @Test
+    public void overloadedHost() throws Exception {
+        int n = 10;
+        List<String> sources = new ArrayList<>();
+        for (int i = 0; i < n; i++) {
+            stubFor(get(urlEqualTo("/file" + i))
+                    .inScenario(SCENARIO + i)
+                    .whenScenarioStateIs(STARTED)
+                    .willReturn(aResponse()
+                            .withStatus(HttpStatus.SC_TOO_MANY_REQUESTS))
+                    .willSetStateTo(TWO));
+            stubFor(get(urlEqualTo("/file" + i))
+                    .inScenario(SCENARIO + i)
+                    .whenScenarioStateIs(TWO)
+                    .willReturn(aResponse()
+                            .withBody("contents" + i)));
+            sources.add(wireMock.url("file" + i));
+        }
+
+        Download t = makeProjectAndTask();
+        t.src(sources);
+        File dst = newTempDir();
+        t.dest(dst);
+        t.retries(1);
+        t.adaptiveConcurrency(true);
+        assertThat(t.isAdaptiveConcurrency()).isTrue();
+        execute(t);
+
+        for (int i = 0; i < n; i++) {
+            assertThat(new File(dst, "file" + i))
+                    .usingCharset(StandardCharsets.UTF_8)
+                    .hasContent("contents" + i);
+        }
+    }
+
+    /**
+     * Tests if the number of concurrent downloads is halved on overload and
+     * increased again while responses are healthy
+     */
+    @Test
+    public void aimd() {
+        assertThat(new DownloadLimiter(0, 8).observe("a", 80, "http")).isNull();
+        DownloadLimiter limiter = new DownloadLimiter(0, 8, true, null);
+        assertThat(limiter.getLimit("a", -1, "http")).isEqualTo(4);
+        ResponseObserver observer = limiter.observe("a", 80, "http");
+
+        long ms = TimeUnit.MILLISECONDS.toNanos(1);
+        long start = System.nanoTime() + ms;
+        observer.onResponse(HttpStatus.SC_TOO_MANY_REQUESTS, start, start + ms);
+        assertThat(limiter.getLimit("a", -1, "http")).isEqualTo(2);
+
+        // requests that were in flight at the same time do not decrease the
+        // number again
+        observer.onResponse(HttpStatus.SC_SERVICE_UNAVAILABLE, start, start + 2 * ms);
+        assertThat(limiter.getLimit("a", -1, "http")).isEqualTo(2);
+
+        // other hosts are not affected
+        assertThat(limiter.getLimit("b", -1, "http")).isEqualTo(4);
+
+        // increase by about one after a full round of healthy responses
+        long now = start + 10 * ms;
+        for (int i = 0; i < 3; ++i) {
+            observer.onResponse(HttpStatus.SC_OK, now, now + ms);
+        }
+        assertThat(limiter.getLimit("a", -1, "http")).isEqualTo(3);
+
+        // never exceed the maximum
+        for (int i = 0; i < 100; ++i) {
+            observer.onResponse(HttpStatus.SC_OK, now, now + ms);
+        }
+        assertThat(limiter.getLimit("a", -1, "http")).isEqualTo(8);
+
+        // decrease on rising latency
+        for (int i = 0; i < 20; ++i) {
+            now += 1000 * ms;
+            observer.onResponse(HttpStatus.SC_OK, now, now + 500 * ms);
+        }
+        assertThat(limiter.getLimit("a", -1, "http")).isLessThan(8);
+    }
+
+    /**
+     * Tests if adaptive concurrency only applies to the downloads of
+     * limiters that have enabled it
+     * @throws Exception if anything goes wrong
+     */
+    @Test
+    public void onlyOptedIn() throws Exception {
+        DownloadLimiter shared = new DownloadLimiter(0, 0);
+        DownloadLimiter adaptive = new DownloadLimiter(0, 0, true, shared);
+        DownloadLimiter fixed = new DownloadLimiter(0, 0, false, shared);
+        assertThat(fixed.observe("a", 80, "http")).isNull();
+
+        // reduce the number of downloads to 1
+        ResponseObserver observer = adaptive.observe("a", 80, "http");
+        long ms = TimeUnit.MILLISECONDS.toNanos(1);
+        long now = System.nanoTime() + ms;
+        while (adaptive.getLimit("a", -1, "http") > 1) {
+            now += 10 * ms;
+            observer.onResponse(HttpStatus.SC_SERVICE_UNAVAILABLE, now, now + ms);
+        }
+        assertThat(fixed.getLimit("a", -1, "http")).isEqualTo(0);
+
+        // downloads without adaptive concurrency are not limited
+        List<CompletableFuture<DownloadLimiter.Permit>> permits = new ArrayList<>();
+        for (int i = 0; i < 3; i++) {
+            permits.add(fixed.acquire(new URL("http://a/" + i)));
+        }
+        assertThat(permits).allMatch(CompletableFuture::isDone);
+
+        // but they count towards the number of downloads from the host
+        CompletableFuture<DownloadLimiter.Permit> a = adaptive.acquire(
+                new URL("http://a/3"));
+        assertThat(a).isNotDone();
+        for (CompletableFuture<DownloadLimiter.Permit> p : permits) {
+            p.get().close();
+        }
+        assertThat(a).isDone();
+    }
+}
@@ -0,0 +1,187 @@
+package de.undercouch.gradle.tasks.download;
+
+import de.undercouch.gradle.tasks.download.internal.BandwidthLimiter;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.ValueSource;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.concurrent.CompletableFuture;
+
+import static com.github.tomakehurst.wiremock.client.WireMock.aResponse;
+import static com.github.tomakehurst.wiremock.client.WireMock.get;
+import static com.github.tomakehurst.wiremock.client.WireMock.stubFor;
+import static com.github.tomakehurst.wiremock.client.WireMock.urlEqualTo;
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+/**
+ * Tests if the bandwidth of downloads can be limited
+ * @author Michel Kraemer
+ */
+public class BandwidthLimitTest extends TestBaseWithMockServer {
+    private static final int SIZE = 64 * 1024;
+
+    /**
+     * Create a stub that returns a body of {@link #SIZE} bytes
+     * @param name the name of the file
+     * @return the body
+     */
+    private static byte[] stubLargeFile(String name) {
+        return stubLargeFile(name, SIZE);
+    }
+
+    /**
+     * Create a stub that returns a body of the given size
+     * @param name the name of the file
+     * @param size the size of the body
+     * @return the body
+     */
+    private static byte[] stubLargeFile(String name, int size) {
+        byte[] body = new byte[size];
+        Arrays.fill(body, (byte)'a');
+        stubFor(get(urlEqualTo("/" + name))
+                .willReturn(aResponse()
+                        .withBody(body)));
+        return body;
+    }
+
+    /**
+     * Tests if the bandwidth of a task can be limited
+     * @param httpEngine the HTTP engine to use
+     * @throws Exception if anything goes wrong
+     */
+    @ParameterizedTest(name = "httpEngine = {0}")
+    @ValueSource(strings = { "classic", "async" })
+    public void limitTask(String httpEngine) throws Exception {
+        byte[] body = stubLargeFile(TEST_FILE_NAME);
+
+        Download t = makeProjectAndTask();
+        t.src(wireMock.url(TEST_FILE_NAME));
+        File dst = newTempFile();
+        t.dest(dst);
+        t.httpEngine(httpEngine);
+        t.maxBytesPerSecond(SIZE * 2);
+        assertThat(t.getMaxBytesPerSecond()).isEqualTo(SIZE * 2);
+
+        long start = System.currentTimeMillis();
+        execute(t);
+        long duration = System.currentTimeMillis() - start;
+
+        // half a second minus the maximum burst
+        assertThat(duration).isGreaterThanOrEqualTo(400);
+        assertThat(Files.readAllBytes(dst.toPath())).isEqualTo(body);
+    }
+
+    /**
+     * Tests if a task with a bandwidth limit does not slow down another task
+     * that shares the same asynchronous HTTP client but does not have a limit
+     * @throws Exception if anything goes wrong
+     */
+    @Test
+    public void limitDoesNotAffectOtherTasks() throws Exception {
+        stubLargeFile(TEST_FILE_NAME, SIZE * 4);
+        byte[] body2 = stubLargeFile(TEST_FILE_NAME2, SIZE * 4);
+
+        Download throttled = makeProjectAndTask();
+        throttled.src(wireMock.url(TEST_FILE_NAME));
+        throttled.dest(newTempFile());
+        throttled.httpEngine("async");
+        throttled.maxBytesPerSecond(SIZE * 2);
+
+        Download unthrottled = throttled.getProject().getTasks().create(
+                "downloadFile2", Download.class);
+        unthrottled.src(wireMock.url(TEST_FILE_NAME2));
+        File dst2 = newTempFile();
+        unthrottled.dest(dst2);
+        unthrottled.httpEngine("async");
+
+        long start = System.currentTimeMillis();
+        CompletableFuture<Void> f = CompletableFuture.runAsync(() -> execute(throttled));
+
+        // give the throttled download time to start
+        Thread.sleep(200);
+
+        long start2 = System.currentTimeMillis();
+        execute(unthrottled);
+        long duration2 = System.currentTimeMillis() - start2;
+
+        f.get();
+        long duration = System.currentTimeMillis() - start;
+
+        // the throttled task needs about two seconds but the other one
+        // must not have to wait for it
+        assertThat(duration).isGreaterThanOrEqualTo(1500);
+        assertThat(duration2).isLessThan(1000);
+        assertThat(Files.readAllBytes(dst2.toPath())).isEqualTo(body2);
+    }
+
+    /**
+     * Tests if the bandwidth is shared between all files downloaded at the
+     * same time
+     * @throws Exception if anything goes wrong
+     */
+    @Test
+    public void limitTotal() throws Exception {
+        byte[] body = stubLargeFile(TEST_FILE_NAME);
+        byte[] body2 = stubLargeFile(TEST_FILE_NAME2);
+
+        Download t = makeProjectAndTask();
+        t.src(Arrays.asList(wireMock.url(TEST_FILE_NAME),
+                wireMock.url(TEST_FILE_NAME2)));
+        File dst = newTempDir();
+        t.dest(dst);
+        t.maxBytesPerSecondTotal(SIZE * 4);
+        assertThat(t.getMaxBytesPerSecondTotal()).isEqualTo(SIZE * 4);
+
+        long start = System.currentTimeMillis();
+        execute(t);
+        long duration = System.currentTimeMillis() - start;
+
+        assertThat(duration).isGreaterThanOrEqualTo(400);
+        assertThat(Files.readAllBytes(new File(dst, TEST_FILE_NAME).toPath()))
+                .isEqualTo(body);
+        assertThat(Files.readAllBytes(new File(dst, TEST_FILE_NAME2).toPath()))
+                .isEqualTo(body2);
+    }
+
+    /**
+     * Tests if the limiter makes callers wait and if the smallest limit
+     * applies
+     * @throws Exception if anything goes wrong
+     */
+    @Test
+    public void limiter() throws Exception {
+        BandwidthLimiter parent = new BandwidthLimiter();
+        BandwidthLimiter limiter = new BandwidthLimiter(parent);
+        assertThat(limiter.isLimited()).isFalse();
+
+        parent.limit(1000 * 1000);
+        parent.limit(2000 * 1000);
+        parent.limit(0);
+        assertThat(limiter.isLimited()).isTrue();
+
+        long start = System.currentTimeMillis();
+        for (int i = 0; i < 5; ++i) {
+            limiter.acquire(100 * 1000);
+        }
+        long duration = System.currentTimeMillis() - start;
+        assertThat(duration).isGreaterThanOrEqualTo(400);
+    }
+
+    /**
+     * Tests if invalid limits are rejected
+     */
+    @Test
+    public void invalidLimit() {
+        Download t = makeProjectAndTask();
+        assertThat(t.getMaxBytesPerSecond()).isEqualTo(0);
+        assertThat(t.getMaxBytesPerSecondTotal()).isEqualTo(0);
+        assertThatThrownBy(() -> t.maxBytesPerSecond(-1))
+                .isInstanceOf(IllegalArgumentException.class);
+        assertThatThrownBy(() -> t.maxBytesPerSecondTotal(-1))
+                .isInstanceOf(IllegalArgumentException.class);
+    }
+}
@@ -0,0 +1,70 @@
+package de.undercouch.gradle.tasks.download;
+
+import de.undercouch.gradle.tasks.download.internal.BufferPool;
+import org.junit.jupiter.api.Test;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+/**
+ * Tests {@link BufferPool}
+ * @author Michel Kraemer
+ */
+public class BufferPoolTest {
+    /**
+     * Test if released buffers are reused
+     */
+    @Test
+    public void reuse() {
+        BufferPool pool = new BufferPool(16, 2);
+        byte[] a = pool.acquire();
+        assertThat(a).hasSize(16);
+        assertThat(pool.getMisses()).isEqualTo(1);
+        assertThat(pool.getHits()).isZero();
+
+        pool.release(a);
+        assertThat(pool.acquire()).isSameAs(a);
+        assertThat(pool.getMisses()).isEqualTo(1);
+        assertThat(pool.getHits()).isEqualTo(1);
+    }
+
+    /**
+     * Test if the pool does not keep more buffers than allowed
+     */
+    @Test
+    public void bounded() {
+        BufferPool pool = new BufferPool(16, 2);
+        byte[] a = pool.acquire();
+        byte[] b = pool.acquire();
+        byte[] c = pool.acquire();
+        pool.release(a);
+        pool.release(b);
+        pool.release(c);
+
+        pool.acquire();
+        pool.acquire();
+        pool.acquire();
+        assertThat(pool.getHits()).isEqualTo(2);
+        assertThat(pool.getMisses()).isEqualTo(4);
+    }
+
+    /**
+     * Test if buffers of a wrong size are not pooled
+     */
+    @Test
+    public void wrongSize() {
+        BufferPool pool = new BufferPool(16, 2);
+        pool.release(new byte[8]);
+        assertThat(pool.acquire()).hasSize(16);
+        assertThat(pool.getHits()).isZero();
+    }
+
+    /**
+     * Test if an invalid buffer size is rejected
+     */
+    @Test
+    public void invalidSize() {
+        assertThatThrownBy(() -> new BufferPool(0, 2))
+                .isInstanceOf(IllegalArgumentException.class);
+    }
+}
@@ -0,0 +1,292 @@
+package de.undercouch.gradle.tasks.download;
+
+import org.apache.commons.codec.binary.Hex;
+import org.gradle.api.GradleException;
+import org.gradle.workers.WorkerExecutionException;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.ValueSource;
+
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+
+import static com.github.tomakehurst.wiremock.client.WireMock.aResponse;
+import static com.github.tomakehurst.wiremock.client.WireMock.equalTo;
+import static com.github.tomakehurst.wiremock.client.WireMock.get;
+import static com.github.tomakehurst.wiremock.client.WireMock.getRequestedFor;
+import static com.github.tomakehurst.wiremock.client.WireMock.head;
+import static com.github.tomakehurst.wiremock.client.WireMock.stubFor;
+import static com.github.tomakehurst.wiremock.client.WireMock.urlEqualTo;
+import static com.github.tomakehurst.wiremock.client.WireMock.verify;
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+/**
+ * Tests if checksums are verified while files are being downloaded
+ * @author Michel Kraemer
+ */
+public class ChecksumTest extends TestBaseWithMockServer {
+    private static final String INVALID_CHECKSUM =
+            "00000000000000000000000000000000";
+
+    /**
+     * Calculates the MD5 checksum of the given bytes
+     * @param contents the bytes
+     * @return the checksum
+     */
+    private static String md5(byte[] contents) {
+        MessageDigest md5;
+        try {
+            md5 = MessageDigest.getInstance("MD5");
+        } catch (NoSuchAlgorithmException e) {
+            throw new RuntimeException(e);
+        }
+        return Hex.encodeHexString(md5.digest(contents));
+    }
+
+    /**
+     * Calculates the MD5 checksum of the given string
+     * @param contents the string
+     * @return the checksum
+     */
+    private static String md5(String contents) {
+        return md5(contents.getBytes(StandardCharsets.UTF_8));
+    }
+
+    /**
+     * Tests if a file with a matching checksum is downloaded
+     * @param engine the write engine to use
+     * @throws Exception if anything goes wrong
+     */
+    @ParameterizedTest(name = "engine = {0}")
+    @ValueSource(strings = { "sync", "async", "mmap" })
+    public void match(String engine) throws Exception {
+        configureDefaultStub();
+
+        Download t = makeProjectAndTask();
+        t.src(wireMock.url(TEST_FILE_NAME));
+        File dst = newTempFile();
+        t.dest(dst);
+        t.writeEngine(engine);
+        t.checksum("MD5", md5(CONTENTS).toUpperCase());
+        execute(t);
+
+        assertThat(dst).usingCharset(StandardCharsets.UTF_8).hasContent(CONTENTS);
+    }
+
+    /**
+     * Tests if the task fails and the file is deleted if the checksum
+     * does not match
+     * @throws Exception if anything goes wrong
+     */
+    @Test
+    public void mismatch() throws Exception {
+        configureDefaultStub();
+
+        Download t = makeProjectAndTask();
+        t.src(wireMock.url(TEST_FILE_NAME));
+        File dst = newTempFile();
+        assertThat(dst.delete()).isTrue();
+        t.dest(dst);
+        t.checksum("MD5", INVALID_CHECKSUM);
+        assertThatThrownBy(() -> execute(t))
+                .isInstanceOf(WorkerExecutionException.class)
+                .rootCause()
+                .isInstanceOf(GradleException.class)
+                .hasMessageContaining("Invalid checksum");
+        assertThat(dst).doesNotExist();
+    }
+
+    /**
+     * Tests if an existing file is not replaced if the checksum does not
+     * match and tempAndMove is enabled
+     * @throws Exception if anything goes wrong
+     */
+    @Test
+    public void mismatchTempAndMove() throws Exception {
+        configureDefaultStub();
+
+        Download t = makeProjectAndTask();
+        t.src(wireMock.url(TEST_FILE_NAME));
+        File dst = newTempFile();
+        Files.write(dst.toPath(), "old".getBytes(StandardCharsets.UTF_8));
+        t.dest(dst);
+        t.tempAndMove(true);
+        t.checksum("MD5", INVALID_CHECKSUM);
+        assertThatThrownBy(() -> execute(t))
+                .isInstanceOf(WorkerExecutionException.class)
+                .rootCause()
+                .isInstanceOf(GradleException.class)
+                .hasMessageContaining("Invalid checksum");
+
+        assertThat(dst).usingCharset(StandardCharsets.UTF_8).hasContent("old");
+        File[] partFiles = t.getDownloadTaskDir().listFiles((dir, name) ->
+                name.endsWith(".part"));
+        assertThat(partFiles).isNullOrEmpty();
+    }
+
+    /**
+     * Tests if no request is sent if the destination file already has the
+     * expected checksum
+     * @throws Exception if anything goes wrong
+     */
+    @Test
+    public void skipIfChecksumMatches() throws Exception {
+        configureDefaultStub();
+
+        Download t = makeProjectAndTask();
+        t.src(wireMock.url(TEST_FILE_NAME));
+        File dst = newTempFile();
+        Files.write(dst.toPath(), CONTENTS.getBytes(StandardCharsets.UTF_8));
+        t.dest(dst);
+        t.checksum("MD5", md5(CONTENTS));
+        execute(t);
+
+        verify(0, getRequestedFor(urlEqualTo("/" + TEST_FILE_NAME)));
+    }
+
+    /**
+     * Tests if the file is downloaded again if the existing destination
+     * file does not have the expected checksum
+     * @throws Exception if anything goes wrong
+     */
+    @Test
+    public void downloadIfChecksumDiffers() throws Exception {
+        configureDefaultStub();
+
+        Download t = makeProjectAndTask();
+        t.src(wireMock.url(TEST_FILE_NAME));
+        File dst = newTempFile();
+        Files.write(dst.toPath(), "old".getBytes(StandardCharsets.UTF_8));
+        t.dest(dst);
+        t.checksum("MD5", md5(CONTENTS));
+        execute(t);
+
+        assertThat(dst).usingCharset(StandardCharsets.UTF_8).hasContent(CONTENTS);
+        verify(1, getRequestedFor(urlEqualTo("/" + TEST_FILE_NAME)));
+    }
+
+    /**
+     * Tests if checksums can be specified per source
+     * @throws Exception if anything goes wrong
+     */
+    @Test
+    public void multipleSources() throws Exception {
+        configureDefaultStub();
+        configureDefaultStub2();
+
+        Download t = makeProjectAndTask();
+        t.src(Arrays.asList(wireMock.url(TEST_FILE_NAME),
+                wireMock.url(TEST_FILE_NAME2)));
+        File dst = newTempDir();
+        t.dest(dst);
+        t.checksum(wireMock.url(TEST_FILE_NAME), "MD5", md5(CONTENTS));
+        t.checksum(wireMock.url(TEST_FILE_NAME2), "MD5", INVALID_CHECKSUM);
+        assertThat(t.getChecksums()).containsEntry(
+                wireMock.url(TEST_FILE_NAME), "MD5:" + md5(CONTENTS));
+        assertThatThrownBy(() -> execute(t))
+                .isInstanceOf(WorkerExecutionException.class)
+                .rootCause()
+                .isInstanceOf(GradleException.class)
+                .hasMessageContaining("Invalid checksum for file '" +
+                        TEST_FILE_NAME2 + "'");
+
+        assertThat(new File(dst, TEST_FILE_NAME2)).doesNotExist();
+    }
+
+    /**
+     * Tests if a single checksum is rejected if there are multiple sources
+     * @throws Exception if anything goes wrong
+     */
+    @Test
+    public void singleChecksumMultipleSources() throws Exception {
+        Download t = makeProjectAndTask();
+        t.src(Arrays.asList(wireMock.url(TEST_FILE_NAME),
+                wireMock.url(TEST_FILE_NAME2)));
+        t.dest(newTempDir());
+        t.checksum("MD5", md5(CONTENTS));
+        assertThatThrownBy(() -> execute(t))
+                .isInstanceOf(IllegalArgumentException.class);
+    }
+
+    /**
+     * Tests if an unknown algorithm is rejected
+     */
+    @Test
+    public void unknownAlgorithm() {
+        Download t = makeProjectAndTask();
+        assertThatThrownBy(() -> t.checksum("foobar", INVALID_CHECKSUM))
+                .isInstanceOf(IllegalArgumentException.class);
+    }
+
+    /**
+     * Tests if the checksum of a local file is verified
+     * @param link true if the file should be linked instead of copied
+     * @throws Exception if anything goes wrong
+     */
+    @ParameterizedTest(name = "link = {0}")
+    @ValueSource(booleans = { false, true })
+    public void localFile(boolean link) throws Exception {
+        File src = newTempFile();
+        Files.write(src.toPath(), CONTENTS.getBytes(StandardCharsets.UTF_8));
+
+        Download t = makeProjectAndTask();
+        t.src(src.toURI().toURL());
+        File dst = newTempFile();
+        assertThat(dst.delete()).isTrue();
+        t.dest(dst);
+        t.linkLocalFiles(link);
+        t.checksum("MD5", INVALID_CHECKSUM);
+        assertThatThrownBy(() -> execute(t))
+                .isInstanceOf(WorkerExecutionException.class)
+                .rootCause()
+                .isInstanceOf(GradleException.class)
+                .hasMessageContaining("Invalid checksum");
+        assertThat(dst).doesNotExist();
+        assertThat(src).usingCharset(StandardCharsets.UTF_8).hasContent(CONTENTS);
+    }
+
+    /**
+     * Tests if the checksum of a file downloaded in multiple segments is
+     * verified
+     * @throws Exception if anything goes wrong
+     */
+    @Test
+    public void segments() throws Exception {
+        int mb = 1024 * 1024;
+        byte[] contents = new byte[2 * mb];
+        Arrays.fill(contents, (byte)'x');
+        String etag = "\"abcdef\"";
+        stubFor(head(urlEqualTo("/" + TEST_FILE_NAME))
+                .willReturn(aResponse()
+                        .withHeader("Accept-Ranges", "bytes")
+                        .withHeader("ETag", etag)
+                        .withHeader("Content-Length",
+                                String.valueOf(contents.length))));
+        for (int start = 0; start < contents.length; start += mb) {
+            int end = start + mb - 1;
+            stubFor(get(urlEqualTo("/" + TEST_FILE_NAME))
+                    .withHeader("Range", equalTo("bytes=" + start + "-" + end))
+                    .willReturn(aResponse()
+                            .withStatus(206)
+                            .withHeader("Content-Range", "bytes " + start +
+                                    "-" + end + "/" + contents.length)
+                            .withBody(Arrays.copyOfRange(contents, start,
+                                    end + 1))));
+        }
+
+        Download t = makeProjectAndTask();
+        t.src(wireMock.url(TEST_FILE_NAME));
+        File dst = newTempFile();
+        t.dest(dst);
+        t.segments(2);
+        t.checksum("MD5", md5(contents));
+        execute(t);
+
+        assertThat(dst).hasBinaryContent(contents);
+    }
+}
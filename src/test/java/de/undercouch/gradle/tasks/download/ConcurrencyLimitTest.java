@@ -0,0 +1,252 @@
+package de.undercouch.gradle.tasks.download;
+
+import de.undercouch.gradle.tasks.download.internal.DownloadLimiter;
+import de.undercouch.gradle.tasks.download.internal.HttpClientService;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.ValueSource;
+
+import java.io.File;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+
+import static com.github.tomakehurst.wiremock.client.WireMock.aResponse;
+import static com.github.tomakehurst.wiremock.client.WireMock.get;
+import static com.github.tomakehurst.wiremock.client.WireMock.stubFor;
+import static com.github.tomakehurst.wiremock.client.WireMock.urlEqualTo;
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+import static org.assertj.core.api.Assertions.catchThrowable;
+
+/**
+ * Tests if the number of concurrent downloads can be limited
+ * @author Michel Kraemer
+ */
+public class ConcurrencyLimitTest extends TestBaseWithMockServer {
+    /**
+     * Tests if downloads are queued if the limit has been reached
+     * @param httpEngine the HTTP engine to use
+     * @throws Exception if anything goes wrong
+     */
+    @ParameterizedTest(name = "httpEngine = {0}")
+    @ValueSource(strings = { "classic", "async" })
+    public void limit(String httpEngine) throws Exception {
+        int n = 6;
+        int delay = 200;
+        List<String> sources = new ArrayList<>();
+        for (int i = 0; i < n; i++) {
+            stubFor(get(urlEqualTo("/file" + i))
+                    .willReturn(aResponse()
+                            .withFixedDelay(delay)
+                            .withBody("contents" + i)));
+            sources.add(wireMock.url("file" + i));
+        }
+
+        Download t = makeProjectAndTask();
+        t.src(sources);
+        File dst = newTempDir();
+        t.dest(dst);
+        t.httpEngine(httpEngine);
+        t.maxConcurrentDownloads(2);
+        assertThat(t.getMaxConcurrentDownloads()).isEqualTo(2);
+
+        long start = System.currentTimeMillis();
+        execute(t);
+        long duration = System.currentTimeMillis() - start;
+
+        // at most two files can have been downloaded at the same time
+        assertThat(duration).isGreaterThanOrEqualTo((long)n / 2 * delay);
+        for (int i = 0; i < n; i++) {
+            assertThat(new File(dst, "file" + i))
+                    .usingCharset(StandardCharsets.UTF_8)
+                    .hasContent("contents" + i);
+        }
+    }
+
+    /**
+     * Tests if the build-wide limits are read from Gradle properties and
+     * apply to all tasks in the build
+     * @throws Exception if anything goes wrong
+     */
+    @Test
+    public void buildWide() throws Exception {
+        configureDefaultStub();
+        configureDefaultStub2();
+
+        Download t = makeProjectAndTask(project -> {
+            project.getExtensions().getExtraProperties().set(
+                    HttpClientService.MAX_CONCURRENT_DOWNLOADS_PROPERTY, "3");
+            project.getExtensions().getExtraProperties().set(
+                    HttpClientService.MAX_CONCURRENT_DOWNLOADS_PER_HOST_PROPERTY, "1");
+        });
+        DownloadLimiter limiter = DownloadAction.registerHttpClientService(
+                t.getProject()).get().getDownloadLimiter();
+        assertThat(limiter.getMaxTotal()).isEqualTo(3);
+        assertThat(limiter.getMaxPerHost()).isEqualTo(1);
+
+        t.src(wireMock.url(TEST_FILE_NAME));
+        File dst = newTempFile();
+        t.dest(dst);
+        execute(t);
+
+        Download t2 = t.getProject().getTasks().create("downloadFile2",
+                Download.class);
+        t2.src(wireMock.url(TEST_FILE_NAME2));
+        File dst2 = newTempFile();
+        t2.dest(dst2);
+        execute(t2);
+
+        assertThat(dst).usingCharset(StandardCharsets.UTF_8).hasContent(CONTENTS);
+        assertThat(dst2).usingCharset(StandardCharsets.UTF_8).hasContent(CONTENTS2);
+    }
+
+    /**
+     * Tests if the limit of one task does not affect other tasks
+     * @throws Exception if anything goes wrong
+     */
+    @Test
+    public void limitDoesNotAffectOtherTasks() throws Exception {
+        int n = 4;
+        int delay = 300;
+        List<String> sources = new ArrayList<>();
+        for (int i = 0; i < n; i++) {
+            stubFor(get(urlEqualTo("/file" + i))
+                    .willReturn(aResponse()
+                            .withFixedDelay(delay)
+                            .withBody("contents" + i)));
+            sources.add(wireMock.url("file" + i));
+        }
+
+        Download t = makeProjectAndTask();
+        t.src(sources);
+        t.dest(newTempDir());
+        t.httpEngine("async");
+        t.maxConcurrentDownloads(1);
+        execute(t);
+
+        Download t2 = t.getProject().getTasks().create("downloadFile2",
+                Download.class);
+        t2.src(sources);
+        File dst2 = newTempDir();
+        t2.dest(dst2);
+        t2.httpEngine("async");
+
+        long start = System.currentTimeMillis();
+        execute(t2);
+        long duration = System.currentTimeMillis() - start;
+
+        // the files of the second task must have been downloaded in parallel
+        assertThat(duration).isLessThan((long)n * delay);
+        for (int i = 0; i < n; i++) {
+            assertThat(new File(dst2, "file" + i))
+                    .usingCharset(StandardCharsets.UTF_8)
+                    .hasContent("contents" + i);
+        }
+    }
+
+    /**
+     * Tests if invalid build-wide limits are rejected
+     */
+    @Test
+    public void invalidBuildWideLimit() {
+        Throwable t = catchThrowable(() -> makeProjectAndTask(project -> project
+                .getExtensions().getExtraProperties().set(
+                        HttpClientService.MAX_CONCURRENT_DOWNLOADS_PROPERTY, "-1")));
+
+        // the exception might be wrapped by Gradle
+        while (t != null && !(t instanceof IllegalArgumentException)) {
+            t = t.getCause();
+        }
+        assertThat(t).isInstanceOf(IllegalArgumentException.class)
+                .hasMessageContaining(HttpClientService.MAX_CONCURRENT_DOWNLOADS_PROPERTY);
+    }
+
+    /**
+     * Tests if the limiter hands out permits in order and respects the
+     * limit per host
+     * @throws Exception if anything goes wrong
+     */
+    @Test
+    public void limiter() throws Exception {
+        DownloadLimiter limiter = new DownloadLimiter(2, 1);
+        assertThat(limiter.getMaxTotal()).isEqualTo(2);
+        assertThat(limiter.getMaxPerHost()).isEqualTo(1);
+
+        CompletableFuture<DownloadLimiter.Permit> a1 =
+                limiter.acquire(new URL("http://a/1"));
+        CompletableFuture<DownloadLimiter.Permit> a2 =
+                limiter.acquire(new URL("http://a/2"));
+        CompletableFuture<DownloadLimiter.Permit> b1 =
+                limiter.acquire(new URL("http://b/1"));
+        CompletableFuture<DownloadLimiter.Permit> c1 =
+                limiter.acquire(new URL("http://c/1"));
+
+        // the second download from host 'a' has to wait but the one from
+        // host 'b' may start
+        assertThat(a1).isDone();
+        assertThat(a2).isNotDone();
+        assertThat(b1).isDone();
+        assertThat(c1).isNotDone();
+
+        a1.get().close();
+        assertThat(a2).isDone();
+        assertThat(c1).isNotDone();
+
+        // closing a permit twice must not release it twice
+        b1.get().close();
+        b1.get().close();
+        assertThat(c1).isDone();
+    }
+
+    /**
+     * Tests if a limiter consults its parent after it has handed out a
+     * permit
+     * @throws Exception if anything goes wrong
+     */
+    @Test
+    public void parent() throws Exception {
+        DownloadLimiter parent = new DownloadLimiter(2, 0);
+        DownloadLimiter child1 = new DownloadLimiter(1, 0, false, parent);
+        DownloadLimiter child2 = new DownloadLimiter(0, 0, false, parent);
+        assertThat(child2.isLimited()).isTrue();
+
+        CompletableFuture<DownloadLimiter.Permit> a1 =
+                child1.acquire(new URL("http://a/1"));
+        CompletableFuture<DownloadLimiter.Permit> a2 =
+                child1.acquire(new URL("http://a/2"));
+        CompletableFuture<DownloadLimiter.Permit> b1 =
+                child2.acquire(new URL("http://b/1"));
+        CompletableFuture<DownloadLimiter.Permit> b2 =
+                child2.acquire(new URL("http://b/2"));
+
+        // the first child only allows one download, the parent two
+        assertThat(a1).isDone();
+        assertThat(a2).isNotDone();
+        assertThat(b1).isDone();
+        assertThat(b2).isNotDone();
+
+        // closing a permit releases it in the parent too
+        a1.get().close();
+        assertThat(b2).isDone();
+        assertThat(a2).isNotDone();
+
+        b1.get().close();
+        assertThat(a2).isDone();
+    }
+
+    /**
+     * Tests if invalid limits are rejected
+     */
+    @Test
+    public void invalidLimit() {
+        Download t = makeProjectAndTask();
+        assertThat(t.getMaxConcurrentDownloads()).isEqualTo(0);
+        assertThatThrownBy(() -> t.maxConcurrentDownloads(-1))
+                .isInstanceOf(IllegalArgumentException.class);
+        assertThatThrownBy(() -> t.maxConcurrentDownloadsPerHost(-1))
+                .isInstanceOf(IllegalArgumentException.class);
+    }
+}
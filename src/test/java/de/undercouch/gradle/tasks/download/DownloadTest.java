@@ -12,8 +12,10 @@ import java.io.File;
 import java.net.URI;
 import java.net.URL;
 import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
 import java.util.Arrays;
 import java.util.List;
+import java.util.Random;
 import java.util.concurrent.Callable;
 import java.util.concurrent.atomic.AtomicInteger;
 
@@ -584,6 +586,62 @@ public class DownloadTest extends TestBaseWithMockServer {
         assertThat(content).isEqualTo(testContent);
     }
 
+    /**
+     * Test if a large binary file can be "downloaded" from a file:// url
+     * to a temporary location and if its timestamp is kept
+     * @throws Exception if anything goes wrong
+     */
+    @Test
+    public void testFileDownloadURLTempAndMove() throws Exception {
+        Download t = makeProjectAndTask();
+
+        byte[] testContent = new byte[3 * 1024 * 1024 + 17];
+        new Random(1234).nextBytes(testContent);
+        File src = newTempFile();
+        FileUtils.writeByteArrayToFile(src, testContent);
+        long lastModified = 1_600_000_000_000L;
+        assertThat(src.setLastModified(lastModified)).isTrue();
+
+        File dst = newTempFile();
+        assertThat(dst.delete()).isTrue();
+
+        t.src(src.toURI().toURL());
+        t.dest(dst);
+        t.tempAndMove(true);
+        t.onlyIfModified(true);
+        execute(t);
+
+        assertThat(dst).hasBinaryContent(testContent);
+        assertThat(dst.lastModified()).isEqualTo(lastModified);
+    }
+
+    /**
+     * Test if a file:// source is linked to the destination if both files
+     * are on the same file store
+     * @throws Exception if anything goes wrong
+     */
+    @Test
+    public void testFileDownloadURLLink() throws Exception {
+        Download t = makeProjectAndTask();
+
+        String testContent = "file content";
+        File src = newTempFile();
+        FileUtils.writeStringToFile(src, testContent, "UTF-8");
+
+        File dst = newTempFile();
+        FileUtils.writeStringToFile(dst, "old content", "UTF-8");
+
+        t.src(src.toURI().toURL());
+        t.dest(dst);
+        t.linkLocalFiles(true);
+        assertThat(t.isLinkLocalFiles()).isTrue();
+        execute(t);
+
+        assertThat(dst).usingCharset(StandardCharsets.UTF_8).hasContent(testContent);
+        assertThat(Files.isSameFile(src.toPath(), dst.toPath())).isTrue();
+        assertThat(src).usingCharset(StandardCharsets.UTF_8).hasContent(testContent);
+    }
+
     /**
      * Tests if specifying an eachFile action leads to an exception if only
      * one source is given
@@ -0,0 +1,382 @@
+package de.undercouch.gradle.tasks.download;
+
+import de.undercouch.gradle.tasks.download.internal.ETagStore;
+import de.undercouch.gradle.tasks.download.internal.LogETagStore;
+import org.apache.commons.io.FileUtils;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.ValueSource;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+/**
+ * Tests {@link ETagStore} and its implementations
+ * @author Michel Kraemer
+ */
+public class ETagStoreTest {
+    private static final String HOST = "http://localhost:8080";
+    private static final int WRITERS = 200;
+    private static final int ETAGS_PER_WRITER = 5;
+
+    @TempDir
+    File folder;
+
+    /**
+     * Put ETags into a store and flush it after each one
+     * @param store the store
+     * @param writer the writer's number
+     * @param count the number of ETags to put
+     * @throws Exception if anything goes wrong
+     */
+    private static void write(ETagStore store, String writer, int count)
+            throws Exception {
+        for (int i = 0; i < count; i++) {
+            store.put(HOST, "/" + writer + "/" + i, "\"" + writer + "-" + i + "\"");
+            store.flush();
+        }
+    }
+
+    /**
+     * Run the given writers concurrently and wait for them to finish
+     * @param writers the writers
+     * @throws Exception if one of the writers failed
+     */
+    private static void runConcurrently(List<Writer> writers) throws Exception {
+        ExecutorService executor = Executors.newFixedThreadPool(writers.size());
+        try {
+            CountDownLatch start = new CountDownLatch(1);
+            List<Future<?>> futures = new ArrayList<>();
+            for (Writer w : writers) {
+                futures.add(executor.submit(() -> {
+                    start.await();
+                    w.write();
+                    return null;
+                }));
+            }
+            start.countDown();
+            for (Future<?> f : futures) {
+                f.get(60, TimeUnit.SECONDS);
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    /**
+     * Check that the given file contains all ETags written by the given
+     * number of writers
+     * @param file the cached ETags file
+     * @param binary true if the binary format should be read
+     * @param writerPrefix the prefix of the writers' names
+     * @param writers the number of writers
+     * @param count the number of ETags per writer
+     * @throws Exception if anything goes wrong
+     */
+    private static void assertAllETags(File file, boolean binary,
+            String writerPrefix, int writers, int count) throws Exception {
+        ETagStore store = ETagStore.create(file, binary);
+        for (int w = 0; w < writers; w++) {
+            for (int i = 0; i < count; i++) {
+                String writer = writerPrefix + w;
+                assertThat(store.get(HOST, "/" + writer + "/" + i))
+                        .isEqualTo("\"" + writer + "-" + i + "\"");
+            }
+        }
+    }
+
+    /**
+     * A task that writes ETags
+     */
+    private interface Writer {
+        void write() throws Exception;
+    }
+
+    /**
+     * Tests if ETags are loaded from an existing file
+     * @param binary true if the binary format should be tested
+     * @throws Exception if anything goes wrong
+     */
+    @ParameterizedTest(name = "binary = {0}")
+    @ValueSource(booleans = { false, true })
+    public void load(boolean binary) throws Exception {
+        File file = new File(folder, "etags.json");
+        ETagStore store1 = ETagStore.create(file, binary);
+        assertThat(store1.get(HOST, "/a")).isNull();
+        store1.put(HOST, "/a", new ETagStore.Entry("\"a\"",
+                "Tue, 15 Nov 1994 12:45:26 GMT", 11, "MD5:abc"));
+        assertThat(store1.isDirty()).isTrue();
+        assertThat(store1.getFile()).doesNotExist();
+        store1.flush();
+        assertThat(store1.isDirty()).isFalse();
+
+        ETagStore store2 = ETagStore.create(file, binary);
+        assertThat(store2.get(HOST, "/a")).isEqualTo("\"a\"");
+        assertThat(store2.get(HOST, "/b")).isNull();
+        assertThat(store2.get("http://example.com", "/a")).isNull();
+
+        ETagStore.Entry entry = store2.getEntry(HOST, "/a");
+        if (binary) {
+            assertThat(entry.getLastModified()).isEqualTo("Tue, 15 Nov 1994 12:45:26 GMT");
+            assertThat(entry.getLength()).isEqualTo(11);
+            assertThat(entry.getDigest()).isEqualTo("MD5:abc");
+        } else {
+            assertThat(entry.getLastModified()).isNull();
+            assertThat(entry.getLength()).isEqualTo(-1);
+            assertThat(entry.getDigest()).isNull();
+        }
+    }
+
+    /**
+     * Tests if no updates are lost if hundreds of threads write to the same
+     * store concurrently
+     * @param binary true if the binary format should be tested
+     * @throws Exception if anything goes wrong
+     */
+    @ParameterizedTest(name = "binary = {0}")
+    @ValueSource(booleans = { false, true })
+    public void concurrentWritersSharedStore(boolean binary) throws Exception {
+        File file = new File(folder, "etags.json");
+        ETagStore store = ETagStore.create(file, binary);
+        List<Writer> writers = new ArrayList<>();
+        for (int w = 0; w < WRITERS; w++) {
+            String writer = "w" + w;
+            writers.add(() -> write(store, writer, ETAGS_PER_WRITER));
+        }
+        runConcurrently(writers);
+
+        assertThat(store.isDirty()).isFalse();
+        assertAllETags(file, binary, "w", WRITERS, ETAGS_PER_WRITER);
+    }
+
+    /**
+     * Tests if no updates are lost if hundreds of independent stores write
+     * to the same file concurrently
+     * @param binary true if the binary format should be tested
+     * @throws Exception if anything goes wrong
+     */
+    @ParameterizedTest(name = "binary = {0}")
+    @ValueSource(booleans = { false, true })
+    public void concurrentWritersSeparateStores(boolean binary) throws Exception {
+        File file = new File(folder, "etags.json");
+        List<Writer> writers = new ArrayList<>();
+        for (int w = 0; w < WRITERS; w++) {
+            String writer = "w" + w;
+            writers.add(() -> write(ETagStore.create(file, binary), writer,
+                    ETAGS_PER_WRITER));
+        }
+        runConcurrently(writers);
+
+        assertAllETags(file, binary, "w", WRITERS, ETAGS_PER_WRITER);
+    }
+
+    /**
+     * Tests if no updates are lost if multiple processes write to the same
+     * file concurrently
+     * @param binary true if the binary format should be tested
+     * @throws Exception if anything goes wrong
+     */
+    @ParameterizedTest(name = "binary = {0}")
+    @ValueSource(booleans = { false, true })
+    public void concurrentProcesses(boolean binary) throws Exception {
+        File file = new File(folder, "etags.json");
+        String java = new File(new File(System.getProperty("java.home"), "bin"),
+                "java").getAbsolutePath();
+        int processes = 4;
+        int count = 50;
+
+        List<Process> started = new ArrayList<>();
+        for (int p = 0; p < processes; p++) {
+            started.add(new ProcessBuilder(java, "-cp",
+                    System.getProperty("java.class.path"),
+                    ETagStoreTest.class.getName(), file.getAbsolutePath(),
+                    "p" + p, String.valueOf(count), String.valueOf(binary))
+                    .inheritIO()
+                    .start());
+        }
+        for (Process p : started) {
+            assertThat(p.waitFor(60, TimeUnit.SECONDS)).isTrue();
+            assertThat(p.exitValue()).isZero();
+        }
+
+        assertAllETags(file, binary, "p", processes, count);
+    }
+
+    /**
+     * Tests if the binary log imports an existing JSON file
+     * @throws Exception if anything goes wrong
+     */
+    @Test
+    public void migrateFromJson() throws Exception {
+        File file = new File(folder, "etags.json");
+        ETagStore json = ETagStore.create(file, false);
+        write(json, "w", 10);
+
+        ETagStore log = ETagStore.create(file, true);
+        assertThat(log.getFile()).isEqualTo(new File(folder, "etags.bin"));
+        assertThat(log.getFile()).doesNotExist();
+        assertThat(log.get(HOST, "/w/3")).isEqualTo("\"w-3\"");
+        assertThat(log.getFile()).exists();
+
+        // the log is used from now on
+        log.put(HOST, "/w/3", "\"new\"");
+        log.flush();
+        assertThat(ETagStore.create(file, true).get(HOST, "/w/3"))
+                .isEqualTo("\"new\"");
+        assertThat(ETagStore.create(file, false).get(HOST, "/w/3"))
+                .isEqualTo("\"w-3\"");
+        assertThat(ETagStore.create(file, true).get(HOST, "/w/9"))
+                .isEqualTo("\"w-9\"");
+    }
+
+    /**
+     * Tests if records are appended to the binary log and if the last
+     * record for a URL wins
+     * @throws Exception if anything goes wrong
+     */
+    @Test
+    public void append() throws Exception {
+        File file = new File(folder, "etags.json");
+        ETagStore store = ETagStore.create(file, true);
+        store.put(HOST, "/a", "\"1\"");
+        store.flush();
+        long length1 = store.getFile().length();
+
+        store.put(HOST, "/a", "\"2\"");
+        store.flush();
+        long length2 = store.getFile().length();
+        assertThat(length2).isGreaterThan(length1);
+
+        store.put(HOST, "/b", "\"3\"");
+        store.flush();
+        assertThat(store.getFile().length() - length2)
+                .isEqualTo(length2 - length1);
+
+        ETagStore store2 = ETagStore.create(file, true);
+        assertThat(store2.get(HOST, "/a")).isEqualTo("\"2\"");
+        assertThat(store2.get(HOST, "/b")).isEqualTo("\"3\"");
+    }
+
+    /**
+     * Tests if the binary log is compacted when it contains many outdated
+     * records
+     * @throws Exception if anything goes wrong
+     */
+    @Test
+    public void compact() throws Exception {
+        File file = new File(folder, "etags.json");
+        ETagStore store = ETagStore.create(file, true);
+        store.put(HOST, "/a", "\"0\"");
+        store.flush();
+        long lengthOfOneRecord = store.getFile().length();
+
+        for (int i = 1; i < 5000; i++) {
+            store.put(HOST, "/a", "\"" + i + "\"");
+            store.flush();
+        }
+
+        // the log must have been compacted at least once
+        assertThat(store.getFile().length()).isLessThan(lengthOfOneRecord * 2000);
+        assertThat(ETagStore.create(file, true).get(HOST, "/a"))
+                .isEqualTo("\"4999\"");
+    }
+
+    /**
+     * Simulate a process that has been killed while it was appending a
+     * record to a binary log
+     * @param logFile the log file
+     * @throws Exception if anything goes wrong
+     */
+    private static void truncate(File logFile) throws Exception {
+        try (RandomAccessFile raf = new RandomAccessFile(logFile, "rw")) {
+            raf.setLength(raf.length() - 3);
+        }
+    }
+
+    /**
+     * Tests if a binary log with an incomplete last record can still be
+     * loaded
+     * @throws Exception if anything goes wrong
+     */
+    @Test
+    public void corruptTailLoad() throws Exception {
+        File file = new File(folder, "etags.json");
+        write(ETagStore.create(file, true), "w", 3);
+        truncate(LogETagStore.getLogFile(file));
+
+        ETagStore store = ETagStore.create(file, true);
+        assertThat(store.get(HOST, "/w/0")).isEqualTo("\"w-0\"");
+        assertThat(store.get(HOST, "/w/1")).isEqualTo("\"w-1\"");
+        assertThat(store.get(HOST, "/w/2")).isNull();
+    }
+
+    /**
+     * Tests if new records can be written to a binary log with an
+     * incomplete last record
+     * @throws Exception if anything goes wrong
+     */
+    @Test
+    public void corruptTailWrite() throws Exception {
+        File file = new File(folder, "etags.json");
+        ETagStore store = ETagStore.create(file, true);
+        write(store, "w", 3);
+        truncate(store.getFile());
+        write(store, "x", 1);
+
+        ETagStore store2 = ETagStore.create(file, true);
+        assertThat(store2.get(HOST, "/w/0")).isEqualTo("\"w-0\"");
+        assertThat(store2.get(HOST, "/w/1")).isEqualTo("\"w-1\"");
+        assertThat(store2.get(HOST, "/w/2")).isNull();
+        assertThat(store2.get(HOST, "/x/0")).isEqualTo("\"x-0\"");
+    }
+
+    /**
+     * Tests if a file in an unknown format is rejected
+     * @throws Exception if anything goes wrong
+     */
+    @Test
+    public void unknownFormat() throws Exception {
+        File file = new File(folder, "etags.json");
+        FileUtils.writeStringToFile(LogETagStore.getLogFile(file),
+                "Hello world", StandardCharsets.UTF_8);
+        ETagStore store = ETagStore.create(file, true);
+        assertThatThrownBy(() -> store.get(HOST, "/a"))
+                .hasMessageContaining("unknown format");
+    }
+
+    /**
+     * Entry point for the processes started by
+     * {@link #concurrentProcesses(boolean)}
+     * @param args the cached ETags file, the writer's name, the number
+     * of ETags to write, and whether the binary format should be used
+     * @throws Exception if anything goes wrong
+     */
+    public static void main(String[] args) throws Exception {
+        // every process writes its ETags in several threads
+        ETagStore store = ETagStore.create(new File(args[0]),
+                Boolean.parseBoolean(args[3]));
+        int count = Integer.parseInt(args[2]);
+        List<Writer> writers = new ArrayList<>();
+        for (int i = 0; i < count; i++) {
+            String path = "/" + args[1] + "/" + i;
+            String etag = "\"" + args[1] + "-" + i + "\"";
+            writers.add(() -> {
+                store.put(HOST, path, etag);
+                store.flush();
+            });
+        }
+        runConcurrently(writers);
+    }
+}
@@ -25,7 +25,9 @@ import org.junit.jupiter.api.Test;
 import java.io.File;
 import java.io.IOException;
 import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
 import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.concurrent.Callable;
 
@@ -167,6 +169,55 @@ public class ETagTest extends TestBaseWithMockServer {
         assertThat(cachedETags).isEqualTo(expectedCachedETags);
     }
 
+    /**
+     * Tests if the ETags of many files downloaded by a single task are
+     * written to the cached etags file and if existing entries are kept
+     * @throws Exception if anything goes wrong
+     */
+    @Test
+    public void storeManyETags() throws Exception {
+        int n = 50;
+        List<String> sources = new ArrayList<>();
+        for (int i = 0; i < n; i++) {
+            stubFor(get(urlEqualTo("/file" + i))
+                    .willReturn(aResponse()
+                            .withHeader("ETag", "\"etag" + i + "\"")
+                            .withBody(CONTENTS + i)));
+            sources.add(wireMock.url("file" + i));
+        }
+
+        Download t = makeProjectAndTask();
+        prepareCachedETagsFile(t.getCachedETagsFile(), "\"foobar\"");
+        t.src(sources);
+        File dst = newTempDir();
+        t.dest(dst);
+        t.onlyIfModified(true);
+        t.useETag(true);
+        t.compress(false);
+        t.httpEngine("async");
+        execute(t);
+
+        JsonSlurper slurper = new JsonSlurper();
+        @SuppressWarnings("unchecked")
+        Map<String, Object> cachedETags = (Map<String, Object>)slurper.parse(
+                t.getCachedETagsFile(), "UTF-8");
+
+        Map<String, Object> expectedHost = new LinkedHashMap<>();
+        Map<String, Object> expectedOldETag = new LinkedHashMap<>();
+        expectedOldETag.put("ETag", "\"foobar\"");
+        expectedHost.put("/" + TEST_FILE_NAME, expectedOldETag);
+        for (int i = 0; i < n; i++) {
+            Map<String, Object> expectedETag = new LinkedHashMap<>();
+            expectedETag.put("ETag", "\"etag" + i + "\"");
+            expectedHost.put("/file" + i, expectedETag);
+        }
+
+        Map<String, Object> expectedCachedETags = new LinkedHashMap<>();
+        expectedCachedETags.put(wireMock.baseUrl(), expectedHost);
+
+        assertThat(cachedETags).isEqualTo(expectedCachedETags);
+    }
+
     /**
      * Tests if the plugin downloads a file and stores the etag correctly to
      * the default cached etags file
@@ -609,4 +660,85 @@ public class ETagTest extends TestBaseWithMockServer {
                 .isInstanceOf(IllegalArgumentException.class)
                 .hasMessage("Illegal value for 'useETag' flag");
     }
+
+    /**
+     * Tests if ETags can be stored in the binary format and if existing
+     * ETags are imported from the JSON file
+     * @throws Exception if anything goes wrong
+     */
+    @Test
+    public void binaryFormat() throws Exception {
+        String etag = "\"foobar\"";
+        String etag2 = "\"foobar2\"";
+
+        stubFor(get(urlEqualTo("/" + TEST_FILE_NAME))
+                .withHeader("If-None-Match", equalTo(etag))
+                .willReturn(aResponse()
+                        .withStatus(304)));
+        stubFor(get(urlEqualTo("/" + TEST_FILE_NAME2))
+                .withHeader("If-None-Match", absent())
+                .willReturn(aResponse()
+                        .withHeader("ETag", etag2)
+                        .withBody(CONTENTS2)));
+        stubFor(get(urlEqualTo("/" + TEST_FILE_NAME2))
+                .withHeader("If-None-Match", equalTo(etag2))
+                .willReturn(aResponse()
+                        .withStatus(304)));
+
+        // the ETag of the first file is imported from the JSON file
+        Download t = makeProjectAndTask();
+        t.src(wireMock.url(TEST_FILE_NAME));
+        File dst = newTempFile();
+        FileUtils.writeStringToFile(dst, "Hello", StandardCharsets.UTF_8);
+        t.dest(dst);
+        t.onlyIfModified(true);
+        t.useETag(true);
+        t.cachedETagsFormat("binary");
+        assertThat(t.getCachedETagsFormat()).isEqualTo("binary");
+        prepareCachedETagsFile(t.getCachedETagsFile(), etag);
+        t.compress(false);
+        execute(t);
+
+        assertThat(dst).usingCharset(StandardCharsets.UTF_8).hasContent("Hello");
+        File logFile = new File(t.getCachedETagsFile().getParentFile(), "etags.bin");
+        assertThat(logFile).exists();
+
+        // download the second file twice. the second time, the cached ETag
+        // must be sent.
+        File dst2 = newTempFile();
+        assertThat(dst2.delete()).isTrue();
+        for (int i = 0; i < 2; i++) {
+            Download t2 = t.getProject().getTasks().create("downloadFile" + (i + 2),
+                    Download.class);
+            t2.src(wireMock.url(TEST_FILE_NAME2));
+            t2.dest(dst2);
+            t2.onlyIfModified(true);
+            t2.useETag(true);
+            t2.cachedETagsFormat("binary");
+            t2.compress(false);
+            execute(t2);
+            assertThat(dst2).usingCharset(StandardCharsets.UTF_8).hasContent(CONTENTS2);
+        }
+
+        // the JSON file is not modified
+        JsonSlurper slurper = new JsonSlurper();
+        @SuppressWarnings("unchecked")
+        Map<String, Object> cachedETags = (Map<String, Object>)slurper.parse(
+                t.getCachedETagsFile(), "UTF-8");
+        @SuppressWarnings("unchecked")
+        Map<String, Object> hostMap = (Map<String, Object>)cachedETags.get(
+                wireMock.baseUrl());
+        assertThat(hostMap).containsOnlyKeys("/" + TEST_FILE_NAME);
+    }
+
+    /**
+     * Make sure we cannot assign an invalid ETag format
+     */
+    @Test
+    public void invalidCachedETagsFormat() {
+        Download t = makeProjectAndTask();
+        assertThat(t.getCachedETagsFormat()).isEqualTo("json");
+        assertThatThrownBy(() -> t.cachedETagsFormat("foobar"))
+                .isInstanceOf(IllegalArgumentException.class);
+    }
 }
@@ -0,0 +1,226 @@
+package de.undercouch.gradle.tasks.download;
+
+import de.undercouch.gradle.tasks.download.internal.CachingHttpClientFactory;
+import de.undercouch.gradle.tasks.download.internal.ETagStore;
+import de.undercouch.gradle.tasks.download.internal.HttpClientFactory;
+import de.undercouch.gradle.tasks.download.internal.HttpClientService;
+import org.apache.hc.client5.http.HttpRoute;
+import org.apache.hc.client5.http.impl.classic.CloseableHttpClient;
+import org.apache.hc.client5.http.impl.io.PoolingHttpClientConnectionManager;
+import org.apache.hc.core5.http.HttpHost;
+import org.gradle.api.Project;
+import org.gradle.api.services.BuildServiceRegistration;
+import org.junit.jupiter.api.Test;
+
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.List;
+import java.util.stream.Collectors;
+
+import static com.github.tomakehurst.wiremock.client.WireMock.aResponse;
+import static com.github.tomakehurst.wiremock.client.WireMock.get;
+import static com.github.tomakehurst.wiremock.client.WireMock.stubFor;
+import static com.github.tomakehurst.wiremock.client.WireMock.urlEqualTo;
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+/**
+ * Tests if HTTP clients are shared by all downloads in a build
+ * @author Michel Kraemer
+ */
+public class HttpClientServiceTest extends TestBaseWithMockServer {
+    /**
+     * A factory that gives access to its shared connection pool
+     */
+    private static class InspectableHttpClientFactory extends CachingHttpClientFactory {
+        PoolingHttpClientConnectionManager getPool() {
+            return getConnectionManager(false, 30000);
+        }
+    }
+
+    /**
+     * Get the registered HTTP client service
+     * @param project the current project
+     * @return the service
+     */
+    private static HttpClientService getService(Project project) {
+        List<BuildServiceRegistration<?, ?>> registrations = project.getGradle()
+                .getSharedServices().getRegistrations().stream()
+                .filter(r -> r.getName().startsWith(HttpClientService.NAME))
+                .collect(Collectors.toList());
+        assertThat(registrations).hasSize(1);
+        return (HttpClientService)registrations.get(0).getService().get();
+    }
+
+    /**
+     * Tests if multiple tasks and the extension can download files using
+     * the shared HTTP clients
+     * @throws Exception if anything goes wrong
+     */
+    @Test
+    public void multipleTasks() throws Exception {
+        configureDefaultStub();
+        configureDefaultStub2();
+
+        Download t1 = makeProjectAndTask();
+        t1.src(wireMock.url(TEST_FILE_NAME));
+        File dst1 = newTempFile();
+        t1.dest(dst1);
+        execute(t1);
+
+        Download t2 = t1.getProject().getTasks().create("downloadFile2",
+                Download.class);
+        t2.src(wireMock.url(TEST_FILE_NAME2));
+        File dst2 = newTempFile();
+        t2.dest(dst2);
+        execute(t2);
+
+        File dst3 = newTempFile();
+        new DownloadExtension(t1.getProject()).run(spec -> {
+            spec.src(wireMock.url(TEST_FILE_NAME));
+            spec.dest(dst3);
+        });
+
+        assertThat(dst1).usingCharset(StandardCharsets.UTF_8).hasContent(CONTENTS);
+        assertThat(dst2).usingCharset(StandardCharsets.UTF_8).hasContent(CONTENTS2);
+        assertThat(dst3).usingCharset(StandardCharsets.UTF_8).hasContent(CONTENTS);
+        assertThat(getService(t1.getProject())).isNotNull();
+    }
+
+    /**
+     * Tests if the shared factory reuses clients with the same configuration
+     */
+    @Test
+    public void reuseClients() {
+        Project project = makeProject();
+        HttpClientFactory factory = getService(project).getClientFactory();
+        HttpHost host = new HttpHost("http", "localhost", wireMock.port());
+
+        CloseableHttpClient c1 = factory.createHttpClient(host, false, 0, 0,
+                30000, 20, 200, null);
+        CloseableHttpClient c2 = factory.createHttpClient(host, false, 0, 0,
+                30000, 20, 200, null);
+        CloseableHttpClient c3 = factory.createHttpClient(host, false, 0, 0,
+                1000, 20, 200, null);
+
+        assertThat(c1).isSameAs(c2);
+        assertThat(c1).isNotSameAs(c3);
+    }
+
+    /**
+     * Tests if tasks writing to the same cached ETags file share a store
+     * @throws Exception if anything goes wrong
+     */
+    @Test
+    public void reuseETagStores() throws Exception {
+        Project project = makeProject();
+        HttpClientService service = getService(project);
+        File dir = newTempDir();
+        File etags = new File(dir, "etags.json");
+
+        ETagStore json = service.getETagStore(etags, false);
+        assertThat(service.getETagStore(new File(dir, "etags.json"), false))
+                .isSameAs(json);
+        assertThat(json.getFile()).isEqualTo(ETagStore.getFile(etags, false));
+
+        ETagStore binary = service.getETagStore(etags, true);
+        assertThat(binary).isNotSameAs(json);
+        assertThat(service.getETagStore(etags, true)).isSameAs(binary);
+        assertThat(binary.getFile()).isEqualTo(ETagStore.getFile(etags, true));
+    }
+
+    /**
+     * Tests if multiple files can be downloaded with a single connection
+     * @throws Exception if anything goes wrong
+     */
+    @Test
+    public void singleConnection() throws Exception {
+        configureDefaultStub();
+        configureDefaultStub2();
+
+        Download t = makeProjectAndTask();
+        t.src(Arrays.asList(wireMock.url(TEST_FILE_NAME),
+                wireMock.url(TEST_FILE_NAME2)));
+        File dst = newTempDir();
+        t.dest(dst);
+        t.maxConnectionsPerHost(1);
+        t.maxConnectionsTotal(1);
+        assertThat(t.getMaxConnectionsPerHost()).isEqualTo(1);
+        assertThat(t.getMaxConnectionsTotal()).isEqualTo(1);
+        execute(t);
+
+        assertThat(new File(dst, TEST_FILE_NAME))
+                .usingCharset(StandardCharsets.UTF_8).hasContent(CONTENTS);
+        assertThat(new File(dst, TEST_FILE_NAME2))
+                .usingCharset(StandardCharsets.UTF_8).hasContent(CONTENTS2);
+    }
+
+    /**
+     * Tests if two tasks can set different connection limits for the same
+     * host and if the limits of one host do not affect other hosts
+     * @throws Exception if anything goes wrong
+     */
+    @Test
+    public void differentLimitsSameHost() throws Exception {
+        configureDefaultStub();
+        configureDefaultStub2();
+
+        Download t1 = makeProjectAndTask();
+        t1.src(wireMock.url(TEST_FILE_NAME));
+        File dst1 = newTempFile();
+        t1.dest(dst1);
+        t1.maxConnectionsPerHost(3);
+        execute(t1);
+
+        Download t2 = t1.getProject().getTasks().create("downloadFile2",
+                Download.class);
+        t2.src(wireMock.url(TEST_FILE_NAME2));
+        File dst2 = newTempFile();
+        t2.dest(dst2);
+        t2.maxConnectionsPerHost(1);
+        execute(t2);
+
+        assertThat(dst1).usingCharset(StandardCharsets.UTF_8).hasContent(CONTENTS);
+        assertThat(dst2).usingCharset(StandardCharsets.UTF_8).hasContent(CONTENTS2);
+
+        // simulate the same tasks on a factory whose pool we can inspect
+        InspectableHttpClientFactory factory = new InspectableHttpClientFactory();
+        try {
+            HttpHost host = new HttpHost("http", "localhost", wireMock.port());
+            HttpHost other = new HttpHost("http", "127.0.0.1", wireMock.port());
+            HttpRoute route = new HttpRoute(host);
+            HttpRoute otherRoute = new HttpRoute(other);
+
+            CloseableHttpClient c1 = factory.createHttpClient(host, false,
+                    0, 0, 30000, 3, 200, null);
+            factory.createHttpClient(other, false, 0, 0, 30000, 7, 200, null);
+            assertThat(factory.getPool().getMaxPerRoute(route)).isEqualTo(3);
+            assertThat(factory.getPool().getMaxPerRoute(otherRoute)).isEqualTo(7);
+
+            // the second task gets the cached client but its lower limits
+            CloseableHttpClient c2 = factory.createHttpClient(host, false,
+                    0, 0, 30000, 1, 50, null);
+            assertThat(c2).isSameAs(c1);
+            assertThat(factory.getPool().getMaxPerRoute(route)).isEqualTo(1);
+            assertThat(factory.getPool().getMaxPerRoute(otherRoute)).isEqualTo(7);
+            assertThat(factory.getPool().getMaxTotal()).isEqualTo(50);
+        } finally {
+            factory.close();
+        }
+    }
+
+    /**
+     * Tests if invalid connection limits are rejected
+     */
+    @Test
+    public void invalidLimits() {
+        Download t = makeProjectAndTask();
+        assertThat(t.getMaxConnectionsPerHost()).isEqualTo(20);
+        assertThat(t.getMaxConnectionsTotal()).isEqualTo(200);
+        assertThatThrownBy(() -> t.maxConnectionsPerHost(0))
+                .isInstanceOf(IllegalArgumentException.class);
+        assertThatThrownBy(() -> t.maxConnectionsTotal(0))
+                .isInstanceOf(IllegalArgumentException.class);
+    }
+}
@@ -0,0 +1,275 @@
+package de.undercouch.gradle.tasks.download;
+
+import org.gradle.api.GradleException;
+import org.gradle.workers.WorkerExecutionException;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.ValueSource;
+
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+
+import static com.github.tomakehurst.wiremock.client.WireMock.aResponse;
+import static com.github.tomakehurst.wiremock.client.WireMock.equalTo;
+import static com.github.tomakehurst.wiremock.client.WireMock.get;
+import static com.github.tomakehurst.wiremock.client.WireMock.post;
+import static com.github.tomakehurst.wiremock.client.WireMock.stubFor;
+import static com.github.tomakehurst.wiremock.client.WireMock.urlEqualTo;
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+/**
+ * Tests the asynchronous HTTP engine and HTTP/2 support
+ * @author Michel Kraemer
+ */
+public class HttpEngineTest extends TestBaseWithMockServer {
+    /**
+     * Tests if a single file can be downloaded
+     * @throws Exception if anything goes wrong
+     */
+    @Test
+    public void singleFile() throws Exception {
+        configureDefaultStub();
+
+        Download t = makeProjectAndTask();
+        t.src(wireMock.url(TEST_FILE_NAME));
+        File dst = newTempFile();
+        t.dest(dst);
+        t.httpEngine("async");
+        assertThat(t.getHttpEngine()).isEqualTo("async");
+        execute(t);
+
+        assertThat(dst).usingCharset(StandardCharsets.UTF_8).hasContent(CONTENTS);
+    }
+
+    /**
+     * Tests if many files can be downloaded at once
+     * @throws Exception if anything goes wrong
+     */
+    @Test
+    public void manyFiles() throws Exception {
+        int n = 50;
+        List<String> sources = new ArrayList<>();
+        for (int i = 0; i < n; i++) {
+            stubFor(get(urlEqualTo("/file" + i))
+                    .willReturn(aResponse()
+                            .withBody("contents" + i)));
+            sources.add(wireMock.url("file" + i));
+        }
+
+        Download t = makeProjectAndTask();
+        t.src(sources);
+        File dst = newTempDir();
+        t.dest(dst);
+        t.httpEngine("async");
+        execute(t);
+
+        for (int i = 0; i < n; i++) {
+            assertThat(new File(dst, "file" + i))
+                    .usingCharset(StandardCharsets.UTF_8)
+                    .hasContent("contents" + i);
+        }
+    }
+
+    /**
+     * Tests if many files can be downloaded over HTTP/2 (h2c) or with
+     * HTTP/1.1
+     * @param httpVersion the HTTP version to use
+     * @throws Exception if anything goes wrong
+     */
+    @ParameterizedTest(name = "httpVersion = {0}")
+    @ValueSource(strings = { "1.1", "2" })
+    public void httpVersion(String httpVersion) throws Exception {
+        int n = 50;
+        List<String> sources = new ArrayList<>();
+        for (int i = 0; i < n; i++) {
+            stubFor(get(urlEqualTo("/file" + i))
+                    .willReturn(aResponse()
+                            .withBody("contents" + i)));
+            sources.add(wireMock.url("file" + i));
+        }
+
+        Download t = makeProjectAndTask();
+        t.src(sources);
+        File dst = newTempDir();
+        t.dest(dst);
+        t.httpEngine("async");
+        t.httpVersion(httpVersion);
+        assertThat(t.getHttpVersion()).isEqualTo(httpVersion);
+        execute(t);
+
+        for (int i = 0; i < n; i++) {
+            assertThat(new File(dst, "file" + i))
+                    .usingCharset(StandardCharsets.UTF_8)
+                    .hasContent("contents" + i);
+        }
+    }
+
+    /**
+     * Tests if HTTP/2 is rejected if the classic engine is used
+     * @throws Exception if anything goes wrong
+     */
+    @Test
+    public void http2RequiresAsyncEngine() throws Exception {
+        Download t = makeProjectAndTask();
+        t.src(wireMock.url(TEST_FILE_NAME));
+        t.dest(newTempFile());
+        t.httpVersion("2");
+        assertThatThrownBy(() -> execute(t))
+                .isInstanceOf(IllegalArgumentException.class);
+    }
+
+    /**
+     * Tests if a file can be downloaded to a temporary file first
+     * @throws Exception if anything goes wrong
+     */
+    @Test
+    public void tempAndMove() throws Exception {
+        configureDefaultStub();
+
+        Download t = makeProjectAndTask();
+        t.src(wireMock.url(TEST_FILE_NAME));
+        File dst = newTempFile();
+        Files.write(dst.toPath(), "old".getBytes(StandardCharsets.UTF_8));
+        t.dest(dst);
+        t.tempAndMove(true);
+        t.httpEngine("async");
+        execute(t);
+
+        assertThat(dst).usingCharset(StandardCharsets.UTF_8).hasContent(CONTENTS);
+        File[] partFiles = t.getDownloadTaskDir().listFiles((dir, name) ->
+                name.endsWith(".part"));
+        assertThat(partFiles).isNullOrEmpty();
+    }
+
+    /**
+     * Tests if a body can be sent
+     * @throws Exception if anything goes wrong
+     */
+    @Test
+    public void postWithBody() throws Exception {
+        stubFor(post(urlEqualTo("/" + TEST_FILE_NAME))
+                .withRequestBody(equalTo("Hello"))
+                .willReturn(aResponse()
+                        .withBody(CONTENTS)));
+
+        Download t = makeProjectAndTask();
+        t.src(wireMock.url(TEST_FILE_NAME));
+        File dst = newTempFile();
+        t.dest(dst);
+        t.method("POST");
+        t.body("Hello");
+        t.httpEngine("async");
+        execute(t);
+
+        assertThat(dst).usingCharset(StandardCharsets.UTF_8).hasContent(CONTENTS);
+    }
+
+    /**
+     * Tests if the task fails and the file is deleted if the checksum does
+     * not match
+     * @throws Exception if anything goes wrong
+     */
+    @Test
+    public void checksumMismatch() throws Exception {
+        configureDefaultStub();
+
+        Download t = makeProjectAndTask();
+        t.src(wireMock.url(TEST_FILE_NAME));
+        File dst = newTempFile();
+        assertThat(dst.delete()).isTrue();
+        t.dest(dst);
+        t.checksum("MD5", "00000000000000000000000000000000");
+        t.httpEngine("async");
+        assertThatThrownBy(() -> execute(t))
+                .isInstanceOf(WorkerExecutionException.class)
+                .rootCause()
+                .isInstanceOf(GradleException.class)
+                .hasMessageContaining("Invalid checksum");
+        assertThat(dst).doesNotExist();
+    }
+
+    /**
+     * Tests if the task fails if the server responds with an error
+     * @throws Exception if anything goes wrong
+     */
+    @Test
+    public void notFound() throws Exception {
+        stubFor(get(urlEqualTo("/" + TEST_FILE_NAME))
+                .willReturn(aResponse()
+                        .withStatus(404)));
+
+        Download t = makeProjectAndTask();
+        t.src(wireMock.url(TEST_FILE_NAME));
+        File dst = newTempFile();
+        assertThat(dst.delete()).isTrue();
+        t.dest(dst);
+        t.httpEngine("async");
+        assertThatThrownBy(() -> execute(t))
+                .isInstanceOf(WorkerExecutionException.class)
+                .rootCause()
+                .hasMessageContaining("404");
+        assertThat(dst).doesNotExist();
+    }
+
+    /**
+     * Tests if a file is not downloaded if it has not been modified and if
+     * the last-modified timestamp is set when it has been downloaded
+     * @throws Exception if anything goes wrong
+     */
+    @Test
+    public void onlyIfModified() throws Exception {
+        String lm = "Tue, 15 Nov 1994 12:45:26 GMT";
+        long expectedlmlong = new SimpleDateFormat("EEE, dd MMM yyyy HH:mm:ss z", Locale.ENGLISH)
+                .parse(lm)
+                .getTime();
+
+        stubFor(get(urlEqualTo("/" + TEST_FILE_NAME))
+                .willReturn(aResponse()
+                        .withHeader("Last-Modified", lm)
+                        .withBody(CONTENTS)));
+
+        Download t = makeProjectAndTask();
+        t.src(wireMock.url(TEST_FILE_NAME));
+        File dst = newTempFile();
+        assertThat(dst.delete()).isTrue();
+        t.dest(dst);
+        t.onlyIfModified(true);
+        t.httpEngine("async");
+        execute(t);
+
+        assertThat(dst).usingCharset(StandardCharsets.UTF_8).hasContent(CONTENTS);
+        assertThat(dst.lastModified()).isEqualTo(expectedlmlong);
+
+        Files.write(dst.toPath(), "Hello".getBytes(StandardCharsets.UTF_8));
+        assertThat(dst.setLastModified(expectedlmlong)).isTrue();
+        Download t2 = t.getProject().getTasks().create("downloadFile2",
+                Download.class);
+        t2.src(wireMock.url(TEST_FILE_NAME));
+        t2.dest(dst);
+        t2.onlyIfModified(true);
+        t2.httpEngine("async");
+        execute(t2);
+
+        assertThat(dst).usingCharset(StandardCharsets.UTF_8).hasContent("Hello");
+    }
+
+    /**
+     * Tests if an invalid engine or HTTP version is rejected
+     */
+    @Test
+    public void invalidEngine() {
+        Download t = makeProjectAndTask();
+        assertThat(t.getHttpEngine()).isEqualTo("classic");
+        assertThatThrownBy(() -> t.httpEngine("foobar"))
+                .isInstanceOf(IllegalArgumentException.class);
+        assertThat(t.getHttpVersion()).isEqualTo("auto");
+        assertThatThrownBy(() -> t.httpVersion("3"))
+                .isInstanceOf(IllegalArgumentException.class);
+    }
+}
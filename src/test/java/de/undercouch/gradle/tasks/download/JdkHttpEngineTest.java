@@ -0,0 +1,161 @@
+package de.undercouch.gradle.tasks.download;
+
+import de.undercouch.gradle.tasks.download.internal.JdkHttpTransports;
+import org.gradle.api.GradleException;
+import org.gradle.workers.WorkerExecutionException;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+import static com.github.tomakehurst.wiremock.client.WireMock.aResponse;
+import static com.github.tomakehurst.wiremock.client.WireMock.equalTo;
+import static com.github.tomakehurst.wiremock.client.WireMock.get;
+import static com.github.tomakehurst.wiremock.client.WireMock.post;
+import static com.github.tomakehurst.wiremock.client.WireMock.stubFor;
+import static com.github.tomakehurst.wiremock.client.WireMock.urlEqualTo;
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+import static org.junit.jupiter.api.Assumptions.assumeTrue;
+
+/**
+ * Tests the HTTP engine based on {@code java.net.http.HttpClient}
+ * @author Michel Kraemer
+ */
+public class JdkHttpEngineTest extends TestBaseWithMockServer {
+    /**
+     * Skip the tests if the JDK HTTP client is not available
+     */
+    @BeforeEach
+    public void checkAvailable() {
+        assumeTrue(JdkHttpTransports.isAvailable());
+    }
+
+    /**
+     * Tests if many files can be downloaded
+     * @throws Exception if anything goes wrong
+     */
+    @Test
+    public void manyFiles() throws Exception {
+        int n = 50;
+        List<String> sources = new ArrayList<>();
+        for (int i = 0; i < n; i++) {
+            stubFor(get(urlEqualTo("/file" + i))
+                    .willReturn(aResponse()
+                            .withBody("contents" + i)));
+            sources.add(wireMock.url("file" + i));
+        }
+
+        Download t = makeProjectAndTask();
+        t.src(sources);
+        File dst = newTempDir();
+        t.dest(dst);
+        t.httpEngine("jdk");
+        assertThat(t.getHttpEngine()).isEqualTo("jdk");
+        execute(t);
+
+        for (int i = 0; i < n; i++) {
+            assertThat(new File(dst, "file" + i))
+                    .usingCharset(StandardCharsets.UTF_8)
+                    .hasContent("contents" + i);
+        }
+    }
+
+    /**
+     * Tests if a body and credentials can be sent
+     * @throws Exception if anything goes wrong
+     */
+    @Test
+    public void postWithCredentials() throws Exception {
+        stubFor(post(urlEqualTo("/" + TEST_FILE_NAME))
+                .withBasicAuth("user", "pass")
+                .withRequestBody(equalTo("Hello"))
+                .willReturn(aResponse()
+                        .withBody(CONTENTS)));
+
+        Download t = makeProjectAndTask();
+        t.src(wireMock.url(TEST_FILE_NAME));
+        File dst = newTempFile();
+        t.dest(dst);
+        t.method("POST");
+        t.body("Hello");
+        t.username("user");
+        t.password("pass");
+        t.httpEngine("jdk");
+        execute(t);
+
+        assertThat(dst).usingCharset(StandardCharsets.UTF_8).hasContent(CONTENTS);
+    }
+
+    /**
+     * Tests if redirects are followed
+     * @throws Exception if anything goes wrong
+     */
+    @Test
+    public void redirect() throws Exception {
+        configureDefaultStub();
+        stubFor(get(urlEqualTo("/redirect"))
+                .willReturn(aResponse()
+                        .withStatus(302)
+                        .withHeader("Location", "/" + TEST_FILE_NAME)));
+
+        Download t = makeProjectAndTask();
+        t.src(wireMock.url("redirect"));
+        File dst = newTempFile();
+        t.dest(dst);
+        t.httpEngine("jdk");
+        execute(t);
+
+        assertThat(dst).usingCharset(StandardCharsets.UTF_8).hasContent(CONTENTS);
+    }
+
+    /**
+     * Tests if the task fails and the file is deleted if the checksum does
+     * not match
+     * @throws Exception if anything goes wrong
+     */
+    @Test
+    public void checksumMismatch() throws Exception {
+        configureDefaultStub();
+
+        Download t = makeProjectAndTask();
+        t.src(wireMock.url(TEST_FILE_NAME));
+        File dst = newTempFile();
+        assertThat(dst.delete()).isTrue();
+        t.dest(dst);
+        t.checksum("MD5", "00000000000000000000000000000000");
+        t.httpEngine("jdk");
+        assertThatThrownBy(() -> execute(t))
+                .isInstanceOf(WorkerExecutionException.class)
+                .rootCause()
+                .isInstanceOf(GradleException.class)
+                .hasMessageContaining("Invalid checksum");
+        assertThat(dst).doesNotExist();
+    }
+
+    /**
+     * Tests if the task fails if the server responds with an error
+     * @throws Exception if anything goes wrong
+     */
+    @Test
+    public void notFound() throws Exception {
+        stubFor(get(urlEqualTo("/" + TEST_FILE_NAME))
+                .willReturn(aResponse()
+                        .withStatus(404)));
+
+        Download t = makeProjectAndTask();
+        t.src(wireMock.url(TEST_FILE_NAME));
+        File dst = newTempFile();
+        assertThat(dst.delete()).isTrue();
+        t.dest(dst);
+        t.httpEngine("jdk");
+        assertThatThrownBy(() -> execute(t))
+                .isInstanceOf(WorkerExecutionException.class)
+                .rootCause()
+                .hasMessageContaining("404");
+        assertThat(dst).doesNotExist();
+    }
+}
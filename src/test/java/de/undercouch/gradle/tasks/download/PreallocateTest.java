@@ -0,0 +1,107 @@
+package de.undercouch.gradle.tasks.download;
+
+import org.gradle.workers.WorkerExecutionException;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.ValueSource;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+
+import static com.github.tomakehurst.wiremock.client.WireMock.aResponse;
+import static com.github.tomakehurst.wiremock.client.WireMock.get;
+import static com.github.tomakehurst.wiremock.client.WireMock.stubFor;
+import static com.github.tomakehurst.wiremock.client.WireMock.urlEqualTo;
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+/**
+ * Tests if destination files can be preallocated
+ * @author Michel Kraemer
+ */
+public class PreallocateTest extends TestBaseWithMockServer {
+    /**
+     * Test if a preallocated file is written correctly
+     * @param engine the write engine to use
+     * @throws Exception if anything goes wrong
+     */
+    @ParameterizedTest(name = "engine = {0}")
+    @ValueSource(strings = { "sync", "async", "mmap" })
+    public void preallocate(String engine) throws Exception {
+        stubFor(get(urlEqualTo("/" + TEST_FILE_NAME))
+                .willReturn(aResponse()
+                        .withHeader("content-length", String.valueOf(CONTENTS.length()))
+                        .withBody(CONTENTS)));
+
+        Download t = makeProjectAndTask();
+        t.compress(false);
+        t.src(wireMock.url(TEST_FILE_NAME));
+        File dst = newTempFile();
+        t.dest(dst);
+        t.writeEngine(engine);
+        t.preallocate(true);
+        assertThat(t.isPreallocate()).isTrue();
+        execute(t);
+
+        assertThat(dst).usingCharset(StandardCharsets.UTF_8).hasContent(CONTENTS);
+    }
+
+    /**
+     * Test if a preallocated temporary file is truncated to the number of
+     * bytes actually received if the connection is interrupted
+     * @throws Exception if anything goes wrong
+     */
+    @Test
+    public void truncateOnInterruption() throws Exception {
+        stubFor(get(urlEqualTo("/" + TEST_FILE_NAME))
+                .willReturn(aResponse()
+                        .withHeader("ETag", "\"abcdef\"")
+                        .withHeader("content-length", "10000")
+                        .withBody(CONTENTS)));
+
+        Download t = makeProjectAndTask();
+        t.compress(false);
+        t.src(wireMock.url(TEST_FILE_NAME));
+        File dst = newTempFile();
+        assertThat(dst.delete()).isTrue();
+        t.dest(dst);
+        t.tempAndMove(true);
+        t.preallocate(true);
+        assertThatThrownBy(() -> execute(t))
+                .isInstanceOf(WorkerExecutionException.class);
+
+        File[] partFiles = t.getDownloadTaskDir().listFiles((dir, name) ->
+                name.startsWith(dst.getName()) && name.endsWith(".part"));
+        assertThat(partFiles).hasSize(1);
+        assertThat(partFiles[0]).usingCharset(StandardCharsets.UTF_8)
+                .hasContent(CONTENTS);
+        assertThat(new File(partFiles[0].getPath() + ".validator")).exists();
+    }
+
+    /**
+     * Test if the download fails early if there is not enough free space
+     * @throws Exception if anything goes wrong
+     */
+    @Test
+    public void notEnoughFreeSpace() throws Exception {
+        stubFor(get(urlEqualTo("/" + TEST_FILE_NAME))
+                .willReturn(aResponse()
+                        .withHeader("content-length", String.valueOf(Long.MAX_VALUE / 2))
+                        .withBody(CONTENTS)));
+
+        Download t = makeProjectAndTask();
+        t.compress(false);
+        t.src(wireMock.url(TEST_FILE_NAME));
+        File dst = newTempFile();
+        assertThat(dst.delete()).isTrue();
+        t.dest(dst);
+        t.preallocate(true);
+        assertThatThrownBy(() -> execute(t))
+                .isInstanceOf(WorkerExecutionException.class)
+                .rootCause()
+                .isInstanceOf(IOException.class)
+                .hasMessageContaining("Not enough free disk space");
+        assertThat(dst).doesNotExist();
+    }
+}
@@ -0,0 +1,286 @@
+package de.undercouch.gradle.tasks.download;
+
+import de.undercouch.gradle.tasks.download.internal.RemoteCache;
+import org.apache.commons.codec.binary.Hex;
+import org.junit.jupiter.api.Test;
+
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+
+import static com.github.tomakehurst.wiremock.client.WireMock.aResponse;
+import static com.github.tomakehurst.wiremock.client.WireMock.equalTo;
+import static com.github.tomakehurst.wiremock.client.WireMock.get;
+import static com.github.tomakehurst.wiremock.client.WireMock.getRequestedFor;
+import static com.github.tomakehurst.wiremock.client.WireMock.head;
+import static com.github.tomakehurst.wiremock.client.WireMock.headRequestedFor;
+import static com.github.tomakehurst.wiremock.client.WireMock.put;
+import static com.github.tomakehurst.wiremock.client.WireMock.putRequestedFor;
+import static com.github.tomakehurst.wiremock.client.WireMock.stubFor;
+import static com.github.tomakehurst.wiremock.client.WireMock.urlEqualTo;
+import static com.github.tomakehurst.wiremock.client.WireMock.urlPathMatching;
+import static com.github.tomakehurst.wiremock.client.WireMock.verify;
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+/**
+ * Tests if files can be downloaded through a remote cache. The mock server
+ * acts as both the file's server and the cache.
+ * @author Michel Kraemer
+ */
+public class RemoteCacheTest extends TestBaseWithMockServer {
+    private static final String ETAG = "\"foobar\"";
+    private static final String CACHE_PATH = "/cache/";
+
+    /**
+     * Configure the server to return the test file with an ETag
+     */
+    private void configureServer() {
+        stubFor(head(urlEqualTo("/" + TEST_FILE_NAME))
+                .willReturn(aResponse()
+                        .withHeader("ETag", ETAG)));
+        stubFor(get(urlEqualTo("/" + TEST_FILE_NAME))
+                .willReturn(aResponse()
+                        .withHeader("ETag", ETAG)
+                        .withBody(CONTENTS)));
+        stubFor(get(urlPathMatching(CACHE_PATH + ".*"))
+                .willReturn(aResponse()
+                        .withStatus(404)));
+        stubFor(put(urlPathMatching(CACHE_PATH + ".*"))
+                .willReturn(aResponse()
+                        .withStatus(201)));
+    }
+
+    /**
+     * Calculate the SHA-256 hash of a string
+     * @param s the string
+     * @return the hex-encoded hash
+     * @throws Exception if the hash could not be calculated
+     */
+    private static String sha256(String s) throws Exception {
+        return Hex.encodeHexString(MessageDigest.getInstance("SHA-256")
+                .digest(s.getBytes(StandardCharsets.UTF_8)));
+    }
+
+    /**
+     * Create a task that downloads the test file through the remote cache
+     * @param dst the destination file
+     * @return the task
+     */
+    private Download makeCachedTask(File dst) {
+        Download t = makeProjectAndTask();
+        t.src(wireMock.url(TEST_FILE_NAME));
+        t.dest(dst);
+        t.remoteCache(wireMock.url(CACHE_PATH));
+        return t;
+    }
+
+    /**
+     * Tests if a file that is not in the cache is downloaded from its server
+     * and stored in the cache
+     * @throws Exception if anything goes wrong
+     */
+    @Test
+    public void missAndPush() throws Exception {
+        configureServer();
+
+        File dst = newTempFile();
+        Download t = makeCachedTask(dst);
+        t.remoteCachePush(true);
+        execute(t);
+
+        assertThat(dst).usingCharset(StandardCharsets.UTF_8).hasContent(CONTENTS);
+        String key = RemoteCache.key(wireMock.url(TEST_FILE_NAME), ETAG);
+        verify(1, getRequestedFor(urlEqualTo(CACHE_PATH + key + ".sha256")));
+        verify(0, getRequestedFor(urlEqualTo(CACHE_PATH + key)));
+        verify(1, putRequestedFor(urlEqualTo(CACHE_PATH + key))
+                .withRequestBody(equalTo(CONTENTS)));
+        verify(1, putRequestedFor(urlEqualTo(CACHE_PATH + key + ".sha256"))
+                .withRequestBody(equalTo(sha256(CONTENTS))));
+    }
+
+    /**
+     * Tests if files are not stored in the cache by default
+     * @throws Exception if anything goes wrong
+     */
+    @Test
+    public void noPush() throws Exception {
+        configureServer();
+
+        File dst = newTempFile();
+        execute(makeCachedTask(dst));
+
+        assertThat(dst).usingCharset(StandardCharsets.UTF_8).hasContent(CONTENTS);
+        verify(0, putRequestedFor(urlPathMatching(CACHE_PATH + ".*")));
+    }
+
+    /**
+     * Tests if a file is loaded from the cache instead of its server
+     * @throws Exception if anything goes wrong
+     */
+    @Test
+    public void hit() throws Exception {
+        configureServer();
+        String key = RemoteCache.key(wireMock.url(TEST_FILE_NAME), ETAG);
+        stubFor(get(urlEqualTo(CACHE_PATH + key))
+                .willReturn(aResponse()
+                        .withBody(CONTENTS2)));
+        stubFor(get(urlEqualTo(CACHE_PATH + key + ".sha256"))
+                .willReturn(aResponse()
+                        .withBody(sha256(CONTENTS2))));
+
+        File dst = newTempFile();
+        execute(makeCachedTask(dst));
+
+        assertThat(dst).usingCharset(StandardCharsets.UTF_8).hasContent(CONTENTS2);
+        verify(1, headRequestedFor(urlEqualTo("/" + TEST_FILE_NAME)));
+        verify(0, getRequestedFor(urlEqualTo("/" + TEST_FILE_NAME)));
+    }
+
+    /**
+     * Tests if a cached file that does not match its stored hash is
+     * downloaded from its server instead
+     * @throws Exception if anything goes wrong
+     */
+    @Test
+    public void corruptEntry() throws Exception {
+        configureServer();
+        String key = RemoteCache.key(wireMock.url(TEST_FILE_NAME), ETAG);
+        stubFor(get(urlEqualTo(CACHE_PATH + key))
+                .willReturn(aResponse()
+                        .withBody(CONTENTS2)));
+        stubFor(get(urlEqualTo(CACHE_PATH + key + ".sha256"))
+                .willReturn(aResponse()
+                        .withBody(sha256(CONTENTS))));
+
+        File dst = newTempFile();
+        execute(makeCachedTask(dst));
+
+        assertThat(dst).usingCharset(StandardCharsets.UTF_8).hasContent(CONTENTS);
+        verify(1, getRequestedFor(urlEqualTo("/" + TEST_FILE_NAME)));
+    }
+
+    /**
+     * Tests if a cached file whose length differs from the one reported by
+     * its server is downloaded from the server instead
+     * @throws Exception if anything goes wrong
+     */
+    @Test
+    public void lengthMismatch() throws Exception {
+        configureServer();
+        stubFor(head(urlEqualTo("/" + TEST_FILE_NAME))
+                .willReturn(aResponse()
+                        .withHeader("ETag", ETAG)
+                        .withHeader("Content-Length", String.valueOf(
+                                CONTENTS.getBytes(StandardCharsets.UTF_8).length + 1))));
+        String key = RemoteCache.key(wireMock.url(TEST_FILE_NAME), ETAG);
+        stubFor(get(urlEqualTo(CACHE_PATH + key))
+                .willReturn(aResponse()
+                        .withBody(CONTENTS2)));
+        stubFor(get(urlEqualTo(CACHE_PATH + key + ".sha256"))
+                .willReturn(aResponse()
+                        .withBody(sha256(CONTENTS2))));
+
+        File dst = newTempFile();
+        execute(makeCachedTask(dst));
+
+        assertThat(dst).usingCharset(StandardCharsets.UTF_8).hasContent(CONTENTS);
+        verify(1, getRequestedFor(urlEqualTo("/" + TEST_FILE_NAME)));
+    }
+
+    /**
+     * Tests if a cached file without a stored hash is not used
+     * @throws Exception if anything goes wrong
+     */
+    @Test
+    public void missingHash() throws Exception {
+        configureServer();
+        String key = RemoteCache.key(wireMock.url(TEST_FILE_NAME), ETAG);
+        stubFor(get(urlEqualTo(CACHE_PATH + key))
+                .willReturn(aResponse()
+                        .withBody(CONTENTS2)));
+
+        File dst = newTempFile();
+        execute(makeCachedTask(dst));
+
+        assertThat(dst).usingCharset(StandardCharsets.UTF_8).hasContent(CONTENTS);
+        verify(0, getRequestedFor(urlEqualTo(CACHE_PATH + key)));
+    }
+
+    /**
+     * Tests if a file with a known checksum is loaded from the cache without
+     * sending a request to its server
+     * @throws Exception if anything goes wrong
+     */
+    @Test
+    public void checksumHit() throws Exception {
+        configureServer();
+        String sha256 = sha256(CONTENTS);
+        String key = RemoteCache.key(wireMock.url(TEST_FILE_NAME),
+                "SHA-256:" + sha256);
+        stubFor(get(urlEqualTo(CACHE_PATH + key))
+                .willReturn(aResponse()
+                        .withBody(CONTENTS)));
+
+        File dst = newTempFile();
+        Download t = makeCachedTask(dst);
+        t.checksum("SHA-256", sha256);
+        execute(t);
+
+        assertThat(dst).usingCharset(StandardCharsets.UTF_8).hasContent(CONTENTS);
+        verify(0, headRequestedFor(urlEqualTo("/" + TEST_FILE_NAME)));
+        verify(0, getRequestedFor(urlEqualTo("/" + TEST_FILE_NAME)));
+    }
+
+    /**
+     * Tests if a file is downloaded from its server if the cache fails
+     * @throws Exception if anything goes wrong
+     */
+    @Test
+    public void cacheError() throws Exception {
+        configureServer();
+        stubFor(get(urlPathMatching(CACHE_PATH + ".*"))
+                .willReturn(aResponse()
+                        .withStatus(500)));
+        stubFor(put(urlPathMatching(CACHE_PATH + ".*"))
+                .willReturn(aResponse()
+                        .withStatus(500)));
+
+        File dst = newTempFile();
+        Download t = makeCachedTask(dst);
+        t.remoteCachePush(true);
+        execute(t);
+
+        assertThat(dst).usingCharset(StandardCharsets.UTF_8).hasContent(CONTENTS);
+    }
+
+    /**
+     * Tests if files without a checksum or strong ETag bypass the cache
+     * @throws Exception if anything goes wrong
+     */
+    @Test
+    public void weakETag() throws Exception {
+        configureServer();
+        stubFor(head(urlEqualTo("/" + TEST_FILE_NAME))
+                .willReturn(aResponse()
+                        .withHeader("ETag", "W/" + ETAG)));
+
+        File dst = newTempFile();
+        execute(makeCachedTask(dst));
+
+        assertThat(dst).usingCharset(StandardCharsets.UTF_8).hasContent(CONTENTS);
+        verify(0, getRequestedFor(urlPathMatching(CACHE_PATH + ".*")));
+    }
+
+    /**
+     * Tests if the task rejects remote cache URLs that do not use HTTP
+     */
+    @Test
+    public void invalidUrl() {
+        Download t = makeProjectAndTask();
+        assertThatThrownBy(() -> t.remoteCache("ftp://localhost/cache"))
+                .isInstanceOf(IllegalArgumentException.class);
+        assertThatThrownBy(() -> t.remoteCache(new Object()))
+                .isInstanceOf(IllegalArgumentException.class);
+    }
+}
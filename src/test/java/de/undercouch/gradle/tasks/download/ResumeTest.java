@@ -0,0 +1,298 @@
+package de.undercouch.gradle.tasks.download;
+
+import de.undercouch.gradle.tasks.download.internal.PartFileLock;
+import org.gradle.workers.WorkerExecutionException;
+import org.junit.jupiter.api.Test;
+
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+
+import static com.github.tomakehurst.wiremock.client.WireMock.aResponse;
+import static com.github.tomakehurst.wiremock.client.WireMock.absent;
+import static com.github.tomakehurst.wiremock.client.WireMock.equalTo;
+import static com.github.tomakehurst.wiremock.client.WireMock.get;
+import static com.github.tomakehurst.wiremock.client.WireMock.getRequestedFor;
+import static com.github.tomakehurst.wiremock.client.WireMock.matching;
+import static com.github.tomakehurst.wiremock.client.WireMock.stubFor;
+import static com.github.tomakehurst.wiremock.client.WireMock.urlEqualTo;
+import static com.github.tomakehurst.wiremock.client.WireMock.verify;
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+/**
+ * Tests if interrupted downloads can be resumed
+ * @author Michel Kraemer
+ */
+public class ResumeTest extends TestBaseWithMockServer {
+    private static final String ETAG = "\"abcdef\"";
+    private static final String CONTENTS = "Hello world. This is a test.";
+    private static final int OFFSET = 11;
+
+    /**
+     * Get the temporary file the plugin writes to
+     * @param t the download task
+     * @param dst the destination file
+     * @return the temporary file
+     */
+    private static File getPartFile(Download t, File dst) {
+        String hash = String.format("%08x", dst.getAbsolutePath().hashCode());
+        return new File(t.getDownloadTaskDir(), dst.getName() + "." +
+                hash + ".part");
+    }
+
+    /**
+     * Get the file storing the validator of the temporary file
+     * @param partFile the temporary file
+     * @return the validator file
+     */
+    private static File getValidatorFile(File partFile) {
+        return new File(partFile.getPath() + ".validator");
+    }
+
+    /**
+     * Simulate an interrupted download
+     * @param t the download task
+     * @param dst the destination file
+     * @param validator the validator to store or {@code null} if no
+     * validator should be stored
+     * @return the temporary file
+     * @throws Exception if anything goes wrong
+     */
+    private static File makePartFile(Download t, File dst, String validator)
+            throws Exception {
+        File partFile = getPartFile(t, dst);
+        assertThat(partFile.getParentFile().mkdirs()).isTrue();
+        Files.write(partFile.toPath(), CONTENTS.substring(0, OFFSET)
+                .getBytes(StandardCharsets.UTF_8));
+        if (validator != null) {
+            Files.write(getValidatorFile(partFile).toPath(),
+                    validator.getBytes(StandardCharsets.UTF_8));
+        }
+        return partFile;
+    }
+
+    /**
+     * Tests if the temporary file is kept if the connection is closed
+     * prematurely
+     * @throws Exception if anything goes wrong
+     */
+    @Test
+    public void keepPartFile() throws Exception {
+        stubFor(get(urlEqualTo("/" + TEST_FILE_NAME))
+                .willReturn(aResponse()
+                        .withHeader("ETag", ETAG)
+                        .withHeader("content-length", "10000")
+                        .withBody(CONTENTS)));
+
+        Download t = makeProjectAndTask();
+        t.compress(false); // do not use GZIP or the response will be chunked
+        t.tempAndMove(true);
+        t.src(wireMock.url(TEST_FILE_NAME));
+        File dst = newTempFile();
+        assertThat(dst.delete()).isTrue();
+        t.dest(dst);
+        assertThatThrownBy(() -> execute(t))
+                .isInstanceOf(WorkerExecutionException.class);
+
+        assertThat(dst).doesNotExist();
+        File partFile = getPartFile(t, dst);
+        assertThat(partFile).usingCharset(StandardCharsets.UTF_8)
+                .hasContent(CONTENTS);
+        assertThat(getValidatorFile(partFile))
+                .usingCharset(StandardCharsets.UTF_8).hasContent(ETAG);
+    }
+
+    /**
+     * Tests if resume attempts and retries of the resumed requests share the
+     * configured number of retries
+     * @throws Exception if anything goes wrong
+     */
+    @Test
+    public void resumeSharesRetries() throws Exception {
+        stubFor(get(urlEqualTo("/" + TEST_FILE_NAME))
+                .withHeader("Range", absent())
+                .willReturn(aResponse()
+                        .withHeader("ETag", ETAG)
+                        .withHeader("content-length", "10000")
+                        .withBody(CONTENTS)));
+        stubFor(get(urlEqualTo("/" + TEST_FILE_NAME))
+                .withHeader("Range", matching("bytes=.*"))
+                .willReturn(aResponse()
+                        .withStatus(503)));
+
+        Download t = makeProjectAndTask();
+        t.compress(false);
+        t.tempAndMove(true);
+        t.retries(2);
+        t.retryDelay(0);
+        t.src(wireMock.url(TEST_FILE_NAME));
+        t.dest(newTempFile());
+        assertThatThrownBy(() -> execute(t))
+                .isInstanceOf(WorkerExecutionException.class);
+
+        // one initial request, one resume attempt, and one retry of it
+        verify(3, getRequestedFor(urlEqualTo("/" + TEST_FILE_NAME)));
+    }
+
+    /**
+     * Tests if the temporary file is deleted if the server did not provide
+     * a validator
+     * @throws Exception if anything goes wrong
+     */
+    @Test
+    public void deletePartFileWithoutValidator() throws Exception {
+        stubFor(get(urlEqualTo("/" + TEST_FILE_NAME))
+                .willReturn(aResponse()
+                        .withHeader("content-length", "10000")
+                        .withBody(CONTENTS)));
+
+        Download t = makeProjectAndTask();
+        t.compress(false);
+        t.tempAndMove(true);
+        t.src(wireMock.url(TEST_FILE_NAME));
+        File dst = newTempFile();
+        t.dest(dst);
+        assertThatThrownBy(() -> execute(t))
+                .isInstanceOf(WorkerExecutionException.class);
+
+        assertThat(getPartFile(t, dst)).doesNotExist();
+    }
+
+    /**
+     * Tests if an interrupted download is resumed
+     * @throws Exception if anything goes wrong
+     */
+    @Test
+    public void resume() throws Exception {
+        stubFor(get(urlEqualTo("/" + TEST_FILE_NAME))
+                .withHeader("Range", equalTo("bytes=" + OFFSET + "-"))
+                .withHeader("If-Range", equalTo(ETAG))
+                .willReturn(aResponse()
+                        .withStatus(206)
+                        .withHeader("ETag", ETAG)
+                        .withHeader("Content-Range", "bytes " + OFFSET + "-" +
+                                (CONTENTS.length() - 1) + "/" + CONTENTS.length())
+                        .withBody(CONTENTS.substring(OFFSET))));
+
+        Download t = makeProjectAndTask();
+        t.tempAndMove(true);
+        t.src(wireMock.url(TEST_FILE_NAME));
+        File dst = newTempFile();
+        t.dest(dst);
+        File partFile = makePartFile(t, dst, ETAG);
+        execute(t);
+
+        assertThat(dst).usingCharset(StandardCharsets.UTF_8).hasContent(CONTENTS);
+        assertThat(partFile).doesNotExist();
+        assertThat(getValidatorFile(partFile)).doesNotExist();
+        assertThat(new File(partFile.getPath() + ".lock")).doesNotExist();
+    }
+
+    /**
+     * Tests if the whole file is downloaded again if the server ignores
+     * the range request (e.g. because the file has changed)
+     * @throws Exception if anything goes wrong
+     */
+    @Test
+    public void rangeIgnored() throws Exception {
+        String newContents = "Completely new";
+        stubFor(get(urlEqualTo("/" + TEST_FILE_NAME))
+                .willReturn(aResponse()
+                        .withHeader("ETag", "\"other\"")
+                        .withBody(newContents)));
+
+        Download t = makeProjectAndTask();
+        t.tempAndMove(true);
+        t.src(wireMock.url(TEST_FILE_NAME));
+        File dst = newTempFile();
+        t.dest(dst);
+        File partFile = makePartFile(t, dst, ETAG);
+        execute(t);
+
+        assertThat(dst).usingCharset(StandardCharsets.UTF_8)
+                .hasContent(newContents);
+        assertThat(partFile).doesNotExist();
+        assertThat(getValidatorFile(partFile)).doesNotExist();
+    }
+
+    /**
+     * Tests if the plugin does not try to resume a download if there is
+     * no validator
+     * @throws Exception if anything goes wrong
+     */
+    @Test
+    public void noValidator() throws Exception {
+        stubFor(get(urlEqualTo("/" + TEST_FILE_NAME))
+                .withHeader("Range", absent())
+                .willReturn(aResponse()
+                        .withBody(CONTENTS)));
+
+        Download t = makeProjectAndTask();
+        t.tempAndMove(true);
+        t.src(wireMock.url(TEST_FILE_NAME));
+        File dst = newTempFile();
+        t.dest(dst);
+        makePartFile(t, dst, null);
+        execute(t);
+
+        assertThat(dst).usingCharset(StandardCharsets.UTF_8).hasContent(CONTENTS);
+        verify(1, getRequestedFor(urlEqualTo("/" + TEST_FILE_NAME)));
+    }
+
+    /**
+     * Tests if the plugin does not try to resume a download if tempAndMove
+     * is disabled
+     * @throws Exception if anything goes wrong
+     */
+    @Test
+    public void noTempAndMove() throws Exception {
+        stubFor(get(urlEqualTo("/" + TEST_FILE_NAME))
+                .withHeader("Range", absent())
+                .willReturn(aResponse()
+                        .withBody(CONTENTS)));
+
+        Download t = makeProjectAndTask();
+        t.src(wireMock.url(TEST_FILE_NAME));
+        File dst = newTempFile();
+        t.dest(dst);
+        makePartFile(t, dst, ETAG);
+        execute(t);
+
+        assertThat(dst).usingCharset(StandardCharsets.UTF_8).hasContent(CONTENTS);
+    }
+
+    /**
+     * Tests if a download does not touch a temporary file that is in use by
+     * another download of the same file
+     * @throws Exception if anything goes wrong
+     */
+    @Test
+    public void partFileInUse() throws Exception {
+        stubFor(get(urlEqualTo("/" + TEST_FILE_NAME))
+                .withHeader("Range", absent())
+                .willReturn(aResponse()
+                        .withHeader("ETag", ETAG)
+                        .withBody(CONTENTS)));
+
+        Download t = makeProjectAndTask();
+        t.tempAndMove(true);
+        t.src(wireMock.url(TEST_FILE_NAME));
+        File dst = newTempFile();
+        t.dest(dst);
+        File partFile = makePartFile(t, dst, ETAG);
+
+        try (PartFileLock lock = PartFileLock.acquire(partFile)) {
+            assertThat(lock.isLocked()).isTrue();
+            execute(t);
+        }
+
+        assertThat(dst).usingCharset(StandardCharsets.UTF_8).hasContent(CONTENTS);
+        assertThat(partFile).usingCharset(StandardCharsets.UTF_8)
+                .hasContent(CONTENTS.substring(0, OFFSET));
+        assertThat(getValidatorFile(partFile)).exists();
+        File[] partFiles = t.getDownloadTaskDir().listFiles((dir, name) ->
+                name.endsWith(".part"));
+        assertThat(partFiles).containsExactly(partFile);
+    }
+}
@@ -22,6 +22,8 @@ import org.gradle.api.Project;
 import org.gradle.api.logging.Logger;
 import org.gradle.workers.WorkerExecutionException;
 import org.junit.jupiter.api.Test;
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.ValueSource;
 import org.mockito.Mockito;
 
 import java.io.File;
@@ -32,6 +34,8 @@ import java.util.ArrayList;
 import java.util.List;
 
 import static com.github.tomakehurst.wiremock.client.WireMock.aResponse;
+import static com.github.tomakehurst.wiremock.client.WireMock.absent;
+import static com.github.tomakehurst.wiremock.client.WireMock.equalTo;
 import static com.github.tomakehurst.wiremock.client.WireMock.get;
 import static com.github.tomakehurst.wiremock.client.WireMock.getRequestedFor;
 import static com.github.tomakehurst.wiremock.client.WireMock.stubFor;
@@ -338,8 +342,12 @@ public class RetryTest extends TestBaseWithMockServer {
         assertThat(recordedWarn)
                 .containsExactly("Request attempt 1/2 failed. Retrying ...",
                         "Request attempt 2/2 failed. Retrying ...");
-        assertThat(recordedDebug).containsExactly("Request attempt failed",
-                "Status code: 503", "Status message: Service Unavailable");
+        // the delays before the retries are random
+        assertThat(recordedDebug).filteredOn(s -> !s.startsWith("Waiting "))
+                .containsExactly("Request attempt failed", "Status code: 503",
+                        "Status message: Service Unavailable");
+        assertThat(recordedDebug).filteredOn(s -> s.startsWith("Waiting "))
+                .hasSize(2);
         assertThat(recordedExceptions).hasSize(1);
         assertThat(recordedExceptions.get(0))
                 .isInstanceOf(NoHttpResponseException.class);
@@ -390,6 +398,55 @@ public class RetryTest extends TestBaseWithMockServer {
         Mockito.verify(logger, never()).warn(anyString());
     }
 
+    /**
+     * Test if retry attempts are logged with the logger of the task that
+     * has sent the request even if the HTTP client has been created by
+     * another task
+     * @throws Exception if anything else goes wrong
+     */
+    @Test
+    public void logRetriesOfSharedClient() throws Exception {
+        configureDefaultStub2();
+        stubFor(get(urlEqualTo("/" + TEST_FILE_NAME))
+                .inScenario(SCENARIO)
+                .whenScenarioStateIs(STARTED)
+                .willReturn(aResponse().withFault(Fault.EMPTY_RESPONSE))
+                .willSetStateTo(TWO));
+
+        stubFor(get(urlEqualTo("/" + TEST_FILE_NAME))
+                .inScenario(SCENARIO)
+                .whenScenarioStateIs(TWO)
+                .willReturn(aResponse().withBody(CONTENTS)));
+
+        Project project = makeProject();
+
+        // the first task creates the shared client
+        Download t1 = makeTask(project);
+        t1.retries(1);
+        t1.src(wireMock.url(TEST_FILE_NAME2));
+        t1.dest(newTempFile());
+        execute(t1);
+
+        // spy on the logger of the second task
+        Download t2 = project.getTasks().create("downloadFile2", Download.class);
+        Logger logger = spy(project.getLogger());
+        Field actionField = Download.class.getDeclaredField("action");
+        actionField.setAccessible(true);
+        DownloadAction action = (DownloadAction)actionField.get(t2);
+        Field loggerField = DownloadAction.class.getDeclaredField("logger");
+        loggerField.setAccessible(true);
+        loggerField.set(action, logger);
+
+        t2.retries(1);
+        t2.src(wireMock.url(TEST_FILE_NAME));
+        File dst = newTempFile();
+        t2.dest(dst);
+        execute(t2);
+
+        assertThat(dst).usingCharset(StandardCharsets.UTF_8).hasContent(CONTENTS);
+        Mockito.verify(logger).warn("Request attempt 1/1 failed. Retrying ...");
+    }
+
     /**
      * Test if the download task retries on connection timeout
      * @throws Exception if anything else goes wrong
@@ -493,4 +550,244 @@ public class RetryTest extends TestBaseWithMockServer {
         assertThat(recordedWarn).isEmpty();
         assertThat(recordedDebug).isEmpty();
     }
+
+    /**
+     * Configure a stub that interrupts the connection after the given number
+     * of bytes and a stub that returns the rest of the file if the request
+     * is resumed
+     * @param offset the number of bytes to send before the connection is
+     * interrupted
+     */
+    private void stubInterruptedBody(int offset) {
+        String etag = "\"abcdef\"";
+        stubFor(get(urlEqualTo("/" + TEST_FILE_NAME))
+                .withHeader("Range", absent())
+                .willReturn(aResponse()
+                        .withHeader("ETag", etag)
+                        .withHeader("content-length", String.valueOf(CONTENTS.length()))
+                        .withBody(CONTENTS.substring(0, offset))));
+
+        stubFor(get(urlEqualTo("/" + TEST_FILE_NAME))
+                .withHeader("Range", equalTo("bytes=" + offset + "-"))
+                .withHeader("If-Range", equalTo(etag))
+                .willReturn(aResponse()
+                        .withStatus(HttpStatus.SC_PARTIAL_CONTENT)
+                        .withHeader("ETag", etag)
+                        .withHeader("Content-Range", "bytes " + offset + "-" +
+                                (CONTENTS.length() - 1) + "/" + CONTENTS.length())
+                        .withBody(CONTENTS.substring(offset))));
+    }
+
+    /**
+     * Test if an interrupted response body is resumed from the last
+     * received byte
+     * @throws Exception if anything else goes wrong
+     */
+    @Test
+    public void resumeInterruptedBody() throws Exception {
+        stubInterruptedBody(5);
+
+        Download t = makeProjectAndTask();
+        t.compress(false); // do not use GZIP or the response will be chunked
+        t.retries(1);
+        t.src(wireMock.url(TEST_FILE_NAME));
+        File dst = newTempFile();
+        t.dest(dst);
+        execute(t);
+
+        assertThat(dst).usingCharset(StandardCharsets.UTF_8).hasContent(CONTENTS);
+        verify(2, getRequestedFor(urlEqualTo("/" + TEST_FILE_NAME)));
+        verify(1, getRequestedFor(urlEqualTo("/" + TEST_FILE_NAME))
+                .withHeader("Range", equalTo("bytes=5-")));
+    }
+
+    /**
+     * Test if an interrupted response body is not resumed if retries are
+     * disabled
+     * @throws Exception if anything else goes wrong
+     */
+    @Test
+    public void doNotResumeInterruptedBodyByDefault() throws Exception {
+        stubInterruptedBody(5);
+
+        Download t = makeProjectAndTask();
+        t.compress(false);
+        t.src(wireMock.url(TEST_FILE_NAME));
+        File dst = newTempFile();
+        assertThat(dst.delete()).isTrue();
+        t.dest(dst);
+        assertThatThrownBy(() -> execute(t))
+                .isInstanceOf(WorkerExecutionException.class);
+
+        assertThat(dst).doesNotExist();
+        verify(1, getRequestedFor(urlEqualTo("/" + TEST_FILE_NAME)));
+    }
+
+    /**
+     * Test if a delay requested by the server with a Retry-After header is
+     * respected
+     * @throws Exception if anything else goes wrong
+     */
+    @Test
+    public void retryAfter() throws Exception {
+        stubFor(get(urlEqualTo("/" + TEST_FILE_NAME))
+                .inScenario(SCENARIO)
+                .whenScenarioStateIs(STARTED)
+                .willReturn(aResponse()
+                        .withStatus(HttpStatus.SC_TOO_MANY_REQUESTS)
+                        .withHeader("Retry-After", "1"))
+                .willSetStateTo(TWO));
+
+        stubFor(get(urlEqualTo("/" + TEST_FILE_NAME))
+                .inScenario(SCENARIO)
+                .whenScenarioStateIs(TWO)
+                .willReturn(aResponse().withBody(CONTENTS)));
+
+        Download t = makeProjectAndTask();
+        t.retries(1);
+        t.src(wireMock.url(TEST_FILE_NAME));
+        File dst = newTempFile();
+        t.dest(dst);
+
+        long start = System.currentTimeMillis();
+        execute(t);
+        long duration = System.currentTimeMillis() - start;
+
+        assertThat(duration).isGreaterThanOrEqualTo(900);
+        assertThat(dst).usingCharset(StandardCharsets.UTF_8).hasContent(CONTENTS);
+        verify(2, getRequestedFor(urlEqualTo("/" + TEST_FILE_NAME)));
+    }
+
+    /**
+     * Test if a delay requested by the server is limited by the maximum
+     * retry delay
+     * @throws Exception if anything else goes wrong
+     */
+    @Test
+    public void maxRetryDelay() throws Exception {
+        stubFor(get(urlEqualTo("/" + TEST_FILE_NAME))
+                .inScenario(SCENARIO)
+                .whenScenarioStateIs(STARTED)
+                .willReturn(aResponse()
+                        .withStatus(HttpStatus.SC_SERVICE_UNAVAILABLE)
+                        .withHeader("Retry-After", "3600"))
+                .willSetStateTo(TWO));
+
+        stubFor(get(urlEqualTo("/" + TEST_FILE_NAME))
+                .inScenario(SCENARIO)
+                .whenScenarioStateIs(TWO)
+                .willReturn(aResponse().withBody(CONTENTS)));
+
+        Download t = makeProjectAndTask();
+        t.retries(1);
+        t.maxRetryDelay(100);
+        assertThat(t.getMaxRetryDelay()).isEqualTo(100);
+        t.src(wireMock.url(TEST_FILE_NAME));
+        File dst = newTempFile();
+        t.dest(dst);
+        execute(t);
+
+        assertThat(dst).usingCharset(StandardCharsets.UTF_8).hasContent(CONTENTS);
+    }
+
+    /**
+     * Test if the delay between retries grows exponentially
+     * @throws Exception if anything else goes wrong
+     */
+    @Test
+    public void exponentialBackoff() throws Exception {
+        stubFor(get(urlEqualTo("/" + TEST_FILE_NAME))
+                .inScenario(SCENARIO)
+                .whenScenarioStateIs(STARTED)
+                .willReturn(aResponse()
+                        .withStatus(HttpStatus.SC_SERVICE_UNAVAILABLE))
+                .willSetStateTo(TWO));
+
+        stubFor(get(urlEqualTo("/" + TEST_FILE_NAME))
+                .inScenario(SCENARIO)
+                .whenScenarioStateIs(TWO)
+                .willReturn(aResponse()
+                        .withStatus(HttpStatus.SC_SERVICE_UNAVAILABLE))
+                .willSetStateTo(THREE));
+
+        stubFor(get(urlEqualTo("/" + TEST_FILE_NAME))
+                .inScenario(SCENARIO)
+                .whenScenarioStateIs(THREE)
+                .willReturn(aResponse().withBody(CONTENTS)));
+
+        Download t = makeProjectAndTask();
+        t.retries(2);
+        t.retryDelay(200);
+        assertThat(t.getRetryDelay()).isEqualTo(200);
+        t.src(wireMock.url(TEST_FILE_NAME));
+        File dst = newTempFile();
+        t.dest(dst);
+
+        long start = System.currentTimeMillis();
+        execute(t);
+        long duration = System.currentTimeMillis() - start;
+
+        // at least half of 200 ms plus half of 400 ms
+        assertThat(duration).isGreaterThanOrEqualTo(300);
+        assertThat(dst).usingCharset(StandardCharsets.UTF_8).hasContent(CONTENTS);
+        verify(3, getRequestedFor(urlEqualTo("/" + TEST_FILE_NAME)));
+    }
+
+    /**
+     * Test if the task waits before retrying a request that has failed with
+     * an exception
+     * @param httpEngine the HTTP engine to use
+     * @throws Exception if anything else goes wrong
+     */
+    @ParameterizedTest(name = "httpEngine = {0}")
+    @ValueSource(strings = { "classic", "async" })
+    public void backoffAfterException(String httpEngine) throws Exception {
+        stubFor(get(urlEqualTo("/" + TEST_FILE_NAME))
+                .inScenario(SCENARIO)
+                .whenScenarioStateIs(STARTED)
+                .willReturn(aResponse().withFault(Fault.EMPTY_RESPONSE))
+                .willSetStateTo(TWO));
+
+        stubFor(get(urlEqualTo("/" + TEST_FILE_NAME))
+                .inScenario(SCENARIO)
+                .whenScenarioStateIs(TWO)
+                .willReturn(aResponse().withFault(Fault.EMPTY_RESPONSE))
+                .willSetStateTo(THREE));
+
+        stubFor(get(urlEqualTo("/" + TEST_FILE_NAME))
+                .inScenario(SCENARIO)
+                .whenScenarioStateIs(THREE)
+                .willReturn(aResponse().withBody(CONTENTS)));
+
+        Download t = makeProjectAndTask();
+        t.retries(2);
+        t.retryDelay(200);
+        t.httpEngine(httpEngine);
+        t.src(wireMock.url(TEST_FILE_NAME));
+        File dst = newTempFile();
+        t.dest(dst);
+
+        long start = System.currentTimeMillis();
+        execute(t);
+        long duration = System.currentTimeMillis() - start;
+
+        // at least half of 200 ms plus half of 400 ms
+        assertThat(duration).isGreaterThanOrEqualTo(300);
+        assertThat(dst).usingCharset(StandardCharsets.UTF_8).hasContent(CONTENTS);
+        verify(3, getRequestedFor(urlEqualTo("/" + TEST_FILE_NAME)));
+    }
+
+    /**
+     * Test if invalid retry delays are rejected
+     */
+    @Test
+    public void invalidRetryDelay() {
+        Download t = makeProjectAndTask();
+        assertThat(t.getRetryDelay()).isEqualTo(100);
+        assertThat(t.getMaxRetryDelay()).isEqualTo(30000);
+        assertThatThrownBy(() -> t.retryDelay(-1))
+                .isInstanceOf(IllegalArgumentException.class);
+        assertThatThrownBy(() -> t.maxRetryDelay(-1))
+                .isInstanceOf(IllegalArgumentException.class);
+    }
 }
@@ -0,0 +1,297 @@
+package de.undercouch.gradle.tasks.download;
+
+import org.gradle.workers.WorkerExecutionException;
+import org.junit.jupiter.api.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Random;
+
+import static com.github.tomakehurst.wiremock.client.WireMock.aResponse;
+import static com.github.tomakehurst.wiremock.client.WireMock.absent;
+import static com.github.tomakehurst.wiremock.client.WireMock.equalTo;
+import static com.github.tomakehurst.wiremock.client.WireMock.get;
+import static com.github.tomakehurst.wiremock.client.WireMock.getRequestedFor;
+import static com.github.tomakehurst.wiremock.client.WireMock.head;
+import static com.github.tomakehurst.wiremock.client.WireMock.headRequestedFor;
+import static com.github.tomakehurst.wiremock.client.WireMock.stubFor;
+import static com.github.tomakehurst.wiremock.client.WireMock.urlEqualTo;
+import static com.github.tomakehurst.wiremock.client.WireMock.verify;
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+/**
+ * Tests if files can be downloaded in multiple segments
+ * @author Michel Kraemer
+ */
+public class SegmentsTest extends TestBaseWithMockServer {
+    private static final String ETAG = "\"abcdef\"";
+    private static final int MB = 1024 * 1024;
+
+    /**
+     * Create random contents
+     * @param length the number of bytes to generate
+     * @return the contents
+     */
+    private static byte[] makeContents(int length) {
+        byte[] contents = new byte[length];
+        new Random(1234).nextBytes(contents);
+        return contents;
+    }
+
+    /**
+     * Configure a HEAD stub for the given file
+     * @param contents the file's contents
+     * @param acceptRanges true if the server should support range requests
+     */
+    private void stubHead(byte[] contents, boolean acceptRanges) {
+        if (acceptRanges) {
+            stubFor(head(urlEqualTo("/" + TEST_FILE_NAME))
+                    .willReturn(aResponse()
+                            .withHeader("Accept-Ranges", "bytes")
+                            .withHeader("ETag", ETAG)
+                            .withHeader("Content-Length",
+                                    String.valueOf(contents.length))));
+        } else {
+            stubFor(head(urlEqualTo("/" + TEST_FILE_NAME))
+                    .willReturn(aResponse()
+                            .withHeader("Content-Length",
+                                    String.valueOf(contents.length))));
+        }
+    }
+
+    /**
+     * Configure a stub for a range request
+     * @param contents the file's contents
+     * @param start the first byte of the range
+     * @param end the last byte of the range (inclusive)
+     */
+    private void stubRange(byte[] contents, int start, int end) {
+        stubFor(get(urlEqualTo("/" + TEST_FILE_NAME))
+                .withHeader("Range", equalTo("bytes=" + start + "-" + end))
+                .withHeader("If-Range", equalTo(ETAG))
+                .willReturn(aResponse()
+                        .withStatus(206)
+                        .withHeader("Content-Range", "bytes " + start + "-" +
+                                end + "/" + contents.length)
+                        .withBody(Arrays.copyOfRange(contents, start, end + 1))));
+    }
+
+    /**
+     * Tests if a file is split into segments if the server supports range
+     * requests
+     * @throws Exception if anything goes wrong
+     */
+    @Test
+    public void segments() throws Exception {
+        byte[] contents = makeContents(3 * MB);
+        stubHead(contents, true);
+        stubRange(contents, 0, MB - 1);
+        stubRange(contents, MB, 2 * MB - 1);
+        stubRange(contents, 2 * MB, contents.length - 1);
+
+        Download t = makeProjectAndTask();
+        t.src(wireMock.url(TEST_FILE_NAME));
+        File dst = newTempFile();
+        t.dest(dst);
+        t.segments(3);
+        assertThat(t.getSegments()).isEqualTo(3);
+        execute(t);
+
+        assertThat(dst).hasBinaryContent(contents);
+        verify(1, headRequestedFor(urlEqualTo("/" + TEST_FILE_NAME)));
+        verify(3, getRequestedFor(urlEqualTo("/" + TEST_FILE_NAME)));
+    }
+
+    /**
+     * Tests if the number of segments is reduced if the file is too small
+     * @throws Exception if anything goes wrong
+     */
+    @Test
+    public void fewerSegments() throws Exception {
+        byte[] contents = makeContents(2 * MB + 17);
+        stubHead(contents, true);
+        stubRange(contents, 0, MB + 7);
+        stubRange(contents, MB + 8, contents.length - 1);
+
+        Download t = makeProjectAndTask();
+        t.src(wireMock.url(TEST_FILE_NAME));
+        File dst = newTempFile();
+        t.dest(dst);
+        t.segments(8);
+        execute(t);
+
+        assertThat(dst).hasBinaryContent(contents);
+        verify(2, getRequestedFor(urlEqualTo("/" + TEST_FILE_NAME)));
+    }
+
+    /**
+     * Tests if segments are written to a temporary file first if
+     * tempAndMove is enabled
+     * @throws Exception if anything goes wrong
+     */
+    @Test
+    public void segmentsTempAndMove() throws Exception {
+        byte[] contents = makeContents(2 * MB);
+        stubHead(contents, true);
+        stubRange(contents, 0, MB - 1);
+        stubRange(contents, MB, contents.length - 1);
+
+        Download t = makeProjectAndTask();
+        t.src(wireMock.url(TEST_FILE_NAME));
+        File dst = newTempFile();
+        t.dest(dst);
+        t.segments(2);
+        t.tempAndMove(true);
+        execute(t);
+
+        assertThat(dst).hasBinaryContent(contents);
+        File[] partFiles = t.getDownloadTaskDir().listFiles((dir, name) ->
+                name.endsWith(".part"));
+        assertThat(partFiles).isNullOrEmpty();
+    }
+
+    /**
+     * Tests if the plugin falls back to a single request if the server
+     * does not support range requests
+     * @throws Exception if anything goes wrong
+     */
+    @Test
+    public void noAcceptRanges() throws Exception {
+        byte[] contents = makeContents(3 * MB);
+        stubHead(contents, false);
+        stubFor(get(urlEqualTo("/" + TEST_FILE_NAME))
+                .withHeader("Range", absent())
+                .willReturn(aResponse()
+                        .withBody(contents)));
+
+        Download t = makeProjectAndTask();
+        t.src(wireMock.url(TEST_FILE_NAME));
+        File dst = newTempFile();
+        t.dest(dst);
+        t.segments(3);
+        execute(t);
+
+        assertThat(dst).hasBinaryContent(contents);
+        verify(1, getRequestedFor(urlEqualTo("/" + TEST_FILE_NAME)));
+    }
+
+    /**
+     * Tests if the plugin falls back to a single request if the server
+     * does not send a validator that makes sure all segments belong to the
+     * same version of the file
+     * @throws Exception if anything goes wrong
+     */
+    @Test
+    public void noValidator() throws Exception {
+        byte[] contents = makeContents(3 * MB);
+        stubFor(head(urlEqualTo("/" + TEST_FILE_NAME))
+                .willReturn(aResponse()
+                        .withHeader("Accept-Ranges", "bytes")
+                        .withHeader("Content-Length",
+                                String.valueOf(contents.length))));
+        stubFor(get(urlEqualTo("/" + TEST_FILE_NAME))
+                .withHeader("Range", absent())
+                .willReturn(aResponse()
+                        .withBody(contents)));
+
+        Download t = makeProjectAndTask();
+        t.src(wireMock.url(TEST_FILE_NAME));
+        File dst = newTempFile();
+        t.dest(dst);
+        t.segments(3);
+        execute(t);
+
+        assertThat(dst).hasBinaryContent(contents);
+        verify(1, getRequestedFor(urlEqualTo("/" + TEST_FILE_NAME)));
+    }
+
+    /**
+     * Tests if a file can be split into segments even if the number of
+     * concurrent downloads is limited to one. The segments then have to be
+     * downloaded one after the other.
+     * @throws Exception if anything goes wrong
+     */
+    @Test
+    public void segmentsLimited() throws Exception {
+        byte[] contents = makeContents(3 * MB);
+        stubHead(contents, true);
+        stubRange(contents, 0, MB - 1);
+        stubRange(contents, MB, 2 * MB - 1);
+        stubRange(contents, 2 * MB, contents.length - 1);
+
+        Download t = makeProjectAndTask();
+        t.src(wireMock.url(TEST_FILE_NAME));
+        File dst = newTempFile();
+        t.dest(dst);
+        t.segments(3);
+        t.maxConcurrentDownloads(1);
+        execute(t);
+
+        assertThat(dst).hasBinaryContent(contents);
+        verify(3, getRequestedFor(urlEqualTo("/" + TEST_FILE_NAME)));
+    }
+
+    /**
+     * Tests if the plugin falls back to a single request if the file is
+     * too small to be split
+     * @throws Exception if anything goes wrong
+     */
+    @Test
+    public void tooSmall() throws Exception {
+        byte[] contents = makeContents(MB + 1);
+        stubHead(contents, true);
+        stubFor(get(urlEqualTo("/" + TEST_FILE_NAME))
+                .withHeader("Range", absent())
+                .willReturn(aResponse()
+                        .withBody(contents)));
+
+        Download t = makeProjectAndTask();
+        t.src(wireMock.url(TEST_FILE_NAME));
+        File dst = newTempFile();
+        t.dest(dst);
+        t.segments(4);
+        execute(t);
+
+        assertThat(dst).hasBinaryContent(contents);
+        verify(1, getRequestedFor(urlEqualTo("/" + TEST_FILE_NAME)));
+    }
+
+    /**
+     * Tests if the download fails if the server returns the whole file
+     * instead of a segment
+     * @throws Exception if anything goes wrong
+     */
+    @Test
+    public void rangeNotHonored() throws Exception {
+        byte[] contents = makeContents(2 * MB);
+        stubHead(contents, true);
+        stubFor(get(urlEqualTo("/" + TEST_FILE_NAME))
+                .willReturn(aResponse()
+                        .withBody(contents)));
+
+        Download t = makeProjectAndTask();
+        t.src(wireMock.url(TEST_FILE_NAME));
+        File dst = newTempFile();
+        assertThat(dst.delete()).isTrue();
+        t.dest(dst);
+        t.segments(2);
+        assertThatThrownBy(() -> execute(t))
+                .isInstanceOf(WorkerExecutionException.class)
+                .rootCause()
+                .isInstanceOf(IOException.class)
+                .hasMessageContaining("did not return the requested range");
+        assertThat(dst).doesNotExist();
+    }
+
+    /**
+     * Tests if an invalid number of segments is rejected
+     */
+    @Test
+    public void invalidSegments() {
+        Download t = makeProjectAndTask();
+        assertThatThrownBy(() -> t.segments(0))
+                .isInstanceOf(IllegalArgumentException.class);
+    }
+}
@@ -0,0 +1,345 @@
+package de.undercouch.gradle.tasks.download;
+
+import de.undercouch.gradle.tasks.download.internal.DownloadCache;
+import org.apache.commons.codec.binary.Hex;
+import org.junit.jupiter.api.Test;
+
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.util.Arrays;
+
+import static com.github.tomakehurst.wiremock.client.WireMock.aResponse;
+import static com.github.tomakehurst.wiremock.client.WireMock.absent;
+import static com.github.tomakehurst.wiremock.client.WireMock.equalTo;
+import static com.github.tomakehurst.wiremock.client.WireMock.get;
+import static com.github.tomakehurst.wiremock.client.WireMock.getRequestedFor;
+import static com.github.tomakehurst.wiremock.client.WireMock.stubFor;
+import static com.github.tomakehurst.wiremock.client.WireMock.urlEqualTo;
+import static com.github.tomakehurst.wiremock.client.WireMock.verify;
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+/**
+ * Tests if files can be downloaded through the shared cache
+ * @author Michel Kraemer
+ */
+public class SharedCacheTest extends TestBaseWithMockServer {
+    private static final String ETAG = "\"foobar\"";
+
+    /**
+     * Create a task that downloads the test file through the shared cache
+     * @param cacheDir the cache directory
+     * @param dst the destination file
+     * @return the task
+     */
+    private Download makeCachedTask(File cacheDir, File dst) {
+        Download t = makeProjectAndTask();
+        t.src(wireMock.url(TEST_FILE_NAME));
+        t.dest(dst);
+        t.sharedCache(true);
+        t.sharedCacheDir(cacheDir);
+        return t;
+    }
+
+    /**
+     * Tests if a file downloaded by one project is revalidated and reused
+     * by another one
+     * @throws Exception if anything goes wrong
+     */
+    @Test
+    public void revalidate() throws Exception {
+        stubFor(get(urlEqualTo("/" + TEST_FILE_NAME))
+                .withHeader("If-None-Match", absent())
+                .willReturn(aResponse()
+                        .withHeader("ETag", ETAG)
+                        .withBody(CONTENTS)));
+        stubFor(get(urlEqualTo("/" + TEST_FILE_NAME))
+                .withHeader("If-None-Match", equalTo(ETAG))
+                .willReturn(aResponse()
+                        .withStatus(304)));
+
+        File cacheDir = newTempDir();
+        File dst1 = new File(newTempDir(), TEST_FILE_NAME);
+        execute(makeCachedTask(cacheDir, dst1));
+        assertThat(dst1).usingCharset(StandardCharsets.UTF_8).hasContent(CONTENTS);
+
+        File dst2 = new File(newTempDir(), TEST_FILE_NAME);
+        execute(makeCachedTask(cacheDir, dst2));
+        assertThat(dst2).usingCharset(StandardCharsets.UTF_8).hasContent(CONTENTS);
+
+        verify(2, getRequestedFor(urlEqualTo("/" + TEST_FILE_NAME)));
+        verify(1, getRequestedFor(urlEqualTo("/" + TEST_FILE_NAME))
+                .withHeader("If-None-Match", equalTo(ETAG)));
+    }
+
+    /**
+     * Tests if a modified file is downloaded to the cache again
+     * @throws Exception if anything goes wrong
+     */
+    @Test
+    public void modified() throws Exception {
+        stubFor(get(urlEqualTo("/" + TEST_FILE_NAME))
+                .willReturn(aResponse()
+                        .withHeader("ETag", ETAG)
+                        .withBody(CONTENTS)));
+
+        File cacheDir = newTempDir();
+        File dst1 = new File(newTempDir(), TEST_FILE_NAME);
+        execute(makeCachedTask(cacheDir, dst1));
+
+        stubFor(get(urlEqualTo("/" + TEST_FILE_NAME))
+                .withHeader("If-None-Match", equalTo(ETAG))
+                .willReturn(aResponse()
+                        .withHeader("ETag", "\"new\"")
+                        .withBody(CONTENTS2)));
+
+        File dst2 = new File(newTempDir(), TEST_FILE_NAME);
+        execute(makeCachedTask(cacheDir, dst2));
+        assertThat(dst2).usingCharset(StandardCharsets.UTF_8).hasContent(CONTENTS2);
+        assertThat(dst1).usingCharset(StandardCharsets.UTF_8).hasContent(CONTENTS);
+    }
+
+    /**
+     * Tests if a file with a known checksum is taken from the cache without
+     * sending a request
+     * @throws Exception if anything goes wrong
+     */
+    @Test
+    public void checksum() throws Exception {
+        configureDefaultStub();
+
+        String sha256 = Hex.encodeHexString(MessageDigest.getInstance("SHA-256")
+                .digest(CONTENTS.getBytes(StandardCharsets.UTF_8)));
+
+        File cacheDir = newTempDir();
+        File dst1 = new File(newTempDir(), TEST_FILE_NAME);
+        Download t1 = makeCachedTask(cacheDir, dst1);
+        t1.checksum("SHA-256", sha256);
+        execute(t1);
+
+        File dst2 = new File(newTempDir(), TEST_FILE_NAME);
+        Download t2 = makeCachedTask(cacheDir, dst2);
+        t2.checksum("SHA-256", sha256);
+        execute(t2);
+
+        assertThat(dst2).usingCharset(StandardCharsets.UTF_8).hasContent(CONTENTS);
+        verify(1, getRequestedFor(urlEqualTo("/" + TEST_FILE_NAME)));
+    }
+
+    /**
+     * Tests if modifying a destination file does not affect the cache
+     * @throws Exception if anything goes wrong
+     */
+    @Test
+    public void modifyDestination() throws Exception {
+        configureDefaultStub();
+
+        String sha256 = Hex.encodeHexString(MessageDigest.getInstance("SHA-256")
+                .digest(CONTENTS.getBytes(StandardCharsets.UTF_8)));
+
+        File cacheDir = newTempDir();
+        File dst1 = new File(newTempDir(), TEST_FILE_NAME);
+        Download t1 = makeCachedTask(cacheDir, dst1);
+        t1.checksum("SHA-256", sha256);
+        execute(t1);
+        Files.write(dst1.toPath(), "Modified".getBytes(StandardCharsets.UTF_8),
+                StandardOpenOption.APPEND);
+
+        File dst2 = new File(newTempDir(), TEST_FILE_NAME);
+        Download t2 = makeCachedTask(cacheDir, dst2);
+        t2.checksum("SHA-256", sha256);
+        execute(t2);
+
+        assertThat(dst2).usingCharset(StandardCharsets.UTF_8).hasContent(CONTENTS);
+        verify(1, getRequestedFor(urlEqualTo("/" + TEST_FILE_NAME)));
+    }
+
+    /**
+     * Tests if a cached file that has been corrupted is downloaded again
+     * @throws Exception if anything goes wrong
+     */
+    @Test
+    public void corrupt() throws Exception {
+        configureDefaultStub();
+
+        String sha256 = Hex.encodeHexString(MessageDigest.getInstance("SHA-256")
+                .digest(CONTENTS.getBytes(StandardCharsets.UTF_8)));
+
+        File cacheDir = newTempDir();
+        File dst1 = new File(newTempDir(), TEST_FILE_NAME);
+        Download t1 = makeCachedTask(cacheDir, dst1);
+        t1.checksum("SHA-256", sha256);
+        execute(t1);
+
+        // change the contents but keep the size and the timestamp
+        File[] cachedFiles = new File(cacheDir, "files").listFiles();
+        assertThat(cachedFiles).hasSize(1);
+        long lastModified = cachedFiles[0].lastModified();
+        char[] corrupt = new char[CONTENTS.length()];
+        Arrays.fill(corrupt, 'x');
+        Files.write(cachedFiles[0].toPath(), new String(corrupt)
+                .getBytes(StandardCharsets.UTF_8));
+        assertThat(cachedFiles[0].setLastModified(lastModified)).isTrue();
+
+        File dst2 = new File(newTempDir(), TEST_FILE_NAME);
+        Download t2 = makeCachedTask(cacheDir, dst2);
+        t2.checksum("SHA-256", sha256);
+        execute(t2);
+
+        assertThat(dst2).usingCharset(StandardCharsets.UTF_8).hasContent(CONTENTS);
+        verify(2, getRequestedFor(urlEqualTo("/" + TEST_FILE_NAME)));
+    }
+
+    /**
+     * Tests if a cached file that is evicted after it has been looked up is
+     * treated as a cache miss
+     * @throws Exception if anything goes wrong
+     */
+    @Test
+    public void evictedAfterLookup() throws Exception {
+        DownloadCache cache = new DownloadCache(newTempDir());
+        File f = cache.newStagingFile();
+        Files.write(f.toPath(), CONTENTS.getBytes(StandardCharsets.UTF_8));
+        cache.put(wireMock.url(TEST_FILE_NAME), ETAG, null, null, f);
+
+        DownloadCache.Entry entry = cache.get(wireMock.url(TEST_FILE_NAME));
+        assertThat(entry).isNotNull();
+        Files.delete(entry.getFile().toPath());
+
+        File dst = newTempFile();
+        Files.write(dst.toPath(), CONTENTS2.getBytes(StandardCharsets.UTF_8));
+        assertThat(cache.materialize(entry, dst)).isFalse();
+        assertThat(dst).usingCharset(StandardCharsets.UTF_8).hasContent(CONTENTS2);
+        assertThat(cache.get(wireMock.url(TEST_FILE_NAME))).isNull();
+    }
+
+    /**
+     * Tests if a corrupt cached file does not replace the destination and
+     * does not leave temporary files behind
+     * @throws Exception if anything goes wrong
+     */
+    @Test
+    public void materializeCorrupt() throws Exception {
+        DownloadCache cache = new DownloadCache(newTempDir());
+        File f = cache.newStagingFile();
+        Files.write(f.toPath(), CONTENTS.getBytes(StandardCharsets.UTF_8));
+        DownloadCache.Entry entry = cache.put(wireMock.url(TEST_FILE_NAME),
+                ETAG, null, null, f);
+        Files.write(entry.getFile().toPath(), CONTENTS2.getBytes(StandardCharsets.UTF_8));
+
+        File dir = newTempDir();
+        File dst = new File(dir, TEST_FILE_NAME);
+        Files.write(dst.toPath(), "old".getBytes(StandardCharsets.UTF_8));
+        assertThat(cache.materialize(entry, dst)).isFalse();
+        assertThat(dst).usingCharset(StandardCharsets.UTF_8).hasContent("old");
+        assertThat(dir.list()).containsExactly(TEST_FILE_NAME);
+    }
+
+    /**
+     * Tests if a file with the expected length and last-modified time is
+     * considered up to date without hashing it and if other files are
+     * compared by their contents
+     * @throws Exception if anything goes wrong
+     */
+    @Test
+    public void matchesByLastModified() throws Exception {
+        DownloadCache cache = new DownloadCache(newTempDir());
+        File f = cache.newStagingFile();
+        Files.write(f.toPath(), CONTENTS.getBytes(StandardCharsets.UTF_8));
+        DownloadCache.Entry entry = cache.put(wireMock.url(TEST_FILE_NAME),
+                ETAG, null, null, f);
+
+        File dst = newTempFile();
+        assertThat(cache.materialize(entry, dst)).isTrue();
+        long lastModified = 1000000000000L;
+        assertThat(dst.setLastModified(lastModified)).isTrue();
+        assertThat(cache.matches(entry, dst, lastModified)).isTrue();
+        assertThat(cache.matches(entry, dst, -1)).isTrue();
+
+        // same length and time, so the contents are not compared
+        char[] changed = new char[CONTENTS.length()];
+        Arrays.fill(changed, 'x');
+        Files.write(dst.toPath(), new String(changed).getBytes(StandardCharsets.UTF_8));
+        assertThat(dst.setLastModified(lastModified)).isTrue();
+        assertThat(cache.matches(entry, dst, lastModified)).isTrue();
+        assertThat(cache.matches(entry, dst, -1)).isFalse();
+        assertThat(cache.matches(entry, dst, lastModified + 1000)).isFalse();
+    }
+
+    /**
+     * Tests if cached files are used in offline mode
+     * @throws Exception if anything goes wrong
+     */
+    @Test
+    public void offline() throws Exception {
+        configureDefaultStub();
+
+        File cacheDir = newTempDir();
+        execute(makeCachedTask(cacheDir, new File(newTempDir(), TEST_FILE_NAME)));
+
+        File dst = new File(newTempDir(), TEST_FILE_NAME);
+        Download t = makeProjectAndTask(project -> project.getGradle()
+                .getStartParameter().setOffline(true));
+        t.src(wireMock.url(TEST_FILE_NAME));
+        t.dest(dst);
+        t.sharedCache(true);
+        t.sharedCacheDir(cacheDir);
+        execute(t);
+
+        assertThat(dst).usingCharset(StandardCharsets.UTF_8).hasContent(CONTENTS);
+        verify(1, getRequestedFor(urlEqualTo("/" + TEST_FILE_NAME)));
+    }
+
+    /**
+     * Tests if files are evicted when the cache becomes too large
+     * @throws Exception if anything goes wrong
+     */
+    @Test
+    public void evict() throws Exception {
+        configureDefaultStub();
+        configureDefaultStub2();
+
+        File cacheDir = newTempDir();
+        File dst = newTempDir();
+        Download t = makeProjectAndTask();
+        t.src(wireMock.url(TEST_FILE_NAME));
+        t.dest(dst);
+        t.sharedCache(true);
+        t.sharedCacheDir(cacheDir);
+        t.sharedCacheMaxSize(CONTENTS.length() + CONTENTS2.length());
+        execute(t);
+
+        Download t2 = makeProjectAndTask();
+        t2.src(wireMock.url(TEST_FILE_NAME2));
+        t2.dest(dst);
+        t2.sharedCache(true);
+        t2.sharedCacheDir(cacheDir);
+        t2.sharedCacheMaxSize(CONTENTS2.length());
+        execute(t2);
+
+        // the least recently used file must have been evicted
+        File[] cachedFiles = new File(cacheDir, "files").listFiles();
+        assertThat(cachedFiles).hasSize(1);
+        assertThat(cachedFiles[0]).usingCharset(StandardCharsets.UTF_8)
+                .hasContent(CONTENTS2);
+
+        // downloaded files must not be affected
+        assertThat(new File(dst, TEST_FILE_NAME))
+                .usingCharset(StandardCharsets.UTF_8).hasContent(CONTENTS);
+        assertThat(new File(dst, TEST_FILE_NAME2))
+                .usingCharset(StandardCharsets.UTF_8).hasContent(CONTENTS2);
+    }
+
+    /**
+     * Tests if the task fails if the maximum cache size is negative
+     */
+    @Test
+    public void invalidMaxSize() {
+        Download t = makeProjectAndTask();
+        assertThatThrownBy(() -> t.sharedCacheMaxSize(-1))
+                .isInstanceOf(IllegalArgumentException.class);
+    }
+}
@@ -0,0 +1,130 @@
+package de.undercouch.gradle.tasks.download;
+
+import de.undercouch.gradle.tasks.download.internal.HttpClientService;
+import de.undercouch.gradle.tasks.download.internal.VirtualThreadWorkerExecutorHelper;
+import org.junit.jupiter.api.Test;
+
+import java.io.File;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Semaphore;
+
+import static com.github.tomakehurst.wiremock.client.WireMock.aResponse;
+import static com.github.tomakehurst.wiremock.client.WireMock.get;
+import static com.github.tomakehurst.wiremock.client.WireMock.stubFor;
+import static com.github.tomakehurst.wiremock.client.WireMock.urlEqualTo;
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+import static org.junit.jupiter.api.Assumptions.assumeTrue;
+
+/**
+ * Tests if files can be downloaded on virtual threads
+ * @author Michel Kraemer
+ */
+public class VirtualThreadsTest extends TestBaseWithMockServer {
+    /**
+     * Tests if many files can be downloaded with a limited number of
+     * virtual threads
+     * @throws Exception if anything goes wrong
+     */
+    @Test
+    public void manyFiles() throws Exception {
+        assumeTrue(VirtualThreadWorkerExecutorHelper.isSupported());
+
+        int n = 50;
+        List<String> sources = new ArrayList<>();
+        for (int i = 0; i < n; i++) {
+            stubFor(get(urlEqualTo("/file" + i))
+                    .willReturn(aResponse()
+                            .withFixedDelay(20)
+                            .withBody("contents" + i)));
+            sources.add(wireMock.url("file" + i));
+        }
+
+        Download t = makeProjectAndTask();
+        t.src(sources);
+        File dst = newTempDir();
+        t.dest(dst);
+        t.virtualThreads(true);
+        t.maxVirtualThreads(4);
+        assertThat(t.isVirtualThreads()).isTrue();
+        assertThat(t.getMaxVirtualThreads()).isEqualTo(4);
+        execute(t);
+
+        for (int i = 0; i < n; i++) {
+            assertThat(new File(dst, "file" + i))
+                    .usingCharset(StandardCharsets.UTF_8)
+                    .hasContent("contents" + i);
+        }
+    }
+
+    /**
+     * Tests if all tasks in the build share the number of virtual threads
+     * @throws Exception if anything goes wrong
+     */
+    @Test
+    public void buildWide() throws Exception {
+        assumeTrue(VirtualThreadWorkerExecutorHelper.isSupported());
+
+        configureDefaultStub();
+        configureDefaultStub2();
+
+        Download t = makeProjectAndTask();
+        t.src(wireMock.url(TEST_FILE_NAME));
+        t.dest(newTempFile());
+        t.virtualThreads(true);
+        t.maxVirtualThreads(4);
+        execute(t);
+
+        Download t2 = t.getProject().getTasks().create("downloadFile2", Download.class);
+        t2.src(wireMock.url(TEST_FILE_NAME2));
+        File dst2 = newTempFile();
+        t2.dest(dst2);
+        t2.virtualThreads(true);
+        t2.maxVirtualThreads(8);
+        execute(t2);
+        assertThat(dst2).usingCharset(StandardCharsets.UTF_8).hasContent(CONTENTS2);
+
+        HttpClientService service = DownloadAction.registerHttpClientService(
+                t.getProject()).get();
+        Semaphore permits = service.getVirtualThreadPermits(16);
+        assertThat(permits.availablePermits()).isEqualTo(4);
+        assertThat(service.getVirtualThreadPermits(32)).isSameAs(permits);
+    }
+
+    /**
+     * Tests if the task fails if a download running on a virtual thread fails
+     * @throws Exception if anything goes wrong
+     */
+    @Test
+    public void failure() throws Exception {
+        assumeTrue(VirtualThreadWorkerExecutorHelper.isSupported());
+
+        stubFor(get(urlEqualTo("/" + TEST_FILE_NAME))
+                .willReturn(aResponse()
+                        .withStatus(404)));
+
+        Download t = makeProjectAndTask();
+        t.src(wireMock.url(TEST_FILE_NAME));
+        t.dest(newTempFile());
+        t.virtualThreads(true);
+        assertThatThrownBy(() -> execute(t))
+                .isInstanceOf(UncheckedIOException.class)
+                .rootCause()
+                .hasMessageContaining("404");
+    }
+
+    /**
+     * Tests if an invalid limit is rejected
+     */
+    @Test
+    public void invalidLimit() {
+        Download t = makeProjectAndTask();
+        assertThat(t.isVirtualThreads()).isFalse();
+        assertThat(t.getMaxVirtualThreads()).isEqualTo(64);
+        assertThatThrownBy(() -> t.maxVirtualThreads(0))
+                .isInstanceOf(IllegalArgumentException.class);
+    }
+}
@@ -0,0 +1,196 @@
+package de.undercouch.gradle.tasks.download;
+
+import de.undercouch.gradle.tasks.download.internal.BufferPool;
+import de.undercouch.gradle.tasks.download.internal.MappedWriteEngine;
+import de.undercouch.gradle.tasks.download.internal.ProgressLoggerWrapper;
+import org.gradle.api.logging.Logging;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.ValueSource;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.nio.file.Files;
+import java.util.Random;
+
+import static com.github.tomakehurst.wiremock.client.WireMock.aResponse;
+import static com.github.tomakehurst.wiremock.client.WireMock.get;
+import static com.github.tomakehurst.wiremock.client.WireMock.stubFor;
+import static com.github.tomakehurst.wiremock.client.WireMock.urlEqualTo;
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+/**
+ * Tests if files can be written with all write engines
+ * @author Michel Kraemer
+ */
+public class WriteEngineTest extends TestBaseWithMockServer {
+    /**
+     * Create random contents
+     * @param length the number of bytes to generate
+     * @return the contents
+     */
+    private static byte[] makeContents(int length) {
+        byte[] contents = new byte[length];
+        new Random(1234).nextBytes(contents);
+        return contents;
+    }
+
+    /**
+     * Download a file with the given write engine
+     * @param engine the write engine
+     * @param contents the file's contents
+     * @param contentLength true if the server should send a Content-Length
+     * header
+     * @throws Exception if anything goes wrong
+     */
+    private void download(String engine, byte[] contents, boolean contentLength)
+            throws Exception {
+        if (contentLength) {
+            stubFor(get(urlEqualTo("/" + TEST_FILE_NAME))
+                    .willReturn(aResponse()
+                            .withHeader("content-length",
+                                    String.valueOf(contents.length))
+                            .withBody(contents)));
+        } else {
+            stubFor(get(urlEqualTo("/" + TEST_FILE_NAME))
+                    .willReturn(aResponse()
+                            .withBody(contents)));
+        }
+
+        Download t = makeProjectAndTask();
+        t.compress(false);
+        t.src(wireMock.url(TEST_FILE_NAME));
+        File dst = newTempFile();
+        t.dest(dst);
+        t.writeEngine(engine);
+        assertThat(t.getWriteEngine()).isEqualTo(engine);
+        execute(t);
+
+        assertThat(dst).hasBinaryContent(contents);
+    }
+
+    /**
+     * Test if a small file can be written
+     * @param engine the write engine
+     * @throws Exception if anything goes wrong
+     */
+    @ParameterizedTest(name = "engine = {0}")
+    @ValueSource(strings = { "auto", "sync", "async", "mmap" })
+    public void small(String engine) throws Exception {
+        download(engine, makeContents(17), true);
+    }
+
+    /**
+     * Test if a large file can be written
+     * @param engine the write engine
+     * @throws Exception if anything goes wrong
+     */
+    @ParameterizedTest(name = "engine = {0}")
+    @ValueSource(strings = { "auto", "sync", "async", "mmap" })
+    public void large(String engine) throws Exception {
+        download(engine, makeContents(3 * 1024 * 1024 + 17), true);
+    }
+
+    /**
+     * Test if a file can be written if its size is unknown
+     * @param engine the write engine
+     * @throws Exception if anything goes wrong
+     */
+    @ParameterizedTest(name = "engine = {0}")
+    @ValueSource(strings = { "auto", "sync", "async", "mmap" })
+    public void unknownSize(String engine) throws Exception {
+        download(engine, makeContents(100 * 1024 + 17), false);
+    }
+
+    /**
+     * Test if an existing file is overwritten completely
+     * @throws Exception if anything goes wrong
+     */
+    @Test
+    public void overwriteLonger() throws Exception {
+        byte[] contents = makeContents(1000);
+        stubFor(get(urlEqualTo("/" + TEST_FILE_NAME))
+                .willReturn(aResponse()
+                        .withBody(contents)));
+
+        for (String engine : new String[] { "sync", "async", "mmap" }) {
+            Download t = makeProjectAndTask();
+            t.src(wireMock.url(TEST_FILE_NAME));
+            File dst = newTempFile();
+            Files.write(dst.toPath(), makeContents(5000));
+            t.dest(dst);
+            t.writeEngine(engine);
+            execute(t);
+            assertThat(dst).hasBinaryContent(contents);
+        }
+    }
+
+    /**
+     * Test if the memory-mapped engine truncates the file to the number of
+     * bytes actually received if the input stream ends prematurely and if
+     * the file can be deleted afterwards
+     * @throws Exception if anything goes wrong
+     */
+    @Test
+    public void mmapTruncate() throws Exception {
+        byte[] contents = makeContents(1000);
+        File dst = newTempFile();
+        Files.write(dst.toPath(), makeContents(5000));
+
+        MappedWriteEngine engine = new MappedWriteEngine(new BufferPool(256, 1));
+        engine.write(new ByteArrayInputStream(contents, 100, 900), dst, 100,
+                4000, new ProgressLoggerWrapper(Logging.getLogger(
+                        WriteEngineTest.class)));
+
+        assertThat(dst).hasBinaryContent(contents);
+        assertThat(dst.delete()).isTrue();
+    }
+
+    /**
+     * Test if a file can be written with a custom buffer size
+     * @param engine the write engine
+     * @throws Exception if anything goes wrong
+     */
+    @ParameterizedTest(name = "engine = {0}")
+    @ValueSource(strings = { "sync", "async", "mmap" })
+    public void customBufferSize(String engine) throws Exception {
+        byte[] contents = makeContents(1000);
+        stubFor(get(urlEqualTo("/" + TEST_FILE_NAME))
+                .willReturn(aResponse()
+                        .withBody(contents)));
+
+        Download t = makeProjectAndTask();
+        t.compress(false);
+        t.src(wireMock.url(TEST_FILE_NAME));
+        File dst = newTempFile();
+        t.dest(dst);
+        t.writeEngine(engine);
+        t.bufferSize(7);
+        assertThat(t.getBufferSize()).isEqualTo(7);
+        execute(t);
+
+        assertThat(dst).hasBinaryContent(contents);
+    }
+
+    /**
+     * Test if an invalid buffer size is rejected
+     */
+    @Test
+    public void invalidBufferSize() {
+        Download t = makeProjectAndTask();
+        assertThatThrownBy(() -> t.bufferSize(0))
+                .isInstanceOf(IllegalArgumentException.class);
+    }
+
+    /**
+     * Test if an invalid write engine is rejected
+     */
+    @Test
+    public void invalidEngine() {
+        Download t = makeProjectAndTask();
+        assertThat(t.getWriteEngine()).isEqualTo("auto");
+        assertThatThrownBy(() -> t.writeEngine("foobar"))
+                .isInstanceOf(IllegalArgumentException.class);
+    }
+}